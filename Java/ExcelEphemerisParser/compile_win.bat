@@ -11,6 +11,9 @@ SET LIBDIR=lib
 SET COMPILE_ROOT=%cd%
 SET MAINSRC=%SRCDIR%\%MAIN%.java
 
+:: standalone tools not reachable from the main class
+SET TOOLSRC=%SRCDIR%\HorizonsStandIn.java %SRCDIR%\FetchLoadTest.java %SRCDIR%\CoverageMap.java %SRCDIR%\OffsetTable.java %SRCDIR%\WindowSearch.java %SRCDIR%\ReferenceCheck.java %SRCDIR%\Vec3Check.java %SRCDIR%\TerrainCheck.java
+
 ECHO setting compilers and flags
 
 :: jar and java commands
@@ -36,7 +39,7 @@ MD %BINDIR%
 
 :: build code from source
 ECHO compiling source code from .\%SRCDIR% to .\%BINDIR%
-CALL %JC% %LFLAGS% %SFLAGS% %DFLAGS% %MAINSRC%
+CALL %JC% %LFLAGS% %SFLAGS% %DFLAGS% %MAINSRC% %TOOLSRC%
 
 :: head into build directory to unpack jars
 ECHO entering .\%BINDIR%
@@ -0,0 +1,122 @@
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+/**
+ * Time scales used by the lunar orientation models
+ * @author Nick Derr
+ */
+public class AstroTime {
+
+	public static final double J2000 = 2451545.0; // julian date of J2000.0
+	public static final double UNIX_EPOCH = 2440587.5; // julian date of 1970-01-01
+	public static final double DAYS_PER_CENTURY = 36525.0;
+	public static final double MS_PER_DAY = 86400000.0;
+	public static final double TT_MINUS_TAI = 32.184; // seconds
+
+	// leap seconds: year and month from which TAI-UTC took each value, 1972 on
+	private static final int[][] LEAP_SECONDS = {
+		{1972, 1, 10}, {1972, 7, 11}, {1973, 1, 12}, {1974, 1, 13},
+		{1975, 1, 14}, {1976, 1, 15}, {1977, 1, 16}, {1978, 1, 17},
+		{1979, 1, 18}, {1980, 1, 19}, {1981, 7, 20}, {1982, 7, 21},
+		{1983, 7, 22}, {1985, 7, 23}, {1988, 1, 24}, {1990, 1, 25},
+		{1991, 1, 26}, {1992, 7, 27}, {1993, 7, 28}, {1994, 7, 29},
+		{1996, 1, 30}, {1997, 7, 31}, {1999, 1, 32}, {2006, 1, 33},
+		{2009, 1, 34}, {2012, 7, 35}, {2015, 7, 36}, {2017, 1, 37}};
+	// UT1-UTC in seconds; -Dephparse.dut1=...
+	private static double dut1 = 0;
+	static {
+		try {
+			dut1 = Double.parseDouble(System.getProperty("ephparse.dut1", "0"));
+		} catch (NumberFormatException e) {
+			System.out.println("unknown ephparse.dut1, using 0");
+		}
+	}
+
+	private static final long[] LEAP_STARTS = new long[LEAP_SECONDS.length];
+	static {
+		Calendar cal = new GregorianCalendar(Ephemeris.UTC);
+		cal.clear();
+		for (int i = 0; i < LEAP_SECONDS.length; i++) {
+			cal.set(LEAP_SECONDS[i][0], LEAP_SECONDS[i][1] - 1, 1);
+			LEAP_STARTS[i] = cal.getTimeInMillis();
+		}
+	}
+
+	/**
+	 * Returns the julian date of the given instant
+	 * @param date the instant (UTC)
+	 * @return its julian date
+	 */
+	public static double julianDate(Date date) {
+		return julianDate(date.getTime());
+	}
+
+	/**
+	 * Returns the julian date of the given instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return its julian date
+	 */
+	public static double julianDate(long ms) {
+		return UNIX_EPOCH + ms / MS_PER_DAY;
+	}
+
+	/**
+	 * Returns TT-UTC at the given instant: leap seconds plus 32.184 s.
+	 * Instants before 1972 get the 1972 value
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return TT-UTC in seconds
+	 */
+	public static double ttMinusUtc(long ms) {
+		int i = LEAP_STARTS.length - 1;
+		while (i > 0 && ms < LEAP_STARTS[i])
+			i--;
+		return LEAP_SECONDS[i][2] + TT_MINUS_TAI;
+	}
+
+	/**
+	 * Returns the TT julian date of the given instant. TDB differs from it
+	 * by under 2 ms, so this serves for TDB as well
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return its julian date in TT
+	 */
+	public static double julianDateTT(long ms) {
+		return julianDate(ms) + ttMinusUtc(ms) / 86400.0;
+	}
+
+	/**
+	 * Returns the julian centuries from J2000.0 to the given instant
+	 * @param date the instant (UTC)
+	 * @return centuries since J2000.0
+	 */
+	public static double centuries(Date date) {
+		return (julianDate(date) - J2000) / DAYS_PER_CENTURY;
+	}
+
+	/**
+	 * Sets UT1-UTC (DUT1, as published in IERS Bulletin A) for sidereal
+	 * times; it is 0 unless set, which costs at most 0.9 s of time
+	 * @param seconds UT1-UTC in seconds
+	 */
+	public static void setUt1MinusUtc(double seconds) {
+		dut1 = seconds;
+	}
+
+	public static double getUt1MinusUtc() {
+		return dut1;
+	}
+
+	/**
+	 * Returns the Greenwich mean sidereal time (IAU 1982) of the given
+	 * instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return GMST in degrees, 0 to 360
+	 */
+	public static double gmst(long ms) {
+		double d = julianDate(ms) + dut1 / 86400 - J2000;
+		double t = d / DAYS_PER_CENTURY;
+		double gmst = (280.46061837 + 360.98564736629 * d
+				+ (0.000387933 - t / 38710000) * t * t) % 360;
+		return gmst < 0 ? gmst + 360 : gmst;
+	}
+}
@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Horizontal coordinates, sidereal time and airmass of the moon for a site,
+ * computed from the ICRF (astrometric) RA/Dec of the ephemeris rather than
+ * downloaded as Horizons quantities 4, 7 and 8, so they are available for
+ * any instant and not only at whole minutes.
+ *
+ * Positions are carried to the true equator and equinox of date with IAU
+ * 1976 precession, the largest nutation terms and annual aberration, and
+ * the apparent sidereal time is found from UT1 (UTC plus
+ * AstroTime.getUt1MinusUtc). Like Horizons' default the elevations are
+ * airless; what's left out (diurnal aberration, the smaller nutation terms,
+ * light deflection) moves the moon by under 2 arcsec.
+ * @author Nick Derr
+ */
+public class Astrometry {
+
+	// airmass formulas
+	public static final int KASTEN_YOUNG = 0; // Kasten & Young (1989)
+	public static final int HARDIE = 1; // Hardie (1962), for zenith angles below 85 deg
+
+	public static final double ABERRATION = 20.49552; // constant of aberration, arcsec
+
+	// the precession/nutation/aberration terms move by under 0.05 arcsec in
+	// this long, so rows share them
+	private static final long TERMS_STEP = 3600000;
+
+	/**
+	 * Returns the nutation in longitude and obliquity and the true
+	 * obliquity of the given instant, from the four largest terms
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return {dpsi, deps, eps} in degrees
+	 */
+	public static double[] nutation(long ms) {
+		double t = (AstroTime.julianDateTT(ms) - AstroTime.J2000) / AstroTime.DAYS_PER_CENTURY;
+		double node = Math.toRadians(125.04452 - 1934.136261 * t);
+		double sun = Math.toRadians(280.4665 + 36000.7698 * t);
+		double moon = Math.toRadians(218.3165 + 481267.8813 * t);
+		double dpsi = -17.20 * Math.sin(node) - 1.32 * Math.sin(2 * sun)
+				- 0.23 * Math.sin(2 * moon) + 0.21 * Math.sin(2 * node);
+		double deps = 9.20 * Math.cos(node) + 0.57 * Math.cos(2 * sun)
+				+ 0.10 * Math.cos(2 * moon) - 0.09 * Math.cos(2 * node);
+		double eps0 = 84381.448 - (46.8150 + (0.00059 - 0.001813 * t) * t) * t;
+		return new double[] {dpsi / 3600, deps / 3600, (eps0 + deps) / 3600};
+	}
+
+	/**
+	 * Returns the apparent local sidereal time
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param lon longitude, degrees east
+	 * @return LAST in degrees, 0 to 360
+	 */
+	public static double lst(long ms, double lon) {
+		double[] nut = nutation(ms);
+		double lst = (AstroTime.gmst(ms) + lon
+				+ nut[0] * Math.cos(Math.toRadians(nut[2]))) % 360;
+		return lst < 0 ? lst + 360 : lst;
+	}
+
+	/**
+	 * Returns the apparent RA/Dec (true equator and equinox of date) of an
+	 * astrometric position
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param ra ICRF right ascension, degrees
+	 * @param dec ICRF declination, degrees
+	 * @return {RA, Dec} of date in degrees
+	 */
+	public static double[] apparent(long ms, double ra, double dec) {
+		double[] terms = terms(ms);
+		double[] v = toDate(terms, ra, dec);
+		double a = Math.toDegrees(Math.atan2(v[1], v[0]));
+		return new double[] {a < 0 ? a + 360 : a, Math.toDegrees(Math.asin(v[2]))};
+	}
+
+	/**
+	 * Returns the airless azimuth and elevation of an astrometric position
+	 * as seen from a site, and the site's apparent sidereal time
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param ra ICRF right ascension, degrees
+	 * @param dec ICRF declination, degrees
+	 * @param site the observer
+	 * @return {azimuth (east of north), elevation, LAST}, in degrees
+	 */
+	public static double[] horizontal(long ms, double ra, double dec, Site site) {
+		double[] az = new double[1];
+		double[] el = new double[1];
+		double[] lst = new double[1];
+		horizontal(site, new long[] {ms}, new double[] {ra}, new double[] {dec},
+				1, az, el, lst);
+		return new double[] {az[0], el[0], lst[0]};
+	}
+
+	/**
+	 * Converts a batch of astrometric positions to horizontal coordinates.
+	 * Rows within TERMS_STEP of each other share the precession, nutation
+	 * and aberration terms, so a minute-by-minute series costs little more
+	 * than its trigonometry
+	 * @param site the observer
+	 * @param ms instants, milliseconds since 1970-01-01 UTC
+	 * @param ra ICRF right ascensions, degrees
+	 * @param dec ICRF declinations, degrees
+	 * @param n number of positions
+	 * @param az receives the azimuths (east of north), degrees
+	 * @param el receives the airless elevations, degrees
+	 * @param lst receives the apparent local sidereal times, degrees
+	 */
+	public static void horizontal(Site site, long[] ms, double[] ra, double[] dec,
+			int n, double[] az, double[] el, double[] lst) {
+		double phi = Math.toRadians(site.getLatitude());
+		double sinPhi = Math.sin(phi);
+		double cosPhi = Math.cos(phi);
+
+		double[] terms = null;
+		long termsAt = 0;
+		for (int i = 0; i < n; i++) {
+			if (terms == null || Math.abs(ms[i] - termsAt) > TERMS_STEP) {
+				terms = terms(ms[i]);
+				termsAt = ms[i];
+			}
+			double[] v = toDate(terms, ra[i], dec[i]);
+
+			double last = (AstroTime.gmst(ms[i]) + site.getLongitude() + terms[12]) % 360;
+			if (last < 0)
+				last += 360;
+			lst[i] = last;
+
+			// hour angle frame: v rotated by the sidereal time
+			double theta = Math.toRadians(last);
+			double cosT = Math.cos(theta);
+			double sinT = Math.sin(theta);
+			double h1 = cosT * v[0] + sinT * v[1]; // cos dec cos ha
+			double h2 = sinT * v[0] - cosT * v[1]; // cos dec sin ha
+			double sinEl = sinPhi * v[2] + cosPhi * h1;
+			el[i] = Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, sinEl))));
+			double a = Math.toDegrees(Math.atan2(-h2, cosPhi * v[2] - sinPhi * h1));
+			az[i] = a < 0 ? a + 360 : a;
+		}
+	}
+
+	/**
+	 * Returns the airmass at the given elevation
+	 * @param el airless elevation, degrees
+	 * @param formula KASTEN_YOUNG or HARDIE
+	 * @return the airmass, or NaN below the horizon (or, for HARDIE, below
+	 * 5 degrees, where the formula doesn't hold)
+	 */
+	public static double airmass(double el, int formula) {
+		if (el <= 0)
+			return Double.NaN;
+		if (formula == HARDIE) {
+			if (el < 5)
+				return Double.NaN;
+			double s = 1 / Math.sin(Math.toRadians(el)) - 1;
+			return s + 1 - 0.0018167 * s - 0.002875 * s * s - 0.0008083 * s * s * s;
+		}
+		return 1 / (Math.sin(Math.toRadians(el)) + 0.50572 * Math.pow(el + 6.07995, -1.6364));
+	}
+
+	/**
+	 * Returns the airmass formula for a name
+	 * @param name "kasten-young" or "hardie"
+	 * @return the formula, or -1 if the name is unknown
+	 */
+	public static int airmassFor(String name) {
+		if (name.equalsIgnoreCase("kasten-young"))
+			return KASTEN_YOUNG;
+		if (name.equalsIgnoreCase("hardie"))
+			return HARDIE;
+		return -1;
+	}
+
+	/**
+	 * Fills the AZI, ELEV, LST and A_MASS fields of every row whose AZI is
+	 * n.a., i.e. rows fetched without quantities 4, 7 and 8. The airmass
+	 * extinction field is left n.a.
+	 * @param table the rows, with the legacy field layout
+	 * @param site the observer
+	 * @param formula KASTEN_YOUNG or HARDIE
+	 * @return the number of rows filled
+	 * @throws EphemerisDataParseException if a row's time or RA/Dec can't
+	 * be read
+	 */
+	public static int fill(EphemerisTable table, Site site, int formula)
+			throws EphemerisDataParseException {
+		int size = table.size();
+		int[] index = new int[size];
+		long[] ms = new long[size];
+		double[] ra = new double[size];
+		double[] dec = new double[size];
+
+		SimpleDateFormat df = new SimpleDateFormat(Ephemeris.DATE_FORMAT + " "
+				+ Ephemeris.TIME_FORMAT);
+		df.setTimeZone(Ephemeris.UTC);
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			String[] row = table.get(i);
+			if (row.length <= Ephemeris.A_MASS || !row[Ephemeris.AZI].equals("n.a."))
+				continue;
+			try {
+				ms[n] = df.parse(row[Ephemeris.DATE] + " " + row[Ephemeris.TIME]).getTime();
+				ra[n] = Double.parseDouble(row[Ephemeris.RA]);
+				dec[n] = Double.parseDouble(row[Ephemeris.DEC]);
+			} catch (ParseException e) {
+				throw new EphemerisDataParseException();
+			} catch (NumberFormatException e) {
+				throw new EphemerisDataParseException();
+			}
+			index[n++] = i;
+		}
+
+		double[] az = new double[n];
+		double[] el = new double[n];
+		double[] lst = new double[n];
+		horizontal(site, ms, ra, dec, n, az, el, lst);
+
+		for (int k = 0; k < n; k++) {
+			String[] row = table.get(index[k]);
+			row[Ephemeris.AZI] = String.format(Locale.ROOT, "%.6f", az[k]);
+			row[Ephemeris.ELEV] = String.format(Locale.ROOT, "%.6f", el[k]);
+			row[Ephemeris.LST] = String.format(Locale.ROOT, "%.10f", lst[k] / 15);
+			double x = airmass(el[k], formula);
+			row[Ephemeris.A_MASS] = Double.isNaN(x) ? "n.a." : String.format(Locale.ROOT, "%.3f", x);
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the terms carrying an ICRF direction to the true equator of
+	 * date: the combined precession-nutation matrix (9 elements, by rows),
+	 * the earth's velocity over c (3) and the equation of the equinoxes
+	 */
+	private static double[] terms(long ms) {
+		double[] nut = nutation(ms);
+		double eps = Math.toRadians(nut[2] - nut[1]); // mean obliquity
+		double epsTrue = Math.toRadians(nut[2]);
+		double dpsi = Math.toRadians(nut[0]);
+
+		// N = R1(-eps_true) R3(-dpsi) R1(eps)
+		double ce = Math.cos(eps), se = Math.sin(eps);
+		double ct = Math.cos(epsTrue), st = Math.sin(epsTrue);
+		double cp = Math.cos(dpsi), sp = Math.sin(dpsi);
+		double[][] nm = {
+				{cp, -sp * ce, -sp * se},
+				{sp * ct, cp * ct * ce + st * se, cp * ct * se - st * ce},
+				{sp * st, cp * st * ce - ct * se, cp * st * se + ct * ce}};
+
+		Mat3 p = Precession.matrix(new Date(ms));
+		double[] t = new double[13];
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				t[3 * i + j] = nm[i][0] * p.get(0, j) + nm[i][1] * p.get(1, j)
+						+ nm[i][2] * p.get(2, j);
+
+		// the earth moves 90 degrees of longitude behind the sun
+		double d = AstroTime.julianDateTT(ms) - AstroTime.J2000;
+		double g = Math.toRadians(357.529 + 0.98560028 * d);
+		double sunLon = Math.toRadians(280.459 + 0.98564736 * d
+				+ 1.915 * Math.sin(g) + 0.020 * Math.sin(2 * g));
+		double k = ABERRATION * Precession.ARCSEC;
+		double obliquity = Math.toRadians(23.4392911);
+		t[9] = k * Math.sin(sunLon);
+		t[10] = -k * Math.cos(sunLon) * Math.cos(obliquity);
+		t[11] = -k * Math.cos(sunLon) * Math.sin(obliquity);
+
+		t[12] = nut[0] * Math.cos(epsTrue); // equation of the equinoxes, degrees
+		return t;
+	}
+
+	/**
+	 * Returns the unit vector of date of an ICRF direction, aberrated
+	 */
+	private static double[] toDate(double[] t, double ra, double dec) {
+		double r = Math.toRadians(ra);
+		double dc = Math.toRadians(dec);
+		double x = Math.cos(dc) * Math.cos(r) + t[9];
+		double y = Math.cos(dc) * Math.sin(r) + t[10];
+		double z = Math.sin(dc) + t[11];
+		double norm = Math.sqrt(x * x + y * y + z * z);
+		x /= norm;
+		y /= norm;
+		z /= norm;
+		return new double[] {t[0] * x + t[1] * y + t[2] * z,
+				t[3] * x + t[4] * y + t[5] * z, t[6] * x + t[7] * y + t[8] * z};
+	}
+
+	/**
+	 * Compares the computed AZI, ELEV, LST and A_MASS with those of a
+	 * Horizons ephemeris file fetched with quantities 1, 4, 7 and 8
+	 * Usage: java Astrometry ephemeris.txt [site] [kasten-young|hardie]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: java Astrometry ephemeris.txt [site]"
+					+ " [kasten-young|hardie]");
+			System.exit(-1);
+		}
+		Site site = args.length > 1 ? Site.parse(args[1]) : Site.KITT_PEAK;
+		int formula = args.length > 2 ? airmassFor(args[2]) : KASTEN_YOUNG;
+		if (site == null || formula < 0) {
+			System.out.println("unknown site or airmass formula");
+			System.exit(-1);
+		}
+
+		try {
+			Ephemeris eph = new Ephemeris(new File(args[0]));
+			double azErr = 0, elErr = 0, lstErr = 0, massErr = 0;
+			int rows = 0;
+			long start = System.nanoTime();
+			double work = 0;
+			do {
+				Date t = eph.getInstant();
+				long t0 = System.nanoTime();
+				double[] h = horizontal(t.getTime(), eph.getRightAcension(),
+						eph.getDeclination(), site);
+				work += System.nanoTime() - t0;
+				double cosEl = Math.cos(Math.toRadians(eph.getElevation()));
+				azErr = Math.max(azErr, Math.abs(Math.IEEEremainder(
+						h[0] - eph.getAzimuth(), 360)) * cosEl);
+				elErr = Math.max(elErr, Math.abs(h[1] - eph.getElevation()));
+				lstErr = Math.max(lstErr, Math.abs(Math.IEEEremainder(
+						h[2] / 15 - eph.getLocalSiderealTime(), 24)));
+				try {
+					double x = airmass(h[1], formula);
+					if (!Double.isNaN(x))
+						massErr = Math.max(massErr, Math.abs(x - eph.getAirmass()));
+				} catch (EphemerisDataParseException e) {
+					// below the horizon
+				}
+				rows++;
+			} while (eph.advance());
+			System.out.println(rows + " rows, " + String.format(Locale.ROOT, "%.2f", work / rows / 1000)
+					+ " us per row, " + String.format(Locale.ROOT, "%.1f", (System.nanoTime() - start) / 1e6)
+					+ " ms in all");
+			System.out.println(String.format(Locale.ROOT, "max |dAz| cos(el) %.2f\", |dEl| %.2f\", "
+					+ "|dLST| %.3f s, |dAirmass| %.4f", azErr * 3600, elErr * 3600,
+					lstErr * 3600, massErr));
+		} catch (IOException e) {
+			System.out.println("Could not read " + args[0] + ": " + e.getMessage());
+		} catch (EphemerisDataException e) {
+			System.out.println(args[0] + " lacks quantities 1, 4, 7 or 8");
+		}
+	}
+}
@@ -5,7 +5,7 @@ import java.util.Date;
 
 public class AxisEphemeris extends Ephemeris {
 	
-	public static final String X = "https://ssd.jpl.nasa.gov/"
+	public static final String X = Ephemeris.JPL_HOST
 			+ "horizons_batch.cgi?batch=1&"
 			+ "COMMAND=%27g:0,0,0@301%27&"
 			+ "CENTER=%27695@399%27&"
@@ -19,7 +19,7 @@ public class AxisEphemeris extends Ephemeris {
 			+ "CSV_FORMAT=%27NO%27&"
 			+ "STEP_SIZE=%271%20m%27";
 	
-	public static final String Z = "https://ssd.jpl.nasa.gov/"
+	public static final String Z = Ephemeris.JPL_HOST
 			+ "horizons_batch.cgi?batch=1&"
 			+ "COMMAND=%27g:0,90,0@301%27&"
 			+ "CENTER=%27695@399%27&"
@@ -47,6 +47,10 @@ public class AxisEphemeris extends Ephemeris {
 		super(file);
 	}
 
+	public AxisEphemeris(EphemerisTable table) {
+		super(table);
+	}
+
 	public double getRightAcension() throws EphemerisDataParseException,
 	EphemerisDataMissingException {
 		try {
@@ -142,29 +146,5 @@ public class AxisEphemeris extends Ephemeris {
 			throw new EphemerisDataMissingException();
 		}
 	}
-	
-	/**
-	 * If the ephemeris contains another line, advance the 'current' line to
-	 * that one and returns true. Otherwise, returns false and closes the
-	 * ephemeris scanner.
-	 * @return
-	 */
-	public boolean advance() {
 
-		// if the scanner's closed, it can't advance
-		boolean finished = closed;
-
-		// it's not, get the next line and check
-		if (!closed) {
-			current = ephem.nextLine().trim().split("\\s+");
-			finished = current[0].equals("$$EOE");
-		}
-
-		// if process is finished, try to close scanner
-		if (finished) close();
-
-		// return whether it advanced
-		return !finished;
-	}
-	
 }
@@ -0,0 +1,210 @@
+/**
+ * Selenographic/equatorial transforms of many points at once, for maps,
+ * backplanes and re-enriching whole campaigns. Inputs and outputs are
+ * parallel primitive arrays (structure of arrays); each point names the
+ * ephemeris row whose frame it uses, from a FrameCache filled by
+ * Ephemeris.getFrames. The loops read the cache's flat arrays directly and
+ * allocate nothing per point. They give the same results as the single
+ * point methods of Ephemeris, meeting sight lines with its terrain if one
+ * is set, and NaN for rows without a frame.
+ * @author Nick Derr
+ */
+public class BatchTransform {
+
+	/**
+	 * Finds the RA and Dec of surface points, as getGeocentricCrater
+	 * @param frames the rows' frames
+	 * @param rows row of each point
+	 * @param lon selenographic longitudes (east positive), degrees
+	 * @param lat selenographic latitudes, degrees
+	 * @param n number of points
+	 * @param ra receives the right ascensions, degrees (-180 to 180)
+	 * @param dec receives the declinations, degrees
+	 */
+	public static void geocentric(FrameCache frames, int[] rows, double[] lon,
+			double[] lat, int n, double[] ra, double[] dec) {
+		double[] f = frames.frames;
+		double[] c = frames.centers;
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		for (int i = 0; i < n; i++) {
+			int m = 9 * rows[i];
+			int k = 4 * rows[i];
+			double l = lon[i] * Math.PI / 180;
+			double b = lat[i] * Math.PI / 180;
+			double cb = radius * Math.cos(b);
+			double sx = cb * Math.cos(l);
+			double sy = cb * Math.sin(l);
+			double sz = radius * Math.sin(b);
+			double x = f[m] * sx + f[m + 1] * sy + f[m + 2] * sz + c[k] * c[k + 3];
+			double y = f[m + 3] * sx + f[m + 4] * sy + f[m + 5] * sz + c[k + 1] * c[k + 3];
+			double z = f[m + 6] * sx + f[m + 7] * sy + f[m + 8] * sz + c[k + 2] * c[k + 3];
+			double norm = Math.sqrt(x * x + y * y + z * z);
+			ra[i] = Math.atan2(y, x) * 180 / Math.PI;
+			dec[i] = Math.asin(z / norm) * 180 / Math.PI;
+		}
+	}
+
+	/**
+	 * Finds where sight lines pass nearest the moon's center, in
+	 * selenographic coordinates, as getLunarCoords(ra, dec); or with a
+	 * terrain set (Ephemeris.setTerrain), where they meet the surface or
+	 * pass lowest above it
+	 * @param frames the rows' frames
+	 * @param rows row of each sight line
+	 * @param ra right ascensions, degrees
+	 * @param dec declinations, degrees
+	 * @param n number of sight lines
+	 * @param lon receives the longitudes (east positive), degrees
+	 * @param lat receives the latitudes, degrees
+	 * @param alt receives the heights above the mean radius, km; with a
+	 * terrain, as LunarTerrain.intersect
+	 */
+	public static void selenographic(FrameCache frames, int[] rows, double[] ra,
+			double[] dec, int n, double[] lon, double[] lat, double[] alt) {
+		double[] f = frames.frames;
+		double[] c = frames.centers;
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		LunarTerrain terrain = Ephemeris.getTerrain();
+		double[] obs = new double[3];
+		double[] line = new double[3];
+		double[] hit = new double[3];
+		for (int i = 0; i < n; i++) {
+			int m = 9 * rows[i];
+			int k = 4 * rows[i];
+			double hypo = c[k + 3];
+			double cd = Math.cos(dec[i] * Math.PI / 180);
+			double sx = cd * Math.cos(ra[i] * Math.PI / 180);
+			double sy = cd * Math.sin(ra[i] * Math.PI / 180);
+			double sz = Math.sin(dec[i] * Math.PI / 180);
+
+			if (terrain != null) {
+				if (Double.isNaN(hypo)) {
+					hit[0] = hit[1] = hit[2] = Double.NaN;
+				} else {
+					frames.toSelenographic(rows[i], -hypo * c[k], -hypo * c[k + 1],
+							-hypo * c[k + 2], obs);
+					frames.toSelenographic(rows[i], sx, sy, sz, line);
+					terrain.intersect(obs, line, hit);
+				}
+				lon[i] = hit[0];
+				lat[i] = hit[1];
+				alt[i] = hit[2];
+				continue;
+			}
+
+			double cosine = c[k] * sx + c[k + 1] * sy + c[k + 2] * sz;
+			double ex = hypo * (cosine * sx - c[k]);
+			double ey = hypo * (cosine * sy - c[k + 1]);
+			double ez = hypo * (cosine * sz - c[k + 2]);
+			double x = f[m] * ex + f[m + 3] * ey + f[m + 6] * ez;
+			double y = f[m + 1] * ex + f[m + 4] * ey + f[m + 7] * ez;
+			double z = f[m + 2] * ex + f[m + 5] * ey + f[m + 8] * ez;
+			double norm = Math.sqrt(x * x + y * y + z * z);
+			alt[i] = norm - radius;
+			lat[i] = Math.asin(z / norm) * 180 / Math.PI;
+			lon[i] = Math.atan2(y, x) * 180 / Math.PI;
+		}
+	}
+
+	/**
+	 * Finds where the meridians or parallels through surface points leave
+	 * circles about the moon's center, as getLimbRaDec
+	 * @param frames the rows' frames
+	 * @param rows row of each point
+	 * @param lon selenographic longitudes (east positive), degrees
+	 * @param lat selenographic latitudes, degrees
+	 * @param radius angular radii of the circles, degrees (half the fov
+	 * plus the moon's angular width)
+	 * @param direction Limb.NORTH, SOUTH, EAST or WEST
+	 * @param n number of points
+	 * @param ra receives the right ascensions, degrees, or NaN where the
+	 * circle isn't met
+	 * @param dec receives the declinations, degrees, or NaN
+	 */
+	public static void limb(FrameCache frames, int[] rows, double[] lon,
+			double[] lat, double[] radius, int direction, int n, double[] ra,
+			double[] dec) {
+		geocentric(frames, rows, lon, lat, n, ra, dec);
+		double[] c = frames.centers;
+		double[] out = new double[2];
+		for (int i = 0; i < n; i++) {
+			if (!Limb.solve(c, 4 * rows[i], ra[i], dec[i], radius[i], direction, out)) {
+				out[0] = Double.NaN;
+				out[1] = Double.NaN;
+			}
+			ra[i] = out[0];
+			dec[i] = out[1];
+		}
+	}
+
+	/**
+	 * Finds where the meridians or parallels through surface points cross
+	 * the terminator, as getTerminatorRaDec
+	 * @param frames the rows' frames
+	 * @param rows row of each point
+	 * @param lon selenographic longitudes (east positive), degrees
+	 * @param lat selenographic latitudes, degrees
+	 * @param solLon sub-solar longitude of each row, degrees, e.g.
+	 * getColumn(Ephemeris.SOL_LON)
+	 * @param solLat sub-solar latitude of each row, degrees
+	 * @param direction Limb.NORTH, SOUTH, EAST or WEST, or
+	 * Terminator.EITHER
+	 * @param n number of points
+	 * @param ra receives the crossings' right ascensions, degrees; NaN
+	 * where there is none that way
+	 * @param dec receives their declinations, degrees
+	 */
+	public static void terminator(FrameCache frames, int[] rows, double[] lon,
+			double[] lat, double[] solLon, double[] solLat, int direction, int n,
+			double[] ra, double[] dec) {
+		geocentric(frames, rows, lon, lat, n, ra, dec);
+		double[] c = frames.centers;
+		double[] sun = new double[3];
+		double[] out = new double[2];
+		int sunRow = -1;
+		for (int i = 0; i < n; i++) {
+			int r = rows[i];
+			if (r != sunRow) {
+				double l = solLon[r] * Math.PI / 180;
+				double b = solLat[r] * Math.PI / 180;
+				frames.toEquatorial(r, Math.cos(b) * Math.cos(l),
+						Math.cos(b) * Math.sin(l), Math.sin(b), sun);
+				sunRow = r;
+			}
+			if (!Terminator.solve(c, 4 * r, sun, 0, ra[i], dec[i], direction, out)) {
+				out[0] = Double.NaN;
+				out[1] = Double.NaN;
+			}
+			ra[i] = out[0];
+			dec[i] = out[1];
+		}
+	}
+
+	/**
+	 * Finds the selenographic coordinates of fields placed by offsets from
+	 * surface points, as getLunarCoords with a "crater" origin
+	 * @param frames the rows' frames
+	 * @param rows row of each field
+	 * @param craterLon longitudes of the origins, degrees
+	 * @param craterLat latitudes of the origins, degrees
+	 * @param ew east/west offsets, seconds of time
+	 * @param ns north/south offsets, arcmin
+	 * @param n number of fields
+	 * @param lon receives the longitudes (east positive), degrees
+	 * @param lat receives the latitudes, degrees
+	 * @param alt receives the heights above the mean radius, km; with a
+	 * terrain, as LunarTerrain.intersect
+	 */
+	public static void offset(FrameCache frames, int[] rows, double[] craterLon,
+			double[] craterLat, double[] ew, double[] ns, int n, double[] lon,
+			double[] lat, double[] alt) {
+		double[] ra = new double[n];
+		double[] dec = new double[n];
+		geocentric(frames, rows, craterLon, craterLat, n, ra, dec);
+		for (int i = 0; i < n; i++) {
+			ra[i] += ew[i] / 240;
+			dec[i] += ns[i] / 60;
+		}
+		selenographic(frames, rows, ra, dec, n, lon, lat, alt);
+	}
+}
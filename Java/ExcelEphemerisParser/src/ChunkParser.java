@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incrementally splits the text of one Horizons response into lines and
+ * tokenizes the ephemeris rows between the $$SOE and $$EOE markers. Text can
+ * be fed in pieces of any size, so a response can be parsed while it is
+ * still being received.
+ * @author Nick Derr
+ */
+public class ChunkParser {
+
+	private StringBuilder line; // the line being assembled
+	private StringBuilder data; // accepted ephemeris lines, for checkpointing
+	private List<String[]> rows; // accepted ephemeris lines, tokenized
+	private List<String> times; // start/stop time lines from the header
+	private boolean started; // whether $$SOE has been seen
+	private boolean ended; // whether $$EOE has been seen
+
+	public ChunkParser() {
+		reset();
+	}
+
+	/**
+	 * Discards everything parsed so far, e.g. before a retried transfer
+	 */
+	public void reset() {
+		line = new StringBuilder(256);
+		data = new StringBuilder();
+		rows = new ArrayList<String[]>();
+		times = new ArrayList<String>();
+		started = false;
+		ended = false;
+	}
+
+	/**
+	 * Parses the next piece of the response
+	 * @param buf buffer holding the text
+	 * @param off offset of the text in the buffer
+	 * @param len length of the text
+	 */
+	public void feed(char[] buf, int off, int len) {
+		for (int i = off; i < off + len && !ended; i++) {
+			char c = buf[i];
+			if (c == '\n') {
+				endLine();
+			} else if (c != '\r') {
+				line.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Parses the next character of the response
+	 * @param c the character
+	 */
+	public void feed(char c) {
+		if (ended)
+			return;
+		if (c == '\n') {
+			endLine();
+		} else if (c != '\r') {
+			line.append(c);
+		}
+	}
+
+	/**
+	 * Marks the end of the response, flushing an unterminated last line
+	 */
+	public void finish() {
+		if (line.length() > 0)
+			endLine();
+	}
+
+	/**
+	 * Returns whether both framing markers have been seen
+	 */
+	public boolean isComplete() {
+		return started && ended;
+	}
+
+	/**
+	 * Returns why the response is incomplete, or null if it is complete
+	 */
+	public String framingError() {
+		if (!started)
+			return "response has no " + HorizonsDownloader.SOE + " marker";
+		if (!ended)
+			return "response truncated before " + HorizonsDownloader.EOE;
+		return null;
+	}
+
+	/**
+	 * Returns the tokenized ephemeris rows
+	 */
+	public List<String[]> rows() {
+		return rows;
+	}
+
+	/**
+	 * Returns the ephemeris lines as text, newline terminated
+	 */
+	public String data() {
+		return data.toString();
+	}
+
+	/**
+	 * Returns the start and stop time lines of the response header
+	 */
+	public List<String> times() {
+		return times;
+	}
+
+	private void endLine() {
+		String l = line.toString();
+		line.setLength(0);
+
+		if (!started) {
+			if (l.equals(HorizonsDownloader.SOE)) {
+				started = true;
+			} else if (l.contains("Start time") || l.contains("Stop  time")) {
+				times.add(l);
+			}
+		} else if (l.equals(HorizonsDownloader.EOE)) {
+			ended = true;
+		} else if (!l.equals("") && !l.contains("Daylight Cut-off")) {
+			data.append(l).append('\n');
+			rows.add(EphemerisTable.tokenize(l));
+		}
+	}
+}
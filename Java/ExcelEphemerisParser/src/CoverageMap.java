@@ -0,0 +1,505 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Adds up the exposure time each part of the lunar surface has had, per
+ * filter, over the observations of enriched logs. Each observation's field
+ * of view is a cone from the observer, whose selenographic position is
+ * the row's sub-observer point at the row's range, through the point
+ * found for Moon_Long, Moon_Lat and Alt. A cell of the selenographic
+ * longitude/latitude grid is covered when its center is inside the cone
+ * and faces the observer. The footprints are rasterized in parallel into
+ * a grid per thread, which are added together at the end, and the maps
+ * are written as a FITS cube, one plane per filter.
+ * @author Nick Derr
+ */
+public class CoverageMap {
+
+	public static final String USAGE = "Usage: java -cp ephparse.jar CoverageMap"
+			+ " [-step degrees] [-threads n] [-terrain ldem.lbl] map.fits log_file.xlsx ...";
+
+	// grid spacing if none is given, degrees
+	public static final double DEFAULT_STEP = 0.5;
+
+	// rays around the rim of a field of view that bound its footprint
+	private static final int RIM = 32;
+
+	private static final int FITS_BLOCK = 2880;
+	private static final int FITS_CARD = 80;
+
+	private final double step; // degrees
+	private final int nLon; // cells from -180 to 180 east longitude
+	private final int nLat; // cells from -90 to 90 latitude
+	private final double[] cosLon, sinLon, cosLat, sinLat; // of the cell centers
+	private final List<String> filters = new ArrayList<String>();
+
+	// the footprints: observer position (3 per, km), unit vector along the
+	// cone's axis (3 per), cosine of its half angle, exposure time (s)
+	// and filter
+	private double[] observers = new double[3 * 64];
+	private double[] axes = new double[3 * 64];
+	private double[] cosHalf = new double[64];
+	private double[] exposures = new double[64];
+	private int[] filterOf = new int[64];
+	private int count;
+	private LunarTerrain terrain; // what Alt was measured from, if not the sphere
+
+	/**
+	 * Instantiates an empty map
+	 * @param step grid spacing, degrees; should divide 180
+	 */
+	public CoverageMap(double step) {
+		this.step = step;
+		nLon = (int) Math.round(360 / step);
+		nLat = (int) Math.round(180 / step);
+		cosLon = new double[nLon];
+		sinLon = new double[nLon];
+		for (int i = 0; i < nLon; i++) {
+			double lon = Math.toRadians(-180 + (i + 0.5) * step);
+			cosLon[i] = Math.cos(lon);
+			sinLon[i] = Math.sin(lon);
+		}
+		cosLat = new double[nLat];
+		sinLat = new double[nLat];
+		for (int j = 0; j < nLat; j++) {
+			double lat = Math.toRadians(-90 + (j + 0.5) * step);
+			cosLat[j] = Math.cos(lat);
+			sinLat[j] = Math.sin(lat);
+		}
+	}
+
+	/**
+	 * Adds the observations of every sheet of an enriched log. Rows
+	 * without a number in any of Obs_Long, Obs_Lat, delta, Moon_Long,
+	 * Moon_Lat, Alt, FOV and Expo, or without a Filter, are skipped
+	 * @param log the log
+	 * @return the number of observations added
+	 * @throws ExcelDataParserException if a sheet's headers can't be found
+	 */
+	public int add(Workbook log) throws ExcelDataParserException {
+		int added = 0;
+		for (int s = 0; s < log.getNumberOfSheets(); s++) {
+			Sheet night = log.getSheetAt(s);
+			ExcelDataParser p = new ExcelDataParser(night);
+			int[] c = p.INDICES;
+			for (Row im : night) {
+				double obsLon = number(im, c[ExcelDataParser.TAR_LON]);
+				double obsLat = number(im, c[ExcelDataParser.TAR_LAT]);
+				double delta = number(im, c[ExcelDataParser.DELTA]);
+				double lon = number(im, c[ExcelDataParser.FOV_LON]);
+				double lat = number(im, c[ExcelDataParser.FOV_LAT]);
+				double alt = number(im, c[ExcelDataParser.FOV_ALT]);
+				double fov = number(im, c[ExcelDataParser.FOV]);
+				double exp = number(im, c[ExcelDataParser.EXP_TIME]);
+				Cell f = im.getCell(c[ExcelDataParser.FILTER]);
+				if (Double.isNaN(obsLon + obsLat + delta + lon + lat + alt + fov + exp)
+						|| f == null || f.getCellType() != CellType.STRING
+						|| f.getStringCellValue().trim().isEmpty())
+					continue;
+				add(obsLon, obsLat, delta, lon, lat, alt, fov, exp,
+						f.getStringCellValue().trim());
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Returns a cell's number, from a number or text, or NaN
+	 */
+	private static double number(Row im, int col) {
+		Cell c = im.getCell(col);
+		if (c == null)
+			return Double.NaN;
+		if (c.getCellType() == CellType.NUMERIC)
+			return c.getNumericCellValue();
+		if (c.getCellType() == CellType.STRING) {
+			try {
+				return Double.parseDouble(c.getStringCellValue().trim());
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Adds an observation
+	 * @param obsLon sub-observer longitude (east positive), degrees
+	 * @param obsLat sub-observer latitude, degrees
+	 * @param delta range of the moon's center, km
+	 * @param lon longitude of the field center's sight line where it
+	 * passes nearest the moon's center, degrees
+	 * @param lat its latitude, degrees
+	 * @param alt its height above the mean radius, km, or above the
+	 * terrain if one is set
+	 * @param fov angular diameter of the field, arcsec
+	 * @param exposure exposure time, s
+	 * @param filter the filter, e.g. "Na" or "K"
+	 */
+	public void add(double obsLon, double obsLat, double delta, double lon,
+			double lat, double alt, double fov, double exposure, String filter) {
+		if (count == cosHalf.length) {
+			int grown = 2 * count;
+			observers = Arrays.copyOf(observers, 3 * grown);
+			axes = Arrays.copyOf(axes, 3 * grown);
+			cosHalf = Arrays.copyOf(cosHalf, grown);
+			exposures = Arrays.copyOf(exposures, grown);
+			filterOf = Arrays.copyOf(filterOf, grown);
+		}
+		int k = 3 * count;
+		Vec3 o = Vec3.fromAngles(Math.toRadians(obsLat), Math.toRadians(obsLon))
+				.scale(delta);
+		double radius = terrain == null ? LibrationEphemeris.LUNAR_RADIUS
+				: terrain.getRadius(lat, lon);
+		Vec3 a = Vec3.fromAngles(Math.toRadians(lat), Math.toRadians(lon))
+				.scale(radius + alt);
+		a.addScaled(o, -1).normalize();
+		o.get(observers, k);
+		a.get(axes, k);
+		cosHalf[count] = Math.cos(Math.toRadians(fov / 3600 / 2));
+		exposures[count] = exposure;
+		int f = filters.indexOf(filter);
+		if (f < 0) {
+			f = filters.size();
+			filters.add(filter);
+		}
+		filterOf[count] = f;
+		count++;
+	}
+
+	/**
+	 * Sets the elevation model the logs' Alt column was measured from,
+	 * for observations added after
+	 * @param t the model, or null for the mean sphere
+	 */
+	public void setTerrain(LunarTerrain t) {
+		terrain = t;
+	}
+
+	/**
+	 * Returns the number of observations added
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the filters, in the order of their maps
+	 */
+	public List<String> getFilters() {
+		return filters;
+	}
+
+	/**
+	 * Rasterizes every footprint
+	 * @param threads number of threads to work on
+	 * @return a map per filter, of exposure seconds by latitude row, then
+	 * longitude (cell j * nLon + i)
+	 */
+	public float[][] accumulate(int threads) {
+		final int cells = nLon * nLat;
+		final int layers = filters.size();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<double[]>> parts = new ArrayList<Future<double[]>>();
+		try {
+			int per = (count + threads - 1) / threads;
+			for (int lo = 0; lo < count; lo += per) {
+				final int from = lo;
+				final int to = Math.min(lo + per, count);
+				parts.add(pool.submit(new Callable<double[]>() {
+					@Override
+					public double[] call() {
+						double[] grid = new double[layers * cells];
+						for (int k = from; k < to; k++)
+							rasterize(k, grid, filterOf[k] * cells);
+						return grid;
+					}
+				}));
+			}
+
+			float[][] maps = new float[layers][cells];
+			double[] sum = new double[layers * cells];
+			for (Future<double[]> part : parts) {
+				double[] grid = part.get();
+				for (int i = 0; i < sum.length; i++)
+					sum[i] += grid[i];
+			}
+			for (int f = 0; f < layers; f++)
+				for (int i = 0; i < cells; i++)
+					maps[f][i] = (float) sum[f * cells + i];
+			return maps;
+		} catch (Exception e) {
+			throw new IllegalStateException("could not rasterize footprints", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Adds one footprint's exposure to the cells it covers. The cells
+	 * tested are those within a cap about the center ray's surface point
+	 * that reaches the rim rays' points and one cell beyond
+	 */
+	private void rasterize(int k, double[] grid, int off) {
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		double[] o = observers;
+		double[] a = axes;
+		int m = 3 * k;
+		double cos = cosHalf[k];
+		double sin = Math.sqrt(1 - cos * cos);
+
+		// the center ray's point, and two directions across the axis
+		double[] c = new double[3];
+		surface(o, m, a[m], a[m + 1], a[m + 2], c);
+		double[] u = new double[3];
+		if (Math.abs(a[m + 2]) < 0.9)
+			Vec3.cross(a, m, new double[] {0, 0, 1}, 0, u, 0);
+		else
+			Vec3.cross(a, m, new double[] {1, 0, 0}, 0, u, 0);
+		double un = Vec3.norm(u, 0);
+		for (int i = 0; i < 3; i++)
+			u[i] /= un;
+		double[] v = new double[3];
+		Vec3.cross(a, m, u, 0, v, 0);
+
+		double reach = 0;
+		double[] s = new double[3];
+		for (int r = 0; r < RIM; r++) {
+			double phi = 2 * Math.PI * r / RIM;
+			double cu = sin * Math.cos(phi);
+			double cv = sin * Math.sin(phi);
+			surface(o, m, cos * a[m] + cu * u[0] + cv * v[0],
+					cos * a[m + 1] + cu * u[1] + cv * v[1],
+					cos * a[m + 2] + cu * u[2] + cv * v[2], s);
+			reach = Math.max(reach, Math.acos(Math.min(1, Vec3.dot(c, 0, s, 0))));
+		}
+		reach = Math.toDegrees(reach) + step;
+
+		// the latitude rows of the cap, and the longitudes in each
+		double latC = Math.toDegrees(Math.asin(c[2]));
+		double lonC = Math.toDegrees(Math.atan2(c[1], c[0]));
+		int j0 = Math.max(0, (int) Math.floor((latC - reach + 90) / step));
+		int j1 = Math.min(nLat - 1, (int) Math.floor((latC + reach + 90) / step));
+		boolean pole = latC + reach >= 90 || latC - reach <= -90;
+		double sinReach = Math.sin(Math.toRadians(Math.min(reach, 90)));
+		double exp = exposures[k];
+		for (int j = j0; j <= j1; j++) {
+			int i0 = 0;
+			int n = nLon;
+			if (!pole && reach < 90 && sinReach < cosLat[j]) {
+				double half = Math.toDegrees(Math.asin(sinReach / cosLat[j]));
+				i0 = (int) Math.floor((lonC - half + 180) / step);
+				n = Math.min(nLon, (int) Math.floor((lonC + half + 180) / step) - i0 + 1);
+			}
+			for (int t = 0; t < n; t++) {
+				int i = Math.floorMod(i0 + t, nLon);
+				double sx = cosLat[j] * cosLon[i];
+				double sy = cosLat[j] * sinLon[i];
+				double sz = sinLat[j];
+
+				// facing the observer
+				if (sx * o[m] + sy * o[m + 1] + sz * o[m + 2] <= radius)
+					continue;
+
+				// inside the cone
+				double dx = radius * sx - o[m];
+				double dy = radius * sy - o[m + 1];
+				double dz = radius * sz - o[m + 2];
+				double along = dx * a[m] + dy * a[m + 1] + dz * a[m + 2];
+				if (along > 0 && along * along >= cos * cos * (dx * dx + dy * dy + dz * dz))
+					grid[off + j * nLon + i] += exp;
+			}
+		}
+	}
+
+	/**
+	 * Finds the unit vector to where a ray from the observer meets the
+	 * sphere, or to the point under its nearest approach if it misses
+	 */
+	private static void surface(double[] o, int m, double x, double y,
+			double z, double[] out) {
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		double b = o[m] * x + o[m + 1] * y + o[m + 2] * z;
+		double disc = b * b - (Vec3.dot(o, m, o, m) - radius * radius);
+		double t = disc >= 0 ? -b - Math.sqrt(disc) : -b;
+		out[0] = o[m] + t * x;
+		out[1] = o[m + 1] + t * y;
+		out[2] = o[m + 2] + t * z;
+		double n = Vec3.norm(out, 0);
+		for (int i = 0; i < 3; i++)
+			out[i] /= n;
+	}
+
+	/**
+	 * Writes maps as a FITS cube: longitude along the first axis (east
+	 * from -180), latitude along the second (north from -90) and a plane
+	 * per filter, named by the FILTERn keywords, in seconds of exposure
+	 * @param file the file to write
+	 * @param maps the maps, from accumulate
+	 * @throws IOException if it can't be written
+	 */
+	public void write(File file, float[][] maps) throws IOException {
+		List<String> cards = new ArrayList<String>();
+		cards.add(card("SIMPLE", "T", "conforms to FITS standard"));
+		cards.add(card("BITPIX", "-32", "IEEE single precision"));
+		cards.add(card("NAXIS", "3", null));
+		cards.add(card("NAXIS1", String.valueOf(nLon), "longitude"));
+		cards.add(card("NAXIS2", String.valueOf(nLat), "latitude"));
+		cards.add(card("NAXIS3", String.valueOf(maps.length), "filter"));
+		cards.add(card("BUNIT", text("s"), "exposure time"));
+		cards.add(card("CTYPE1", text("SLON"), "selenographic longitude, east"));
+		cards.add(card("CRPIX1", "1", null));
+		cards.add(card("CRVAL1", number(-180 + step / 2), "deg"));
+		cards.add(card("CDELT1", number(step), "deg"));
+		cards.add(card("CTYPE2", text("SLAT"), "selenographic latitude"));
+		cards.add(card("CRPIX2", "1", null));
+		cards.add(card("CRVAL2", number(-90 + step / 2), "deg"));
+		cards.add(card("CDELT2", number(step), "deg"));
+		cards.add(card("NOBS", String.valueOf(count), "observations"));
+		for (int f = 0; f < maps.length; f++)
+			cards.add(card("FILTER" + (f + 1), text(filters.get(f)), null));
+		cards.add(String.format("%-80s", "END"));
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			long written = 0;
+			for (String card : cards) {
+				out.write(card.getBytes(StandardCharsets.US_ASCII));
+				written += FITS_CARD;
+			}
+			for (; written % FITS_BLOCK != 0; written++)
+				out.write(' ');
+			for (float[] map : maps)
+				for (float value : map) {
+					out.writeFloat(value); // big-endian, as FITS wants
+					written += 4;
+				}
+			for (; written % FITS_BLOCK != 0; written++)
+				out.write(0);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns a FITS header card; strings start in column 11 and numbers
+	 * end in column 30
+	 */
+	private static String card(String key, String value, String comment) {
+		String c = String.format(value.startsWith("'") ? "%-8s= %-20s"
+				: "%-8s= %20s", key, value);
+		if (comment != null)
+			c += " / " + comment;
+		return String.format("%-80.80s", c);
+	}
+
+	/**
+	 * Returns a FITS string value, quoted and padded to eight characters
+	 */
+	private static String text(String s) {
+		return "'" + String.format("%-8s", s.replace("'", "''")) + "'";
+	}
+
+	private static String number(double x) {
+		return String.format(Locale.ROOT, "%.10G", x);
+	}
+
+	/**
+	 * Opens a log as the parser does, by extension
+	 */
+	private static Workbook open(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(EphemerisParser.XLS))
+				return new HSSFWorkbook(in);
+			if (file.getName().endsWith(EphemerisParser.XLSX))
+				return new XSSFWorkbook(in);
+			throw new IOException("not a .xls or .xlsx file");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Maps the coverage of the given enriched logs
+	 */
+	public static void main(String[] args) {
+		double step = DEFAULT_STEP;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String terrainFile = null;
+		int arg = 0;
+		try {
+			while (arg < args.length && args[arg].startsWith("-")) {
+				if (args[arg].equals("-step"))
+					step = Double.parseDouble(args[arg + 1]);
+				else if (args[arg].equals("-threads"))
+					threads = Integer.parseInt(args[arg + 1]);
+				else if (args[arg].equals("-terrain"))
+					terrainFile = args[arg + 1];
+				else
+					arg = args.length;
+				arg += 2;
+			}
+		} catch (RuntimeException e) {
+			arg = args.length;
+		}
+		if (args.length - arg < 2 || !(step > 0) || threads < 1) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+
+		CoverageMap map = new CoverageMap(step);
+		if (terrainFile != null) {
+			try {
+				map.setTerrain(new LunarTerrain(new File(terrainFile)));
+			} catch (IOException e) {
+				System.out.println("could not read elevation model: " + e.getMessage());
+				System.exit(-1);
+			}
+		}
+		for (int i = arg + 1; i < args.length; i++) {
+			try {
+				System.out.print(args[i] + "...");
+				System.out.println(map.add(open(new File(args[i]))) + " observations");
+			} catch (IOException e) {
+				System.out.println("could not read: " + e.getMessage());
+				System.exit(-1);
+			} catch (ExcelDataParserException e) {
+				System.out.println("could not find columns: " + e.getMessage());
+				System.exit(-1);
+			}
+		}
+		try {
+			map.write(new File(args[arg]), map.accumulate(threads));
+			System.out.println("map of " + map.size() + " observations in "
+					+ map.getFilters() + " written to " + args[arg]);
+		} catch (IOException e) {
+			System.out.println("could not write map: " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,292 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader for the JPL planetary and lunar ephemerides (DE430, DE440, ...) in
+ * their binary distribution format. The file is memory mapped and each
+ * position is evaluated straight from the Chebyshev coefficients of the
+ * record covering the requested date, which is found by division, so any
+ * instant costs the same whatever the file's span.
+ *
+ * The header record gives the span, the record length and where each
+ * body's coefficients sit in a record; the byte order is detected from the
+ * DE number. Positions are in km and velocities in km/day, in the ICRF,
+ * for dates in TDB Julian days. ReferenceCheck -de FILE reference/de.csv
+ * checks a file's moon and sun against published positions.
+ * @author Nick Derr
+ */
+public class DeEphemeris {
+
+	// bodies, as indexed in the header's coefficient pointers
+	public static final int EARTH_MOON_BARYCENTER = 2;
+	public static final int MOON = 9; // geocentric
+	public static final int SUN = 10;
+
+	// header layout
+	private static final int TITLE_BYTES = 3 * 84;
+	private static final int NAME_BYTES = 6;
+	private static final int OLD_NAMES = 400; // constant names before the pointers
+	private static final int POINTERS = 12; // bodies and nutations in the IPT array
+	private static final int NUTATIONS = 11;
+
+	// DE numbers a well formed header can have, for the byte order check
+	private static final int MIN_DE = 100;
+	private static final int MAX_DE = 1000;
+
+	private final File file;
+	private final ByteOrder order;
+	private final int number; // DE number, e.g. 440
+	private final double start; // first date covered, JD TDB
+	private final double end; // last date covered, JD TDB
+	private final double span; // days per record
+	private final double au; // km
+	private final double emrat; // earth/moon mass ratio
+	private final int[][] pointers; // per body: offset (1-based), coefficients, sub-intervals
+	private final int recordSize; // bytes
+	private final long records;
+
+	// whole records per mapped segment, and the segments
+	private final int perSegment;
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * Opens and maps an ephemeris file
+	 * @param file the binary DE file
+	 * @throws IOException if the file can't be read or isn't a DE file
+	 */
+	public DeEphemeris(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			int headerLen = (int) Math.min(channel.size(), 8192);
+			ByteBuffer header = ByteBuffer.allocate(headerLen);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+			header.flip();
+			if (headerLen < TITLE_BYTES + OLD_NAMES * NAME_BYTES + 200)
+				throw new IOException(file + " is too short for a DE ephemeris");
+
+			int base = TITLE_BYTES + OLD_NAMES * NAME_BYTES;
+			int numdeAt = base + 3 * 8 + 4 + 8 + 8 + POINTERS * 3 * 4;
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if (!plausible(header.getInt(numdeAt))) {
+				header.order(ByteOrder.BIG_ENDIAN);
+				if (!plausible(header.getInt(numdeAt)))
+					throw new IOException(file + " is not a binary DE ephemeris");
+			}
+			order = header.order();
+
+			start = header.getDouble(base);
+			end = header.getDouble(base + 8);
+			span = header.getDouble(base + 16);
+			int ncon = header.getInt(base + 24);
+			au = header.getDouble(base + 28);
+			emrat = header.getDouble(base + 36);
+
+			// IPT, then the DE number and the libration pointers (LPT); files
+			// with more than 400 constants go on with the remaining names and
+			// the pointers of the lunar mantle and TT-TDB series
+			pointers = new int[POINTERS + 3][3];
+			int at = base + 44;
+			for (int i = 0; i < POINTERS; i++)
+				for (int j = 0; j < 3; j++, at += 4)
+					pointers[i][j] = header.getInt(at);
+			number = header.getInt(at);
+			at += 4;
+			for (int j = 0; j < 3; j++, at += 4)
+				pointers[POINTERS][j] = header.getInt(at);
+			if (ncon > OLD_NAMES) {
+				at += (ncon - OLD_NAMES) * NAME_BYTES;
+				for (int i = POINTERS + 1; i < POINTERS + 3; i++)
+					for (int j = 0; j < 3; j++, at += 4)
+						pointers[i][j] = at + 4 <= headerLen ? header.getInt(at) : 0;
+			}
+
+			// a record holds the largest coefficient offset's worth of doubles
+			int doubles = 0;
+			for (int i = 0; i < pointers.length; i++) {
+				int components = i == NUTATIONS ? 2 : i == POINTERS + 2 ? 1 : 3;
+				if (pointers[i][1] > 0)
+					doubles = Math.max(doubles, pointers[i][0] - 1
+							+ pointers[i][1] * pointers[i][2] * components);
+			}
+			if (doubles <= 0 || span <= 0 || end <= start)
+				throw new IOException(file + " has a malformed DE header");
+			recordSize = doubles * 8;
+
+			// two header records, then one data record per span
+			long dataBytes = channel.size() - 2L * recordSize;
+			records = Math.min(dataBytes / recordSize,
+					(long) Math.ceil((end - start) / span));
+			if (records <= 0)
+				throw new IOException(file + " holds no ephemeris records");
+
+			perSegment = Integer.MAX_VALUE / recordSize;
+			segments = new MappedByteBuffer[(int) ((records + perSegment - 1) / perSegment)];
+			for (int s = 0; s < segments.length; s++) {
+				long first = (long) s * perSegment;
+				long count = Math.min(perSegment, records - first);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+						(2 + first) * recordSize, count * recordSize);
+				segments[s].order(order);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static boolean plausible(int numde) {
+		return numde >= MIN_DE && numde <= MAX_DE;
+	}
+
+	/**
+	 * Returns the position of a body at the given date
+	 * @param body EARTH_MOON_BARYCENTER, MOON, SUN or another IPT index
+	 * @param jd Julian date, TDB
+	 * @return the position in km: barycentric, or geocentric for the moon
+	 */
+	public double[] position(int body, double jd) {
+		double[] state = new double[6];
+		evaluate(body, jd, state, false);
+		return new double[] {state[0], state[1], state[2]};
+	}
+
+	/**
+	 * Returns the position and velocity of a body at the given date
+	 * @param body EARTH_MOON_BARYCENTER, MOON, SUN or another IPT index
+	 * @param jd Julian date, TDB
+	 * @return x, y, z in km and their rates in km/day
+	 */
+	public double[] state(int body, double jd) {
+		double[] state = new double[6];
+		evaluate(body, jd, state, true);
+		return state;
+	}
+
+	/**
+	 * Returns the barycentric position of the earth, from the earth-moon
+	 * barycenter and the geocentric moon
+	 * @param jd Julian date, TDB
+	 * @return the position in km
+	 */
+	public double[] earth(double jd) {
+		double[] emb = position(EARTH_MOON_BARYCENTER, jd);
+		double[] moon = position(MOON, jd);
+		double f = 1 / (1 + emrat);
+		return new double[] {emb[0] - f * moon[0], emb[1] - f * moon[1],
+				emb[2] - f * moon[2]};
+	}
+
+	/**
+	 * Sums the Chebyshev series of a body into state (positions, and the
+	 * velocities if asked for)
+	 */
+	private void evaluate(int body, double jd, double[] state, boolean rates) {
+		if (body < 0 || body >= POINTERS || body == NUTATIONS || pointers[body][1] == 0)
+			throw new IllegalArgumentException("no such body in " + file.getName()
+					+ ": " + body);
+		if (jd < start || jd > end)
+			throw new IllegalArgumentException("JD " + jd + " is outside "
+					+ file.getName() + " (" + start + " to " + end + ")");
+
+		// the record, and the sub-interval within it
+		long k = Math.min((long) ((jd - start) / span), records - 1);
+		ByteBuffer seg = segments[(int) (k / perSegment)];
+		int rec = (int) (k % perSegment) * recordSize;
+		double recStart = seg.getDouble(rec);
+
+		int n = pointers[body][1];
+		int sub = pointers[body][2];
+		double subLen = span / sub;
+		int s = Math.min((int) ((jd - recStart) / subLen), sub - 1);
+		double x = 2 * (jd - (recStart + s * subLen)) / subLen - 1;
+
+		// Chebyshev polynomials and their derivatives at x
+		double[] t = new double[n];
+		double[] dt = new double[n];
+		t[0] = 1;
+		if (n > 1) {
+			t[1] = x;
+			dt[1] = 1;
+		}
+		for (int i = 2; i < n; i++) {
+			t[i] = 2 * x * t[i - 1] - t[i - 2];
+			dt[i] = 2 * t[i - 1] + 2 * x * dt[i - 1] - dt[i - 2];
+		}
+
+		int off = rec + (pointers[body][0] - 1 + s * 3 * n) * 8;
+		for (int c = 0; c < 3; c++) {
+			double p = 0;
+			double v = 0;
+			for (int i = 0; i < n; i++) {
+				double a = seg.getDouble(off + (c * n + i) * 8);
+				p += a * t[i];
+				v += a * dt[i];
+			}
+			state[c] = p;
+			if (rates)
+				state[3 + c] = v * 2 / subLen;
+		}
+	}
+
+	public int getNumber() {
+		return number;
+	}
+
+	public double getStart() {
+		return start;
+	}
+
+	public double getEnd() {
+		return end;
+	}
+
+	public double getAU() {
+		return au;
+	}
+
+	public double getEarthMoonRatio() {
+		return emrat;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Prints a file's header and the geocentric moon and sun at a date
+	 * Usage: java DeEphemeris file [jd]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: java DeEphemeris de_file [julian_date_tdb]");
+			System.exit(-1);
+		}
+		try {
+			DeEphemeris de = new DeEphemeris(new File(args[0]));
+			System.out.println("DE" + de.getNumber() + " (" + de.order + "), JD "
+					+ de.getStart() + " to " + de.getEnd() + ", " + de.span
+					+ " day records of " + de.recordSize + " bytes, AU "
+					+ de.getAU() + " km, EMRAT " + de.getEarthMoonRatio());
+
+			double jd = args.length > 1 ? Double.parseDouble(args[1]) :
+				(de.getStart() + de.getEnd()) / 2;
+			double[] moon = de.state(MOON, jd);
+			double[] earth = de.earth(jd);
+			double[] sun = de.position(SUN, jd);
+			System.out.println(String.format("JD %.5f TDB", jd));
+			System.out.println(String.format("moon  %15.3f %15.3f %15.3f km  %10.3f %10.3f %10.3f km/d",
+					moon[0], moon[1], moon[2], moon[3], moon[4], moon[5]));
+			System.out.println(String.format("sun   %15.3f %15.3f %15.3f km (geocentric)",
+					sun[0] - earth[0], sun[1] - earth[1], sun[2] - earth[2]));
+		} catch (IOException e) {
+			System.out.println("Could not read ephemeris: " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Answers Horizons requests from a local JPL DE file instead of JPL, so
+ * ephemerides can be built with no network at all. Each request is turned
+ * into the observer table Horizons would have sent, computed from the DE
+ * moon and sun seen from the request's site (light time corrected, without
+ * aberration, as Horizons' astrometric positions) and the IAU rotation
+ * model for the selenographic quantities, and parsed like any response.
+ *
+ * Select it with -Dephparse.api=de:FILE or -api de:FILE
+ * @author Nick Derr
+ */
+public class DeEphemerisSource extends TextEphemerisSource {
+
+	public static final String PREFIX = "de:";
+
+	// light time iterations; the third changes the moon by under a mm
+	private static final int LIGHT_TIME_PASSES = 3;
+
+	private final File file;
+	private DeEphemeris de; // opened on the first request
+	private final LunarRotationModel model =
+			new LunarRotationModel(LunarRotationModel.PRECISE);
+
+	/**
+	 * Instantiates a source reading the given ephemeris file
+	 * @param file a binary DE file (e.g. linux_p1550p2650.440)
+	 */
+	public DeEphemerisSource(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Keeps just the query of the batch request
+	 */
+	public String request(String batchRequest) {
+		int q = batchRequest.indexOf('?');
+		return PREFIX + (q < 0 ? "" : batchRequest.substring(q + 1));
+	}
+
+	public InputStream open(String request) throws IOException {
+		if (!request.startsWith(PREFIX))
+			throw new IOException("not a DE request: " + request);
+		Map<String,String> params = HorizonsText.parseQuery(
+				request.substring(PREFIX.length()));
+
+		String center = params.get("CENTER");
+		Site site = center == null ? Site.GEOCENTER : Site.forCenter(center);
+		if (site == null)
+			throw new IOException("unknown observing site " + center);
+		if (site == Site.GEOCENTER)
+			params.remove("SKIP_DAYLT"); // no daylight at the geocenter
+
+		try {
+			String text = HorizonsText.synthesize(params,
+					new Geometry(ephemeris(), site, model),
+					"Local JPL DE" + ephemeris().getNumber() + " ephemeris, "
+							+ site.getName() + " (" + site.getCode() + ")");
+			return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	public boolean isRemote() {
+		return false;
+	}
+
+	/**
+	 * Returns the ephemeris, opening it if this is the first use
+	 */
+	private synchronized DeEphemeris ephemeris() throws IOException {
+		if (de == null)
+			de = new DeEphemeris(file);
+		return de;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The moon and sun of a DE file seen from a site
+	 */
+	static class Geometry implements ObservingGeometry {
+		private final DeEphemeris de;
+		private final Site site;
+		private final LunarRotationModel model;
+
+		Geometry(DeEphemeris de, Site site, LunarRotationModel model) {
+			this.de = de;
+			this.site = site;
+			this.model = model;
+		}
+
+		public double[] moon(long ms) {
+			return apparent(DeEphemeris.MOON, ms);
+		}
+
+		public double[] sun(long ms) {
+			return apparent(DeEphemeris.SUN, ms);
+		}
+
+		public double[][] frame(long ms) {
+			double range = HorizonsText.norm(moon(ms));
+			Mat3 m = model.coordTrans(ms * 1000, range);
+			double[][] rows = new double[3][];
+			for (int i = 0; i < 3; i++)
+				rows[i] = new double[] {m.get(0, i), m.get(1, i), m.get(2, i)};
+			return rows;
+		}
+
+		public Site site() {
+			return site;
+		}
+
+		/**
+		 * Returns where a body was when the light seen at the given instant
+		 * left it, relative to the observer
+		 */
+		private double[] apparent(int body, long ms) {
+			double jd = AstroTime.julianDateTT(ms);
+			double[] observer = HorizonsText.plus(de.earth(jd), site.position(ms));
+
+			double[] v = null;
+			double tau = 0; // light time, days
+			for (int i = 0; i < LIGHT_TIME_PASSES; i++) {
+				v = HorizonsText.minus(barycentric(body, jd - tau), observer);
+				tau = HorizonsText.norm(v) / LunarRotationModel.LIGHT_SPEED / 86400;
+			}
+			return v;
+		}
+
+		private double[] barycentric(int body, double jd) {
+			if (body == DeEphemeris.MOON)
+				return HorizonsText.plus(de.earth(jd), de.position(DeEphemeris.MOON, jd));
+			return de.position(body, jd);
+		}
+	}
+}
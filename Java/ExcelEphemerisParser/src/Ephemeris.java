@@ -1,16 +1,14 @@
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
 import java.util.Date;
 import java.util.TimeZone;
-import static java.lang.Math.cos;
-import static java.lang.Math.pow;
 
 /**
  * This class represents a JPL Ephemeris file.
@@ -18,7 +16,11 @@ import static java.lang.Math.pow;
  */
 public class Ephemeris {
 
-	public static final String JPL_URL = "https://ssd.jpl.nasa.gov/"
+	// where Horizons lives; requests can be redirected elsewhere (e.g. to a
+	// HorizonsStandIn) with setHorizonsHost or -Dephparse.horizons=...
+	public static final String JPL_HOST = "https://ssd.jpl.nasa.gov/";
+
+	public static final String JPL_URL = JPL_HOST
 			+ "horizons_batch.cgi?batch=1&"
 			+ "COMMAND=%27301%27&"
 			+ "CENTER=%27695@399%27&"
@@ -27,17 +29,106 @@ public class Ephemeris {
 			+ "TABLE_TYPE=%27OBS%27&"
 			+ "RANGE_UNITS=%27KM%27&"
 			+ "ANG_FORMAT=%27DEG%27&"
-			+ "QUANTITIES=%271,4,7,8,9,10,13,14,15,19,20,23,24%27&"
+			+ "QUANTITIES=%271,9,13,14,15,17,19,20%27&"
 			+ "SKIP_DAYLT=%27YES%27&"
 			+ "CSV_FORMAT=%27NO%27&"
 			+ "STEP_SIZE=%271%20m%27";
 
+	// the main series seen from the geocenter, from which any site's is
+	// computed; the geocenter has no daylight to skip
+	public static final String GEOCENTRIC_URL = JPL_URL
+			.replace("CENTER=%27695@399%27", "CENTER=%27500@399%27")
+			.replace("SKIP_DAYLT=%27YES%27", "SKIP_DAYLT=%27NO%27");
+
+	private static String horizonsHost = System.getProperty(
+			"ephparse.horizons", JPL_HOST);
+
+	// which Horizons interface to use; -Dephparse.api=json|text
+	private static EphemerisSource source = sourceFor(
+			System.getProperty("ephparse.api", "text"));
+	static {
+		if (source == null) {
+			System.out.println("unknown ephparse.api, using the text interface");
+			source = new TextEphemerisSource();
+		}
+	}
+
+	// sources of the selenographic frame
+	public static final int FRAME_COLUMNS = 0; // sub-observer point and pole angle
+	public static final int FRAME_AXES = 1; // X/Z surface-point series
+	public static final int FRAME_MODEL = 2; // IAU rotation model, no downloads
+
+	// pointings kept by each ephemeris' memo
+	public static final int MEMO_SLOTS = 1024;
+
+	// Gauss-Newton steps of the tangent-point inverse, and the step,
+	// radians, under which it stops
+	public static final int INVERSE_STEPS = 10;
+	public static final double INVERSE_TOLERANCE = 1e-12;
+
+	// where the selenographic frame comes from; -Dephparse.frame=...
+	private static int frameSource = frameFor(
+			System.getProperty("ephparse.frame", "columns"));
+
+	// the offline orientation model; -Dephparse.model=basic|precise
+	private static LunarRotationModel model = new LunarRotationModel(
+			"basic".equalsIgnoreCase(System.getProperty("ephparse.model")) ?
+					LunarRotationModel.BASIC : LunarRotationModel.PRECISE);
+	static {
+		if (frameSource < 0) {
+			System.out.println("unknown ephparse.frame, using the main series' columns");
+			frameSource = FRAME_COLUMNS;
+		}
+	}
+
+	// the observer; null for the legacy series fetched for Kitt Peak,
+	// otherwise computed from the geocentric one. -Dephparse.site=CODE
+	// or -Dephparse.site=lat,lon,height_km
+	private static Site site = System.getProperty("ephparse.site") == null ? null :
+		Site.parse(System.getProperty("ephparse.site"));
+	static {
+		if (site == null && System.getProperty("ephparse.site") != null)
+			System.out.println("unknown ephparse.site, fetching for Kitt Peak");
+	}
+
+	// airmass formula; -Dephparse.airmass=kasten-young|hardie
+	private static int airmass = Astrometry.airmassFor(
+			System.getProperty("ephparse.airmass", "kasten-young"));
+	static {
+		if (airmass < 0) {
+			System.out.println("unknown ephparse.airmass, using Kasten-Young");
+			airmass = Astrometry.KASTEN_YOUNG;
+		}
+	}
+
+	// fetches (and checkpoints) the Horizons responses
+	private static HorizonsDownloader downloader = new HorizonsDownloader(null);
+
+	// the features crater names resolve to
+	private static FeatureCatalog catalog = FeatureCatalog.builtin();
+
+	// the surface sight lines are met with; null for the mean sphere
+	private static LunarTerrain terrain;
+
 	private SolarSpectra spectra;
 
-	protected Scanner ephem; // to get lines from ephemeris
+	protected EphemerisTable table; // the rows of the ephemeris
+	protected int row; // index of the current row
 	protected String[] current; // the current line of the ephemeris, split by spaces
 	protected boolean closed; // whether ephem has been closed
 	LibrationEphemeris libra; // keep track of libration
+	private int frame; // where this ephemeris' frame comes from
+	private Topocentric geocentric; // the geocentric series, if fetched
+	private FrameCache frames; // each row's frame, once found
+	private PointingTable pointing; // the craters' RA/Dec by row, once found
+	private long[] times; // each row's instant, once read
+	private final PointingMemo memo = new PointingMemo(MEMO_SLOTS); // recent pointings
+	private FeatureCatalog memoCatalog; // the catalog of the memo's ids
+	private LunarTerrain memoTerrain; // the surface of the memo's pointings
+	private final double[] scratch = new double[3]; // for the transforms
+	private final double[] sightLine = new double[3]; // for the terrain
+	private final double[] sun = new double[3]; // toward the sub-solar point
+	private int sunRow = -1; // the row sun is for
 
 	// class constants - indices of ephemeris rows
 	public static final int DATE = 0;
@@ -49,21 +140,38 @@ public class Ephemeris {
 	public static final int ELEV = 6;
 	public static final int LST = 7;
 	public static final int A_MASS = 8;
-	public static final int AP_MAG = 9;    // 3/20/15: incremented surf_brt and up to
+	public static final int MAG_EX = 9;
+	public static final int AP_MAG = 10;   // 3/20/15: incremented surf_brt and up to
 	public static final int SURF_BRT = 11; // reflect inclusion of mag_ex in ephemeris data
+	// (AP_MAG was left at 9, so logs got mag_ex as their APmag until it
+	// too was moved past MAG_EX)
 	public static final int FRAC_ILL = 12;
 	public static final int ANG_WID = 13;
 	public static final int TAR_LON = 14;
 	public static final int TAR_LAT = 15;
 	public static final int SOL_LON = 16;
 	public static final int SOL_LAT = 17;
-	public static final int R = 18;
-	public static final int R_DOT = 19;
-	public static final int DELTA = 20;
-	public static final int DELTA_DOT = 21;
-	public static final int SOT = 22;
-	public static final int L_OR_T = 23;
-	public static final int STO = 24;
+	public static final int NP_ANG = 18;
+	public static final int NP_DIST = 19;
+	public static final int R = 20;
+	public static final int R_DOT = 21;
+	public static final int DELTA = 22;
+	public static final int DELTA_DOT = 23;
+	public static final int SOT = 24;
+	public static final int L_OR_T = 25;
+	public static final int STO = 26;
+
+	// width of rows saved before the north pole columns were requested
+	public static final int LEGACY_FIELDS = 25;
+
+	// AZI through MAG_EX are computed by Astrometry rather than requested,
+	// so fetched rows are this much narrower
+	public static final int HORIZONTAL_FIELDS = 5;
+	public static final int COMPACT_FIELDS = STO + 1 - HORIZONTAL_FIELDS;
+
+	// and FRAC_ILL, SOT, L_OR_T and STO by Illumination, narrower still
+	public static final int ILLUMINATION_FIELDS = 4;
+	public static final int MINIMAL_FIELDS = COMPACT_FIELDS - ILLUMINATION_FIELDS;
 
 	// unit conversions
 	public static final int MIL_PER_MIN = 60000;
@@ -86,24 +194,15 @@ public class Ephemeris {
 			throw new IllegalArgumentException("Null values not accepted"
 					+ " as a parameter for Ephemeris constructor");
 
-		// instantiate Scanner
-		ephem = new Scanner(file);
-
-		// skip header info
-		String line = "";
-		while (!line.equals("$$SOE")) 
-			line = ephem.nextLine();
+		// read in rows between $$SOE and $$EOE, leaving the north pole
+		// columns empty in files saved without them
+		table = EphemerisTable.read(file);
+		complete(table);
+		start();
 
-		// check that data exists after header
-		if (!ephem.hasNext())
-			throw new IllegalArgumentException(
-					"Provided file contains no lines of ephemeris data");
-
-		// read in current line's data, check that it's not end of ephemeris
-		current = ephem.nextLine().trim().split("\\s+");
-		if (current[0].equals("$$EOE"))
-			throw new IllegalArgumentException(
-					"Provided file contains no lines of ephemeris data");
+		// files carry no axis series, but the other frames work
+		frame = frameSource == FRAME_AXES ? FRAME_COLUMNS : frameSource;
+		libra = new LibrationEphemeris();
 	}
 
 	public Ephemeris(Date[] dates) throws IOException {
@@ -113,99 +212,169 @@ public class Ephemeris {
 					+ " as a parameter for Ephemeris constructor");
 
 		// get ephemeris ranges
-		List<Date[]> ephDates = new LinkedList<Date[]>();
-
-		Date startDate = dates[0];
-		Date endDate = null;
-		SimpleDateFormat dateFormatter = new SimpleDateFormat(DATE_FORMAT);
-		System.out.println();
-		boolean first = true;
-		for (int i = 0; i < dates.length; i++) {
-			if (first) {
-				startDate = dates[i];
-				first = false;
-			} else if (dates[i].getTime() - dates[i-1].getTime() > 3*24*60*MIL_PER_MIN) {
-				endDate = dates[i-1];
-				Date[] period = new Date[2];
-				period[0] = startDate;
-				period[1] = endDate;
-				ephDates.add(period);
-				startDate = dates[i];
-				for (int j = 0; j < period.length; j++)
-					System.out.print(dateFormatter.format(period[j]) + " ");
-				System.out.println();
+		List<Date[]> ephDates = getPeriods(dates);
+		System.out.println("divided into " + (ephDates.size()) + " periods...");
+
+		frame = frameSource;
+		if (site != null) {
+			// one geocentric series for every site; the axis series are
+			// fetched for Kitt Peak, so the frame comes from the columns
+			if (frame == FRAME_AXES)
+				frame = FRAME_COLUMNS;
+			EphemerisTable geo = download(new String[] {GEOCENTRIC_URL},
+					new String[] {"geocentric origin"}, ephDates).get(0);
+			try {
+				geocentric = new Topocentric(geo);
+			} catch (EphemerisDataException e) {
+				throw new IOException("unreadable geocentric ephemeris");
 			}
-
-			if (i == dates.length - 1) {
-				endDate = dates[i];
-				Date[] period = new Date[2];
-				period[0] = startDate;
-				period[1] = endDate;
-				ephDates.add(period);
-				for (int j = 0; j < period.length; j++)
-					System.out.print(dateFormatter.format(period[j]) + " ");
-				System.out.println();
+			table = geocentric.forSite(site, airmass);
+			libra = new LibrationEphemeris();
+		} else if (frame == FRAME_AXES) {
+			// fetch the main series and both libration axes together, so
+			// every period of every series is parsed while the others download
+			List<EphemerisTable> tables = download(
+					new String[] {JPL_URL, AxisEphemeris.Z, AxisEphemeris.X},
+					new String[] {"selenocentric origin", "selenocentric z-axis",
+							"selenocentric x-axis"},
+					ephDates);
+			table = tables.get(0);
+			complete(table);
+			try {
+				libra = new LibrationEphemeris(table, tables.get(2), tables.get(1));
+			} catch (EphemerisDataParseException e) {
+				throw new IOException("unreadable libration axis series");
 			}
+		} else {
+			// the frame comes from the main series' own columns or the model
+			table = download(new String[] {JPL_URL},
+					new String[] {"selenocentric origin"}, ephDates).get(0);
+			complete(table);
+			libra = new LibrationEphemeris();
 		}
-		System.out.println("selenocentric origin: divided into " + (ephDates.size()) + " periods...");
+		start();
 
-		// construct string builder from which to make scanner
-		String line = "";
-		StringBuilder sb = new StringBuilder();
-		int i = 0;
-		for (Date[] period : ephDates) {
-			System.out.print("\nacquiring Period " + (i+1) + " selenocentric origin ephemeris...");
-			i++;
-			URL url = new URL(Ephemeris.ephRequest(period));
-			Scanner in = new Scanner(url.openStream());
-			System.out.println("done");
-			// skip header info
-			System.out.println("***************************************************");
-			while (!line.equals("$$SOE")) {
-				line = in.nextLine();
-				if (line.contains("Start time") || line.contains("Stop  time"))
-					System.out.println(line);
-			}
-			System.out.print("reading in data...");
-
-			do {
-				line = in.nextLine();
-				if (!line.equals("$$EOE") && !line.equals("") && 
-						!line.contains("Daylight Cut-off")) {
-					sb.append(line + '\n');
-				} 
-			} while (!line.equals("$$EOE"));
+		spectra = new SolarSpectra();
+	}
 
-			in.close();
-			System.out.println("done");
-			System.out.println("***************************************************");
-		}
+	public Ephemeris(Date[] dates, String urlBase) throws IOException {
+		// check for null values
+		if (dates == null)
+			throw new IllegalArgumentException("Null values not accepted"
+					+ " as a parameter for Ephemeris constructor");
 
-		// add ending signal
-		sb.append("$$EOE");
+		// get ephemeris ranges
+		List<Date[]> ephDates = getPeriods(dates);
 
-		// instantiate Scanner
-		ephem = new Scanner(sb.toString());
+		String axisMess;
+		if (urlBase.equals(AxisEphemeris.X)) {
+			axisMess = "selenocentric x-axis";
+		} else if (urlBase.equals(AxisEphemeris.Z)) {
+			axisMess = "selenocentric z-axis";
+		} else {
+			axisMess = "UNKNOWN VALUE";
+		}
+		System.out.println(axisMess + ": divided into " + (ephDates.size()) + " periods...");
 
-		// read in current line's data, check that it's not end of ephemeris
-		current = ephem.nextLine().trim().split("\\s+");
-		if (current[0].equals("$$EOE"))
-			throw new IllegalArgumentException(
-					"Provided file contains no lines of ephemeris data");
+		table = download(new String[] {urlBase}, new String[] {axisMess},
+				ephDates).get(0);
+		start();
+	}
 
-		// get libration data
-		libra = new LibrationEphemeris(dates);
+	/**
+	 * Returns this ephemeris as seen from another site, without fetching
+	 * anything
+	 * @param s the observer
+	 * @return an ephemeris over the same instants
+	 * @throws IllegalStateException if this ephemeris wasn't computed from
+	 * a geocentric series
+	 */
+	public Ephemeris forSite(Site s) {
+		if (geocentric == null)
+			throw new IllegalStateException("no geocentric series to move");
+		Ephemeris eph = new Ephemeris(geocentric.forSite(s, airmass));
+		eph.geocentric = geocentric;
+		eph.frame = frame;
+		eph.libra = libra;
+		eph.spectra = spectra;
+		return eph;
+	}
 
-		spectra = new SolarSpectra();
+	/**
+	 * Returns another ephemeris over the same rows, at the first row, for
+	 * a second thread to move through on its own. It shares this one's
+	 * frames, all found first, and pointing table, and has its own row
+	 * and memo
+	 * @return the new cursor
+	 */
+	public Ephemeris cursor() {
+		Ephemeris eph = new Ephemeris(table);
+		eph.geocentric = geocentric;
+		eph.frame = frame;
+		eph.libra = libra;
+		eph.spectra = spectra;
+		eph.frames = getFrames();
+		eph.pointing = pointing;
+		eph.times = times;
+		return eph;
 	}
 
-	public Ephemeris(Date[] dates, String urlBase) throws IOException {
-		// check for null values
-		if (dates == null)
+	/**
+	 * Instantiates an Ephemeris over already fetched rows
+	 * @param table the ephemeris rows
+	 */
+	protected Ephemeris(EphemerisTable table) {
+		if (table == null)
 			throw new IllegalArgumentException("Null values not accepted"
 					+ " as a parameter for Ephemeris constructor");
+		this.table = table;
+		start();
+	}
 
-		// get ephemeris ranges
+	/**
+	 * Lines rows of older and newer requests up with the field layout
+	 * above, leaving n.a. wherever a row lacks a field
+	 */
+	static void widen(EphemerisTable table) {
+		table.insert(LEGACY_FIELDS, NP_ANG, 2, "n.a.");
+		// SOT, L_OR_T and STO end the row; FRAC_ILL follows SURF_BRT
+		table.insert(MINIMAL_FIELDS, MINIMAL_FIELDS, ILLUMINATION_FIELDS - 1, "n.a.");
+		table.insert(COMPACT_FIELDS - 1, FRAC_ILL - HORIZONTAL_FIELDS, 1, "n.a.");
+		table.insert(COMPACT_FIELDS, AZI, HORIZONTAL_FIELDS, "n.a.");
+	}
+
+	/**
+	 * Widens the rows and computes the illumination and horizontal fields
+	 * of rows fetched without them
+	 */
+	private static void complete(EphemerisTable table) throws IOException {
+		widen(table);
+		try {
+			Illumination.fill(table);
+			Astrometry.fill(table, site == null ? Site.KITT_PEAK : site, airmass);
+		} catch (EphemerisDataParseException e) {
+			throw new IOException("unreadable ephemeris row");
+		}
+	}
+
+	/**
+	 * Moves to the first row, checking that there is one
+	 */
+	private void start() {
+		if (table.size() == 0)
+			throw new IllegalArgumentException(
+					"Provided file contains no lines of ephemeris data");
+		row = 0;
+		current = table.get(row);
+	}
+
+	/**
+	 * Splits the given (sorted) dates into periods, starting a new period
+	 * wherever consecutive dates are more than three days apart
+	 * @param dates the dates for which ephemeris data is needed
+	 * @return the list of [start, end] periods
+	 */
+	public static List<Date[]> getPeriods(Date[] dates) {
 		List<Date[]> ephDates = new LinkedList<Date[]>();
 
 		Date startDate = dates[0];
@@ -228,6 +397,7 @@ public class Ephemeris {
 					System.out.print(dateFormatter.format(period[j]) + " ");
 				System.out.println();
 			}
+
 			if (i == dates.length - 1) {
 				endDate = dates[i];
 				Date[] period = new Date[2];
@@ -239,86 +409,210 @@ public class Ephemeris {
 				System.out.println();
 			}
 		}
+		return ephDates;
+	}
 
-		String axisMess;
-		if (urlBase.equals(AxisEphemeris.X)) {
-			axisMess = "selenocentric x-axis";
-		} else if (urlBase.equals(AxisEphemeris.Z)) {
-			axisMess = "selenocentric z-axis";
-		} else {
-			axisMess = "UNKNOWN VALUE";
+	/**
+	 * Fetches every period of the given series through the pipeline
+	 * @param urlBases the series' request urls, without start/stop times
+	 * @param labels name of each series for progress output
+	 * @param ephDates the periods to fetch
+	 * @return one table per series, holding the rows of all periods
+	 * @throws IOException if a period could not be fetched
+	 */
+	private static List<EphemerisTable> download(String[] urlBases,
+			String[] labels, List<Date[]> ephDates) throws IOException {
+		List<String> requests = new ArrayList<String>();
+		List<String> periodLabels = new ArrayList<String>();
+		for (int s = 0; s < urlBases.length; s++) {
+			int i = 0;
+			for (Date[] period : ephDates) {
+				i++;
+				requests.add(Ephemeris.ephRequest(urlBases[s],period));
+				periodLabels.add("Period " + i + " " + labels[s]);
+			}
 		}
-		System.out.println(axisMess + ": divided into " + (ephDates.size()) + " periods...");
 
-		// construct string builder from which to make scanner
-		String line = "";
-		StringBuilder sb = new StringBuilder();
-		int i = 0;
-		for (Date[] period : ephDates) {
-			System.out.print("\nacquiring Period " + (i+1) + " " + axisMess + " ephemeris...");
-			i++;
-			URL url = new URL(Ephemeris.ephRequest(urlBase,period));
-			Scanner in = new Scanner(url.openStream());
-			System.out.println("done");
-			// skip header info
-			System.out.println("***************************************************");
-			while (!line.equals("$$SOE")) {
-				line = in.nextLine();
-				if (line.contains("Start time") || line.contains("Stop  time"))
-					System.out.println(line);
-			}
-			System.out.print("reading in data...");
+		System.out.println("***************************************************");
+		List<List<String[]>> chunks = new EphemerisPipeline(downloader,
+				EphemerisPipeline.THREADS, source).fetch(requests, periodLabels);
+		System.out.println("***************************************************");
 
-			do {
-				line = in.nextLine();
-				if (!line.equals("$$EOE") && !line.equals("") && 
-						!line.contains("Daylight Cut-off")) {
-					sb.append(line + '\n');
-				} 
-			} while (!line.equals("$$EOE"));
+		List<EphemerisTable> tables = new ArrayList<EphemerisTable>();
+		for (int s = 0; s < urlBases.length; s++) {
+			int from = s * ephDates.size();
+			tables.add(EphemerisTable.join(
+					chunks.subList(from, from + ephDates.size())));
+		}
+		return tables;
+	}
 
-			in.close();
-			System.out.println("done");
-			System.out.println("***************************************************");
+	/**
+	 * Sets the downloader used to fetch Horizons data, e.g. to checkpoint
+	 * into a directory next to the log being processed
+	 * @param d the downloader to use for all later requests
+	 */
+	public static void setDownloader(HorizonsDownloader d) {
+		downloader = d;
+	}
+
+	public double[] getGeocentricCrater(String craterName) throws 
+	EphemerisDataMissingException, EphemerisDataParseException,
+	BadTransferException {
+		double[] coords = new double[2];
+		getGeocentricCrater(craterName, coords);
+		return coords;
+	}
+
+	/**
+	 * Finds the RA and Dec of a crater for the current row
+	 * @param craterName the crater, by any name the catalog knows it by
+	 * @param out receives the RA (-180 to 180) and Dec, degrees
+	 */
+	public void getGeocentricCrater(String craterName, double[] out) throws 
+	EphemerisDataMissingException, EphemerisDataParseException,
+	BadTransferException {
+		getGeocentricCrater(feature(craterName), out);
+	}
+
+	/**
+	 * Finds the RA and Dec of a catalog feature for the current row
+	 * @param feature the feature's id in the catalog
+	 * @param out receives the RA (-180 to 180) and Dec, degrees
+	 */
+	public void getGeocentricCrater(int feature, double[] out) throws 
+	EphemerisDataMissingException, EphemerisDataParseException {
+		if (pointing != null && pointing.has(catalog, feature) && !closed
+				&& row < table.size()) {
+			pointing.get(feature, row, out);
+			if (!Double.isNaN(out[0]))
+				return;
 		}
+		int r = cache();
+		double[] p = catalog.positions;
+		int f = 3 * feature;
+		double[] geoCrater = scratch;
+		frames.toEquatorial(r, p[f], p[f + 1], p[f + 2], geoCrater);
+		double[] centers = frames.centers;
+		int c = 4 * r;
+		for (int i = 0; i < 3; i++)
+			geoCrater[i] += centers[c + i] * centers[c + 3];
+		double norm = Vec3.norm(geoCrater, 0);
+		out[0] = Math.atan2(geoCrater[1], geoCrater[0])*180/Math.PI;
+		out[1] = Math.asin(geoCrater[2] / norm)*180/Math.PI;
+	}
 
-		// add ending signal
-		sb.append("$$EOE");
+	/**
+	 * Returns a crater's id in the catalog
+	 * @throws BadTransferException if the catalog doesn't know the name
+	 */
+	private static int feature(String craterName) throws BadTransferException {
+		int feature = catalog.find(craterName);
+		if (feature < 0)
+			throw new BadTransferException("bad crater name");
+		return feature;
+	}
 
-		// instantiate Scanner
-		ephem = new Scanner(sb.toString());
+	public double[] getLunarCoords(String craterName, double ew_dist, double ns_dist, String origin, double fov) 
+			throws BadTransferException, EphemerisDataMissingException, EphemerisDataParseException {
+		double[] pointing = new double[PointingMemo.VALUES];
+		getLunarCoords(feature(craterName), ew_dist, ns_dist, origin, fov, pointing);
+		return Arrays.copyOfRange(pointing, 2, 5);
+	}
 
-		// read in current line's data, check that it's not end of ephemeris
-		current = ephem.nextLine().trim().split("\\s+");
-		if (current[0].equals("$$EOE"))
-			throw new IllegalArgumentException(
-					"Provided file contains no lines of ephemeris data");
+	/**
+	 * Finds where a field of view placed relative to a feature falls, as
+	 * getFovRaDec and then getLunarCoords(ra, dec). Pointings are kept in
+	 * a memo, so a repeat of one on the same row is a lookup
+	 * @param feature the feature's id in the catalog
+	 * @param ew_dist E/W offset, seconds of time
+	 * @param ns_dist N/S offset, arcmin
+	 * @param origin what the offsets are from, as for getFovRaDec
+	 * @param fov the field's angular diameter, arcsec
+	 * @param out receives the field center's RA and Dec, degrees, then its
+	 * selenographic longitude, latitude and altitude as getLunarCoords
+	 */
+	public void getLunarCoords(int feature, double ew_dist, double ns_dist, String origin,
+			double fov, double[] out) throws BadTransferException,
+			EphemerisDataMissingException, EphemerisDataParseException {
+		int code = originFor(origin);
+		if (code >= 0 && !closed && row < table.size()) {
+			if (memoCatalog != catalog || memoTerrain != terrain) {
+				memo.clear();
+				memoCatalog = catalog;
+				memoTerrain = terrain;
+			}
+			if (memo.get(row, feature, code, ew_dist, ns_dist, fov, out))
+				return;
+		}
+		double[] raDec = getFovRaDec(feature, ew_dist, ns_dist, origin, fov);
+		double[] lunar = new double[3];
+		getLunarCoords(raDec[0], raDec[1], lunar);
+		out[0] = raDec[0];
+		out[1] = raDec[1];
+		System.arraycopy(lunar, 0, out, 2, 3);
+		if (code >= 0)
+			memo.put(row, feature, code, ew_dist, ns_dist, fov, out);
+	}
 
+	/**
+	 * Returns the memo of recent pointings, e.g. for its hit rate
+	 */
+	public PointingMemo getMemo() {
+		return memo;
 	}
 
-	public Double[] getGeocentricCrater(String craterName) throws 
-	EphemerisDataMissingException, EphemerisDataParseException,
-	BadTransferException {
-		Double[] craterCoords = libra.getCraterCoords().get(craterName);
-			if (craterCoords == null)
-				throw new BadTransferException("bad crater name");
-		Vector moonCenter = new Vector(getDeclination()*Math.PI/180,getRightAcension()*Math.PI/180).scale(getTargetRange());
-		Vector selenoCrater = new Vector(craterCoords[1]*Math.PI/180,craterCoords[0]*Math.PI/180).scale(
-				LibrationEphemeris.LUNAR_RADIUS);
-		Vector geoCrater = coordTrans().times(
-				selenoCrater).plus(moonCenter);
-		double r1 = geoCrater.getAzi()*180/Math.PI;
-		double d1 = geoCrater.getElev()*180/Math.PI;
-		return new Double[] {r1,d1};
-	}
-
-	public Double[] getLunarCoords(String craterName, double ew_dist, double ns_dist, String origin, double fov) 
+	/**
+	 * Returns a number standing for an origin of getFovRaDec: 0 for
+	 * "crater", 17 for "term", else one per kind of limb or terminator
+	 * and direction
+	 * @param origin the origin
+	 * @return the number, or -1 if the origin isn't valid
+	 */
+	public static int originFor(String origin) {
+		int sp = origin.indexOf(' ');
+		int end = sp < 0 ? origin.length() : sp;
+		if (sp >= 0 && origin.indexOf(' ', sp + 1) >= 0)
+			return -1;
+		if (end == 6 && origin.startsWith("crater"))
+			return 0;
+		if (sp < 0 && origin.equals("term"))
+			return 17;
+		if (sp < 0 || origin.length() != sp + 2)
+			return -1;
+		int dir = "nsew".indexOf(origin.charAt(sp + 1)); // as Limb's directions
+		if (dir < 0)
+			return -1;
+		if (end == 5 && origin.startsWith("xlimb"))
+			return 1 + dir;
+		if (end == 4 && origin.startsWith("limb"))
+			return 5 + dir;
+		if (end == 4 && origin.startsWith("aper"))
+			return 9 + dir;
+		if (end == 4 && origin.startsWith("edge"))
+			return 13 + dir;
+		if (end == 4 && origin.startsWith("term"))
+			return 18 + dir;
+		return -1;
+	}
+
+	public double[] getFovRaDec(String craterName, double ew_dist, double ns_dist, String origin, double fov)
 			throws BadTransferException, EphemerisDataMissingException, EphemerisDataParseException {
-		Double[] coords = getFovRaDec(craterName,ew_dist,ns_dist,origin,fov);
-		return getLunarCoords(coords[0],coords[1]);
+		return getFovRaDec(feature(craterName), ew_dist, ns_dist, origin, fov);
 	}
 
-	public Double[] getFovRaDec(String craterName, double ew_dist, double ns_dist, String origin, double fov) 
+	/**
+	 * Finds the RA and Dec of a field of view placed relative to a feature
+	 * @param feature the feature's id in the catalog
+	 * @param ew_dist E/W offset, seconds of time
+	 * @param ns_dist N/S offset, arcmin
+	 * @param origin what the offsets are from: "crater", "term" (the
+	 * terminator, east or west of the feature), or "xlimb", "limb",
+	 * "aper", "edge" or "term" and a direction
+	 * @param fov the field's angular diameter, arcsec
+	 * @return the field center's RA and Dec, degrees
+	 */
+	public double[] getFovRaDec(int feature, double ew_dist, double ns_dist, String origin, double fov) 
 			throws BadTransferException, EphemerisDataMissingException, EphemerisDataParseException {
 
 		String[] orig_info = origin.split(" ");
@@ -330,29 +624,30 @@ public class Ephemeris {
 		if (orig_info.length > 2)
 			throw new BadTransferException("bad origin value");
 
-		Double[] start;
+		double[] start;
 		switch (orig_dist) {
 		case "crater":
-			start = getGeocentricCrater(craterName); 
-			if (start == null)
-				throw new BadTransferException("bad crater value");
+			start = new double[2];
+			getGeocentricCrater(feature, start); 
 			break;
 		case "xlimb":
 			if (orig_dir == null)
 				throw new BadTransferException("bad origin value");
-			start = getLimbRaDec(craterName,orig_dir,0); break;
+			start = getLimbRaDec(feature,orig_dir,0); break;
 		case "limb":
 			if (orig_dir == null)
 				throw new BadTransferException("bad origin value");
-			start = getLimbRaDec(craterName,orig_dir,fov); break;
+			start = getLimbRaDec(feature,orig_dir,fov); break;
 		case "aper":
 			if (orig_dir == null)
 				throw new BadTransferException("bad origin value");
-			start = getLimbRaDec(craterName,orig_dir,LibrationEphemeris.APER_DIAM); break;
+			start = getLimbRaDec(feature,orig_dir,LibrationEphemeris.APER_DIAM); break;
 		case "edge":
 			if (orig_dir == null)
 				throw new BadTransferException("bad origin value");
-			start = getLimbRaDec(craterName,orig_dir,LibrationEphemeris.LENS_ANG_DIAM); break;
+			start = getLimbRaDec(feature,orig_dir,LibrationEphemeris.LENS_ANG_DIAM); break;
+		case "term":
+			start = getTerminatorRaDec(feature,orig_dir); break;
 		default:
 			throw new BadTransferException("bad origin value");
 		}
@@ -363,129 +658,367 @@ public class Ephemeris {
 		return start;
 	}
 
-	public Double[] getLimbRaDec(String craterName, String direction, double fov) 
+	public double[] getLimbRaDec(String craterName, String direction, double fov) 
 			throws EphemerisDataParseException, EphemerisDataMissingException, 
 			BadTransferException {
+		return getLimbRaDec(feature(craterName), direction, fov);
+	}
 
-		double d1,r1,d0,r0;
-		r0 = getRightAcension();
-		d0 = getDeclination();
-		Vector center = new Vector(d0 * Math.PI / 180,r0 * Math.PI / 180);
-
-		Double[] craterCoords = getGeocentricCrater(craterName);
-
-		if (craterCoords == null)
-			throw new BadTransferException("bad crater value");
+	/**
+	 * Finds where the meridian or parallel through a feature leaves a
+	 * circle about the moon's center
+	 * @param feature the feature's id in the catalog
+	 * @param direction "n", "s", "e" or "w"
+	 * @param fov diameter added to the moon's, arcsec
+	 * @return the crossing's RA and Dec, degrees
+	 */
+	public double[] getLimbRaDec(int feature, String direction, double fov) 
+			throws EphemerisDataParseException, EphemerisDataMissingException, 
+			BadTransferException {
 
-		r1 = craterCoords[0];
-		d1 = craterCoords[1];
+		double[] coords = new double[2];
+		getGeocentricCrater(feature, coords);
 
 		String[] dirs = direction.split(",");
-		if (dirs.length != 1)
+		int dir = dirs.length == 1 ? Limb.directionFor(dirs[0]) : -1;
+		if (dir < 0)
 			throw new EphemerisDataParseException("invalid limb direction");
 
-		double dotProd = cos((((fov + getAngularWidth())/2) / 3600) * Math.PI / 180);
-		double minTol = pow(10,-10);
-		double start,end,resid;
-		resid = new Vector(d1 * Math.PI / 180,r1 * Math.PI / 180).dot(center) - dotProd;
-		switch (dirs[0]) {
-		case "n":
-			start = d1;
-			end = d1;
-			while (new Vector(end * Math.PI / 180, r1 * Math.PI / 180).dot(center) - dotProd > 0)
-				end += 0.125;
-
-			resid = new Vector(((start + end) / 2) * Math.PI / 180, r1 * Math.PI / 180).dot(center) - dotProd;
-			while (Math.abs(resid) > minTol) {
-				if (resid > 0) {
-					start = (start + end) / 2;
-				} else {
-					end = (start + end) / 2;
-				}
-				resid = new Vector(((start + end) / 2) * Math.PI / 180,r1 * Math.PI / 180).dot(center) - dotProd;
-			}
-			d1 = (start + end) / 2;
+		double radius = ((fov + getAngularWidth())/2) / 3600;
+		if (!Limb.solve(frames.centers, 4 * cache(), coords[0], coords[1], radius,
+				dir, coords))
+			throw new BadTransferException("no limb in that direction");
+		return coords;
+	}
 
-			break;
-		case "s":
-			start = d1;
-			end = d1;
-			while (new Vector(end * Math.PI / 180, r1 * Math.PI / 180).dot(center) - dotProd > 0)
-				end -= 0.125;
-
-			resid = new Vector(((start + end) / 2) * Math.PI / 180, r1 * Math.PI / 180).dot(center) - dotProd;
-			while (Math.abs(resid) > minTol) {
-				if (resid > 0) {
-					start = (start + end) / 2;
-				} else {
-					end = (start + end) / 2;
-				}
-				resid = new Vector(((start + end) / 2) * Math.PI / 180,r1 * Math.PI / 180).dot(center) - dotProd;
-			}
-			d1 = (start + end) / 2;
+	/**
+	 * Finds where the meridian or parallel through a feature crosses the
+	 * terminator on the visible disc
+	 * @param feature the feature's id in the catalog
+	 * @param direction "n", "s", "e" or "w", or null for the nearer of
+	 * east and west
+	 * @return the crossing's RA and Dec, degrees
+	 */
+	public double[] getTerminatorRaDec(int feature, String direction)
+			throws EphemerisDataParseException, EphemerisDataMissingException,
+			BadTransferException {
 
-			break;
-		case "e":
-			start = r1;
-			end = r1;
-			while (new Vector(d1 * Math.PI / 180, end * Math.PI / 180).dot(center) - dotProd > 0)
-				end += 0.125;
-
-			resid = new Vector(d1 * Math.PI / 180,((start + end) / 2) * Math.PI / 180).dot(center) - dotProd;
-			while (Math.abs(resid) > minTol) {
-				if (resid > 0) {
-					start = (start + end) / 2;
-				} else {
-					end = (start + end) / 2;
-				}
-				resid = new Vector(d1 * Math.PI / 180,((start + end) / 2) * Math.PI / 180).dot(center) - dotProd;
-			}
-			r1 = (start + end) / 2;
-			break;
+		double[] coords = new double[2];
+		getGeocentricCrater(feature, coords);
+
+		int dir = Terminator.directionFor(direction);
+		if (dir < 0)
+			throw new EphemerisDataParseException("invalid terminator direction");
+
+		// toward the sub-solar point, once per row
+		int r = cache();
+		if (sunRow != r) {
+			double lon = getSolarLongitude() * Math.PI / 180;
+			double lat = getSolarLatitude() * Math.PI / 180;
+			frames.toEquatorial(r, Math.cos(lat) * Math.cos(lon),
+					Math.cos(lat) * Math.sin(lon), Math.sin(lat), sun);
+			sunRow = r;
+		}
+		if (!Terminator.solve(frames.centers, 4 * r, sun, 0, coords[0], coords[1],
+				dir, coords))
+			throw new BadTransferException("no terminator in that direction");
+		return coords;
+	}
 
-		case "w":
-			start = r1;
-			end = r1;
-			while (new Vector(d1 * Math.PI / 180, end * Math.PI / 180).dot(center) - dotProd > 0)
-				end -= 0.125;
-
-			resid = new Vector(d1 * Math.PI / 180,((start + end) / 2) * Math.PI / 180).dot(center) - dotProd;
-			while (Math.abs(resid) > minTol) {
-				if (resid > 0) {
-					start = (start + end) / 2;
-				} else {
-					end = (start + end) / 2;
-				}
-				resid = new Vector(d1 * Math.PI / 180,((start + end) / 2) * Math.PI / 180).dot(center) - dotProd;
-			}
-			r1 = (start + end) / 2;
+	/**
+	 * Finds the offsets that put the field center on a surface point
+	 * @param feature the feature's id in the catalog
+	 * @param origin what the offsets are from, as for getFovRaDec
+	 * @param fov the field's angular diameter, arcsec
+	 * @param lon selenographic longitude of the point, degrees
+	 * @param lat its latitude, degrees
+	 * @param out receives the E/W offset (seconds of time), N/S offset
+	 * (arcmin), the field center's RA and Dec (degrees) and 0, the miss
+	 * @throws BadTransferException if the point faces away from the
+	 * observer, or the origin can't be found
+	 */
+	public void getSurfaceOffsets(int feature, String origin, double fov,
+			double lon, double lat, double[] out) throws BadTransferException,
+			EphemerisDataMissingException, EphemerisDataParseException {
+		double[] start = getFovRaDec(feature, 0, 0, origin, fov);
+		int r = cache();
+		double[] centers = frames.centers;
+		int c = 4 * r;
+		double hypo = centers[c + 3];
+
+		double[] p = scratch;
+		pointAt(lon, lat, 0, p);
+		frames.toEquatorial(r, p[0], p[1], p[2], p);
+		double wx = p[0] + hypo * centers[c];
+		double wy = p[1] + hypo * centers[c + 1];
+		double wz = p[2] + hypo * centers[c + 2];
+		if (p[0] * wx + p[1] * wy + p[2] * wz >= 0)
+			throw new BadTransferException("point not on the visible disc");
+		offsets(start, Math.atan2(wy, wx), Math.atan2(wz, Math.hypot(wx, wy)), out);
+		out[4] = 0;
+	}
 
-			break;
-		default: throw new EphemerisDataParseException("invalid limb direction");
+	/**
+	 * Finds the offsets that put the field center's sight line nearest a
+	 * point above the surface, the sight line's tangent point when it is
+	 * at the limb. The sight line is found by Gauss-Newton steps on
+	 * getLunarCoords, with the Jacobian of the sphere's nearest point;
+	 * with a terrain set, the steps are on the terrain's tangent point and
+	 * the sphere's Jacobian stands in for its own
+	 * @param feature the feature's id in the catalog
+	 * @param origin what the offsets are from, as for getFovRaDec
+	 * @param fov the field's angular diameter, arcsec
+	 * @param lon selenographic longitude of the point, degrees
+	 * @param lat its latitude, degrees
+	 * @param alt its height above the mean radius, km, or above the
+	 * terrain if one is set
+	 * @param out receives the E/W offset (seconds of time), N/S offset
+	 * (arcmin), the field center's RA and Dec (degrees) and how far the
+	 * sight line's point is from the one asked for, km
+	 * @throws BadTransferException if the origin can't be found
+	 */
+	public void getTangentOffsets(int feature, String origin, double fov,
+			double lon, double lat, double alt, double[] out)
+			throws BadTransferException, EphemerisDataMissingException,
+			EphemerisDataParseException {
+		double[] start = getFovRaDec(feature, 0, 0, origin, fov);
+		int r = cache();
+		double[] centers = frames.centers;
+		int c = 4 * r;
+		double hypo = centers[c + 3];
+		double ox = -hypo * centers[c];
+		double oy = -hypo * centers[c + 1];
+		double oz = -hypo * centers[c + 2];
+
+		// first, the sight line through the point
+		double[] q = new double[3];
+		double[] p = new double[3];
+		pointAt(lon, lat, alt, q);
+		frames.toEquatorial(r, q[0], q[1], q[2], p);
+		double ra = Math.atan2(p[1] - oy, p[0] - ox);
+		double dec = Math.atan2(p[2] - oz, Math.hypot(p[0] - ox, p[1] - oy));
+
+		double[] f = new double[3];
+		double[] ja = new double[3];
+		double[] jd = new double[3];
+		double miss = Double.NaN;
+		for (int i = 0; i <= INVERSE_STEPS; i++) {
+			getLunarCoords(ra * 180 / Math.PI, dec * 180 / Math.PI, f);
+			pointAt(f[0], f[1], f[2], p);
+			double dx = p[0] - q[0];
+			double dy = p[1] - q[1];
+			double dz = p[2] - q[2];
+			miss = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			if (i == INVERSE_STEPS)
+				break;
+
+			// the nearest point o - (o.s) s moves with s by
+			// -(o.s') s - (o.s) s', for s' along RA and Dec
+			double ca = Math.cos(ra);
+			double sa = Math.sin(ra);
+			double cd = Math.cos(dec);
+			double sd = Math.sin(dec);
+			double sx = cd * ca;
+			double sy = cd * sa;
+			double os = ox * sx + oy * sy + oz * sd;
+			double oa = cd * (oy * ca - ox * sa);
+			double od = -sd * (ox * ca + oy * sa) + oz * cd;
+			frames.toSelenographic(r, -oa * sx + os * cd * sa,
+					-oa * sy - os * cd * ca, -oa * sd, ja);
+			frames.toSelenographic(r, -od * sx + os * sd * ca,
+					-od * sy + os * sd * sa, -od * sd - os * cd, jd);
+
+			// the normal equations of the least-squares step
+			double aa = Vec3.dot(ja, 0, ja, 0);
+			double ad = Vec3.dot(ja, 0, jd, 0);
+			double dd = Vec3.dot(jd, 0, jd, 0);
+			double ba = -(ja[0] * dx + ja[1] * dy + ja[2] * dz);
+			double bd = -(jd[0] * dx + jd[1] * dy + jd[2] * dz);
+			double det = aa * dd - ad * ad;
+			double stepA = (ba * dd - bd * ad) / det;
+			double stepD = (aa * bd - ad * ba) / det;
+			if (!(Math.abs(stepA) + Math.abs(stepD) > INVERSE_TOLERANCE))
+				break;
+			ra += stepA;
+			dec += stepD;
 		}
+		offsets(start, ra, dec, out);
+		out[4] = miss;
+	}
+
+	/**
+	 * Finds the selenographic point at a height above the mean radius, or
+	 * above the terrain if one is set, km
+	 */
+	private static void pointAt(double lon, double lat, double alt, double[] out) {
+		double radius = terrain == null ? LibrationEphemeris.LUNAR_RADIUS
+				: terrain.getRadius(lat, lon);
+		double l = lon * Math.PI / 180;
+		double b = lat * Math.PI / 180;
+		out[0] = (radius + alt) * Math.cos(b) * Math.cos(l);
+		out[1] = (radius + alt) * Math.cos(b) * Math.sin(l);
+		out[2] = (radius + alt) * Math.sin(b);
+	}
 
-		return new Double[] {r1,d1};
+	/**
+	 * Fills the offsets from an origin to a sight line, and its RA and Dec
+	 * in degrees, from radians
+	 */
+	private static void offsets(double[] start, double ra, double dec, double[] out) {
+		out[2] = ra * 180 / Math.PI;
+		out[3] = dec * 180 / Math.PI;
+		double turn = out[2] - start[0];
+		turn -= 360 * Math.rint(turn / 360);
+		out[0] = turn * 240; // E/W in secs of time
+		out[1] = (out[3] - start[1]) * 60; // N/S in arcmin
 	}
 
-	public Double[] getLunarCoords(double ra, double dec) throws EphemerisDataMissingException, EphemerisDataParseException {
-		double hypo = getTargetRange();
-		double d0,r0;
-		r0 = getRightAcension();
-		d0 = getDeclination();
-		Vector moonCenter = new Vector(d0 * Math.PI / 180,r0 * Math.PI / 180);
-		Vector sightLine = new Vector(dec * Math.PI / 180,ra * Math.PI / 180);
-		double cosine = moonCenter.dot(sightLine);
-		sightLine = sightLine.scale(hypo*cosine);
+	public double[] getLunarCoords(double ra, double dec) throws EphemerisDataMissingException, EphemerisDataParseException {
+		double[] coords = new double[3];
+		getLunarCoords(ra, dec, coords);
+		return coords;
+	}
 
-		Vector radialVec = sightLine.plus(moonCenter.scale(hypo).negative());
+	/**
+	 * Finds where a sight line passes nearest the moon's center for the
+	 * current row, or with a terrain set, where it meets the surface or
+	 * passes lowest above it
+	 * @param ra right ascension of the sight line, degrees
+	 * @param dec its declination, degrees
+	 * @param out receives the selenographic longitude and latitude,
+	 * degrees, and the height above the mean radius, km; with a terrain,
+	 * as LunarTerrain.intersect
+	 */
+	public void getLunarCoords(double ra, double dec, double[] out) throws EphemerisDataMissingException, EphemerisDataParseException {
+		int r = cache();
+		double[] centers = frames.centers;
+		int c = 4 * r;
+		double hypo = centers[c + 3];
+		double cd = Math.cos(dec * Math.PI / 180);
+		double sx = cd * Math.cos(ra * Math.PI / 180);
+		double sy = cd * Math.sin(ra * Math.PI / 180);
+		double sz = Math.sin(dec * Math.PI / 180);
+		double cosine = centers[c] * sx + centers[c + 1] * sy + centers[c + 2] * sz;
+
+		if (terrain != null) {
+			double[] obs = scratch;
+			double[] line = sightLine;
+			frames.toSelenographic(r, -hypo * centers[c], -hypo * centers[c + 1],
+					-hypo * centers[c + 2], obs);
+			frames.toSelenographic(r, sx, sy, sz, line);
+			terrain.intersect(obs, line, out);
+			return;
+		}
 
-		Vector lunarVec = coordTrans().transpose().times(radialVec);
+		// from the moon's center to the point of the sight line nearest it
+		double[] lunarVec = scratch;
+		frames.toSelenographic(r, hypo * (cosine * sx - centers[c]),
+				hypo * (cosine * sy - centers[c + 1]), hypo * (cosine * sz - centers[c + 2]), lunarVec);
 
-		double alt = lunarVec.norm() - LibrationEphemeris.LUNAR_RADIUS;
-		double lat = lunarVec.getElev() * 180 / Math.PI;
-		double lon = lunarVec.getAzi() * 180 / Math.PI;
+		double norm = Vec3.norm(lunarVec, 0);
+		out[2] = norm - LibrationEphemeris.LUNAR_RADIUS;
+		out[1] = Math.asin(lunarVec[2] / norm) * 180 / Math.PI;
+		out[0] = Math.atan2(lunarVec[1], lunarVec[0]) * 180 / Math.PI;
+	}
 
-		return new Double[] {lon,lat,alt};
+	/**
+	 * Finds the catalog features inside a field of view for the current
+	 * row: those on the visible hemisphere whose sight lines fall within
+	 * the field. With a terrain set each feature is placed at the
+	 * terrain's radius, as the sight lines of getLunarCoords meet it; relief
+	 * that hides a feature from the observer isn't considered
+	 * @param catalog the features
+	 * @param ra RA of the field's center, degrees
+	 * @param dec declination of the field's center, degrees
+	 * @param fov angular diameter of the field, arcsec
+	 * @param out receives the features; needs room for all of the catalog
+	 * @return how many were found
+	 */
+	public int getFeaturesInFov(FeatureCatalog catalog, double ra, double dec,
+			double fov, int[] out) throws EphemerisDataMissingException,
+			EphemerisDataParseException {
+		int r = cache();
+		double[] centers = frames.centers;
+		int c = 4 * r;
+		double hypo = centers[c + 3];
+		double cd = Math.cos(dec * Math.PI / 180);
+		double sx = cd * Math.cos(ra * Math.PI / 180);
+		double sy = cd * Math.sin(ra * Math.PI / 180);
+		double sz = Math.sin(dec * Math.PI / 180);
+		double cosine = centers[c] * sx + centers[c + 1] * sy + centers[c + 2] * sz;
+
+		// the observer and the point of the sight line nearest the center,
+		// from the center in lunar radii, and the sight line
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		double[] obs = new double[3];
+		double[] line = new double[3];
+		double[] p = new double[3];
+		frames.toSelenographic(r, -centers[c] * hypo / radius,
+				-centers[c + 1] * hypo / radius, -centers[c + 2] * hypo / radius, obs);
+		frames.toSelenographic(r, sx, sy, sz, line);
+		double depth = hypo * cosine / radius;
+		for (int i = 0; i < 3; i++)
+			p[i] = obs[i] + depth * line[i];
+
+		// nothing nearer the observer than the far side of the moon is
+		// further from the sight line than reach; with a terrain a feature
+		// is up to relief (lunar radii) from its place on the sphere
+		double relief = 0;
+		if (terrain != null) {
+			double[] range = terrain.getRange();
+			relief = Math.max(range[1] - radius, radius - range[0]) / radius;
+		}
+		double tan = Math.tan(fov / 2 / 3600 * Math.PI / 180);
+		double reach = (depth + 1 + relief) * tan + relief;
+		double pn = Vec3.norm(p, 0);
+		if (pn - reach > 1)
+			return 0;
+
+		// so every feature in the field lies within that sky distance of
+		// the surface point under p (or the limb point, off the disc), and
+		// within a height above the sky plane set by how far that sky
+		// distance reaches toward the center or the limb
+		double[] q = new double[3];
+		double sky = reach;
+		double up = 0;
+		if (pn < 1) {
+			up = Math.sqrt(1 - pn * pn);
+			for (int i = 0; i < 3; i++)
+				q[i] = p[i] - up * line[i];
+		} else {
+			for (int i = 0; i < 3; i++)
+				q[i] = p[i] / pn;
+			sky += pn - 1;
+		}
+		double lo = Math.max(0, pn - reach);
+		double hi = Math.min(1, pn + reach);
+		double dz = Math.max(up - Math.sqrt(1 - hi * hi), Math.sqrt(1 - lo * lo) - up);
+		double chord = Math.min(2, Math.sqrt(sky * sky + dz * dz));
+		int found = catalog.within(q[0], q[1], q[2],
+				Math.toDegrees(2 * Math.asin(chord / 2)), out);
+
+		// keep those facing the observer and inside the cone of the field
+		int kept = 0;
+		double[] u = q;
+		for (int i = 0; i < found; i++) {
+			catalog.getUnit(out[i], u, 0);
+			if (Vec3.dot(u, 0, obs, 0) <= 1)
+				continue;
+			if (terrain != null) {
+				double lift = terrain.getRadius(catalog.getLatitude(out[i]),
+						catalog.getLongitude(out[i])) / radius;
+				for (int j = 0; j < 3; j++)
+					u[j] *= lift;
+			}
+			double vx = u[0] - obs[0];
+			double vy = u[1] - obs[1];
+			double vz = u[2] - obs[2];
+			double along = vx * line[0] + vy * line[1] + vz * line[2];
+			double off = vx * vx + vy * vy + vz * vz - along * along;
+			if (along > 0 && off <= along * along * tan * tan)
+				out[kept++] = out[i];
+		}
+		return kept;
 	}
 
 	/**
@@ -496,15 +1029,14 @@ public class Ephemeris {
 	 */
 	public boolean advance() {
 
-		libra.advance();
-
-		// if the scanner's closed, it can't advance
+		// if the ephemeris is closed, it can't advance
 		boolean finished = closed;
 
-		// it's not, get the next line and check
+		// it's not, go to the next row and check
 		if (!closed) {
-			current = ephem.nextLine().trim().split("\\s+");
-			finished = current[0].equals("$$EOE");
+			row++;
+			finished = row >= table.size();
+			current = finished ? new String[] {"$$EOE"} : table.get(row);
 		}
 
 		// if process is finished, try to close scanner
@@ -522,9 +1054,193 @@ public class Ephemeris {
 		return closed;
 	}
 
-	public Matrix coordTrans() throws EphemerisDataParseException,
+	/**
+	 * Returns the matrix taking selenographic coordinates to equatorial
+	 * ones for the current row, from the frame source chosen when the
+	 * ephemeris was made. The frame is found once per row and then kept
+	 */
+	public Mat3 coordTrans() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		return frames.matrix(cache());
+	}
+
+	/**
+	 * Finds the frame of every row, for BatchTransform; rows whose frame
+	 * can't be found are left out (their transforms give NaN)
+	 * @return the frames, kept for later calls
+	 */
+	public FrameCache getFrames() {
+		int at = row;
+		String[] was = current;
+		boolean wasClosed = closed;
+		closed = false;
+		for (row = 0; row < table.size(); row++) {
+			current = table.get(row);
+			try {
+				cache();
+			} catch (EphemerisDataException e) {
+				// no frame for this row
+			}
+		}
+		row = at;
+		current = was;
+		closed = wasClosed;
+		if (frames == null)
+			frames = new FrameCache(0);
+		return frames;
+	}
+
+	/**
+	 * Tabulates the RA and Dec of the catalog's built-in craters at every
+	 * row, in parallel, after which getGeocentricCrater reads them from the
+	 * table
+	 * @return the table, kept for later calls
+	 * @throws EphemerisDataParseException if a row's time can't be read
+	 */
+	public PointingTable getPointing() throws EphemerisDataParseException {
+		if (pointing == null || !pointing.has(catalog, catalog.find("moon center"))) {
+			pointing = PointingTable.build(getFrames(), getTimes(), catalog,
+					catalog.craters(), Runtime.getRuntime().availableProcessors());
+		}
+		return pointing;
+	}
+
+	/**
+	 * Returns each row's instant, ms
+	 * @throws EphemerisDataParseException if a row's time can't be read
+	 */
+	public long[] getTimes() throws EphemerisDataParseException {
+		if (times == null) {
+			// the date is parsed once per day, and the time of day read off
+			long[] t = new long[table.size()];
+			String day = null;
+			long midnight = 0;
+			for (int r = 0; r < t.length; r++) {
+				String[] f = table.get(r);
+				long ms = timeOfDay(f[TIME]);
+				if (ms >= 0 && f[DATE].equals(day)) {
+					t[r] = midnight + ms;
+					continue;
+				}
+				t[r] = timeOf(f);
+				day = ms >= 0 ? f[DATE] : null;
+				midnight = t[r] - ms;
+			}
+			times = t;
+		}
+		return times;
+	}
+
+	/**
+	 * Returns the ms since midnight of an HH:mm time, or -1 if it isn't one
+	 */
+	private static long timeOfDay(String time) {
+		if (time.length() != 5 || time.charAt(2) != ':')
+			return -1;
+		int h = 0;
+		int m = 0;
+		for (int i = 0; i < 2; i++) {
+			char a = time.charAt(i);
+			char b = time.charAt(3 + i);
+			if (a < '0' || a > '9' || b < '0' || b > '9')
+				return -1;
+			h = 10 * h + (a - '0');
+			m = 10 * m + (b - '0');
+		}
+		return (h * 60L + m) * MIL_PER_MIN;
+	}
+
+	/**
+	 * Reads a field of every row as numbers
+	 * @param field the field, e.g. ELEV
+	 * @return the values, NaN where a row has none (e.g. n.a.)
+	 */
+	public double[] getColumn(int field) {
+		double[] v = new double[table.size()];
+		for (int r = 0; r < v.length; r++) {
+			try {
+				v[r] = Double.parseDouble(table.get(r)[field]);
+			} catch (NumberFormatException e) {
+				v[r] = Double.NaN;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				v[r] = Double.NaN;
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * Moves to the row of the minute holding an instant
+	 * @param ms the instant
+	 * @return false, without moving, if no row holds it
+	 * @throws EphemerisDataParseException if a row's time can't be read
+	 */
+	public boolean seek(long ms) throws EphemerisDataParseException {
+		long[] t = getTimes();
+		int at = Arrays.binarySearch(t, ms);
+		if (at < 0)
+			at = -at - 2;
+		if (at < 0 || ms - t[at] >= MIL_PER_MIN)
+			return false;
+		row = at;
+		current = table.get(row);
+		closed = false;
+		return true;
+	}
+
+	/**
+	 * Finds and keeps the current row's frame if it hasn't been yet
+	 * @return the current row, the frame's key in the cache
+	 */
+	private int cache() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		if (closed || row >= table.size())
+			throw new EphemerisDataMissingException();
+		if (frames == null)
+			frames = new FrameCache(table.size());
+		if (!frames.has(row))
+			frames.put(row, frameTrans(), getRightAcension(), getDeclination(),
+					getTargetRange());
+		return row;
+	}
+
+	/**
+	 * Finds the current row's frame from the chosen source
+	 */
+	private Mat3 frameTrans() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		if (frame == FRAME_AXES && libra.hasAxes())
+			return axisTrans();
+		if (frame == FRAME_MODEL)
+			return modelTrans();
+		return columnTrans();
+	}
+
+	/**
+	 * Returns the current row's frame as found from the X/Z axis series
+	 */
+	public Mat3 axisTrans() throws EphemerisDataParseException,
 	EphemerisDataMissingException {
-		return libra.coordTrans(getRightAcension(), getDeclination(), getTargetRange());
+		return libra.coordTrans(row);
+	}
+
+	/**
+	 * Returns the current row's frame as found by SelenographicFrame from
+	 * the sub-observer point and north pole angle
+	 */
+	public Mat3 columnTrans() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		return SelenographicFrame.coordTrans(getRightAcension(), getDeclination(),
+				getTargetLongitude(), getTargetLatitude(), getNorthPoleAngle(),
+				getInstant());
+	}
+
+	/**
+	 * Returns the current row's frame from the IAU rotation model
+	 */
+	public Mat3 modelTrans() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		return model.coordTrans(getInstant().getTime() * 1000, getTargetRange());
 	}
 
 	public Date getDateTime() throws EphemerisDataParseException,
@@ -542,6 +1258,27 @@ public class Ephemeris {
 		}
 	}
 
+	/**
+	 * Returns the instant of the current row. Unlike getDateTime, which
+	 * reads the row's date and time in the local time zone to match the
+	 * log sheets, this reads them as the UTC they are
+	 */
+	public Date getInstant() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		SimpleDateFormat formatter = new SimpleDateFormat(DATE_FORMAT + 
+				TIME_FORMAT);
+		formatter.setTimeZone(UTC);
+		try {
+			return formatter.parse(current[DATE] + " " + current[TIME]);
+		} catch (ParseException e) {
+			throw new EphemerisDataParseException();
+		} catch (NullPointerException e) {
+			throw new EphemerisDataMissingException();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EphemerisDataMissingException();
+		}
+	}
+
 	public Date getDate() throws EphemerisDataParseException,
 	EphemerisDataMissingException {
 		SimpleDateFormat formatter = new SimpleDateFormat(DATE_FORMAT);
@@ -738,6 +1475,32 @@ public class Ephemeris {
 		}
 	}
 
+	public double getNorthPoleAngle() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		try {
+			return Double.parseDouble(current[NP_ANG]);
+		} catch (NumberFormatException e) {
+			throw new EphemerisDataParseException();
+		} catch (NullPointerException e) {
+			throw new EphemerisDataMissingException();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EphemerisDataMissingException();
+		}
+	}
+
+	public double getNorthPoleDistance() throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		try {
+			return Double.parseDouble(current[NP_DIST]);
+		} catch (NumberFormatException e) {
+			throw new EphemerisDataParseException();
+		} catch (NullPointerException e) {
+			throw new EphemerisDataMissingException();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EphemerisDataMissingException();
+		}
+	}
+
 	public double getSolarRange() throws EphemerisDataParseException,
 	EphemerisDataMissingException {
 		try {
@@ -827,6 +1590,63 @@ public class Ephemeris {
 		}
 	}
 
+	/**
+	 * Returns S-T-O, S-O-T and the illuminated fraction at an instant near
+	 * the current row, e.g. an exposure's midpoint, from the columns they
+	 * depend on interpolated toward the neighbouring row
+	 * @param offset milliseconds from the current row's time
+	 * @return {sto, sot, frac}: the angles in degrees and the fraction in
+	 * percent
+	 */
+	public double[] getIllumination(long offset) throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		int other = offset < 0 ? row - 1 : row + 1;
+		double f = 0;
+		String[] next = current;
+		if (offset != 0 && other >= 0 && other < table.size()) {
+			next = table.get(other);
+			long gap = Math.abs(timeOf(next) - getInstant().getTime());
+			if (gap > 0)
+				f = Math.abs(offset) / (double) gap;
+		}
+		try {
+			return Illumination.at(
+					lerpAngle(current[TAR_LON], next[TAR_LON], f),
+					lerp(current[TAR_LAT], next[TAR_LAT], f),
+					lerpAngle(current[SOL_LON], next[SOL_LON], f),
+					lerp(current[SOL_LAT], next[SOL_LAT], f),
+					lerp(current[DELTA], next[DELTA], f),
+					lerp(current[R], next[R], f));
+		} catch (NumberFormatException e) {
+			throw new EphemerisDataParseException();
+		} catch (NullPointerException e) {
+			throw new EphemerisDataMissingException();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EphemerisDataMissingException();
+		}
+	}
+
+	private static long timeOf(String[] fields) throws EphemerisDataParseException {
+		SimpleDateFormat formatter = new SimpleDateFormat(DATE_FORMAT +
+				TIME_FORMAT);
+		formatter.setTimeZone(UTC);
+		try {
+			return formatter.parse(fields[DATE] + " " + fields[TIME]).getTime();
+		} catch (ParseException e) {
+			throw new EphemerisDataParseException();
+		}
+	}
+
+	private static double lerp(String a, String b, double f) {
+		double x = Double.parseDouble(a);
+		return x + (Double.parseDouble(b) - x) * f;
+	}
+
+	private static double lerpAngle(String a, String b, double f) {
+		double x = Double.parseDouble(a);
+		return x + Math.IEEEremainder(Double.parseDouble(b) - x, 360) * f;
+	}
+
 	public String getDateStr() throws 
 	EphemerisDataMissingException {
 		try {
@@ -1003,6 +1823,28 @@ public class Ephemeris {
 		}
 	}
 
+	public String getNorthPoleAngleStr() throws 
+	EphemerisDataMissingException {
+		try {
+			return current[NP_ANG];
+		} catch (NullPointerException e) {
+			throw new EphemerisDataMissingException();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EphemerisDataMissingException();
+		}
+	}
+
+	public String getNorthPoleDistanceStr() throws 
+	EphemerisDataMissingException {
+		try {
+			return current[NP_DIST];
+		} catch (NullPointerException e) {
+			throw new EphemerisDataMissingException();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EphemerisDataMissingException();
+		}
+	}
+
 	public String getSolarRangeStr() throws 
 	EphemerisDataMissingException {
 		try {
@@ -1092,11 +1934,9 @@ public class Ephemeris {
 	}
 
 	/**
-	 * Closes the ephemeris scanner if it hasn't already been closed
+	 * Closes the ephemeris if it hasn't already been closed
 	 */
 	public void close() {
-		// close scanner if not already done
-		if (!closed) ephem.close();
 		closed = true;
 	}
 
@@ -1187,6 +2027,8 @@ public class Ephemeris {
 			System.out.println("Obs Lat: " + eph.getTargetLatitudeStr());
 			System.out.println("Sol Lon: " + eph.getSolarLongitudeStr());
 			System.out.println("Sol Lat: " + eph.getSolarLatitudeStr());
+			System.out.println("NP ang: " + eph.getNorthPoleAngleStr());
+			System.out.println("NP dist: " + eph.getNorthPoleDistanceStr());
 			System.out.println("r: " + eph.getSolarRangeStr());
 			System.out.println("r dot: " + eph.getSolarRangeRateStr());
 			System.out.println("delta: " + eph.getTargetRangeStr());
@@ -1201,8 +2043,8 @@ public class Ephemeris {
 
 	public static String ephRequest(Date start, Date end) {
 		DateFormat df = new SimpleDateFormat(DATE_FORMAT);
-		return JPL_URL + "&START_TIME=%27" + df.format(start) + "%27&STOP_TIME=%27" +
-		df.format(end) + "%27";
+		return source.request(toHost(JPL_URL) + "&START_TIME=%27" + df.format(start)
+				+ "%27&STOP_TIME=%27" + df.format(end) + "%27");
 	}
 
 	public static String ephRequest(Date[] period) {
@@ -1211,8 +2053,163 @@ public class Ephemeris {
 
 	public static String ephRequest(String urlBase, Date[] period) {
 		DateFormat df = new SimpleDateFormat(DATE_FORMAT);
-		return urlBase + "&START_TIME=%27" + df.format(period[0]) + "%27&STOP_TIME=%27" +
-		df.format(period[1]) + "-23:59%27";
+		return source.request(toHost(urlBase) + "&START_TIME=%27" + df.format(period[0])
+				+ "%27&STOP_TIME=%27" + df.format(period[1]) + "-23:59%27");
+	}
+
+	/**
+	 * Chooses where later ephemerides take the selenographic frame from
+	 * @param f FRAME_COLUMNS (the default), FRAME_AXES to download the X/Z
+	 * axis series for it, or FRAME_MODEL for the IAU rotation model
+	 */
+	public static void setFrame(int f) {
+		frameSource = f;
+	}
+
+	/**
+	 * Returns where later ephemerides take the selenographic frame from
+	 */
+	public static int getFrame() {
+		return frameSource;
+	}
+
+	/**
+	 * Sets the catalog that crater names resolve to
+	 * @param c the catalog, which should hold the built-in craters (as
+	 * FeatureCatalog.builtin and read catalogs do)
+	 */
+	public static void setCatalog(FeatureCatalog c) {
+		catalog = c;
+	}
+
+	/**
+	 * Returns the catalog that crater names resolve to
+	 */
+	public static FeatureCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Sets the surface that sight lines are met with
+	 * @param t the elevation model, or null for the mean sphere (the
+	 * default)
+	 */
+	public static void setTerrain(LunarTerrain t) {
+		terrain = t;
+	}
+
+	/**
+	 * Returns the surface that sight lines are met with, or null for the
+	 * mean sphere
+	 */
+	public static LunarTerrain getTerrain() {
+		return terrain;
+	}
+
+	/**
+	 * Sets the observer of later ephemerides
+	 * @param s the site, whose series is computed from the geocentric
+	 * one, or null to fetch the Kitt Peak series as before
+	 */
+	public static void setSite(Site s) {
+		site = s;
+	}
+
+	/**
+	 * Returns the observer of later ephemerides, or null for Kitt Peak's
+	 * own series
+	 */
+	public static Site getSite() {
+		return site;
+	}
+
+	/**
+	 * Sets the airmass formula of later ephemerides
+	 * @param formula Astrometry.KASTEN_YOUNG or Astrometry.HARDIE
+	 */
+	public static void setAirmassFormula(int formula) {
+		airmass = formula;
+	}
+
+	/**
+	 * Returns the frame source for a name
+	 * @param name "columns", "axes" or "model"
+	 * @return the frame source, or -1 if the name is unknown
+	 */
+	public static int frameFor(String name) {
+		if (name.equalsIgnoreCase("columns"))
+			return FRAME_COLUMNS;
+		if (name.equalsIgnoreCase("axes"))
+			return FRAME_AXES;
+		if (name.equalsIgnoreCase("model"))
+			return FRAME_MODEL;
+		return -1;
+	}
+
+	/**
+	 * Sets the orientation model used by FRAME_MODEL
+	 * @param m the model
+	 */
+	public static void setRotationModel(LunarRotationModel m) {
+		model = m;
+	}
+
+	/**
+	 * Points all later requests at another Horizons host
+	 * @param host the host's base url, ending in a slash
+	 * (e.g. "http://localhost:8080/")
+	 */
+	public static void setHorizonsHost(String host) {
+		horizonsHost = host;
+	}
+
+	/**
+	 * Returns the host requests are currently sent to
+	 */
+	public static String getHorizonsHost() {
+		return horizonsHost;
+	}
+
+	/**
+	 * Selects the Horizons interface for all later requests
+	 * @param s the source to use
+	 */
+	public static void setSource(EphemerisSource s) {
+		source = s;
+	}
+
+	/**
+	 * Returns the Horizons interface requests currently go to
+	 */
+	public static EphemerisSource getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the source for an interface name
+	 * @param api "text" for horizons_batch.cgi, "json" for horizons.api or
+	 * "de:FILE" for a local JPL DE file
+	 * @return the source, or null if the name is unknown
+	 */
+	public static EphemerisSource sourceFor(String api) {
+		if (api.equalsIgnoreCase("text"))
+			return new TextEphemerisSource();
+		if (api.equalsIgnoreCase("json"))
+			return new JsonEphemerisSource();
+		if (api.startsWith(DeEphemerisSource.PREFIX)
+				&& api.length() > DeEphemerisSource.PREFIX.length())
+			return new DeEphemerisSource(new File(
+					api.substring(DeEphemerisSource.PREFIX.length())));
+		return null;
+	}
+
+	/**
+	 * Moves a request url onto the configured Horizons host
+	 */
+	private static String toHost(String urlBase) {
+		if (urlBase.startsWith(JPL_HOST))
+			return horizonsHost + urlBase.substring(JPL_HOST.length());
+		return urlBase;
 	}
 
 }
@@ -9,6 +9,8 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
+import java.util.TreeSet;
 
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
@@ -39,6 +41,14 @@ public class EphemerisParser {
 	public static final String XLSX = ".xlsx";
 	public static final int XLSX_LEN = XLSX.length();
 
+	public static final String USAGE = "Usage: java -jar ephparse.jar"
+			+ " [-e ephemeris.txt] [-api text|json|de:file] [-site code|lat,lon,height]"
+			+ " [-frame columns|axes|model] [-catalog features.csv]"
+			+ " [-pointing pointing.csv] [-terrain ldem.lbl] log_file.xlsx";
+
+	// nearest features listed in the Features column
+	public static final int NEAREST_FEATURES = 3;
+
 	public static final int SEC_PER_MIN = 60;
 	public static final int MIN_PER_HOUR = 60;
 
@@ -63,39 +73,81 @@ public class EphemerisParser {
 		DateFormat dateFormatter = new SimpleDateFormat(SHEET_NAME_FORMAT);
 		DateFormat timeFormatter = new SimpleDateFormat(SHEET_TIME_FORMAT);
 
-		boolean ephProvided;
+		boolean ephProvided = false;
 
 		// the filenames
 		String excelFile = null;
 		String excelFileBackup = null;
 		String ephemFile = null;
 
+		// options come in pairs before the log file
+		int arg = 0;
+		while (arg < args.length - 1) {
+			if (args[arg].equals("-e")) {
+				ephProvided = true;
+				ephemFile = args[arg + 1];
+			} else if (args[arg].equals("-api")) {
+				EphemerisSource source = Ephemeris.sourceFor(args[arg + 1]);
+				if (source == null) {
+					System.out.println(USAGE);
+					System.exit(-1);
+				}
+				Ephemeris.setSource(source);
+			} else if (args[arg].equals("-site")) {
+				Site site = Site.parse(args[arg + 1]);
+				if (site == null) {
+					System.out.println(USAGE);
+					System.exit(-1);
+				}
+				Ephemeris.setSite(site);
+			} else if (args[arg].equals("-frame")) {
+				int frame = Ephemeris.frameFor(args[arg + 1]);
+				if (frame < 0) {
+					System.out.println(USAGE);
+					System.exit(-1);
+				}
+				Ephemeris.setFrame(frame);
+			} else if (args[arg].equals("-catalog")) {
+				System.setProperty("ephparse.catalog", args[arg + 1]);
+			} else if (args[arg].equals("-pointing")) {
+				System.setProperty("ephparse.pointing", args[arg + 1]);
+			} else if (args[arg].equals("-terrain")) {
+				System.setProperty("ephparse.terrain", args[arg + 1]);
+			} else {
+				break;
+			}
+			arg += 2;
+		}
+
 		// print usage if wrong num args
-		if (args.length == 0) {
-			System.out.println("Usage: java -jar ephparse.jar [-e ephemeris.txt] log_file.xlsx");
+		if (arg != args.length - 1) {
+			System.out.println(USAGE);
 			System.exit(-1);
 		}
+		excelFile = args[arg];
 
-		if (args[0].equals("-e")) {
-			ephProvided = true;
-			if (args.length != 3) {
-				System.out.println("Usage: java -jar ephparse.jar [-e ephemeris.txt] log_file.xlsx");
-				System.exit(-1);
-			}
-		} else {
-			ephProvided = false;
-			if (args.length != 1) {
-				System.out.println("Usage: java -jar ephparse.jar [-e ephemeris.txt] log_file.xlsx");
-				System.exit(-1);
-			}
+		// the feature catalog, from the gazetteer export if given;
+		// -Dephparse.catalog=FILE
+		String catalogFile = System.getProperty("ephparse.catalog");
+		try {
+			if (catalogFile != null)
+				Ephemeris.setCatalog(FeatureCatalog.read(new File(catalogFile)));
+		} catch (IOException e) {
+			System.out.println("Could not read feature catalog \"" + catalogFile
+					+ "\": " + e.getMessage());
+			System.exit(-1);
 		}
 
-		// get filenames
-		if (ephProvided) {
-			ephemFile = args[1];
-			excelFile = args[2];
-		} else {
-			excelFile = args[0];
+		// the elevation model sight lines are met with, if given;
+		// -Dephparse.terrain=FILE
+		String terrainFile = System.getProperty("ephparse.terrain");
+		try {
+			if (terrainFile != null)
+				Ephemeris.setTerrain(new LunarTerrain(new File(terrainFile)));
+		} catch (IOException e) {
+			System.out.println("Could not read elevation model \"" + terrainFile
+					+ "\": " + e.getMessage());
+			System.exit(-1);
 		}
 
 		// try instantiating classes
@@ -106,11 +158,11 @@ public class EphemerisParser {
 			if (ephProvided) {
 				System.out.print("retrieving ephemeris data...");
 				// check for text file
-				if (args[1].indexOf(".txt") != args[1].length() - 4)
+				if (ephemFile.indexOf(".txt") != ephemFile.length() - 4)
 					throw new IllegalArgumentException(
 							"Provided file is not a .txt file");
 
-				ephem = new Ephemeris(new File(args[1]));
+				ephem = new Ephemeris(new File(ephemFile));
 				System.out.println("done");
 			}
 
@@ -179,8 +231,11 @@ public class EphemerisParser {
 
 				System.out.println("done");
 
-				// get URL of eph request
+				// get URL of eph request, keeping completed periods next to
+				// the log so an interrupted retrieval can be resumed
 				System.out.println("retrieving ephemeris data...");
+				Ephemeris.setDownloader(new HorizonsDownloader(
+						new File(checkpointName(excelFile))));
 				ephem = new Ephemeris(dates);
 				System.out.println("... ephemeris retrieval complete");
 			}
@@ -207,8 +262,11 @@ public class EphemerisParser {
 							+ ephemFile + "\"");
 				} else {
 					System.out.println("Could not access url \""
-							+ Ephemeris.JPL_URL + "\"");
+							+ Ephemeris.getHorizonsHost() + "\"");
 					System.out.println("Exception: " + e.getMessage());
+					System.out.println("Periods retrieved so far are kept in \""
+							+ checkpointName(excelFile) + "\". Run again to"
+							+ " resume from the missing periods");
 					System.out.println("Stack trace:");
 					e.printStackTrace();
 				}
@@ -243,6 +301,37 @@ public class EphemerisParser {
 			System.exit(-1);
 		}
 
+		// if asked for a pointing list, tabulate the craters for every row
+		// and write it out; the rows then read their craters from the
+		// table. -Dephparse.pointing=FILE
+		String pointingFile = System.getProperty("ephparse.pointing");
+		if (pointingFile != null) {
+			try {
+				ephem.getPointing().write(new File(pointingFile));
+			} catch (EphemerisDataException e) {
+				System.out.println("Could not tabulate crater pointing: unreadable"
+						+ " ephemeris row");
+				System.exit(-1);
+			} catch (IOException e) {
+				System.out.println("Could not write pointing list \"" + pointingFile
+						+ "\": " + e.getMessage());
+				System.exit(-1);
+			}
+		}
+
+		// the values of rows transferred before, next to the log;
+		// -Dephparse.rowcache=off to transfer every row again
+		RowCache rows = null;
+		if (!"off".equals(System.getProperty("ephparse.rowcache"))) {
+			try {
+				rows = new RowCache(RowCache.fileFor(excelFile),
+						cacheVersion(args, arg, ephemFile));
+			} catch (IOException e) {
+				System.out.println("Could not read row cache, transferring"
+						+ " every row: " + e.getMessage());
+			}
+		}
+
 		// create backup file in case writing process corrupts orig file
 		System.out.print("creating backup file...");
 		try {
@@ -399,7 +488,26 @@ public class EphemerisParser {
 									imTimeInt = getTimeInt(timeStr);
 
 									if (imTimeInt > timeInt) {
-										transferData(ephem,image,parse);
+										String key = rows == null ? null
+												: rows.key(night.getSheetName(), image, parse);
+										if (key != null && rows.fill(key, image, parse)) {
+											System.out.print("unchanged, from cache...");
+										} else {
+											transferData(ephem,image,parse);
+											if (rows != null) {
+												try {
+													rows.store(key, image, parse);
+												} catch (IOException e) {
+													System.out.print("could not write row cache ("
+															+ e.getMessage() + "), no longer caching...");
+													try {
+														rows.close();
+													} catch (IOException ignored) {
+													}
+													rows = null;
+												}
+											}
+										}
 
 										timeInt = imTimeInt;
 										lastTimeStr = timeStr;
@@ -450,6 +558,23 @@ public class EphemerisParser {
 		}
 
 
+		if (rows != null) {
+			if (rows.getHits() > 0)
+				System.out.println(rows.getHits() + " unchanged rows filled from "
+						+ RowCache.fileFor(excelFile));
+			try {
+				rows.close();
+			} catch (IOException e) {
+				System.out.println("Could not write row cache: " + e.getMessage());
+			}
+		}
+
+		PointingMemo memo = ephem.getMemo();
+		if (memo.getHits() + memo.getMisses() > 0)
+			System.out.println(String.format(Locale.ROOT, "repeated pointings: %d of %d"
+					+ " (%.0f%%) looked up", memo.getHits(),
+					memo.getHits() + memo.getMisses(), 100 * memo.getHitRate()));
+
 		try {
 			System.out.print("writing edited excel file...");
 
@@ -566,6 +691,15 @@ public class EphemerisParser {
 			throw new BadTransferException("Ephemeris does not contain desired time");
 		}
 
+		// the illumination at the exposure's midpoint rather than the
+		// row's minute, where the row has the columns it comes from
+		double[] illum = null;
+		try {
+			illum = eph.getIllumination(getEphOffset(expTime));
+		} catch (EphemerisDataParseException e) {
+			// transfer the row's own values
+		}
+
 		// transfer the data
 		System.out.print("data transfer beginning...");
 
@@ -610,7 +744,7 @@ public class EphemerisParser {
 		}
 
 		// illuminated fraction
-		if (!transferFracIll(p,eph,im.getCell(p.INDICES[ExcelDataParser.FRAC_ILL]))) {
+		if (!transferFracIll(p,eph,illum,im.getCell(p.INDICES[ExcelDataParser.FRAC_ILL]))) {
 			System.out.print("illum frac parse failed, attempting string...");
 		}
 
@@ -660,14 +794,14 @@ public class EphemerisParser {
 		}
 
 		// S-O-T
-		if (!transferSOT(p,eph,im.getCell(p.INDICES[ExcelDataParser.SOT]))) {
+		if (!transferSOT(p,eph,illum,im.getCell(p.INDICES[ExcelDataParser.SOT]))) {
 			System.out.print("S-O-T parse failed, attempting string...");
 		}
 
 		transferLOrT(p,eph,im.getCell(p.INDICES[ExcelDataParser.L_OR_T]));
 
 		// S-T-O
-		if (!transferSTO(p,eph,im.getCell(p.INDICES[ExcelDataParser.STO]))) {
+		if (!transferSTO(p,eph,illum,im.getCell(p.INDICES[ExcelDataParser.STO]))) {
 			System.out.print("S-T-O parse failed, attempting string...");
 		}
 
@@ -690,6 +824,17 @@ public class EphemerisParser {
 		c.setCellStyle(p.getStyle(decPlaces));
 	}
 
+	/**
+	 * Returns how far the midpoint of an exposure falls from the minute
+	 * getEphTime rounds it to
+	 * @param expTime length of the exposure, seconds
+	 * @return the offset in milliseconds
+	 */
+	private static long getEphOffset(int expTime) {
+		int toAdd = (int) ((((double) expTime / SEC_PER_MIN) / 2) + .5);
+		return Math.round((expTime / 2.0 - toAdd * SEC_PER_MIN) * 1000);
+	}
+
 	/**
 	 * Returns the time in the ephemeris corresponding to the midpoint of an 
 	 * exposure, given its beginning time and it exposure length
@@ -840,9 +985,9 @@ public class EphemerisParser {
 	}
 
 	private static boolean transferFracIll(ExcelDataParser p, Ephemeris eph, 
-			Cell target) throws EphemerisDataMissingException {
+			double[] illum, Cell target) throws EphemerisDataMissingException {
 		try {	
-			target.setCellValue(eph.getFractionIlluminated());
+			target.setCellValue(illum != null ? illum[2] : eph.getFractionIlluminated());
 			formatCell(p,target,2);
 			return true;
 		} catch (EphemerisDataParseException e) {	
@@ -960,9 +1105,9 @@ public class EphemerisParser {
 	}
 
 	private static boolean transferSOT(ExcelDataParser p, Ephemeris eph, 
-			Cell target) throws EphemerisDataMissingException {
+			double[] illum, Cell target) throws EphemerisDataMissingException {
 		try {
-			target.setCellValue(eph.getSunObserverTarget());
+			target.setCellValue(illum != null ? illum[1] : eph.getSunObserverTarget());
 			formatCell(p,target,2);
 			return true;
 		} catch (EphemerisDataParseException e) {
@@ -979,9 +1124,9 @@ public class EphemerisParser {
 	}
 
 	private static boolean transferSTO(ExcelDataParser p, Ephemeris eph, 
-			Cell target) throws EphemerisDataMissingException {
+			double[] illum, Cell target) throws EphemerisDataMissingException {
 		try {
-			target.setCellValue(eph.getSunTargetObserver());
+			target.setCellValue(illum != null ? illum[0] : eph.getSunTargetObserver());
 			formatCell(p,target,2);
 			return true;
 		} catch (EphemerisDataParseException e) {
@@ -993,7 +1138,7 @@ public class EphemerisParser {
 	private static boolean transferLunarCoords(ExcelDataParser p, 
 			Ephemeris eph, Row im) throws 
 			EphemerisDataMissingException, BadTransferException {
-		String craterName;
+		int crater;
 		double ewDist;
 		double nsDist;
 		String origin;
@@ -1009,13 +1154,14 @@ public class EphemerisParser {
 		Cell targetLat = im.getCell(p.INDICES[ExcelDataParser.FOV_LAT]);
 		Cell targetAlt = im.getCell(p.INDICES[ExcelDataParser.FOV_ALT]);
 
+		FeatureCatalog catalog = Ephemeris.getCatalog();
 		if (cName.getCellType() == CellType.STRING) {
-			craterName = cName.getStringCellValue().toLowerCase();
+			crater = catalog.find(cName.getStringCellValue());
 		} else {
 			throw new BadTransferException("bad crater value");
 		}
 
-		if (craterName.equals("moon center")) return true;
+		if (crater >= 0 && crater == catalog.find("moon center")) return true;
 
 		if (ori.getCellType() == CellType.STRING) {
 			origin = ori.getStringCellValue().toLowerCase();
@@ -1023,7 +1169,8 @@ public class EphemerisParser {
 			throw new BadTransferException("bad origin value");
 		}
 
-		if (origin.toLowerCase().equals("term")) return true;
+		if (crater < 0)
+			throw new BadTransferException("bad crater name");
 
 		if (ew.getCellType() == CellType.NUMERIC) {
 			ewDist = ew.getNumericCellValue();
@@ -1043,13 +1190,24 @@ public class EphemerisParser {
 			throw new BadTransferException("bad fov value");
 		}
 
-		Double[] coords;
+		double[] pointing = new double[PointingMemo.VALUES];
 		try {
-			coords = eph.getLunarCoords(craterName,ewDist, nsDist, origin, fov);
+			eph.getLunarCoords(crater, ewDist, nsDist, origin, fov, pointing);
 		} catch (EphemerisDataParseException e) {
 			throw new BadTransferException(e.getMessage());
 		}
-				
+		double[] raDec = {pointing[0], pointing[1]};
+		double[] coords = {pointing[2], pointing[3], pointing[4]};
+
+		if (p.INDICES[ExcelDataParser.FEATURES] != -1) {
+			try {
+				im.getCell(p.INDICES[ExcelDataParser.FEATURES]).setCellValue(
+						features(eph, raDec, coords, fov));
+			} catch (EphemerisDataParseException e) {
+				throw new BadTransferException(e.getMessage());
+			}
+		}
+
 
 		targetLon.setCellValue(coords[0]);
 		formatCell(p,targetLon,1);
@@ -1063,6 +1221,39 @@ public class EphemerisParser {
 		return true;
 	}
 
+	/**
+	 * Lists the catalog features inside a field of view, then the ones
+	 * nearest its center with their distances along the surface
+	 * @param raDec the field's center
+	 * @param coords its selenographic longitude and latitude
+	 * @param fov its angular diameter, arcsec
+	 */
+	private static String features(Ephemeris eph, double[] raDec,
+			double[] coords, double fov) throws EphemerisDataMissingException,
+			EphemerisDataParseException {
+		FeatureCatalog catalog = Ephemeris.getCatalog();
+		int[] found = new int[catalog.size()];
+		int inFov = eph.getFeaturesInFov(catalog, raDec[0], raDec[1], fov, found);
+		StringBuilder sb = new StringBuilder("in FOV:");
+		for (int i = 0; i < inFov; i++)
+			sb.append(i == 0 ? " " : ", ").append(catalog.getName(found[i]));
+		if (inFov == 0)
+			sb.append(" none");
+
+		double lon = Math.toRadians(coords[0]);
+		double lat = Math.toRadians(coords[1]);
+		double[] dist = new double[NEAREST_FEATURES];
+		int near = catalog.nearest(Math.cos(lat) * Math.cos(lon),
+				Math.cos(lat) * Math.sin(lon), Math.sin(lat), NEAREST_FEATURES,
+				found, dist);
+		sb.append("; nearest:");
+		for (int i = 0; i < near; i++)
+			sb.append(i == 0 ? " " : ", ").append(catalog.getName(found[i]))
+			.append(String.format(Locale.ROOT, " (%.0f km)",
+					Math.toRadians(dist[i]) * LibrationEphemeris.LUNAR_RADIUS));
+		return sb.toString();
+	}
+
 	private static boolean transferLineDepth(ExcelDataParser p, 
 			Ephemeris eph, Row im) throws BadTransferException {
 		Cell filtCell = im.getCell(p.INDICES[ExcelDataParser.FILTER]);
@@ -1105,6 +1296,47 @@ public class EphemerisParser {
 				timeStr.substring(colonInd+1));
 	}
 
+	/**
+	 * Returns the name of the directory in which ephemeris periods retrieved
+	 * for the given log are checkpointed
+	 * @param excelFile the log's filename
+	 * @return the checkpoint directory name
+	 */
+	public static String checkpointName(String excelFile) {
+		int dot = excelFile.lastIndexOf('.');
+		if (dot < 0)
+			dot = excelFile.length();
+		return excelFile.substring(0,dot) + "_ephemeris";
+	}
+
+	/**
+	 * Describes everything besides a row's own cells that its transferred
+	 * values depend on, for the row cache: the options, the ephparse
+	 * properties and the dates of the files they name
+	 * @param args the arguments
+	 * @param n how many of them are options
+	 * @param ephemFile the ephemeris file, or null
+	 */
+	private static String cacheVersion(String[] args, int n, String ephemFile) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i += 2)
+			if (!args[i].equals("-pointing") && !args[i].equals("-catalog")
+					&& !args[i].equals("-terrain"))
+				sb.append(args[i]).append(' ').append(args[i + 1]).append(' ');
+		for (String key : new TreeSet<String>(
+				System.getProperties().stringPropertyNames()))
+			if (key.startsWith("ephparse.") && !key.equals("ephparse.pointing"))
+				sb.append(key).append('=').append(System.getProperty(key)).append(' ');
+		if (ephemFile != null)
+			sb.append(new File(ephemFile).lastModified()).append(' ');
+		String catalogFile = System.getProperty("ephparse.catalog");
+		if (catalogFile != null)
+			sb.append(new File(catalogFile).lastModified()).append(' ');
+		if (Ephemeris.getTerrain() != null)
+			sb.append(Ephemeris.getTerrain().getImage().lastModified());
+		return sb.toString();
+	}
+
 	public static Date addDay(Date d) {
 		return new Date(d.getTime() + 24*60*Ephemeris.MIL_PER_MIN);
 	}
@@ -0,0 +1,354 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads several Horizons responses at once and parses them while they
+ * are still arriving. For every response a reader thread pushes the raw
+ * bytes into a small bounded queue and a parser thread decodes and tokenizes
+ * them into rows, so parsing overlaps the network transfer and a slow parser
+ * throttles its reader instead of letting the response pile up in memory.
+ * Checkpoints and retries work as in HorizonsDownloader; checkpoints always
+ * hold the plain ephemeris text, whichever EphemerisSource was used, and
+ * aren't written for sources computed locally.
+ * @author Nick Derr
+ */
+public class EphemerisPipeline {
+
+	// default number of concurrent transfers
+	public static final int THREADS = 4;
+
+	// size of a block of raw bytes, and how many may be queued per transfer
+	public static final int BLOCK_SIZE = 16 * 1024;
+	public static final int QUEUE_BLOCKS = 16;
+
+	// kinds of block passed from reader to parser
+	private static final int DATA = 0;
+	private static final int END = 1;
+	private static final int FAIL = 2;
+	private static final int ABORT = 3;
+
+	// how checkpoints are read back
+	private static final EphemerisSource PLAIN = new TextEphemerisSource();
+
+	private final HorizonsDownloader downloader;
+	private final EphemerisSource source;
+	private final int threads;
+	private long[] latencies; // per request of the last fetch, in nanoseconds
+	private volatile boolean verbose = true; // whether to print progress
+
+	/**
+	 * Instantiates a pipeline running the given number of transfers at once
+	 * @param downloader source of checkpoints and the retry policy
+	 * @param threads number of concurrent transfers
+	 */
+	public EphemerisPipeline(HorizonsDownloader downloader, int threads) {
+		this(downloader, threads, new TextEphemerisSource());
+	}
+
+	/**
+	 * Instantiates a pipeline for responses of the given source
+	 * @param downloader source of checkpoints and the retry policy
+	 * @param threads number of concurrent transfers
+	 * @param source the interface the requests are addressed to
+	 */
+	public EphemerisPipeline(HorizonsDownloader downloader, int threads,
+			EphemerisSource source) {
+		if (downloader == null || source == null || threads < 1)
+			throw new IllegalArgumentException("EphemerisPipeline needs a"
+					+ " downloader, a source and at least one thread");
+		this.downloader = downloader;
+		this.source = source;
+		this.threads = threads;
+	}
+
+	/**
+	 * Fetches and parses the given requests
+	 * @param requests the full Horizons request urls
+	 * @param labels description of each request for progress output
+	 * @return the rows of each response, in the order of the requests
+	 * @throws IOException if a response could not be fetched after
+	 * all retries
+	 */
+	public List<List<String[]>> fetch(List<String> requests, List<String> labels)
+			throws IOException {
+		ExecutorService readers = Executors.newFixedThreadPool(threads);
+		ExecutorService parsers = Executors.newFixedThreadPool(threads);
+		try {
+			// tasks are queued in request order in both pools, so the
+			// parser of every running reader is always running as well
+			List<Transfer> transfers = new ArrayList<Transfer>();
+			List<Future<List<String[]>>> results = new ArrayList<Future<List<String[]>>>();
+			for (int i = 0; i < requests.size(); i++) {
+				Transfer t = new Transfer(requests.get(i), labels.get(i));
+				transfers.add(t);
+				readers.submit(new Reader(t));
+				results.add(parsers.submit(new Parser(t)));
+			}
+
+			List<List<String[]>> rows = new ArrayList<List<String[]>>();
+			for (Future<List<String[]>> result : results)
+				rows.add(result.get());
+
+			latencies = new long[transfers.size()];
+			for (int i = 0; i < latencies.length; i++)
+				latencies[i] = transfers.get(i).finished - transfers.get(i).started;
+			return rows;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while fetching ephemeris");
+		} finally {
+			readers.shutdownNow();
+			parsers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Turns progress output on or off
+	 * @param verbose whether to print a line per completed request
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Returns how long each request of the last fetch took, from opening
+	 * its stream to accepting its last row, in nanoseconds
+	 * @return the latencies in request order, or null before the first fetch
+	 */
+	public long[] getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * A piece of a transfer passed from reader to parser
+	 */
+	private static class Block {
+		final int kind;
+		final byte[] buf;
+		final int len;
+		final boolean restored; // whether read from a checkpoint
+		final IOException error; // ABORT only: the last failure
+
+		Block(int kind, byte[] buf, int len, boolean restored, IOException error) {
+			this.kind = kind;
+			this.buf = buf;
+			this.len = len;
+			this.restored = restored;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * State shared by the reader and parser of one request
+	 */
+	private static class Transfer {
+		final String request;
+		final String label;
+		final BlockingQueue<Block> blocks;
+		final BlockingQueue<String> verdicts; // framing error, "" if none
+		volatile long started; // when the reader first opened the stream
+		volatile long finished; // when the parser accepted the response
+
+		Transfer(String request, String label) {
+			this.request = request;
+			this.label = label;
+			blocks = new ArrayBlockingQueue<Block>(QUEUE_BLOCKS);
+			verdicts = new ArrayBlockingQueue<String>(1);
+		}
+	}
+
+	/**
+	 * Streams one response (or its checkpoint) into the transfer's queue,
+	 * starting over whenever the stream fails or the parser rejects the
+	 * framing
+	 */
+	private class Reader implements Callable<Void> {
+		private final Transfer t;
+
+		Reader(Transfer t) {
+			this.t = t;
+		}
+
+		public Void call() throws InterruptedException {
+			t.started = System.nanoTime();
+			// local sources are as quick to recompute as to restore
+			File chunk = source.isRemote() ? downloader.chunkFile(t.request) : null;
+			boolean restore = chunk != null && chunk.isFile();
+			IOException last = null;
+
+			int attempt = 0;
+			while (attempt < HorizonsDownloader.MAX_ATTEMPTS) {
+				boolean restored = restore;
+				InputStream in = null;
+				try {
+					in = restored ? new FileInputStream(chunk) : source.open(t.request);
+
+					int len;
+					byte[] buf = new byte[BLOCK_SIZE];
+					while ((len = in.read(buf)) != -1) {
+						if (len > 0) {
+							t.blocks.put(new Block(DATA, buf, len, restored, null));
+							buf = new byte[BLOCK_SIZE];
+						}
+					}
+					t.blocks.put(new Block(END, null, 0, restored, null));
+
+					String error = t.verdicts.take();
+					if (error.isEmpty())
+						return null;
+					last = new IOException(error);
+				} catch (IOException e) {
+					t.blocks.put(new Block(FAIL, null, 0, false, null));
+					last = e;
+				} finally {
+					if (in != null) {
+						try {
+							in.close();
+						} catch (IOException e) {
+							// nothing more to read anyway
+						}
+					}
+				}
+
+				// a bad checkpoint is dropped and doesn't count as an attempt
+				if (restored) {
+					restore = false;
+					chunk.delete();
+					continue;
+				}
+
+				attempt++;
+				if (attempt < HorizonsDownloader.MAX_ATTEMPTS) {
+					long delay = downloader.backoff(attempt);
+					report(t, "failed (" + last.getMessage() + "), retrying in "
+							+ (delay / 1000) + " s");
+					Thread.sleep(delay);
+				}
+			}
+
+			t.blocks.put(new Block(ABORT, null, 0, false, last));
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes and tokenizes the blocks of one transfer as they arrive
+	 */
+	private class Parser implements Callable<List<String[]>> {
+		private final Transfer t;
+
+		Parser(Transfer t) {
+			this.t = t;
+		}
+
+		public List<String[]> call() throws IOException, InterruptedException {
+			ChunkParser parser = new ChunkParser();
+			EphemerisSource.Decoder response = null; // response decoder of this attempt
+			CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			ByteBuffer in = ByteBuffer.allocate(BLOCK_SIZE + 16);
+			CharBuffer out = CharBuffer.allocate(BLOCK_SIZE + 16);
+
+			while (true) {
+				Block b = t.blocks.take();
+				switch (b.kind) {
+				case DATA:
+					// checkpoints are plain text whatever the source
+					if (response == null)
+						response = b.restored ? PLAIN.decoder(parser) : source.decoder(parser);
+
+					// leftovers of a split multi-byte character stay in 'in'
+					in.put(b.buf, 0, b.len);
+					in.flip();
+					decoder.decode(in, out, false);
+					in.compact();
+					out.flip();
+					response.feed(out.array(), 0, out.limit());
+					out.clear();
+					break;
+
+				case FAIL:
+					parser.reset();
+					decoder.reset();
+					in.clear();
+					response = null;
+					break;
+
+				case END:
+					if (response == null)
+						response = b.restored ? PLAIN.decoder(parser) : source.decoder(parser);
+					response.finish();
+					String error = response.error();
+					if (error == null)
+						error = parser.framingError();
+					if (error == null && !b.restored && source.isRemote()) {
+						try {
+							downloader.checkpoint(t.request, parser.data());
+						} catch (IOException e) {
+							report(t, "could not checkpoint (" + e.getMessage() + ")");
+						}
+					}
+					t.verdicts.put(error == null ? "" : error);
+
+					if (error == null) {
+						t.finished = System.nanoTime();
+						report(t, parser.rows().size() + " rows" +
+								(b.restored ? " restored from checkpoint" : ""),
+								parser.times());
+						return parser.rows();
+					}
+					parser.reset();
+					decoder.reset();
+					in.clear();
+					response = null;
+					break;
+
+				case ABORT:
+				default:
+					throw b.error;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prints progress for one transfer
+	 */
+	private void report(Transfer t, String message) {
+		report(t, message, new ArrayList<String>());
+	}
+
+	/**
+	 * Prints progress for one transfer followed by the given header lines
+	 */
+	private void report(Transfer t, String message, List<String> lines) {
+		if (!verbose)
+			return;
+		synchronized (System.out) {
+			System.out.println("acquiring " + t.label + " ephemeris..." + message);
+			for (String line : lines)
+				System.out.println(line);
+		}
+	}
+}
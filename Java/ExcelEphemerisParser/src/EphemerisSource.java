@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A flavor of the Horizons interface: how a request is addressed to it and
+ * how the ephemeris text is recovered from its responses. The text is
+ * handed to a ChunkParser as it arrives, so every source produces the same
+ * tokenized rows.
+ * @author Nick Derr
+ */
+public interface EphemerisSource {
+
+	/**
+	 * Rewrites a request in the horizons_batch.cgi form used throughout
+	 * Ephemeris for this source
+	 * @param batchRequest the request url, with its query parameters
+	 * @return the url to fetch from this source
+	 */
+	String request(String batchRequest);
+
+	/**
+	 * Opens the response to a request built by request()
+	 * @param request the request
+	 * @return the response's bytes
+	 * @throws IOException if the response can't be had
+	 */
+	InputStream open(String request) throws IOException;
+
+	/**
+	 * Returns whether responses come over the network, and so are worth
+	 * checkpointing and retrying
+	 */
+	boolean isRemote();
+
+	/**
+	 * Starts decoding one response
+	 * @param parser parser to receive the response's ephemeris text
+	 * @return a decoder for the response's characters
+	 */
+	Decoder decoder(ChunkParser parser);
+
+	/**
+	 * Receives the characters of one response, in order
+	 */
+	interface Decoder {
+
+		/**
+		 * Decodes the next piece of the response
+		 * @param buf buffer holding the characters
+		 * @param off offset of the characters in the buffer
+		 * @param len number of characters
+		 */
+		void feed(char[] buf, int off, int len);
+
+		/**
+		 * Marks the end of the response
+		 */
+		void finish();
+
+		/**
+		 * Returns why the response can't be used apart from its ephemeris
+		 * framing (e.g. an error reported by the service), or null
+		 */
+		String error();
+	}
+}
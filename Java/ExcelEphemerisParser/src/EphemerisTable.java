@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rows of an ephemeris, each split into its whitespace separated
+ * fields, in the order they were requested.
+ * @author Nick Derr
+ */
+public class EphemerisTable {
+
+	private final List<String[]> rows;
+
+	/**
+	 * Instantiates a table over the given rows
+	 * @param rows the tokenized ephemeris rows, in time order
+	 */
+	public EphemerisTable(List<String[]> rows) {
+		if (rows == null)
+			throw new IllegalArgumentException("Null values not accepted"
+					+ " as a parameter for EphemerisTable constructor");
+		this.rows = rows;
+	}
+
+	/**
+	 * Joins the rows of several chunks (e.g. the periods of one series)
+	 * into a single table
+	 * @param chunks the chunks' rows, in time order
+	 * @return the joined table
+	 */
+	public static EphemerisTable join(List<List<String[]>> chunks) {
+		int n = 0;
+		for (List<String[]> chunk : chunks)
+			n += chunk.size();
+
+		List<String[]> rows = new ArrayList<String[]>(n);
+		for (List<String[]> chunk : chunks)
+			rows.addAll(chunk);
+		return new EphemerisTable(rows);
+	}
+
+	/**
+	 * Reads the rows between the $$SOE and $$EOE markers of a Horizons
+	 * text file
+	 * @param file the file to read
+	 * @return the file's rows
+	 * @throws IOException if the file is unreadable or either marker is
+	 * missing
+	 */
+	public static EphemerisTable read(File file) throws IOException {
+		ChunkParser parser = new ChunkParser();
+		Reader in = new InputStreamReader(new FileInputStream(file),
+				StandardCharsets.UTF_8);
+		try {
+			char[] buf = new char[8192];
+			int len;
+			while ((len = in.read(buf)) != -1)
+				parser.feed(buf, 0, len);
+			parser.finish();
+		} finally {
+			in.close();
+		}
+
+		if (!parser.isComplete())
+			throw new IOException(parser.framingError());
+		return new EphemerisTable(parser.rows());
+	}
+
+	/**
+	 * Inserts filler fields into every row of the given width, e.g. to
+	 * line up rows saved before a quantity was added to the request
+	 * @param width width of the rows to widen
+	 * @param at index of the first inserted field
+	 * @param count number of fields to insert
+	 * @param fill value of the inserted fields
+	 */
+	public void insert(int width, int at, int count, String fill) {
+		for (int i = 0; i < rows.size(); i++) {
+			String[] old = rows.get(i);
+			if (old.length != width)
+				continue;
+			String[] row = new String[width + count];
+			System.arraycopy(old, 0, row, 0, at);
+			for (int j = at; j < at + count; j++)
+				row[j] = fill;
+			System.arraycopy(old, at, row, at + count, width - at);
+			rows.set(i, row);
+		}
+	}
+
+	/**
+	 * Splits an ephemeris line into its fields
+	 * @param line the line as printed by Horizons
+	 * @return the line's fields
+	 */
+	public static String[] tokenize(String line) {
+		return line.trim().split("\\s+");
+	}
+
+	/**
+	 * Returns the number of rows in the table
+	 */
+	public int size() {
+		return rows.size();
+	}
+
+	/**
+	 * Returns the fields of the given row
+	 * @param row index of the row
+	 * @return the row's fields
+	 */
+	public String[] get(int row) {
+		return rows.get(row);
+	}
+}
@@ -176,6 +176,16 @@ public class ExcelDataParser {
 
 	/** number of columns */
 	public static final int N_PARAMS = 36;
+
+	/** Named features near and inside the FOV (optional) */
+	public static final int FEATURES = 36;
+	public static final String FEATURES_S = "Features";
+
+	/** number of columns, counting the optional ones */
+	public static final int N_COLUMNS = 37;
+	/** format of the transferred numbers, before the decimal places */
+	public static final String NUMBER_FORMAT = "#,###,###,##0";
+
 	/** dummy blank cell type */
 	public static final int BLANK_CELL = -1;
 	
@@ -207,8 +217,8 @@ public class ExcelDataParser {
 			throw new ExcelDataParserException("No headers found");
 
 		// instantiate indices
-		INDICES = new int[N_PARAMS];
-		for (int i = 0; i < N_PARAMS; i++)
+		INDICES = new int[N_COLUMNS];
+		for (int i = 0; i < N_COLUMNS; i++)
 			INDICES[i] = -1;
 
 		// go through headers, finding column indices
@@ -318,7 +328,7 @@ public class ExcelDataParser {
 			CellStyle style = log.getWorkbook().createCellStyle();
 			DataFormat format = log.getWorkbook().createDataFormat();
 			
-			String formatStr = "#,###,###,##0";
+			String formatStr = NUMBER_FORMAT;
 			if (decs > 0)
 				formatStr += ".";
 			for (int i = 0; i < decs; i++) {
@@ -568,6 +578,9 @@ public class ExcelDataParser {
 			} else if (header.equals(WAVELENGTH_S)) {
 				return WAVELENGTH;
 
+			} else if (header.equals(FEATURES_S)) {
+				return FEATURES;
+
 				// everything else
 			} else {
 				return BLANK_CELL;
@@ -586,6 +599,24 @@ public class ExcelDataParser {
 		return styles.get(decPlaces);
 	}
 
+	/**
+	 * Returns the number of decimal places of a style like those of
+	 * getStyle, whichever sheet or run it was made for
+	 * @param style the style
+	 * @return the decimal places, or -1 if it isn't such a style
+	 */
+	public static int getPlaces(CellStyle style) {
+		String format = style.getDataFormatString();
+		if (format == null || !format.startsWith(NUMBER_FORMAT))
+			return -1;
+		String decs = format.substring(NUMBER_FORMAT.length());
+		if (decs.isEmpty())
+			return 0;
+		if (!decs.matches("\\.0{1,9}"))
+			return -1;
+		return decs.length() - 1;
+	}
+
 	public static void main(String[] args) {
 		try {
 			System.out.println("starting input stream...");
@@ -0,0 +1,563 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Named lunar surface features, with their selenocentric unit vectors kept
+ * in a k-d tree so that the features near a point, or inside a field of
+ * view, are found without a scan. Features are read from a delimited text
+ * export of the IAU gazetteer (planetarynames.wr.usgs.gov), on top of the
+ * built-in crater table that offsets in the log are measured from.
+ *
+ * Each feature is known by an integer id. Its position on the mean sphere
+ * is kept in km, ready for Ephemeris.getGeocentricCrater, and names
+ * resolve to ids through a trie of normalized names (lower case, letters
+ * and digits only, accents dropped), so a lookup neither hashes nor
+ * allocates.
+ * @author Nick Derr
+ */
+public class FeatureCatalog {
+
+	// the built-in craters: name, long (e+), lat (n+); the last of them are
+	// reference points for offsets, not features
+	private static final Object[][] CRATERS = {
+		{"langrenus",          60.9,  -8.9},
+		{"cleomedes",          55.5,  27.7},
+		{"petavius",           60.4, -25.3},
+		{"grimaldi",          -68.8,  -5.2}, // 291.2
+		{"aristarchus",       -47.4,  23.7}, // 312.6
+		{"tycho",             -11.4, -43.3}, // 348.6
+		{"plato",              -9.3,  51.6}, // 350.7
+		{"apollonius",         61.1,   4.5},
+		{"endymion",           56.5,  53.6},
+		{"messala",            59.9,  39.2},
+		{"atlas",              44.4,  46.7},
+		{"janssen",            40.8, -45.0},
+		{"ptolemaeus",         -1.8,  -9.2}, // 358.2
+		{"kepler",            -38.0,   8.1}, // 322.0
+		{"copernicus",        -20.1,   9.6}, // 339.9
+		{"gassendi",          -40.0, -17.6}, // 320.0
+		{"mare iridum",       -31.5,  44.1}, // 328.5
+		{"theophilus",         26.4, -11.4},
+		{"godin",              10.2,   1.8},
+		{"vieta",             -56.3, -29.2}, // 303.7
+		{"furnerius",          60.4, -36.3},
+		{"schickard",         -54.6, -44.4}, // 305.4
+		{"proclus",            46.8,  16.1},
+		{"stevinus",           54.2, -32.5},
+		{"aristoteles",        17.4,  50.2},
+		{"mons gruithuisen",  -40.5,  36.6}, // 319.5
+		{"scheiner",          -27.8, -60.5}, // 332.2
+		{"mons rumker",       -58.1,  40.8}, // 301.9
+		{"moon center",         0.0,   0.0},
+		{"w equator",          55.2,   4.6}};
+	private static final int REFERENCE_POINTS = 2;
+
+	// other names for features, and the names they stand for (the
+	// gazetteer's Sinus Iridum is the log's mare iridum)
+	private static final String[][] ALIASES = {
+		{"moon centre", "moon center"}, {"west equator", "w equator"},
+		{"sinus iridum", "mare iridum"}};
+
+	private final String[] names;
+	private final double[] lons; // degrees, east positive, -180 to 180
+	private final double[] lats; // degrees
+	private final double[] diameters; // km, NaN if not known
+	private final double[] units; // 3 per feature: selenocentric unit vector
+	final double[] positions; // 3 per feature: position on the mean sphere, km
+
+	// ids of the features (not the reference points) in k-d tree order:
+	// the node of order[lo, hi) is its middle element, split on axis x,
+	// y, z by depth
+	private final int[] order;
+
+	// the name trie, node 0 its root: each node's character, first child,
+	// next sibling and feature id (-1 if no name ends there)
+	private char[] label = new char[64];
+	private int[] child = new int[64];
+	private int[] sibling = new int[64];
+	private int[] feature = new int[64];
+	private int nodes;
+
+	/**
+	 * Instantiates a catalog of the given features
+	 * @param names the features' names
+	 * @param lons their longitudes, degrees (east positive)
+	 * @param lats their latitudes, degrees
+	 * @param diameters their diameters in km, or NaN where not known
+	 * @param features how many of them, from the start, are features;
+	 * the rest are reference points, found by name only
+	 */
+	public FeatureCatalog(String[] names, double[] lons, double[] lats,
+			double[] diameters, int features) {
+		int n = names.length;
+		this.names = names;
+		this.lons = new double[n];
+		this.lats = lats;
+		this.diameters = diameters;
+		units = new double[3 * n];
+		positions = new double[3 * n];
+		order = new int[features];
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		for (int i = 0; i < n; i++) {
+			this.lons[i] = lons[i] > 180 ? lons[i] - 360 : lons[i];
+			double lon = Math.toRadians(lons[i]);
+			double lat = Math.toRadians(lats[i]);
+			units[3 * i] = Math.cos(lat) * Math.cos(lon);
+			units[3 * i + 1] = Math.cos(lat) * Math.sin(lon);
+			units[3 * i + 2] = Math.sin(lat);
+
+			// as getGeocentricCrater always found them
+			lon = lons[i]*Math.PI/180;
+			lat = lats[i]*Math.PI/180;
+			positions[3 * i] = radius*Math.cos(lat)*Math.cos(lon);
+			positions[3 * i + 1] = radius*Math.cos(lat)*Math.sin(lon);
+			positions[3 * i + 2] = radius*Math.sin(lat);
+		}
+		for (int i = 0; i < features; i++)
+			order[i] = i;
+		build(0, features, 0);
+
+		Arrays.fill(child, -1);
+		Arrays.fill(sibling, -1);
+		Arrays.fill(feature, -1);
+		nodes = 1;
+		for (int i = 0; i < n; i++)
+			if (find(names[i]) < 0)
+				index(names[i], i);
+		for (String[] alias : ALIASES) {
+			int id = find(alias[1]);
+			if (id >= 0 && find(alias[0]) < 0)
+				index(alias[0], id);
+		}
+	}
+
+	/**
+	 * Returns the catalog of the built-in craters
+	 */
+	public static FeatureCatalog builtin() {
+		return with(new String[0], new double[0], new double[0], new double[0]);
+	}
+
+	/**
+	 * Returns the catalog of the built-in craters followed by the given
+	 * features, leaving out any that share a crater's name
+	 */
+	private static FeatureCatalog with(String[] names, double[] lons,
+			double[] lats, double[] diameters) {
+		String[] craterNames = new String[CRATERS.length];
+		double[] craterLons = new double[CRATERS.length];
+		double[] craterLats = new double[CRATERS.length];
+		for (int i = 0; i < CRATERS.length; i++) {
+			craterNames[i] = (String) CRATERS[i][0];
+			craterLons[i] = (Double) CRATERS[i][1];
+			craterLats[i] = (Double) CRATERS[i][2];
+		}
+		FeatureCatalog craters = new FeatureCatalog(craterNames, craterLons,
+				craterLats, new double[CRATERS.length], 0);
+		int features = CRATERS.length - REFERENCE_POINTS;
+		List<Integer> kept = new ArrayList<Integer>();
+		for (int i = 0; i < names.length; i++)
+			if (craters.find(names[i]) < 0)
+				kept.add(i);
+
+		int n = CRATERS.length + kept.size();
+		String[] allNames = new String[n];
+		double[] allLons = new double[n];
+		double[] allLats = new double[n];
+		double[] allDiameters = new double[n];
+		for (int i = 0; i < features; i++) {
+			allNames[i] = craterNames[i];
+			allLons[i] = craterLons[i];
+			allLats[i] = craterLats[i];
+			allDiameters[i] = Double.NaN;
+		}
+		for (int i = 0; i < kept.size(); i++) {
+			int k = kept.get(i);
+			allNames[features + i] = names[k];
+			allLons[features + i] = lons[k];
+			allLats[features + i] = lats[k];
+			allDiameters[features + i] = diameters[k];
+		}
+		for (int i = 0; i < REFERENCE_POINTS; i++) {
+			allNames[n - REFERENCE_POINTS + i] = craterNames[features + i];
+			allLons[n - REFERENCE_POINTS + i] = craterLons[features + i];
+			allLats[n - REFERENCE_POINTS + i] = craterLats[features + i];
+			allDiameters[n - REFERENCE_POINTS + i] = Double.NaN;
+		}
+		return new FeatureCatalog(allNames, allLons, allLats, allDiameters,
+				n - REFERENCE_POINTS);
+	}
+
+	/**
+	 * Reads a gazetteer export: comma or tab separated, with a header row
+	 * naming the columns. The name is taken from Clean_Feature_Name,
+	 * Feature_Name or Name, the position from Center_Latitude and
+	 * Center_Longitude (or Latitude/Lat and Longitude/Lon) and the size
+	 * from Diameter if there is one. If there's a Target column, only
+	 * rows for the Moon are kept. The built-in craters come first, and keep
+	 * their own positions where the export names them too
+	 * @param file the export
+	 * @return the catalog
+	 * @throws IOException if the file can't be read or lacks a name,
+	 * latitude or longitude column
+	 */
+	public static FeatureCatalog read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("empty feature catalog");
+			char sep = line.indexOf('\t') >= 0 ? '\t' : ',';
+			String[] header = split(line, sep);
+			int name = column(header, "clean_feature_name", "feature_name", "name");
+			int lat = column(header, "center_latitude", "latitude", "lat");
+			int lon = column(header, "center_longitude", "longitude", "lon");
+			int diam = column(header, "diameter");
+			int target = column(header, "target");
+			if (name < 0 || lat < 0 || lon < 0)
+				throw new IOException("feature catalog needs name, latitude"
+						+ " and longitude columns");
+
+			List<String> names = new ArrayList<String>();
+			List<double[]> values = new ArrayList<double[]>();
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				String[] f = split(line, sep);
+				if (target >= 0 && target < f.length
+						&& !f[target].trim().equalsIgnoreCase("moon"))
+					continue;
+				try {
+					double d = diam >= 0 && diam < f.length && !f[diam].trim().isEmpty()
+							? Double.parseDouble(f[diam].trim()) : Double.NaN;
+					values.add(new double[] {Double.parseDouble(f[lon].trim()),
+							Double.parseDouble(f[lat].trim()), d});
+					names.add(f[name].trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("unreadable feature catalog row: " + line);
+				} catch (ArrayIndexOutOfBoundsException e) {
+					throw new IOException("short feature catalog row: " + line);
+				}
+			}
+
+			int n = names.size();
+			double[] lons = new double[n];
+			double[] lats = new double[n];
+			double[] diameters = new double[n];
+			for (int i = 0; i < n; i++) {
+				lons[i] = values.get(i)[0];
+				lats[i] = values.get(i)[1];
+				diameters[i] = values.get(i)[2];
+			}
+			return with(names.toArray(new String[n]), lons, lats, diameters);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the first column whose header is one of the given names
+	 * (ignoring case), or -1
+	 */
+	private static int column(String[] header, String... names) {
+		for (String name : names)
+			for (int i = 0; i < header.length; i++)
+				if (header[i].trim().equalsIgnoreCase(name))
+					return i;
+		return -1;
+	}
+
+	/**
+	 * Splits a delimited line, keeping separators inside double quotes
+	 */
+	private static String[] split(String line, char sep) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char ch = line.charAt(i);
+			if (ch == '"') {
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					sb.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if (ch == sep && !quoted) {
+				fields.add(sb.toString());
+				sb.setLength(0);
+			} else {
+				sb.append(ch);
+			}
+		}
+		fields.add(sb.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/**
+	 * Returns the id of a feature (or reference point) by name or alias,
+	 * ignoring case, spaces, punctuation and accents
+	 * @param name the name
+	 * @return the id, or -1 if the name is unknown
+	 */
+	public int find(CharSequence name) {
+		int node = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char ch = fold(name.charAt(i));
+			if (ch == 0)
+				continue;
+			int c = child[node];
+			while (c >= 0 && label[c] != ch)
+				c = sibling[c];
+			if (c < 0)
+				return -1;
+			node = c;
+		}
+		return feature[node];
+	}
+
+	/**
+	 * Adds a name to the trie
+	 */
+	private void index(String name, int id) {
+		int node = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char ch = fold(name.charAt(i));
+			if (ch == 0)
+				continue;
+			int c = child[node];
+			while (c >= 0 && label[c] != ch)
+				c = sibling[c];
+			if (c < 0) {
+				if (nodes == label.length) {
+					int grown = 2 * nodes;
+					label = Arrays.copyOf(label, grown);
+					child = Arrays.copyOf(child, grown);
+					sibling = Arrays.copyOf(sibling, grown);
+					feature = Arrays.copyOf(feature, grown);
+					Arrays.fill(child, nodes, grown, -1);
+					Arrays.fill(sibling, nodes, grown, -1);
+					Arrays.fill(feature, nodes, grown, -1);
+				}
+				c = nodes++;
+				label[c] = ch;
+				sibling[c] = child[node];
+				child[node] = c;
+			}
+			node = c;
+		}
+		if (node != 0)
+			feature[node] = id;
+	}
+
+	/**
+	 * Returns a name character as indexed: lower case without accents, or
+	 * 0 for characters that are skipped
+	 */
+	private static char fold(char ch) {
+		if (ch >= 128)
+			ch = Normalizer.normalize(String.valueOf(ch), Normalizer.Form.NFD).charAt(0);
+		return Character.isLetterOrDigit(ch) ? Character.toLowerCase(ch) : 0;
+	}
+
+	/**
+	 * Returns the ids of the built-in craters and reference points
+	 */
+	public int[] craters() {
+		int[] ids = new int[CRATERS.length];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = find((String) CRATERS[i][0]);
+		return ids;
+	}
+
+	/**
+	 * Returns the number of features and reference points
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int feature) {
+		return names[feature];
+	}
+
+	public double getLongitude(int feature) {
+		return lons[feature];
+	}
+
+	public double getLatitude(int feature) {
+		return lats[feature];
+	}
+
+	/**
+	 * Returns a feature's diameter in km, or NaN if not known
+	 */
+	public double getDiameter(int feature) {
+		return diameters[feature];
+	}
+
+	/**
+	 * Copies a feature's selenocentric unit vector
+	 * @param feature the feature
+	 * @param out receives x, y and z
+	 * @param off offset in out
+	 */
+	public void getUnit(int feature, double[] out, int off) {
+		System.arraycopy(units, 3 * feature, out, off, 3);
+	}
+
+	/**
+	 * Copies a feature's position on the mean sphere
+	 * @param feature the feature
+	 * @param out receives x, y and z, km
+	 * @param off offset in out
+	 */
+	public void getPosition(int feature, double[] out, int off) {
+		System.arraycopy(positions, 3 * feature, out, off, 3);
+	}
+
+	/**
+	 * Finds the features nearest a point
+	 * @param x the point's selenocentric unit x
+	 * @param y unit y
+	 * @param z unit z
+	 * @param k how many to find
+	 * @param out receives the features, nearest first
+	 * @param dist receives their angular distances from the point, degrees
+	 * @return how many were found (k, unless the catalog is smaller; none
+	 * for k of 0 or less)
+	 */
+	public int nearest(double x, double y, double z, int k, int[] out, double[] dist) {
+		if (k <= 0)
+			return 0;
+		double[] chord2 = new double[k];
+		int found = nearest(x, y, z, k, out, chord2, 0, 0, order.length, 0);
+		for (int i = 0; i < found; i++)
+			dist[i] = Math.toDegrees(2 * Math.asin(Math.sqrt(chord2[i]) / 2));
+		return found;
+	}
+
+	/**
+	 * Finds the features within an angle of a point, in no particular order
+	 * @param x the point's selenocentric unit x
+	 * @param y unit y
+	 * @param z unit z
+	 * @param angle the largest angular distance, degrees
+	 * @param out receives the features; needs room for all of them
+	 * @return how many were found
+	 */
+	public int within(double x, double y, double z, double angle, int[] out) {
+		if (angle >= 180)
+			angle = 180;
+		double chord = 2 * Math.sin(Math.toRadians(angle) / 2);
+		return within(x, y, z, chord, out, 0, 0, order.length, 0);
+	}
+
+	private int nearest(double x, double y, double z, int k, int[] out,
+			double[] chord2, int found, int lo, int hi, int axis) {
+		if (lo >= hi)
+			return found;
+		int mid = (lo + hi) >>> 1;
+		int f = order[mid];
+		double dx = units[3 * f] - x;
+		double dy = units[3 * f + 1] - y;
+		double dz = units[3 * f + 2] - z;
+		double d2 = dx * dx + dy * dy + dz * dz;
+		if (found < k || d2 < chord2[found - 1]) {
+			// insert, keeping the list sorted
+			int i = found < k ? found++ : found - 1;
+			while (i > 0 && chord2[i - 1] > d2) {
+				chord2[i] = chord2[i - 1];
+				out[i] = out[i - 1];
+				i--;
+			}
+			chord2[i] = d2;
+			out[i] = f;
+		}
+
+		double split = axis == 0 ? dx : axis == 1 ? dy : dz; // node minus point
+		int next = (axis + 1) % 3;
+		if (split > 0) {
+			found = nearest(x, y, z, k, out, chord2, found, lo, mid, next);
+			if (found < k || split * split < chord2[found - 1])
+				found = nearest(x, y, z, k, out, chord2, found, mid + 1, hi, next);
+		} else {
+			found = nearest(x, y, z, k, out, chord2, found, mid + 1, hi, next);
+			if (found < k || split * split < chord2[found - 1])
+				found = nearest(x, y, z, k, out, chord2, found, lo, mid, next);
+		}
+		return found;
+	}
+
+	private int within(double x, double y, double z, double chord, int[] out,
+			int found, int lo, int hi, int axis) {
+		if (lo >= hi)
+			return found;
+		int mid = (lo + hi) >>> 1;
+		int f = order[mid];
+		double dx = units[3 * f] - x;
+		double dy = units[3 * f + 1] - y;
+		double dz = units[3 * f + 2] - z;
+		if (dx * dx + dy * dy + dz * dz <= chord * chord)
+			out[found++] = f;
+
+		double split = axis == 0 ? dx : axis == 1 ? dy : dz; // node minus point
+		int next = (axis + 1) % 3;
+		if (split >= -chord)
+			found = within(x, y, z, chord, out, found, lo, mid, next);
+		if (split <= chord)
+			found = within(x, y, z, chord, out, found, mid + 1, hi, next);
+		return found;
+	}
+
+	/**
+	 * Orders order[lo, hi) into a k-d tree
+	 */
+	private void build(int lo, int hi, int axis) {
+		if (hi - lo <= 1)
+			return;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, axis);
+		build(lo, mid, (axis + 1) % 3);
+		build(mid + 1, hi, (axis + 1) % 3);
+	}
+
+	/**
+	 * Moves the features of order[lo, hi] so that the one at nth is where
+	 * it would be sorted on the axis, with none greater before it and none
+	 * less after
+	 */
+	private void select(int lo, int hi, int nth, int axis) {
+		while (lo < hi) {
+			double pivot = units[3 * order[(lo + hi) >>> 1] + axis];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (units[3 * order[i] + axis] < pivot)
+					i++;
+				while (units[3 * order[j] + axis] > pivot)
+					j--;
+				if (i <= j) {
+					int t = order[i];
+					order[i++] = order[j];
+					order[j--] = t;
+				}
+			}
+			if (nth <= j)
+				hi = j;
+			else if (nth >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+}
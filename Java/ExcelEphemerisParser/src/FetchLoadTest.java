@@ -0,0 +1,190 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Offline load test of the ephemeris fetch path. Starts a HorizonsStandIn,
+ * points Ephemeris at it and fetches the main, X and Z series of a set of
+ * observing periods in several modes:
+ *
+ *   sequential  one request at a time through HorizonsDownloader
+ *   pipelined   all requests through an EphemerisPipeline
+ *   cached      the same again, restored from the checkpoints just written
+ *   retrying    pipelined, with injected failures and truncated responses
+ *
+ * and reports the wall time, row throughput and per-request latency
+ * percentiles of each.
+ * @author Nick Derr
+ */
+public class FetchLoadTest {
+
+	public static final int PERIODS = 8; // default number of periods
+	public static final int NIGHTS = 3; // nights per period
+	public static final long LATENCY = 200; // ms the stand-in waits per request
+	public static final long BANDWIDTH = 2 * 1024 * 1024; // bytes/s per response
+	public static final double FAULT_RATE = 0.1; // for the retrying mode
+
+	/**
+	 * Usage: java FetchLoadTest [periods] [threads]
+	 */
+	public static void main(String[] args) {
+		int periods = args.length > 0 ? Integer.parseInt(args[0]) : PERIODS;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) :
+			EphemerisPipeline.THREADS;
+
+		HorizonsStandIn standIn = null;
+		File scratch = null;
+		try {
+			standIn = new HorizonsStandIn(0);
+			standIn.setLatency(LATENCY);
+			standIn.setBandwidth(BANDWIDTH);
+			standIn.start();
+			Ephemeris.setHorizonsHost(standIn.getHost());
+			scratch = Files.createTempDirectory("fetchload").toFile();
+
+			List<String> requests = new ArrayList<String>();
+			List<String> labels = new ArrayList<String>();
+			String[] bases = {Ephemeris.JPL_URL, AxisEphemeris.X, AxisEphemeris.Z};
+			String[] names = {"main", "X", "Z"};
+			List<Date[]> ephDates = periods(periods);
+			for (int s = 0; s < bases.length; s++) {
+				for (int p = 0; p < ephDates.size(); p++) {
+					requests.add(Ephemeris.ephRequest(bases[s], ephDates.get(p)));
+					labels.add("Period " + (p + 1) + " " + names[s]);
+				}
+			}
+
+			System.out.println("stand-in at " + standIn.getHost() + ", "
+					+ requests.size() + " requests, " + threads + " threads, "
+					+ LATENCY + " ms latency, " + BANDWIDTH / 1024 + " KiB/s");
+			System.out.println(String.format("%-11s %9s %8s %10s %8s %8s %8s %8s %6s",
+					"mode", "wall s", "rows", "rows/s", "p50 ms", "p90 ms",
+					"p99 ms", "max ms", "reqs"));
+
+			// sequential baseline, without checkpoints
+			HorizonsDownloader plain = new HorizonsDownloader(null);
+			long served = standIn.getRequests();
+			long[] lat = new long[requests.size()];
+			long rows = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < requests.size(); i++) {
+				long t = System.nanoTime();
+				String data = quietly(plain, requests.get(i));
+				lat[i] = System.nanoTime() - t;
+				rows += data.split("\n").length;
+			}
+			print("sequential", System.nanoTime() - start, rows, lat,
+					standIn.getRequests() - served);
+
+			// pipelined, checkpointing into the scratch directory
+			HorizonsDownloader checkpointing = new HorizonsDownloader(
+					new File(scratch, "cold"));
+			run("pipelined", new EphemerisPipeline(checkpointing, threads),
+					requests, labels, standIn);
+
+			// the same requests again, now all checkpointed
+			run("cached", new EphemerisPipeline(checkpointing, threads),
+					requests, labels, standIn);
+
+			// failures and truncations, with short retry delays
+			standIn.setErrorRate(FAULT_RATE);
+			standIn.setTruncateRate(FAULT_RATE);
+			HorizonsDownloader retrying = new HorizonsDownloader(
+					new File(scratch, "faulty"), 50, 400);
+			long errors = standIn.getErrors();
+			long truncations = standIn.getTruncations();
+			run("retrying", new EphemerisPipeline(retrying, threads),
+					requests, labels, standIn);
+			System.out.println((standIn.getErrors() - errors) + " injected failures, "
+					+ (standIn.getTruncations() - truncations) + " truncations");
+
+		} catch (IOException e) {
+			System.out.println("Load test failed: " + e.getMessage());
+			System.exit(-1);
+		} finally {
+			if (standIn != null)
+				standIn.stop();
+			if (scratch != null)
+				delete(scratch);
+		}
+	}
+
+	/**
+	 * Fetches all requests through the given pipeline and prints a result line
+	 */
+	private static void run(String mode, EphemerisPipeline pipeline,
+			List<String> requests, List<String> labels, HorizonsStandIn standIn)
+			throws IOException {
+		pipeline.setVerbose(false);
+		long served = standIn.getRequests();
+		long start = System.nanoTime();
+		List<List<String[]>> chunks = pipeline.fetch(requests, labels);
+		long wall = System.nanoTime() - start;
+
+		long rows = 0;
+		for (List<String[]> chunk : chunks)
+			rows += chunk.size();
+		print(mode, wall, rows, pipeline.getLatencies(),
+				standIn.getRequests() - served);
+	}
+
+	/**
+	 * Fetches one request without the downloader's progress output
+	 */
+	private static String quietly(HorizonsDownloader d, String request)
+			throws IOException {
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			return d.fetch(request);
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	private static void print(String mode, long wall, long rows, long[] latencies,
+			long served) {
+		long[] sorted = Arrays.copyOf(latencies, latencies.length);
+		Arrays.sort(sorted);
+		System.out.println(String.format("%-11s %9.2f %8d %10.0f %8.1f %8.1f %8.1f %8.1f %6d",
+				mode, wall / 1e9, rows, rows / (wall / 1e9),
+				percentile(sorted, 0.50), percentile(sorted, 0.90),
+				percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6, served));
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted nanosecond values, in milliseconds
+	 */
+	private static double percentile(long[] sorted, double p) {
+		int rank = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, rank)] / 1e6;
+	}
+
+	/**
+	 * Builds observing periods of a few consecutive nights, a week apart
+	 */
+	private static List<Date[]> periods(int n) {
+		long day = 24L * 60 * Ephemeris.MIL_PER_MIN;
+		long t = 1426809600000L; // 2015-03-20 UT
+		List<Date[]> list = new ArrayList<Date[]>();
+		for (int i = 0; i < n; i++) {
+			list.add(new Date[] {new Date(t), new Date(t + (NIGHTS - 1) * day)});
+			t += 7 * day;
+		}
+		return list;
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/**
+ * The selenographic frame of each row of an ephemeris, kept once found so
+ * that every later transform on the row is a lookup. Each row holds the
+ * nine elements of its frame matrix (selenographic to equatorial, by
+ * rows; its transpose is the inverse) and the moon's center, parsed from
+ * the row's RA, DEC and DELTA, in flat primitive arrays indexed by row.
+ * @author Nick Derr
+ */
+public class FrameCache {
+
+	// NaN until a row is stored, so batch transforms of missing rows give
+	// NaN without a check per element
+	final double[] frames; // 9 per row, by rows
+	final double[] centers; // 4 per row: unit x, y, z toward the center, and range (km)
+	private final boolean[] filled;
+
+	/**
+	 * Instantiates an empty cache
+	 * @param rows number of rows in the ephemeris
+	 */
+	public FrameCache(int rows) {
+		frames = new double[9 * rows];
+		centers = new double[4 * rows];
+		Arrays.fill(frames, Double.NaN);
+		Arrays.fill(centers, Double.NaN);
+		filled = new boolean[rows];
+	}
+
+	/**
+	 * Returns the number of rows the cache has room for
+	 */
+	public int size() {
+		return filled.length;
+	}
+
+	/**
+	 * Returns whether a row's frame has been stored
+	 * @param row index of the row
+	 */
+	public boolean has(int row) {
+		return filled[row];
+	}
+
+	/**
+	 * Stores a row's frame and moon center
+	 * @param row index of the row
+	 * @param m the matrix taking selenographic coordinates to equatorial
+	 * @param ra RA of the moon's center, degrees
+	 * @param dec declination of the moon's center, degrees
+	 * @param delta range of the moon's center, km
+	 */
+	public void put(int row, Mat3 m, double ra, double dec, double delta) {
+		m.get(frames, 9 * row);
+
+		int c = 4 * row;
+		double cd = Math.cos(Math.toRadians(dec));
+		centers[c] = cd * Math.cos(Math.toRadians(ra));
+		centers[c + 1] = cd * Math.sin(Math.toRadians(ra));
+		centers[c + 2] = Math.sin(Math.toRadians(dec));
+		centers[c + 3] = delta;
+		filled[row] = true;
+	}
+
+	/**
+	 * Takes a selenographic vector to the equatorial frame
+	 * @param row index of the row
+	 * @param x selenographic x
+	 * @param y selenographic y
+	 * @param z selenographic z
+	 * @param out receives the equatorial x, y and z
+	 */
+	public void toEquatorial(int row, double x, double y, double z, double[] out) {
+		Mat3.times(frames, 9 * row, x, y, z, out, 0);
+	}
+
+	/**
+	 * Takes an equatorial vector to the selenographic frame
+	 * @param row index of the row
+	 * @param x equatorial x
+	 * @param y equatorial y
+	 * @param z equatorial z
+	 * @param out receives the selenographic x, y and z
+	 */
+	public void toSelenographic(int row, double x, double y, double z, double[] out) {
+		Mat3.transposeTimes(frames, 9 * row, x, y, z, out, 0);
+	}
+
+	/**
+	 * Returns the moon's center of a row
+	 * @param row index of the row
+	 * @param out receives the unit x, y and z toward the center and its
+	 * range in km
+	 */
+	public void center(int row, double[] out) {
+		System.arraycopy(centers, 4 * row, out, 0, 4);
+	}
+
+	/**
+	 * Returns a row's frame as a Mat3
+	 * @param row index of the row
+	 * @return the matrix taking selenographic coordinates to equatorial
+	 */
+	public Mat3 matrix(int row) {
+		return new Mat3(frames, 9 * row);
+	}
+}
@@ -0,0 +1,263 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Fetches Horizons batch responses one chunk (one period of one series) at a
+ * time. Failed transfers are retried with exponential backoff and jitter, and
+ * every chunk whose $$SOE/$$EOE framing checks out is written to a checkpoint
+ * directory, so a run that dies part way through only has to fetch the
+ * chunks that are still missing when it is restarted.
+ * @author Nick Derr
+ */
+public class HorizonsDownloader {
+
+	// ephemeris framing markers
+	public static final String SOE = "$$SOE";
+	public static final String EOE = "$$EOE";
+
+	// retry policy - delays in milliseconds
+	public static final int MAX_ATTEMPTS = 6;
+	public static final long BASE_DELAY = 2000;
+	public static final long MAX_DELAY = 60000;
+
+	// checkpoint file naming
+	public static final String CHUNK_SUFFIX = ".eph";
+	public static final String PARTIAL_SUFFIX = ".part";
+
+	private final File checkpointDir; // null if checkpointing is off
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Random jitter;
+
+	/**
+	 * Instantiates a downloader which keeps completed chunks in the given
+	 * directory
+	 * @param checkpointDir directory for completed chunks, or null to
+	 * download without checkpointing
+	 */
+	public HorizonsDownloader(File checkpointDir) {
+		this(checkpointDir, BASE_DELAY, MAX_DELAY);
+	}
+
+	/**
+	 * Instantiates a downloader with its own retry delays, e.g. for load
+	 * tests against a HorizonsStandIn
+	 * @param checkpointDir directory for completed chunks, or null to
+	 * download without checkpointing
+	 * @param baseDelay delay before the first retry, in milliseconds
+	 * @param maxDelay longest delay between retries, in milliseconds
+	 */
+	public HorizonsDownloader(File checkpointDir, long baseDelay, long maxDelay) {
+		this.checkpointDir = checkpointDir;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		jitter = new Random();
+	}
+
+	/**
+	 * Returns the data lines of the Horizons response to the given request,
+	 * newline terminated and without the $$SOE/$$EOE markers. The chunk is
+	 * taken from the checkpoint directory when present, otherwise it is
+	 * downloaded (retrying up to MAX_ATTEMPTS times) and checkpointed. A
+	 * checkpoint that can't be written is reported and skipped; only the
+	 * download is retried
+	 * @param request the full Horizons request url
+	 * @return the chunk's ephemeris lines
+	 * @throws IOException if every attempt to download the chunk failed
+	 */
+	public String fetch(String request) throws IOException {
+
+		// try the checkpoint first
+		File chunk = chunkFile(request);
+		if (chunk != null && chunk.isFile()) {
+			try {
+				String data = readChunk(new FileInputStream(chunk), false);
+				System.out.println("restored from checkpoint");
+				return data;
+			} catch (IOException e) {
+				// unreadable or badly framed, so fetch it again
+				chunk.delete();
+			}
+		}
+
+		String data = null;
+		IOException last = null;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS && data == null; attempt++) {
+			if (attempt > 0) {
+				long delay = backoff(attempt);
+				System.out.print("retrying in " + (delay / 1000) + " s...");
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting to retry");
+				}
+			}
+
+			try {
+				data = readChunk(new URL(request).openStream(), true);
+			} catch (IOException e) {
+				System.out.print("failed (" + e.getMessage() + ")...");
+				last = e;
+			}
+		}
+		if (data == null)
+			throw last;
+
+		try {
+			checkpoint(request, data);
+		} catch (IOException e) {
+			System.out.print("could not checkpoint (" + e.getMessage() + ")...");
+		}
+		return data;
+	}
+
+	/**
+	 * Returns the delay before the given retry: the base delay doubled for
+	 * each previous retry, capped at the maximum, with up to half of it randomized
+	 * so that parallel fetches don't retry in lockstep
+	 * @param attempt number of attempts made so far (at least 1)
+	 * @return the delay in milliseconds
+	 */
+	public long backoff(int attempt) {
+		long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 16));
+		synchronized (jitter) {
+			return delay / 2 + (long) (jitter.nextDouble() * (delay / 2));
+		}
+	}
+
+	/**
+	 * Returns the checkpoint file belonging to the given request, or null if
+	 * checkpointing is off. The file is named for the request's query, so
+	 * the same ephemeris asked of either interface (or another host) shares
+	 * its checkpoint
+	 * @param request the full Horizons request url
+	 * @return the checkpoint file for the request
+	 */
+	public File chunkFile(String request) {
+		if (checkpointDir == null)
+			return null;
+		return new File(checkpointDir, digest(query(request)) + CHUNK_SUFFIX);
+	}
+
+	/**
+	 * Returns the parameters of a request that pick its ephemeris (target,
+	 * site, period, quantities...), in order, leaving out the host, path
+	 * and the batch/format switches that only choose the interface
+	 * @param request the full Horizons request url
+	 * @return the request's query without those switches
+	 */
+	static String query(String request) {
+		StringBuilder sb = new StringBuilder();
+		for (String p : request.substring(request.indexOf('?') + 1).split("&")) {
+			if (p.isEmpty() || p.startsWith("batch=") || p.startsWith("format="))
+				continue;
+			if (sb.length() > 0)
+				sb.append('&');
+			sb.append(p);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the checkpoint directory, or null if checkpointing is off
+	 */
+	public File getCheckpointDir() {
+		return checkpointDir;
+	}
+
+	/**
+	 * Reads one framed chunk from the given stream with a ChunkParser and
+	 * closes it. The chunk is rejected if either marker is missing
+	 * @param stream the response or checkpoint stream
+	 * @param echo whether to echo the start and stop times from the header
+	 * @return the data lines of the chunk
+	 * @throws IOException if the stream fails or the framing is incomplete
+	 */
+	static String readChunk(InputStream stream, boolean echo) throws IOException {
+		ChunkParser parser = new ChunkParser();
+		Reader in = new InputStreamReader(stream, StandardCharsets.UTF_8);
+		try {
+			char[] buf = new char[8192];
+			int len;
+			while ((len = in.read(buf)) != -1)
+				parser.feed(buf, 0, len);
+			parser.finish();
+		} finally {
+			in.close();
+		}
+
+		if (!parser.isComplete())
+			throw new IOException(parser.framingError());
+		if (echo) {
+			for (String line : parser.times()) {
+				System.out.println();
+				System.out.print(line);
+			}
+		}
+		return parser.data();
+	}
+
+	/**
+	 * Writes a validated chunk to the checkpoint file of its request. The
+	 * chunk is written to a partial file first and renamed, so an
+	 * interrupted write never leaves a checkpoint behind
+	 * @param request the full Horizons request url
+	 * @param data the chunk's ephemeris lines
+	 * @throws IOException if the checkpoint could not be written
+	 */
+	void checkpoint(String request, String data) throws IOException {
+		File chunk = chunkFile(request);
+		if (chunk == null)
+			return;
+
+		if (!checkpointDir.isDirectory() && !checkpointDir.mkdirs())
+			throw new IOException("could not create checkpoint directory "
+					+ checkpointDir);
+
+		File partial = new File(checkpointDir, chunk.getName() + PARTIAL_SUFFIX);
+		Writer out = new OutputStreamWriter(new FileOutputStream(partial),
+				StandardCharsets.UTF_8);
+		try {
+			out.write(SOE + '\n');
+			out.write(data);
+			out.write(EOE + '\n');
+		} finally {
+			out.close();
+		}
+
+		if (!partial.renameTo(chunk)) {
+			partial.delete();
+			throw new IOException("could not write checkpoint " + chunk);
+		}
+	}
+
+	/**
+	 * Hex SHA-1 of the request, used as the checkpoint file name
+	 */
+	static String digest(String request) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] hash = md.digest(request.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : hash)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE ships SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
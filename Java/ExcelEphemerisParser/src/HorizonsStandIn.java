@@ -0,0 +1,378 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Horizons batch interface, so the fetch path can
+ * be benchmarked and regression tested without JPL. It answers the request
+ * shapes built by Ephemeris.ephRequest for the main series and the
+ * AxisEphemeris X/Z surface points, either with a recorded response (any
+ * checkpoint directory written by HorizonsDownloader will do) or with rows
+ * synthesized from a low precision lunar/solar model, and can add latency,
+ * throttle bandwidth, fail requests and truncate responses.
+ *
+ * Point the parser at it with -Dephparse.horizons=http://localhost:PORT/
+ * @author Nick Derr
+ */
+public class HorizonsStandIn {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final String BATCH_PATH = "/horizons_batch.cgi";
+	public static final String API_PATH = "/api/horizons.api";
+
+	// model constants
+	private static final double OBLIQUITY = Math.toRadians(23.4393);
+	private static final long J2000 = 946728000000L; // 2000-01-01 12:00 UT, in ms
+	private static final double MS_PER_DAY = 86400000.0;
+	private static final ObservingGeometry MODEL = new Model();
+
+	private final HttpServer server;
+	private final Random random;
+
+	// fault injection settings
+	private volatile long latency; // ms before the response starts
+	private volatile long bandwidth; // bytes per second, 0 if unlimited
+	private volatile double errorRate; // fraction of requests answered 503
+	private volatile double truncateRate; // fraction of responses cut short
+	private volatile File recordings; // recorded responses, or null
+
+	// what was served
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong truncations = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Instantiates (but doesn't start) a stand-in listening on the given port
+	 * @param port the port to listen on, or 0 for any free port
+	 * @throws IOException if the port can't be bound
+	 */
+	public HorizonsStandIn(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext(BATCH_PATH, new BatchHandler());
+		server.createContext(API_PATH, new BatchHandler());
+		server.setExecutor(Executors.newCachedThreadPool());
+		random = new Random();
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Returns the base url to hand to Ephemeris.setHorizonsHost
+	 */
+	public String getHost() {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+
+	public void setLatency(long ms) {
+		latency = ms;
+	}
+
+	public void setBandwidth(long bytesPerSecond) {
+		bandwidth = bytesPerSecond;
+	}
+
+	public void setErrorRate(double rate) {
+		errorRate = rate;
+	}
+
+	public void setTruncateRate(double rate) {
+		truncateRate = rate;
+	}
+
+	/**
+	 * Serves recorded responses from the given directory where available.
+	 * Recordings are named like HorizonsDownloader checkpoints of the real
+	 * JPL request
+	 * @param dir directory of recordings, or null to always synthesize
+	 */
+	public void setRecordings(File dir) {
+		recordings = dir;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getTruncations() {
+		return truncations.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	private boolean chance(double rate) {
+		if (rate <= 0)
+			return false;
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	private double fraction() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+
+	/**
+	 * Answers horizons_batch.cgi and horizons.api requests
+	 */
+	private class BatchHandler implements HttpHandler {
+
+		public void handle(HttpExchange ex) throws IOException {
+			requests.incrementAndGet();
+			try {
+				if (latency > 0)
+					Thread.sleep(latency);
+
+				if (chance(errorRate)) {
+					errors.incrementAndGet();
+					send(ex, 503, "Horizons stand-in: injected failure\n".getBytes(
+							StandardCharsets.UTF_8), false);
+					return;
+				}
+
+				byte[] body;
+				try {
+					body = respond(ex.getRequestURI().getRawPath(),
+							ex.getRequestURI().getRawQuery());
+				} catch (IllegalArgumentException e) {
+					String msg = ex.getRequestURI().getRawPath().equals(API_PATH) ?
+							"{\"error\":" + quote(e.getMessage()) + "}" : e.getMessage();
+					send(ex, 400, (msg + "\n").getBytes(StandardCharsets.UTF_8), false);
+					return;
+				}
+
+				boolean truncate = chance(truncateRate);
+				if (truncate)
+					truncations.incrementAndGet();
+				send(ex, 200, body, truncate);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				ex.close();
+			}
+		}
+
+		/**
+		 * Writes the body at the configured bandwidth, stopping part way
+		 * through if it is to be truncated
+		 */
+		private void send(HttpExchange ex, int status, byte[] body, boolean truncate)
+				throws IOException, InterruptedException {
+			int len = truncate ? (int) (body.length * fraction()) : body.length;
+			ex.getResponseHeaders().set("Content-Type", "text/plain");
+			ex.sendResponseHeaders(status, 0);
+
+			OutputStream out = ex.getResponseBody();
+			long start = System.nanoTime();
+			int piece = 4096;
+			for (int off = 0; off < len; off += piece) {
+				int n = Math.min(piece, len - off);
+				out.write(body, off, n);
+				bytes.addAndGet(n);
+
+				long bps = bandwidth;
+				if (bps > 0) {
+					long due = (long) ((off + n) * 1e9 / bps);
+					long ahead = due - (System.nanoTime() - start);
+					if (ahead > 0)
+						Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+				}
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Builds the response to a request, from a recording if there is one.
+	 * horizons.api requests get the text wrapped in a JSON object
+	 * @param path the request path
+	 * @param query the raw (still encoded) query
+	 * @return the response body
+	 * @throws IOException if a recording exists but can't be read
+	 */
+	byte[] respond(String path, String query) throws IOException {
+		String text = null;
+		File dir = recordings;
+		if (dir != null) {
+			String real = Ephemeris.JPL_HOST + path.substring(1) + "?" + query;
+			File rec = new File(dir, HorizonsDownloader.digest(real)
+					+ HorizonsDownloader.CHUNK_SUFFIX);
+			if (rec.isFile())
+				text = new String(Files.readAllBytes(rec.toPath()),
+						StandardCharsets.UTF_8);
+		}
+		if (text == null)
+			text = HorizonsText.synthesize(HorizonsText.parseQuery(query), MODEL,
+					"Horizons stand-in, synthesized ephemeris (low precision model)");
+
+		if (path.equals(API_PATH))
+			text = "{\"signature\":{\"source\":\"Horizons stand-in\",\"version\":\"1.2\"},"
+					+ "\"result\":" + quote(text) + "}\n";
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Quotes a string as a JSON string literal
+	 */
+	static String quote(String text) {
+		StringBuilder sb = new StringBuilder(text.length() + text.length() / 8);
+		sb.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Low precision geocentric lunar/solar model, seen from the center of
+	 * the earth, with Kitt Peak's horizon
+	 */
+	static class Model implements ObservingGeometry {
+
+		/**
+		 * Low precision geocentric moon, equatorial km
+		 */
+		public double[] moon(long t) {
+			double d = (t - J2000) / MS_PER_DAY;
+			double l = Math.toRadians(218.316 + 13.176396 * d);
+			double m = Math.toRadians(134.963 + 13.064993 * d);
+			double f = Math.toRadians(93.272 + 13.229350 * d);
+			double lon = l + Math.toRadians(6.289) * Math.sin(m);
+			double lat = Math.toRadians(5.128) * Math.sin(f);
+			double dist = 385001 - 20905 * Math.cos(m);
+			return ecliptic(lon, lat, dist);
+		}
+
+		/**
+		 * Low precision geocentric sun, equatorial km
+		 */
+		public double[] sun(long t) {
+			double d = (t - J2000) / MS_PER_DAY;
+			double g = Math.toRadians(357.529 + 0.98560028 * d);
+			double q = 280.459 + 0.98564736 * d;
+			double lon = Math.toRadians(q + 1.915 * Math.sin(g) + 0.020 * Math.sin(2 * g));
+			double dist = (1.00014 - 0.01671 * Math.cos(g) - 0.00014 * Math.cos(2 * g))
+					* HorizonsText.AU;
+			return ecliptic(lon, 0, dist);
+		}
+
+		/**
+		 * Body axes of the model moon as rows x, y, z: z tilted 1.54 deg from
+		 * the ecliptic pole, x toward the earth but for the optical libration
+		 * in longitude
+		 */
+		public double[][] frame(long t) {
+			double d = (t - J2000) / MS_PER_DAY;
+			double node = Math.toRadians(125.045 - 0.0529921 * d);
+			double tilt = Math.toRadians(1.54);
+			double[] z = ecliptic(node - Math.PI / 2, Math.PI / 2 - tilt, 1);
+
+			double[] e = HorizonsText.scale(moon(t), -1);
+			double[] x = HorizonsText.minus(e, HorizonsText.scale(z, HorizonsText.dot(e, z)));
+			x = HorizonsText.scale(x, 1 / HorizonsText.norm(x));
+			double[] y = HorizonsText.cross(z, x);
+
+			// rotate about z by the libration in longitude
+			double m = Math.toRadians(134.963 + 13.064993 * d);
+			double lib = Math.toRadians(-6.289) * Math.sin(m);
+			double[] xr = new double[3];
+			for (int i = 0; i < 3; i++)
+				xr[i] = Math.cos(lib) * x[i] + Math.sin(lib) * y[i];
+			return new double[][] {xr, HorizonsText.cross(z, xr), z};
+		}
+
+		public Site site() {
+			return Site.KITT_PEAK;
+		}
+
+		private static double[] ecliptic(double lon, double lat, double dist) {
+			double x = dist * Math.cos(lat) * Math.cos(lon);
+			double y = dist * Math.cos(lat) * Math.sin(lon);
+			double z = dist * Math.sin(lat);
+			return new double[] {x,
+					y * Math.cos(OBLIQUITY) - z * Math.sin(OBLIQUITY),
+					y * Math.sin(OBLIQUITY) + z * Math.cos(OBLIQUITY)};
+		}
+	}
+
+	/**
+	 * Runs a stand-in until killed
+	 * Usage: java HorizonsStandIn [-p port] [-latency ms] [-bandwidth bytes/s]
+	 *        [-errors rate] [-truncate rate] [-recordings dir]
+	 */
+	public static void main(String[] args) {
+		int port = DEFAULT_PORT;
+		HorizonsStandIn standIn = null;
+		try {
+			for (int i = 0; i + 1 < args.length; i += 2)
+				if (args[i].equals("-p"))
+					port = Integer.parseInt(args[i + 1]);
+			standIn = new HorizonsStandIn(port);
+
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				String opt = args[i];
+				String val = args[i + 1];
+				if (opt.equals("-latency")) {
+					standIn.setLatency(Long.parseLong(val));
+				} else if (opt.equals("-bandwidth")) {
+					standIn.setBandwidth(Long.parseLong(val));
+				} else if (opt.equals("-errors")) {
+					standIn.setErrorRate(Double.parseDouble(val));
+				} else if (opt.equals("-truncate")) {
+					standIn.setTruncateRate(Double.parseDouble(val));
+				} else if (opt.equals("-recordings")) {
+					standIn.setRecordings(new File(val));
+				} else if (!opt.equals("-p")) {
+					throw new IllegalArgumentException("unknown option " + opt);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not start stand-in: " + e.getMessage());
+			System.exit(-1);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Usage: java HorizonsStandIn [-p port] [-latency ms]"
+					+ " [-bandwidth bytes/s] [-errors rate] [-truncate rate]"
+					+ " [-recordings dir]");
+			System.exit(-1);
+		}
+
+		standIn.start();
+		System.out.println("Horizons stand-in listening at " + standIn.getHost());
+	}
+}
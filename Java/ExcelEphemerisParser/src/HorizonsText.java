@@ -0,0 +1,376 @@
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes Horizons style observer tables for batch requests, computing the
+ * requested quantities from an ObservingGeometry rather than asking JPL.
+ * Used by HorizonsStandIn and the local DE ephemeris source, so that their
+ * output goes through exactly the parsing the real responses do.
+ * @author Nick Derr
+ */
+public class HorizonsText {
+
+	public static final double AU = 149597870.7; // km
+	public static final double SOLAR_RADIUS = 696000; // km
+
+	// sun elevation below which a row counts as night for SKIP_DAYLT
+	public static final double DAYLIGHT_ELEV = -0.833; // deg, upper limb refracted
+
+	// seconds either side of a row used for range rates
+	private static final long RATE_STEP = 30000;
+
+	private static final String RULE =
+			"*******************************************************************************\n";
+
+	/**
+	 * Decodes a query into parameter values with the quotes removed
+	 * @param query the raw (still encoded) query
+	 * @return the parameters, keyed in upper case
+	 */
+	public static Map<String,String> parseQuery(String query) {
+		Map<String,String> params = new HashMap<String,String>();
+		if (query == null)
+			return params;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				continue;
+			try {
+				String val = URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				if (val.length() >= 2 && val.startsWith("'") && val.endsWith("'"))
+					val = val.substring(1, val.length() - 1);
+				params.put(pair.substring(0, eq).toUpperCase(), val);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Writes the response to a request with the fields of the requested
+	 * quantities, one row per step from the start to the stop time
+	 * @param params the request's parameters
+	 * @param geo where the moon and sun are
+	 * @param source one line describing where the numbers came from
+	 * @return the response text
+	 * @throws IllegalArgumentException if the request can't be answered
+	 */
+	public static String synthesize(Map<String,String> params, ObservingGeometry geo,
+			String source) {
+		String command = params.get("COMMAND");
+		String quantities = params.get("QUANTITIES");
+		if (command == null || quantities == null)
+			throw new IllegalArgumentException("COMMAND and QUANTITIES required");
+
+		// surface point of the moon (g:lon,lat,alt@301) or its center
+		double[] surface = null;
+		if (command.startsWith("g:")) {
+			String[] g = command.substring(2, command.indexOf('@')).split(",");
+			surface = new double[] {Math.toRadians(Double.parseDouble(g[0])),
+					Math.toRadians(Double.parseDouble(g[1]))};
+		} else if (!command.equals("301")) {
+			throw new IllegalArgumentException("only the moon can be synthesized");
+		}
+
+		long start = parseTime(params.get("START_TIME"));
+		long stop = parseTime(params.get("STOP_TIME"));
+		long step = parseStep(params.get("STEP_SIZE"));
+		boolean skipDay = "YES".equalsIgnoreCase(params.get("SKIP_DAYLT"));
+
+		SimpleDateFormat rowFormat = new SimpleDateFormat(
+				Ephemeris.DATE_FORMAT + " " + Ephemeris.TIME_FORMAT, Locale.US);
+		rowFormat.setTimeZone(Ephemeris.UTC);
+
+		String[] fields = quantities.split(",");
+		int[] qs = new int[fields.length];
+		for (int i = 0; i < qs.length; i++)
+			qs[i] = Integer.parseInt(fields[i].trim());
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(RULE);
+		sb.append(' ').append(source).append('\n');
+		sb.append(" Target body name: Moon (301)\n");
+		sb.append(" Start time      : A.D. ").append(rowFormat.format(new Date(start)))
+				.append(":00.0000 UT\n");
+		sb.append(" Stop  time      : A.D. ").append(rowFormat.format(new Date(stop)))
+				.append(":00.0000 UT\n");
+		sb.append(RULE);
+		sb.append(HorizonsDownloader.SOE).append('\n');
+
+		for (long t = start; t <= stop; t += step) {
+			if (skipDay && geo.site() != Site.GEOCENTER
+					&& horizontal(geo, geo.sun(t), t)[1] > DAYLIGHT_ELEV)
+				continue;
+
+			sb.append(' ').append(rowFormat.format(new Date(t)));
+			sb.append(surface == null ? " m " : " C m ");
+			Row row = new Row(geo, t, surface);
+			for (int q : qs)
+				appendQuantity(sb, q, row);
+			sb.append('\n');
+		}
+
+		sb.append(HorizonsDownloader.EOE).append('\n');
+		sb.append(RULE);
+		return sb.toString();
+	}
+
+	/**
+	 * The geometry of one row, computed once for all its quantities
+	 */
+	private static class Row {
+		final ObservingGeometry geo;
+		final long t;
+		final double[] surface; // lon/lat in radians, or null for the center
+		final double[] moon; // observer to moon center
+		final double[] target; // observer to the target point
+		final double[] sun; // observer to sun
+		final double[] toSun; // moon to sun
+		final double[] toObs; // moon to observer
+		final double[][] frame;
+
+		Row(ObservingGeometry geo, long t, double[] surface) {
+			this.geo = geo;
+			this.t = t;
+			this.surface = surface;
+			moon = geo.moon(t);
+			sun = geo.sun(t);
+			frame = geo.frame(t);
+			target = surface == null ? moon : surfacePoint(moon, frame, surface);
+			toSun = minus(sun, moon);
+			toObs = scale(moon, -1);
+		}
+	}
+
+	/**
+	 * Appends the fields of one Horizons quantity for a row
+	 */
+	private static void appendQuantity(StringBuilder sb, int q, Row r) {
+		switch (q) {
+		case 1: {
+			double[] radec = raDec(r.target);
+			sb.append(String.format(Locale.ROOT, "%10.5f %9.5f ", radec[0], radec[1]));
+			break;
+		}
+		case 4: {
+			double[] h = horizontal(r.geo, r.target, r.t);
+			if (h == null)
+				sb.append("n.a. n.a. ");
+			else
+				sb.append(String.format(Locale.ROOT, "%11.6f %10.6f ", h[0], h[1]));
+			break;
+		}
+		case 7: {
+			double[] h = horizontal(r.geo, r.target, r.t);
+			if (h == null)
+				sb.append("n.a. ");
+			else
+				sb.append(String.format(Locale.ROOT, "%14.10f ", h[2] / 15));
+			break;
+		}
+		case 8: {
+			double[] h = horizontal(r.geo, r.target, r.t);
+			double x = h == null ? Double.NaN : Astrometry.airmass(h[1], Astrometry.KASTEN_YOUNG);
+			if (Double.isNaN(x))
+				sb.append("n.a. n.a. ");
+			else
+				sb.append(String.format(Locale.ROOT, "%6.3f n.a. ", x));
+			break;
+		}
+		case 9: {
+			// Allen's lunar phase law, and magnitude per square arcsec
+			double phase = Math.toDegrees(angle(r.toSun, r.toObs));
+			double mag = 0.23 + 5 * Math.log10(norm(r.toSun) / AU * norm(r.moon) / AU)
+					+ 0.026 * phase + 4e-9 * Math.pow(phase, 4);
+			double radius = Math.toDegrees(Math.asin(
+					LibrationEphemeris.LUNAR_RADIUS / norm(r.moon))) * 3600;
+			double lit = (1 + Math.cos(Math.toRadians(phase))) / 2;
+			double brt = mag + 2.5 * Math.log10(Math.PI * radius * radius * lit);
+			sb.append(String.format(Locale.ROOT, "%7.3f %6.3f ", mag, brt));
+			break;
+		}
+		case 10:
+			sb.append(String.format(Locale.ROOT, "%8.4f ", 50 * (1 + Math.cos(angle(r.toSun, r.toObs)))));
+			break;
+		case 13:
+			sb.append(String.format(Locale.ROOT, "%9.3f ", Math.toDegrees(2 * Math.asin(
+					LibrationEphemeris.LUNAR_RADIUS / norm(r.moon))) * 3600));
+			break;
+		case 14: {
+			double[] ll = lonLat(r.frame, r.toObs);
+			sb.append(String.format(Locale.ROOT, "%9.4f %8.4f ", ll[0], ll[1]));
+			break;
+		}
+		case 15: {
+			double[] ll = lonLat(r.frame, r.toSun);
+			sb.append(String.format(Locale.ROOT, "%9.4f %8.4f ", ll[0], ll[1]));
+			break;
+		}
+		case 17: {
+			// pole position angle from true-of-date north, and its distance
+			// from the disc center (negative on the far side)
+			double[] sight = scale(r.target, 1 / norm(r.target));
+			Vec3 p = Precession.poleOfDate(new Date(r.t));
+			double[] pole = {p.x, p.y, p.z};
+			double[] north = minus(pole, scale(sight, dot(pole, sight)));
+			double[] east = cross(north, sight);
+			double[] z = r.frame[2];
+			double pa = Math.toDegrees(Math.atan2(dot(z, east), dot(z, north)));
+			double dist = Math.toDegrees(LibrationEphemeris.LUNAR_RADIUS
+					* Math.sqrt(1 - Math.pow(dot(z, sight), 2)) / norm(r.target)) * 3600;
+			sb.append(String.format(Locale.ROOT, "%8.3f %9.2f ", (pa + 360) % 360,
+					dot(z, sight) > 0 ? -dist : dist));
+			break;
+		}
+		case 19: {
+			long t = r.t;
+			double rdot = (norm(minus(r.geo.sun(t + RATE_STEP), r.geo.moon(t + RATE_STEP)))
+					- norm(minus(r.geo.sun(t - RATE_STEP), r.geo.moon(t - RATE_STEP))))
+					/ (2 * RATE_STEP / 1000.0);
+			sb.append(String.format(Locale.ROOT, "%.12f %10.7f ", norm(r.toSun) / AU, rdot));
+			break;
+		}
+		case 20: {
+			double deldot = (norm(target(r.geo, r.t + RATE_STEP, r.surface))
+					- norm(target(r.geo, r.t - RATE_STEP, r.surface)))
+					/ (2 * RATE_STEP / 1000.0);
+			sb.append(String.format(Locale.ROOT, "%.9f %11.7f ", norm(r.target), deldot));
+			break;
+		}
+		case 23: {
+			double sot = Math.toDegrees(angle(r.sun, r.moon));
+			// east of the sun in (J2000) ecliptic longitude trails it
+			double[] n = cross(r.sun, r.moon);
+			double eps = Math.toRadians(Illumination.OBLIQUITY);
+			double c = n[2] * Math.cos(eps) - n[1] * Math.sin(eps);
+			sb.append(String.format(Locale.ROOT, "%8.4f %s ", sot, c > 0 ? "/T" : "/L"));
+			break;
+		}
+		case 24:
+			sb.append(String.format(Locale.ROOT, "%8.4f ", Math.toDegrees(angle(r.toSun, r.toObs))));
+			break;
+		default:
+			sb.append("n.a. ");
+		}
+	}
+
+	/**
+	 * Returns the observer-to-target vector of the center or a surface point
+	 */
+	private static double[] target(ObservingGeometry geo, long t, double[] surface) {
+		double[] moon = geo.moon(t);
+		if (surface == null)
+			return moon;
+		return surfacePoint(moon, geo.frame(t), surface);
+	}
+
+	/**
+	 * Returns the observer-to-point vector of a point on the lunar sphere
+	 */
+	private static double[] surfacePoint(double[] moon, double[][] f, double[] surface) {
+		double r = LibrationEphemeris.LUNAR_RADIUS;
+		double cl = Math.cos(surface[1]);
+		double[] p = new double[3];
+		for (int i = 0; i < 3; i++)
+			p[i] = moon[i] + r * (cl * Math.cos(surface[0]) * f[0][i]
+					+ cl * Math.sin(surface[0]) * f[1][i] + Math.sin(surface[1]) * f[2][i]);
+		return p;
+	}
+
+	/**
+	 * Returns the azimuth, elevation and sidereal time of a direction as
+	 * from Astrometry.horizontal, or null at the geocenter, where Horizons
+	 * has no horizon
+	 */
+	private static double[] horizontal(ObservingGeometry geo, double[] v, long t) {
+		if (geo.site() == Site.GEOCENTER)
+			return null;
+		double[] radec = raDec(v);
+		return Astrometry.horizontal(t, radec[0], radec[1], geo.site());
+	}
+
+	static double[] raDec(double[] v) {
+		double ra = Math.toDegrees(Math.atan2(v[1], v[0]));
+		return new double[] {ra < 0 ? ra + 360 : ra,
+				Math.toDegrees(Math.asin(v[2] / norm(v)))};
+	}
+
+	static double[] lonLat(double[][] frame, double[] v) {
+		double n = norm(v);
+		return new double[] {
+				Math.toDegrees(Math.atan2(dot(v, frame[1]), dot(v, frame[0]))),
+				Math.toDegrees(Math.asin(dot(v, frame[2]) / n))};
+	}
+
+	static double angle(double[] a, double[] b) {
+		return Math.acos(Math.max(-1, Math.min(1, dot(a, b) / (norm(a) * norm(b)))));
+	}
+
+	static double dot(double[] a, double[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	static double norm(double[] a) {
+		return Math.sqrt(dot(a, a));
+	}
+
+	static double[] scale(double[] a, double s) {
+		return new double[] {a[0] * s, a[1] * s, a[2] * s};
+	}
+
+	static double[] minus(double[] a, double[] b) {
+		return new double[] {a[0] - b[0], a[1] - b[1], a[2] - b[2]};
+	}
+
+	static double[] plus(double[] a, double[] b) {
+		return new double[] {a[0] + b[0], a[1] + b[1], a[2] + b[2]};
+	}
+
+	static double[] cross(double[] a, double[] b) {
+		return new double[] {a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2],
+				a[0] * b[1] - a[1] * b[0]};
+	}
+
+	/**
+	 * Parses START_TIME/STOP_TIME values as built by Ephemeris.ephRequest
+	 */
+	static long parseTime(String val) {
+		if (val == null)
+			throw new IllegalArgumentException("START_TIME and STOP_TIME required");
+		String[] formats = {"yyyy-MMM-dd-HH:mm", "yyyy-MMM-dd HH:mm", "yyyy-MMM-dd"};
+		for (String format : formats) {
+			SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
+			df.setTimeZone(Ephemeris.UTC);
+			df.setLenient(false);
+			try {
+				return df.parse(val).getTime();
+			} catch (ParseException e) {
+				// try the next format
+			}
+		}
+		throw new IllegalArgumentException("bad time " + val);
+	}
+
+	/**
+	 * Parses STEP_SIZE values like "1 m", in milliseconds
+	 */
+	static long parseStep(String val) {
+		if (val == null)
+			return Ephemeris.MIL_PER_MIN;
+		String[] parts = val.trim().split("\\s+");
+		long n = Long.parseLong(parts[0]);
+		String unit = parts.length > 1 ? parts[1].toLowerCase() : "m";
+		if (unit.startsWith("h"))
+			return n * 60 * Ephemeris.MIL_PER_MIN;
+		if (unit.startsWith("d"))
+			return n * 24 * 60 * Ephemeris.MIL_PER_MIN;
+		return n * Ephemeris.MIL_PER_MIN;
+	}
+}
@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * The moon's phase angle (S-T-O), elongation (S-O-T), illuminated fraction
+ * and leading/trailing flag, computed from columns the ephemeris already
+ * has rather than downloaded as Horizons quantities 10, 23 and 24.
+ *
+ * The directions from the moon to the observer and to the sun are the
+ * sub-observer and sub-solar points (TAR_LON/TAR_LAT and SOL_LON/SOL_LAT),
+ * so S-T-O needs no frame, and with the ranges DELTA and R the triangle
+ * gives S-O-T. Whether the moon leads or trails the sun is decided by
+ * ecliptic longitude, the sun's from a low precision solar theory (good
+ * to 0.01 deg), so the flag can only disagree with Horizons' within a
+ * minute of new or full moon.
+ *
+ * The bulk forms work over primitive arrays in straight loops with no
+ * allocation per row, for whole series at once; the scalar forms serve
+ * single instants, e.g. exposure midpoints between rows.
+ * @author Nick Derr
+ */
+public class Illumination {
+
+	// J2000 obliquity of the ecliptic, degrees
+	static final double OBLIQUITY = 23.4392911;
+
+	/**
+	 * Computes S-T-O, S-O-T and the illuminated fraction of n rows
+	 * @param n number of rows
+	 * @param tarLon sub-observer longitudes, degrees
+	 * @param tarLat sub-observer latitudes, degrees
+	 * @param solLon sub-solar longitudes, degrees
+	 * @param solLat sub-solar latitudes, degrees
+	 * @param delta observer ranges, km
+	 * @param r heliocentric ranges, AU
+	 * @param sto receives the sun-target-observer angles, degrees
+	 * @param sot receives the sun-observer-target angles, degrees
+	 * @param frac receives the illuminated fractions, percent
+	 */
+	public static void angles(int n, double[] tarLon, double[] tarLat,
+			double[] solLon, double[] solLat, double[] delta, double[] r,
+			double[] sto, double[] sot, double[] frac) {
+		double rad = Math.PI / 180;
+		for (int i = 0; i < n; i++) {
+			double cosPhase = Math.sin(tarLat[i] * rad) * Math.sin(solLat[i] * rad)
+					+ Math.cos(tarLat[i] * rad) * Math.cos(solLat[i] * rad)
+					* Math.cos((solLon[i] - tarLon[i]) * rad);
+			cosPhase = Math.max(-1, Math.min(1, cosPhase));
+			double sinPhase = Math.sqrt(1 - cosPhase * cosPhase);
+			double range = r[i] * HorizonsText.AU;
+
+			// observer at delta along x from the moon, the sun at range in
+			// the direction the phase angle makes with it
+			sto[i] = Math.acos(cosPhase) / rad;
+			sot[i] = Math.atan2(range * sinPhase, delta[i] - range * cosPhase) / rad;
+			frac[i] = 50 * (1 + cosPhase);
+		}
+	}
+
+	/**
+	 * Decides whether the moon trails the sun (is east of it in ecliptic
+	 * longitude, Horizons' /T) at each of n instants
+	 * @param n number of rows
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param ra the moon's ICRF right ascensions, degrees
+	 * @param dec the moon's ICRF declinations, degrees
+	 * @param trailing receives true for /T and false for /L
+	 */
+	public static void trailing(int n, long[] ms, double[] ra, double[] dec,
+			boolean[] trailing) {
+		double rad = Math.PI / 180;
+		double sinEps = Math.sin(OBLIQUITY * rad);
+		double cosEps = Math.cos(OBLIQUITY * rad);
+		for (int i = 0; i < n; i++) {
+			double a = ra[i] * rad;
+			double d = dec[i] * rad;
+			double lon = Math.atan2(Math.sin(a) * Math.cos(d) * cosEps
+					+ Math.sin(d) * sinEps, Math.cos(a) * Math.cos(d));
+			trailing[i] = Math.sin(lon - sunLongitude(ms[i]) * rad) > 0;
+		}
+	}
+
+	/**
+	 * Returns S-T-O, S-O-T and the illuminated fraction of one instant
+	 * @param tarLon sub-observer longitude, degrees
+	 * @param tarLat sub-observer latitude, degrees
+	 * @param solLon sub-solar longitude, degrees
+	 * @param solLat sub-solar latitude, degrees
+	 * @param delta observer range, km
+	 * @param r heliocentric range, AU
+	 * @return {sto, sot, frac}: the angles in degrees and the fraction in
+	 * percent
+	 */
+	public static double[] at(double tarLon, double tarLat, double solLon,
+			double solLat, double delta, double r) {
+		double[] sto = new double[1];
+		double[] sot = new double[1];
+		double[] frac = new double[1];
+		angles(1, new double[] {tarLon}, new double[] {tarLat}, new double[] {solLon},
+				new double[] {solLat}, new double[] {delta}, new double[] {r},
+				sto, sot, frac);
+		return new double[] {sto[0], sot[0], frac[0]};
+	}
+
+	/**
+	 * Decides whether the moon trails the sun at one instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param ra the moon's ICRF right ascension, degrees
+	 * @param dec the moon's ICRF declination, degrees
+	 * @return true for /T and false for /L
+	 */
+	public static boolean trailing(long ms, double ra, double dec) {
+		boolean[] t = new boolean[1];
+		trailing(1, new long[] {ms}, new double[] {ra}, new double[] {dec}, t);
+		return t[0];
+	}
+
+	/**
+	 * Returns the geometric longitude of the sun on the J2000 ecliptic,
+	 * from the low precision theory of Meeus' Astronomical Algorithms
+	 * (ch. 25), good to 0.01 deg
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return the longitude in degrees
+	 */
+	public static double sunLongitude(long ms) {
+		double t = (AstroTime.julianDateTT(ms) - AstroTime.J2000) / AstroTime.DAYS_PER_CENTURY;
+		double m = Math.toRadians(357.52911 + (35999.05029 - 0.0001537 * t) * t);
+		double c = (1.914602 - (0.004817 + 0.000014 * t) * t) * Math.sin(m)
+				+ (0.019993 - 0.000101 * t) * Math.sin(2 * m) + 0.000289 * Math.sin(3 * m);
+		double lon = 280.46646 + (36000.76983 + 0.0003032 * t) * t + c;
+
+		// from the equinox of date back to J2000
+		return lon - (1.397 + 0.00031 * t) * t;
+	}
+
+	/**
+	 * Fills the FRAC_ILL, SOT, L_OR_T and STO fields of every row whose
+	 * FRAC_ILL is n.a., i.e. rows fetched without quantities 10, 23 and 24
+	 * @param table the rows, with the full field layout
+	 * @return the number of rows filled
+	 * @throws EphemerisDataParseException if a row's time or the columns
+	 * the angles come from can't be read
+	 */
+	public static int fill(EphemerisTable table) throws EphemerisDataParseException {
+		int size = table.size();
+		int[] index = new int[size];
+		long[] ms = new long[size];
+		double[] ra = new double[size];
+		double[] dec = new double[size];
+		double[] tarLon = new double[size];
+		double[] tarLat = new double[size];
+		double[] solLon = new double[size];
+		double[] solLat = new double[size];
+		double[] delta = new double[size];
+		double[] r = new double[size];
+
+		SimpleDateFormat df = new SimpleDateFormat(Ephemeris.DATE_FORMAT + " "
+				+ Ephemeris.TIME_FORMAT);
+		df.setTimeZone(Ephemeris.UTC);
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			String[] row = table.get(i);
+			if (row.length <= Ephemeris.STO || !row[Ephemeris.FRAC_ILL].equals("n.a."))
+				continue;
+			try {
+				ms[n] = df.parse(row[Ephemeris.DATE] + " " + row[Ephemeris.TIME]).getTime();
+				ra[n] = Double.parseDouble(row[Ephemeris.RA]);
+				dec[n] = Double.parseDouble(row[Ephemeris.DEC]);
+				tarLon[n] = Double.parseDouble(row[Ephemeris.TAR_LON]);
+				tarLat[n] = Double.parseDouble(row[Ephemeris.TAR_LAT]);
+				solLon[n] = Double.parseDouble(row[Ephemeris.SOL_LON]);
+				solLat[n] = Double.parseDouble(row[Ephemeris.SOL_LAT]);
+				delta[n] = Double.parseDouble(row[Ephemeris.DELTA]);
+				r[n] = Double.parseDouble(row[Ephemeris.R]);
+			} catch (ParseException e) {
+				throw new EphemerisDataParseException();
+			} catch (NumberFormatException e) {
+				throw new EphemerisDataParseException();
+			}
+			index[n++] = i;
+		}
+
+		double[] sto = new double[n];
+		double[] sot = new double[n];
+		double[] frac = new double[n];
+		boolean[] trailing = new boolean[n];
+		angles(n, tarLon, tarLat, solLon, solLat, delta, r, sto, sot, frac);
+		trailing(n, ms, ra, dec, trailing);
+
+		for (int k = 0; k < n; k++)
+			format(table.get(index[k]), sto[k], sot[k], frac[k], trailing[k]);
+		return n;
+	}
+
+	/**
+	 * Writes the computed fields into a row as Horizons prints them
+	 */
+	static void format(String[] row, double sto, double sot, double frac,
+			boolean trailing) {
+		row[Ephemeris.FRAC_ILL] = String.format(Locale.ROOT, "%.4f", frac);
+		row[Ephemeris.SOT] = String.format(Locale.ROOT, "%.4f", sot);
+		row[Ephemeris.L_OR_T] = trailing ? "/T" : "/L";
+		row[Ephemeris.STO] = String.format(Locale.ROOT, "%.4f", sto);
+	}
+
+	/**
+	 * Compares the computed FRAC_ILL, SOT, L_OR_T and STO with those of a
+	 * Horizons ephemeris file fetched with quantities 10, 14, 15, 19, 20,
+	 * 23 and 24 among the main series'
+	 * Usage: java Illumination ephemeris.txt
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: java Illumination ephemeris.txt");
+			System.exit(-1);
+		}
+
+		try {
+			EphemerisTable table = EphemerisTable.read(new File(args[0]));
+			Ephemeris.widen(table);
+			int n = table.size();
+			long[] ms = new long[n];
+			double[] ra = new double[n], dec = new double[n];
+			double[] tarLon = new double[n], tarLat = new double[n];
+			double[] solLon = new double[n], solLat = new double[n];
+			double[] delta = new double[n], r = new double[n];
+			SimpleDateFormat df = new SimpleDateFormat(Ephemeris.DATE_FORMAT + " "
+					+ Ephemeris.TIME_FORMAT);
+			df.setTimeZone(Ephemeris.UTC);
+			for (int i = 0; i < n; i++) {
+				String[] row = table.get(i);
+				ms[i] = df.parse(row[Ephemeris.DATE] + " " + row[Ephemeris.TIME]).getTime();
+				ra[i] = Double.parseDouble(row[Ephemeris.RA]);
+				dec[i] = Double.parseDouble(row[Ephemeris.DEC]);
+				tarLon[i] = Double.parseDouble(row[Ephemeris.TAR_LON]);
+				tarLat[i] = Double.parseDouble(row[Ephemeris.TAR_LAT]);
+				solLon[i] = Double.parseDouble(row[Ephemeris.SOL_LON]);
+				solLat[i] = Double.parseDouble(row[Ephemeris.SOL_LAT]);
+				delta[i] = Double.parseDouble(row[Ephemeris.DELTA]);
+				r[i] = Double.parseDouble(row[Ephemeris.R]);
+			}
+
+			double[] sto = new double[n], sot = new double[n], frac = new double[n];
+			boolean[] trailing = new boolean[n];
+			long start = System.nanoTime();
+			angles(n, tarLon, tarLat, solLon, solLat, delta, r, sto, sot, frac);
+			trailing(n, ms, ra, dec, trailing);
+			double work = System.nanoTime() - start;
+
+			double stoErr = 0, sotErr = 0, fracErr = 0;
+			int flags = 0;
+			for (int i = 0; i < n; i++) {
+				String[] row = table.get(i);
+				stoErr = Math.max(stoErr, Math.abs(sto[i]
+						- Double.parseDouble(row[Ephemeris.STO])));
+				sotErr = Math.max(sotErr, Math.abs(sot[i]
+						- Double.parseDouble(row[Ephemeris.SOT])));
+				fracErr = Math.max(fracErr, Math.abs(frac[i]
+						- Double.parseDouble(row[Ephemeris.FRAC_ILL])));
+				if (row[Ephemeris.L_OR_T].equals("/T") != trailing[i])
+					flags++;
+			}
+			System.out.println(n + " rows, " + String.format(Locale.ROOT, "%.3f", work / n / 1000)
+					+ " us per row");
+			System.out.println(String.format(Locale.ROOT, "max |dSTO| %.5f deg, |dSOT| %.5f deg, "
+					+ "|dIllum| %.5f %%, %d L/T mismatches", stoErr, sotErr, fracErr, flags));
+		} catch (IOException e) {
+			System.out.println("Could not read " + args[0] + ": " + e.getMessage());
+		} catch (ParseException e) {
+			System.out.println(args[0] + " has an unreadable time");
+		} catch (NumberFormatException e) {
+			System.out.println(args[0] + " lacks quantities 10, 14, 15, 19, 20, 23 or 24");
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.out.println(args[0] + " lacks quantities 10, 14, 15, 19, 20, 23 or 24");
+		}
+	}
+}
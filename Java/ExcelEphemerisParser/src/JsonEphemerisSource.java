@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The JSON Horizons API (api/horizons.api?format=json), which answers with
+ * a small JSON object whose "result" string holds the ephemeris text, or
+ * whose "error" string says why there is none. Responses are walked with a
+ * streaming reader that unescapes the "result" string straight into the
+ * ChunkParser, so the (often several megabyte) string is never built.
+ * @author Nick Derr
+ */
+public class JsonEphemerisSource implements EphemerisSource {
+
+	public static final String BATCH_PATH = "horizons_batch.cgi?batch=1";
+	public static final String API_PATH = "api/horizons.api?format=json";
+
+	public String request(String batchRequest) {
+		int i = batchRequest.indexOf(BATCH_PATH);
+		if (i < 0)
+			throw new IllegalArgumentException("not a Horizons batch request: "
+					+ batchRequest);
+		return batchRequest.substring(0, i) + API_PATH
+				+ batchRequest.substring(i + BATCH_PATH.length());
+	}
+
+	public InputStream open(String request) throws IOException {
+		return new URL(request).openStream();
+	}
+
+	public boolean isRemote() {
+		return true;
+	}
+
+	public Decoder decoder(ChunkParser parser) {
+		return new Reader(parser);
+	}
+
+	/**
+	 * Streaming JSON reader. It only keeps the container nesting, the name
+	 * of the current top level member and the escape state; the contents of
+	 * strings other than "result" and "error" are skipped as they pass
+	 */
+	static class Reader implements Decoder {
+
+		// what the characters of the current string are for
+		private static final int SKIP = 0;
+		private static final int KEY = 1;
+		private static final int RESULT = 2;
+		private static final int ERROR = 3;
+
+		private final ChunkParser parser;
+		private boolean[] object = new boolean[16]; // per level: object or array
+		private int depth; // number of open containers
+		private boolean expectKey; // whether the next string is a member name
+		private boolean inString;
+		private int target; // SKIP, KEY, RESULT or ERROR
+		private boolean escape; // whether the last character was a backslash
+		private int hexLeft; // digits still to come of a \\uXXXX escape
+		private int hex; // value of the \\uXXXX escape so far
+		private StringBuilder key = new StringBuilder(); // top level member name
+		private String member; // name of the top level member being read
+		private StringBuilder error;
+
+		Reader(ChunkParser parser) {
+			this.parser = parser;
+		}
+
+		public void feed(char[] buf, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				if (inString) {
+					string(buf[i]);
+				} else {
+					structure(buf[i]);
+				}
+			}
+		}
+
+		public void finish() {
+			parser.finish();
+		}
+
+		public String error() {
+			if (error != null)
+				return error.toString();
+			if (inString || depth > 0)
+				return "JSON response truncated";
+			return null;
+		}
+
+		/**
+		 * Handles a character outside of any string
+		 */
+		private void structure(char c) {
+			switch (c) {
+			case '{':
+			case '[':
+				if (depth == object.length) {
+					boolean[] grown = new boolean[depth * 2];
+					System.arraycopy(object, 0, grown, 0, depth);
+					object = grown;
+				}
+				object[depth++] = c == '{';
+				expectKey = c == '{';
+				break;
+			case '}':
+			case ']':
+				if (depth > 0)
+					depth--;
+				expectKey = false;
+				break;
+			case ',':
+				expectKey = depth > 0 && object[depth - 1];
+				break;
+			case ':':
+				expectKey = false;
+				break;
+			case '"':
+				inString = true;
+				if (depth == 1 && expectKey) {
+					target = KEY;
+					key.setLength(0);
+				} else if (depth == 1 && "result".equals(member)) {
+					target = RESULT;
+				} else if (depth == 1 && "error".equals(member)) {
+					target = ERROR;
+					error = new StringBuilder();
+				} else {
+					target = SKIP;
+				}
+				break;
+			default:
+				// numbers, literals and whitespace carry nothing we need
+			}
+		}
+
+		/**
+		 * Handles a character inside a string
+		 */
+		private void string(char c) {
+			if (hexLeft > 0) {
+				hex = hex * 16 + Character.digit(c, 16);
+				if (--hexLeft == 0)
+					emit((char) hex);
+			} else if (escape) {
+				escape = false;
+				switch (c) {
+				case 'n': emit('\n'); break;
+				case 'r': emit('\r'); break;
+				case 't': emit('\t'); break;
+				case 'b': emit('\b'); break;
+				case 'f': emit('\f'); break;
+				case 'u': hexLeft = 4; hex = 0; break;
+				default: emit(c); // \" \\ \/
+				}
+			} else if (c == '\\') {
+				escape = true;
+			} else if (c == '"') {
+				inString = false;
+				if (target == KEY)
+					member = key.toString();
+			} else {
+				emit(c);
+			}
+		}
+
+		/**
+		 * Passes on one unescaped character of a string
+		 */
+		private void emit(char c) {
+			switch (target) {
+			case RESULT:
+				parser.feed(c);
+				break;
+			case KEY:
+				key.append(c);
+				break;
+			case ERROR:
+				error.append(c);
+				break;
+			default:
+			}
+		}
+	}
+}
@@ -1,6 +1,6 @@
-import java.io.IOException;
-import java.util.Date;
-import java.util.HashMap;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
 
 
 public class LibrationEphemeris {
@@ -8,87 +8,207 @@ public class LibrationEphemeris {
 	public static final double LUNAR_RADIUS = 1737.53; // in kilometers
 	public static final double LENS_ANG_DIAM = 412.5; // in arcsec
 	public static final double APER_DIAM = 180; // arcsec
-	private AxisEphemeris x;
-	private AxisEphemeris z;
-	private HashMap<String,Double[]> craterCoords;
+
+	// the frame of each main series row as found from the X/Z axis series,
+	// as a unit quaternion (w, x, y, z; NaN where the axis rows are
+	// missing), and the rows' times; null when the frame comes from the
+	// main series
+	private double[] orientations;
+	private long[] times;
 	
-	public LibrationEphemeris(Date[] dates) throws IOException {
-		z = new AxisEphemeris(dates,AxisEphemeris.Z);
-		x = new AxisEphemeris(dates,AxisEphemeris.X);
-		
-		craterCoords = getCraterMap();
+	/**
+	 * Instantiates libration data without axis series; the frame is then
+	 * built by SelenographicFrame from the main ephemeris' columns
+	 */
+	public LibrationEphemeris() {
 	}
-	
-	public Matrix coordTrans(double ra, double dec, double delta) 
-			throws EphemerisDataParseException, 
-		EphemerisDataMissingException {
-		Vector center = new Vector(dec*Math.PI/180,ra*Math.PI/180).scale(delta);
-		Vector zFromEarth = new Vector(z.getDeclination()*Math.PI/180,
-				z.getRightAcension()*Math.PI/180).scale(z.getTargetRange());
-		Vector xFromEarth = new Vector(x.getDeclination()*Math.PI/180,
-				x.getRightAcension()*Math.PI/180).scale(x.getTargetRange());
-		
-		Vector zHat = zFromEarth.plus(center.negative());
-		zHat = zHat.scale(1 / zHat.norm());
-		
-		Vector xHat = xFromEarth.plus(center.negative());
-		xHat = xHat.scale(1 / xHat.norm());
-		
-		Vector yHat = zHat.cross(xHat);
-		
-		Vector[] cols = new Vector[3];
-		cols[0] = xHat;
-		cols[1] = yHat;
-		cols[2] = zHat;
-		boolean isRows = false;
-		
-		return new Matrix(cols,isRows);
+
+	/**
+	 * Instantiates libration data from the X/Z axis series, finding each
+	 * main series row's frame once and keeping it as a quaternion
+	 * @param main the main series
+	 * @param x the series of the surface point on the prime meridian
+	 * @param z the series of the north pole's surface point
+	 * @throws EphemerisDataParseException if a row can't be read
+	 */
+	public LibrationEphemeris(EphemerisTable main, EphemerisTable x, EphemerisTable z)
+			throws EphemerisDataParseException {
+		SimpleDateFormat df = new SimpleDateFormat(Ephemeris.DATE_FORMAT + " "
+				+ Ephemeris.TIME_FORMAT);
+		df.setTimeZone(Ephemeris.UTC);
+		times = times(main, df);
+		long[] xTimes = times(x, df);
+		long[] zTimes = times(z, df);
+
+		int n = main.size();
+		orientations = new double[4 * n];
+		Arrays.fill(orientations, Double.NaN);
+		double[] m = new double[9];
+		int xi = 0;
+		int zi = 0;
+		for (int i = 0; i < n; i++) {
+			// the axis rows of the same minute; all three are in time order
+			while (xi < xTimes.length && xTimes[xi] < times[i])
+				xi++;
+			while (zi < zTimes.length && zTimes[zi] < times[i])
+				zi++;
+			if (xi == xTimes.length || zi == zTimes.length
+					|| xTimes[xi] != times[i] || zTimes[zi] != times[i])
+				continue;
+
+			try {
+				double[] c = position(main.get(i), Ephemeris.RA, Ephemeris.DEC,
+						Ephemeris.DELTA);
+				double[] xHat = position(x.get(xi), AxisEphemeris.RA, AxisEphemeris.DEC,
+						AxisEphemeris.DELTA);
+				double[] zHat = position(z.get(zi), AxisEphemeris.RA, AxisEphemeris.DEC,
+						AxisEphemeris.DELTA);
+				for (int k = 0; k < 3; k++) {
+					xHat[k] -= c[k];
+					zHat[k] -= c[k];
+				}
+
+				// the surface points' ranges are rounded, so square the
+				// axes up: z as given, y normal to it and x, x completing
+				normalize(zHat);
+				double[] yHat = cross(zHat, xHat);
+				normalize(yHat);
+				xHat = cross(yHat, zHat);
+				for (int k = 0; k < 3; k++) {
+					m[3 * k] = xHat[k];
+					m[3 * k + 1] = yHat[k];
+					m[3 * k + 2] = zHat[k];
+				}
+				Quaternion.fromMatrix(m, orientations, 4 * i);
+			} catch (NumberFormatException e) {
+				throw new EphemerisDataParseException();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new EphemerisDataParseException();
+			}
+		}
 	}
-	
-	public boolean advance() {
-		boolean zVar = z.advance();
-		boolean xVar = x.advance();
-		return xVar && zVar;
+
+	private static long[] times(EphemerisTable t, SimpleDateFormat df)
+			throws EphemerisDataParseException {
+		long[] times = new long[t.size()];
+		for (int i = 0; i < times.length; i++) {
+			String[] row = t.get(i);
+			try {
+				times[i] = df.parse(row[Ephemeris.DATE] + " " + row[Ephemeris.TIME]).getTime();
+			} catch (ParseException e) {
+				throw new EphemerisDataParseException();
+			}
+		}
+		return times;
 	}
-	
-	public HashMap<String,Double[]> getCraterCoords() {
-		return craterCoords;
+
+	private static double[] position(String[] row, int ra, int dec, int delta) {
+		double a = Math.toRadians(Double.parseDouble(row[ra]));
+		double d = Math.toRadians(Double.parseDouble(row[dec]));
+		double r = Double.parseDouble(row[delta]);
+		return new double[] {r * Math.cos(d) * Math.cos(a), r * Math.cos(d) * Math.sin(a),
+				r * Math.sin(d)};
+	}
+
+	private static double[] cross(double[] a, double[] b) {
+		return new double[] {a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2],
+				a[0] * b[1] - a[1] * b[0]};
+	}
+
+	private static void normalize(double[] v) {
+		double n = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+		for (int k = 0; k < 3; k++)
+			v[k] /= n;
+	}
+
+	/**
+	 * Returns the matrix taking selenographic coordinates to equatorial
+	 * ones for a row of the main series
+	 * @param row index of the row
+	 * @return the transformation matrix
+	 * @throws EphemerisDataMissingException if the axis series lack the row
+	 */
+	public Mat3 coordTrans(int row) throws EphemerisDataMissingException {
+		if (!hasAxes() || row < 0 || row >= times.length
+				|| Double.isNaN(orientations[4 * row]))
+			throw new EphemerisDataMissingException();
+		Mat3 m = new Mat3();
+		Quaternion.toMatrix(orientations, 4 * row, m.elem);
+		return m;
+	}
+
+	/**
+	 * Takes a selenographic vector to the equatorial frame at any instant
+	 * the main series spans, interpolating (slerp) between the rows either
+	 * side of it
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param vec the selenographic vector
+	 * @param out receives the equatorial vector; may be vec
+	 * @param q receives the frame's quaternion at the instant; four doubles
+	 * the caller keeps, as this may be shared by several threads
+	 * @throws EphemerisDataMissingException if the instant is outside the
+	 * series or a row either side lacks its axes
+	 */
+	public void rotate(long ms, double[] vec, double[] out, double[] q)
+			throws EphemerisDataMissingException {
+		orientation(ms, q);
+		Quaternion.rotate(q, 0, false, vec, out);
+	}
+
+	/**
+	 * Takes a selenographic vector to the equatorial frame at any instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param vec the selenographic vector
+	 * @return the equatorial vector
+	 * @throws EphemerisDataMissingException as rotate(long, double[], double[],
+	 * double[])
+	 */
+	public double[] rotate(long ms, double[] vec) throws EphemerisDataMissingException {
+		double[] out = new double[3];
+		rotate(ms, vec, out, new double[4]);
+		return out;
+	}
+
+	/**
+	 * Takes an equatorial vector to the selenographic frame at any instant,
+	 * the inverse of rotate
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @param vec the equatorial vector
+	 * @param out receives the selenographic vector; may be vec
+	 * @param q receives the frame's quaternion at the instant, as for rotate
+	 * @throws EphemerisDataMissingException as rotate
+	 */
+	public void unrotate(long ms, double[] vec, double[] out, double[] q)
+			throws EphemerisDataMissingException {
+		orientation(ms, q);
+		Quaternion.rotate(q, 0, true, vec, out);
+	}
+
+	/**
+	 * Finds the frame's quaternion at an instant
+	 */
+	private void orientation(long ms, double[] q) throws EphemerisDataMissingException {
+		if (!hasAxes() || times.length == 0)
+			throw new EphemerisDataMissingException();
+		int i = Arrays.binarySearch(times, ms);
+		if (i >= 0) {
+			System.arraycopy(orientations, 4 * i, q, 0, 4);
+		} else {
+			int after = -i - 1;
+			if (after == 0 || after == times.length)
+				throw new EphemerisDataMissingException();
+			int before = after - 1;
+			double t = (ms - times[before]) / (double) (times[after] - times[before]);
+			Quaternion.slerp(orientations, 4 * before, 4 * after, t, q, 0);
+		}
+		if (Double.isNaN(q[0]))
+			throw new EphemerisDataMissingException();
 	}
 	
-	private static HashMap<String,Double[]> getCraterMap() {
-		HashMap<String,Double[]> craters = new HashMap<String,Double[]>();
-		//          crater name                 long (e+), lat (n+) 
-		craters.put("langrenus", new Double[]   	{ 60.9, -8.9});
-		craters.put("cleomedes", new Double[]   	{ 55.5, 27.7});
-		craters.put("petavius", new Double[]    	{ 60.4,-25.3});
-		craters.put("grimaldi", new Double[]    	{-68.8, -5.2}); // 291.2
-		craters.put("aristarchus", new Double[] 	{-47.4, 23.7}); // 312.6
-		craters.put("tycho", new Double[]       	{-11.4,-43.3}); // 348.6
-		craters.put("plato", new Double[]       	{ -9.3, 51.6}); // 350.7
-		craters.put("apollonius", new Double[]  	{ 61.1,  4.5});
-		craters.put("endymion", new Double[]    	{ 56.5, 53.6});
-		craters.put("messala", new Double[]     	{ 59.9, 39.2});
-		craters.put("atlas", new Double[]       	{ 44.4, 46.7});
-		craters.put("janssen", new Double[]     	{ 40.8,-45.0});
-		craters.put("ptolemaeus", new Double[]  	{ -1.8, -9.2}); // 358.2
-		craters.put("kepler", new Double[]      	{-38.0,  8.1}); // 322.0
-		craters.put("copernicus", new Double[]  	{-20.1,  9.6}); // 339.9
-		craters.put("gassendi", new Double[]    	{-40.0,-17.6}); // 320.0
-		craters.put("mare iridum", new Double[] 	{-31.5, 44.1}); // 328.5
-		craters.put("theophilus", new Double[]  	{ 26.4,-11.4});
-		craters.put("godin", new Double[]       	{ 10.2,  1.8});
-		craters.put("vieta", new Double[]       	{-56.3,-29.2}); // 303.7
-		craters.put("furnerius", new Double[]   	{ 60.4,-36.3});
-		craters.put("schickard", new Double[]   	{-54.6,-44.4});
-		craters.put("proclus", new Double[]     	{ 46.8, 16.1});
-		craters.put("stevinus", new Double[]		{ 54.2,-32.5});
-		craters.put("aristoteles", new Double[] 	{ 17.4, 50.2});
-		craters.put("mons gruithuisen", new Double[]{-40.5, 36.6}); 
-		craters.put("scheiner", new Double[]		{-27.8,-60.5});
-		craters.put("moon center", new Double[] 	{  0.0,  0.0});
-		craters.put("mons rumker", new Double[]     {-58.1, 40.8});
-		craters.put("w equator", new Double[]       { 55.2,  4.6});
-		
-		return craters;
+	/**
+	 * Returns whether the frame comes from the X/Z axis series
+	 */
+	public boolean hasAxes() {
+		return orientations != null;
 	}
 }
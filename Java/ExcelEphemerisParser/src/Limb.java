@@ -0,0 +1,85 @@
+/**
+ * Finds where the meridian or parallel through a point leaves a circle
+ * about the moon's center, for the limb, xlimb, aper and edge origins.
+ * Along a meridian the cosine of the angle from the center is
+ * A cos(dec) + B sin(dec), and along a parallel it is
+ * A cos(ra - ra0) + B, so each crossing is an atan2 and an acos rather
+ * than a march and a bisection.
+ * @author Nick Derr
+ */
+public class Limb {
+
+	// directions from the point
+	public static final int NORTH = 0;
+	public static final int SOUTH = 1;
+	public static final int EAST = 2;
+	public static final int WEST = 3;
+
+	/**
+	 * Returns the direction for a name
+	 * @param name "n", "s", "e" or "w"
+	 * @return the direction, or -1 if the name is unknown
+	 */
+	public static int directionFor(String name) {
+		switch (name) {
+		case "n": return NORTH;
+		case "s": return SOUTH;
+		case "e": return EAST;
+		case "w": return WEST;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * Finds the first point, going from a point inside the circle in the
+	 * given direction, that lies on it
+	 * @param c array holding the unit vector toward the moon's center
+	 * @param ci its offset
+	 * @param ra RA of the starting point, degrees
+	 * @param dec declination of the starting point, degrees
+	 * @param radius angular radius of the circle, degrees
+	 * @param direction NORTH, SOUTH, EAST or WEST
+	 * @param out receives the RA and Dec of the crossing, degrees
+	 * @return whether the meridian or parallel meets the circle at all
+	 */
+	public static boolean solve(double[] c, int ci, double ra, double dec,
+			double radius, int direction, double[] out) {
+		double a = ra * Math.PI / 180;
+		double d = dec * Math.PI / 180;
+		double rim = Math.cos(radius * Math.PI / 180);
+		out[0] = ra;
+		out[1] = dec;
+
+		if (direction == NORTH || direction == SOUTH) {
+			double along = c[ci] * Math.cos(a) + c[ci + 1] * Math.sin(a);
+			double amp = Math.sqrt(along * along + c[ci + 2] * c[ci + 2]);
+			double cos = rim / amp;
+			if (!(cos >= -1 && cos <= 1))
+				return false;
+			double mid = Math.atan2(c[ci + 2], along);
+			double half = Math.acos(cos);
+			out[1] = ahead(dec, (mid + (direction == NORTH ? half : -half))
+					* 180 / Math.PI, direction == NORTH);
+		} else {
+			double eq = Math.sqrt(c[ci] * c[ci] + c[ci + 1] * c[ci + 1]);
+			double cos = (rim - c[ci + 2] * Math.sin(d)) / (eq * Math.cos(d));
+			if (!(cos >= -1 && cos <= 1))
+				return false;
+			double mid = Math.atan2(c[ci + 1], c[ci]);
+			double half = Math.acos(cos);
+			out[0] = ahead(ra, (mid + (direction == EAST ? half : -half))
+					* 180 / Math.PI, direction == EAST);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves an angle by whole turns to the first place it's reached from
+	 * another going up (or down)
+	 */
+	private static double ahead(double from, double to, boolean up) {
+		if (up)
+			return to - 360 * Math.floor((to - from) / 360);
+		return to + 360 * Math.floor((from - to) / 360);
+	}
+}
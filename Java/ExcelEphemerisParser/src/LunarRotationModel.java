@@ -0,0 +1,208 @@
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The IAU/WGCCRE model of the moon's orientation (Archinal et al. 2011):
+ * the RA and Dec of the north pole and the angle W of the prime meridian,
+ * as series in the TDB date. This gives the body-fixed frame for any
+ * instant without any Horizons data.
+ *
+ * In BASIC mode only the two largest periodic terms are summed and UTC is
+ * used as TDB, which is good to ~0.05 deg. PRECISE mode sums all thirteen
+ * terms (the whole series), converts UTC to TT and evaluates the
+ * orientation at the time the light left the moon. Its librations and
+ * axis angle are checked against Meeus' published ones by ReferenceCheck
+ * reference/libration.csv, and are 0.027 deg off them; most of that is the
+ * ~0.022 deg turn between Meeus' principal axis frame and the mean earth
+ * frame of the model and Horizons, the rest his 0.01 deg rounding. main
+ * compares both modes with the Horizons axis frame against TOLERANCE.
+ * @author Nick Derr
+ */
+public class LunarRotationModel {
+
+	// modes
+	public static final int BASIC = 0;
+	public static final int PRECISE = 1;
+
+	public static final double LIGHT_SPEED = 299792.458; // km/s
+
+	// largest expected angle between the PRECISE frame's axes and the
+	// mean earth frame (degrees), above the 0.027 deg measured against
+	// Meeus' principal axis librations
+	public static final double TOLERANCE = 0.03;
+
+	// periodic terms: E_i = base + rate * d (degrees, d in days from J2000 TDB)
+	private static final double[] E_BASE = {125.045, 250.089, 260.008, 176.625,
+			357.529, 311.589, 134.963, 276.617, 34.226, 15.134, 119.743, 239.961,
+			25.053};
+	private static final double[] E_RATE = {-0.0529921, -0.1059842, 13.0120009,
+			13.3407154, 0.9856003, 26.4057084, 13.0649930, 0.3287146, 1.7484877,
+			-0.1589763, 0.0036096, 0.1643573, 12.9590088};
+
+	// amplitudes of sin E_i in the pole RA, cos E_i in the pole Dec and
+	// sin E_i in W, degrees
+	private static final double[] RA_TERMS = {-3.8787, -0.1204, 0.0700, -0.0172,
+			0, 0.0072, 0, 0, 0, -0.0052, 0, 0, 0.0043};
+	private static final double[] DEC_TERMS = {1.5419, 0.0239, -0.0278, 0.0068,
+			0, -0.0029, 0.0009, 0, 0, 0.0008, 0, 0, -0.0009};
+	private static final double[] W_TERMS = {3.5610, 0.1208, -0.0642, 0.0158,
+			0.0252, -0.0066, -0.0047, -0.0046, 0.0028, 0.0052, 0.0040, 0.0019,
+			-0.0044};
+
+	// number of terms summed in BASIC mode
+	private static final int BASIC_TERMS = 2;
+
+	private final int mode;
+
+	/**
+	 * Instantiates the model in the given mode
+	 * @param mode BASIC or PRECISE
+	 */
+	public LunarRotationModel(int mode) {
+		if (mode != BASIC && mode != PRECISE)
+			throw new IllegalArgumentException("unknown LunarRotationModel mode");
+		this.mode = mode;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns the pole RA, pole Dec and prime meridian angle W at the given
+	 * instant
+	 * @param micros microseconds since 1970-01-01 UTC
+	 * @return {RA, Dec, W} in degrees
+	 */
+	public double[] orientation(long micros) {
+		long ms = micros / 1000;
+		double jd = AstroTime.UNIX_EPOCH + micros / (AstroTime.MS_PER_DAY * 1000);
+		if (mode == PRECISE)
+			jd += AstroTime.ttMinusUtc(ms) / 86400.0;
+		double d = jd - AstroTime.J2000;
+		double t = d / AstroTime.DAYS_PER_CENTURY;
+
+		double ra = 269.9949 + 0.0031 * t;
+		double dec = 66.5392 + 0.0130 * t;
+		double w = 38.3213 + 13.17635815 * d - 1.4e-12 * d * d;
+
+		int terms = mode == PRECISE ? E_BASE.length : BASIC_TERMS;
+		for (int i = 0; i < terms; i++) {
+			double e = Math.toRadians(E_BASE[i] + E_RATE[i] * d);
+			double sin = Math.sin(e);
+			ra += RA_TERMS[i] * sin;
+			dec += DEC_TERMS[i] * Math.cos(e);
+			w += W_TERMS[i] * sin;
+		}
+		return new double[] {ra, dec, w % 360};
+	}
+
+	/**
+	 * Returns the matrix taking selenographic coordinates to ICRF ones at
+	 * the given instant, as LibrationEphemeris.coordTrans
+	 * @param micros microseconds since 1970-01-01 UTC
+	 * @return the transformation matrix
+	 */
+	public Mat3 coordTrans(long micros) {
+		double[] o = orientation(micros);
+		double ra = Math.toRadians(o[0]);
+		double dec = Math.toRadians(o[1]);
+		double w = Math.toRadians(o[2]);
+
+		// pole, and the ascending node of the lunar equator on the ICRF
+		// equator, from which W is measured
+		Vec3 zHat = Vec3.fromAngles(dec, ra);
+		Vec3 node = new Vec3(-Math.sin(ra), Math.cos(ra), 0);
+		Vec3 nodeQuad = Vec3.cross(zHat, node, new Vec3());
+
+		Vec3 xHat = node.scale(Math.cos(w)).addScaled(nodeQuad, Math.sin(w));
+		Vec3 yHat = Vec3.cross(zHat, xHat, new Vec3());
+
+		return Mat3.ofColumns(xHat, yHat, zHat);
+	}
+
+	/**
+	 * Returns the frame as seen from a distance: in PRECISE mode the
+	 * orientation is taken at the time the light left the moon
+	 * @param micros microseconds since 1970-01-01 UTC of the observation
+	 * @param range distance to the moon in km
+	 * @return the transformation matrix
+	 */
+	public Mat3 coordTrans(long micros, double range) {
+		if (mode == PRECISE)
+			micros -= (long) (range / LIGHT_SPEED * 1e6);
+		return coordTrans(micros);
+	}
+
+	/**
+	 * Validates both modes against the axis frame of recorded (or freshly
+	 * downloaded) Horizons data for the given nights
+	 * Usage: java LunarRotationModel [-checkpoints dir] yyyy-MM-dd ...
+	 */
+	public static void main(String[] args) {
+		int first = 0;
+		if (args.length > 1 && args[0].equals("-checkpoints")) {
+			Ephemeris.setDownloader(new HorizonsDownloader(new File(args[1])));
+			first = 2;
+		}
+		if (args.length <= first) {
+			System.out.println("Usage: java LunarRotationModel [-checkpoints dir]"
+					+ " yyyy-MM-dd ...");
+			System.exit(-1);
+		}
+
+		Ephemeris eph = null;
+		try {
+			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+			df.setTimeZone(Ephemeris.UTC);
+			Date[] dates = new Date[args.length - first];
+			for (int i = first; i < args.length; i++)
+				dates[i - first] = df.parse(args[i]);
+
+			Ephemeris.setFrame(Ephemeris.FRAME_AXES);
+			eph = new Ephemeris(dates);
+		} catch (ParseException e) {
+			System.out.println("ERROR: dates must be yyyy-MM-dd");
+			System.exit(-1);
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		}
+
+		LunarRotationModel[] models = {new LunarRotationModel(BASIC),
+				new LunarRotationModel(PRECISE)};
+		String[] names = {"basic", "precise"};
+		double[] worst = new double[models.length];
+		double[] sum = new double[models.length];
+		int[] over = new int[models.length];
+		int rows = 0;
+		try {
+			do {
+				Mat3 axes = eph.axisTrans();
+				long micros = eph.getInstant().getTime() * 1000;
+				for (int m = 0; m < models.length; m++) {
+					double d = SelenographicFrame.discrepancy(axes,
+							models[m].coordTrans(micros, eph.getTargetRange()));
+					worst[m] = Math.max(worst[m], d);
+					sum[m] += d;
+					if (d > TOLERANCE)
+						over[m]++;
+				}
+				rows++;
+			} while (eph.advance());
+		} catch (EphemerisDataException e) {
+			System.out.println("ERROR: bad ephemeris row " + rows);
+			System.exit(-1);
+		}
+
+		for (int m = 0; m < models.length; m++)
+			System.out.println(names[m] + ": " + rows + " rows, mean "
+					+ String.format(Locale.ROOT, "%.5f", sum[m] / rows) + " deg, max "
+					+ String.format(Locale.ROOT, "%.5f", worst[m]) + " deg, " + over[m]
+					+ " over the " + TOLERANCE + " deg tolerance");
+	}
+}
@@ -0,0 +1,549 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A lunar elevation model: a grid of surface radii in simple cylindrical
+ * projection, as in the LOLA gridded data records (LDEM_4.IMG, LDEM_16.IMG,
+ * ...) and described by their PDS3 labels. The image is memory mapped and
+ * read in square tiles, which are turned into heights on first use and
+ * kept in a least recently used cache; a night's sight lines stay near one
+ * limb, so they touch few tiles.
+ *
+ * A sight line is met with the surface by stepping along it, about a grid
+ * cell at a time, through the shell between the lowest and highest radii,
+ * and a crossing is refined by bisection. A line that misses has its
+ * tangent point, where it passes lowest above the surface under it,
+ * refined by golden section search. Heights are interpolated bilinearly
+ * between the samples; outside a regional grid the surface is the
+ * grid's reference sphere.
+ *
+ * Any number of threads may use one instance: only the tile cache is
+ * locked, and each call keeps the tile it used last to itself.
+ * @author Nick Derr
+ */
+public class LunarTerrain {
+
+	// samples along a tile's side
+	public static final int TILE = 256;
+
+	// tiles kept in memory, 256 kB each
+	public static final int CACHE_TILES = 64;
+
+	// relief assumed either side of the reference radius when the label
+	// gives no extremes, km
+	public static final double DEFAULT_RELIEF = 20;
+
+	// refinement steps of a crossing or a tangent point
+	private static final int REFINE = 40;
+
+	private static final double GOLDEN = (Math.sqrt(5) - 1) / 2;
+
+	// sample types
+	private static final int SIGNED = 0;
+	private static final int UNSIGNED = 1;
+	private static final int REAL = 2;
+
+	private final File image;
+	private final int lines;
+	private final int samples;
+	private final int type;
+	private final int bytes; // per sample
+	private final double ppd; // samples per degree
+	private final double north; // latitude of the grid's top edge
+	private final double west; // east longitude of its left edge, 0 to 360
+	private final boolean global; // whether the samples go right round
+	private final double reference; // radius of a zero height, km
+	private final double scale; // km per unit of a sample
+	private final double lowest; // radii, km
+	private final double highest;
+	private final double cell; // km along the equator per sample
+
+	// whole lines per mapped segment, and the segments
+	private final int perSegment;
+	private final MappedByteBuffer[] segments;
+
+	// decoded tiles by number, eldest first, shared by all threads
+	private final int across; // tiles per row of tiles
+	private final LinkedHashMap<Integer,float[]> tiles;
+
+	/**
+	 * Opens an elevation model
+	 * @param file its PDS3 label, or an image with a label of the same
+	 * name (.LBL) beside it
+	 * @throws IOException if the files can't be read or the grid isn't
+	 * one this class reads
+	 */
+	public LunarTerrain(File file) throws IOException {
+		File label = labelFor(file);
+		Map<String,String> keys = readLabel(label);
+
+		lines = integer(keys, "LINES");
+		samples = integer(keys, "LINE_SAMPLES");
+		int bits = integer(keys, "SAMPLE_BITS");
+		bytes = bits / 8;
+		String sampleType = text(keys, "SAMPLE_TYPE", "");
+		if (sampleType.endsWith("UNSIGNED_INTEGER"))
+			type = UNSIGNED;
+		else if (sampleType.endsWith("INTEGER"))
+			type = SIGNED;
+		else if (sampleType.endsWith("REAL"))
+			type = REAL;
+		else
+			throw new IOException("unsupported SAMPLE_TYPE " + sampleType);
+		if (type == REAL ? bits != 32 && bits != 64 : bits != 8 && bits != 16 && bits != 32)
+			throw new IOException("unsupported SAMPLE_BITS " + bits);
+		ByteOrder order = sampleType.startsWith("LSB") || sampleType.startsWith("PC")
+				|| sampleType.startsWith("VAX") ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+		if (!text(keys, "MAP_PROJECTION_TYPE", "").contains("CYLINDRICAL"))
+			throw new IOException("only simple cylindrical grids are read");
+		if (text(keys, "POSITIVE_LONGITUDE_DIRECTION", "EAST").startsWith("WEST"))
+			throw new IOException("only east longitudes are read");
+		ppd = number(keys, "MAP_RESOLUTION", Double.NaN);
+		north = number(keys, "MAXIMUM_LATITUDE", 90);
+		double w = number(keys, "WESTERNMOST_LONGITUDE", 0) % 360;
+		west = w < 0 ? w + 360 : w;
+		if (!(ppd > 0) || lines <= 1 || samples <= 1)
+			throw new IOException("label gives no grid size");
+		global = Math.abs(samples / ppd - 360) < 0.5 / ppd;
+
+		// sample values are heights over the reference radius (OFFSET)
+		double km = text(keys, "UNIT", "KILOMETER").startsWith("METER") ? 0.001 : 1;
+		scale = number(keys, "SCALING_FACTOR", 1) * km;
+		reference = number(keys, "OFFSET", LibrationEphemeris.LUNAR_RADIUS / km) * km;
+		double min = number(keys, "MINIMUM", Double.NaN);
+		double max = number(keys, "MAXIMUM", Double.NaN);
+		lowest = reference + (Double.isNaN(min) ? -DEFAULT_RELIEF : scale * min);
+		highest = reference + (Double.isNaN(max) ? DEFAULT_RELIEF : scale * max);
+		cell = Math.toRadians(1 / ppd) * reference;
+
+		// the image, after the label if the label is attached
+		// ("FILE.IMG"), ("FILE.IMG", record), (record) or (byte <BYTES>)
+		String pointer = keys.get("^IMAGE");
+		if (pointer == null)
+			throw new IOException("label points to no image");
+		boolean inBytes = pointer.contains("<BYTES>");
+		long offset = 0;
+		String name = null;
+		for (String part : pointer.replaceAll("<BYTES>|[()\"]", " ").split("[ ,]+")) {
+			if (part.isEmpty())
+				continue;
+			if (Character.isDigit(part.charAt(0))) {
+				long n = Long.parseLong(part) - 1;
+				offset = inBytes ? n : n * (long) number(keys, "RECORD_BYTES", 1);
+			} else {
+				name = part;
+			}
+		}
+		image = name == null ? label : sibling(label, name);
+
+		long lineBytes = (long) samples * bytes;
+		RandomAccessFile raf = new RandomAccessFile(image, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < offset + lines * lineBytes)
+				throw new IOException(image + " is shorter than its label says");
+			perSegment = (int) (Integer.MAX_VALUE / lineBytes);
+			segments = new MappedByteBuffer[(lines + perSegment - 1) / perSegment];
+			for (int s = 0; s < segments.length; s++) {
+				long first = (long) s * perSegment;
+				long count = Math.min(perSegment, lines - first);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+						offset + first * lineBytes, count * lineBytes);
+				segments[s].order(order);
+			}
+		} finally {
+			raf.close();
+		}
+
+		across = (samples + TILE - 1) / TILE;
+		tiles = new LinkedHashMap<Integer,float[]>(2 * CACHE_TILES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer,float[]> eldest) {
+				return size() > CACHE_TILES;
+			}
+		};
+	}
+
+	/**
+	 * Returns the label of an image or label file
+	 */
+	private static File labelFor(File file) throws IOException {
+		if (startsWithLabel(file))
+			return file;
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot < 0 ? name : name.substring(0, dot);
+		for (String ext : new String[] {".LBL", ".lbl"}) {
+			File label = sibling(file, base + ext);
+			if (label.exists())
+				return label;
+		}
+		throw new IOException("no PDS label for " + file);
+	}
+
+	private static boolean startsWithLabel(File file) throws IOException {
+		byte[] head = new byte[14];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = in.read(head);
+			return n == head.length && new String(head, StandardCharsets.US_ASCII)
+					.equals("PDS_VERSION_ID");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File sibling(File file, String name) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File same = new File(dir, name);
+		if (!same.exists()) {
+			// labels are often upper case and files not, or the reverse
+			String[] names = dir.list();
+			if (names != null)
+				for (String n : names)
+					if (n.equalsIgnoreCase(name))
+						return new File(dir, n);
+		}
+		return same;
+	}
+
+	/**
+	 * Reads the keywords of a PDS3 label, the first value of each, up to
+	 * its END line. Quoted values may run over several lines
+	 */
+	private static Map<String,String> readLabel(File label) throws IOException {
+		Map<String,String> keys = new HashMap<String,String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(label), StandardCharsets.US_ASCII));
+		try {
+			String line;
+			String key = null;
+			StringBuilder value = null;
+			while ((line = in.readLine()) != null) {
+				if (value != null) {
+					value.append(' ').append(line.trim());
+					if (line.indexOf('"') >= 0) {
+						if (!keys.containsKey(key))
+							keys.put(key, value.toString());
+						value = null;
+					}
+					continue;
+				}
+				String trimmed = line.trim();
+				if (trimmed.equals("END"))
+					break;
+				int eq = trimmed.indexOf('=');
+				if (eq < 0)
+					continue;
+				key = trimmed.substring(0, eq).trim();
+				String v = trimmed.substring(eq + 1).trim();
+				int quotes = v.length() - v.replace("\"", "").length();
+				if (quotes == 1) {
+					value = new StringBuilder(v);
+					continue;
+				}
+				if (!keys.containsKey(key))
+					keys.put(key, v);
+			}
+		} finally {
+			in.close();
+		}
+		return keys;
+	}
+
+	private static String text(Map<String,String> keys, String key, String missing) {
+		String v = keys.get(key);
+		return v == null ? missing : v.replace("\"", "").trim().toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * Returns a numeric keyword, without its unit, or missing if absent
+	 */
+	private static double number(Map<String,String> keys, String key, double missing)
+			throws IOException {
+		String v = keys.get(key);
+		if (v == null)
+			return missing;
+		int unit = v.indexOf('<');
+		try {
+			return Double.parseDouble((unit < 0 ? v : v.substring(0, unit)).trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("unreadable " + key + " in label: " + v);
+		}
+	}
+
+	private static int integer(Map<String,String> keys, String key) throws IOException {
+		double v = number(keys, key, Double.NaN);
+		if (Double.isNaN(v))
+			throw new IOException("label has no " + key);
+		return (int) v;
+	}
+
+	/**
+	 * Returns the radius of the surface, km
+	 * @param lat selenographic latitude, degrees
+	 * @param lon selenographic east longitude, degrees
+	 */
+	public double getRadius(double lat, double lon) {
+		return reference + height(lat, lon, new Last());
+	}
+
+	/**
+	 * Returns the lowest and highest radii of the surface, km
+	 */
+	public double[] getRange() {
+		return new double[] {lowest, highest};
+	}
+
+	/**
+	 * The tile a call read heights from last, so that a run of heights
+	 * from one tile doesn't go through the shared cache
+	 */
+	private static class Last {
+		int key = -1;
+		float[] tile;
+	}
+
+	/**
+	 * Returns the height over the reference radius, km
+	 * @param last the tile the caller used last, updated
+	 */
+	private double height(double lat, double lon, Last last) {
+		// east of the west edge, 0 to 360 (but within half a sample west
+		// of it, still on the grid's first column)
+		double east = (lon - west) % 360;
+		if (east < 0)
+			east += 360;
+		if (east >= 360 - 0.5 / ppd)
+			east -= 360;
+		double x = east * ppd - 0.5;
+		double y = (north - lat) * ppd - 0.5;
+		if (global) {
+			x %= samples;
+			if (x < 0)
+				x += samples;
+		} else if (x < -0.5 || x > samples - 0.5) {
+			return 0;
+		} else {
+			x = Math.max(0, Math.min(x, samples - 1));
+		}
+		if (y < -0.5 || y > lines - 0.5)
+			return 0;
+		y = Math.max(0, Math.min(y, lines - 1));
+
+		int x0 = (int) x;
+		int y0 = Math.min((int) y, lines - 2);
+		if (!global)
+			x0 = Math.min(x0, samples - 2);
+		double fx = x - x0;
+		double fy = y - y0;
+
+		int ty = y0 / TILE;
+		int tx = x0 / TILE;
+		int key = ty * across + tx;
+		float[] t = key == last.key ? last.tile : tile(key, ty, tx, last);
+		int w = TILE + 1;
+		int at = (y0 - ty * TILE) * w + x0 - tx * TILE;
+		return (t[at] * (1 - fx) + t[at + 1] * fx) * (1 - fy)
+				+ (t[at + w] * (1 - fx) + t[at + w + 1] * fx) * fy;
+	}
+
+	/**
+	 * Returns a tile's heights, km, decoding it if it isn't cached. A tile
+	 * holds one more line and sample than it covers, shared with its
+	 * neighbors, so that a point's four samples are always in one tile.
+	 * It is decoded outside the lock; two threads may both decode a tile,
+	 * and the cache keeps the second
+	 */
+	private float[] tile(int key, int ty, int tx, Last last) {
+		float[] t;
+		synchronized (tiles) {
+			t = tiles.get(key);
+		}
+		if (t == null) {
+			int w = TILE + 1;
+			t = new float[w * w];
+			for (int j = 0; j < w; j++) {
+				int line = Math.min(ty * TILE + j, lines - 1);
+				ByteBuffer segment = segments[line / perSegment];
+				int base = (line % perSegment) * samples;
+				for (int i = 0; i < w; i++) {
+					int s = tx * TILE + i;
+					s = global ? s % samples : Math.min(s, samples - 1);
+					t[j * w + i] = (float) (scale * sample(segment, (base + s) * bytes));
+				}
+			}
+			synchronized (tiles) {
+				tiles.put(key, t);
+			}
+		}
+		last.key = key;
+		last.tile = t;
+		return t;
+	}
+
+	private double sample(ByteBuffer b, int at) {
+		switch (bytes) {
+		case 1:
+			return type == UNSIGNED ? b.get(at) & 0xFF : b.get(at);
+		case 2:
+			return type == UNSIGNED ? b.getShort(at) & 0xFFFF : b.getShort(at);
+		case 4:
+			if (type == REAL)
+				return b.getFloat(at);
+			return type == UNSIGNED ? b.getInt(at) & 0xFFFFFFFFL : b.getInt(at);
+		default:
+			return b.getDouble(at);
+		}
+	}
+
+	/**
+	 * Returns how far a point is above the surface under it, km
+	 * @param x selenographic position, km
+	 * @param last the tile the caller used last
+	 */
+	private double above(double x, double y, double z, Last last) {
+		double r = Math.sqrt(x * x + y * y + z * z);
+		return r - reference - height(Math.toDegrees(Math.asin(z / r)),
+				Math.toDegrees(Math.atan2(y, x)), last);
+	}
+
+	/**
+	 * Meets a sight line with the surface
+	 * @param obs the observer, selenographic km
+	 * @param line the sight line's direction, a unit vector
+	 * @param out receives the selenographic longitude and latitude, degrees,
+	 * of the point where the line meets the surface, or if it misses, of
+	 * its tangent point; and the tangent point's height above the surface
+	 * under it, km (0 where the line meets the surface)
+	 * @return whether the line meets the surface
+	 */
+	public boolean intersect(double[] obs, double[] line, double[] out) {
+		Last last = new Last();
+		double ox = obs[0], oy = obs[1], oz = obs[2];
+		double dx = line[0], dy = line[1], dz = line[2];
+
+		// the point nearest the center; nothing further out than the
+		// highest radius plus its height is lower, or meets the surface
+		double tc = -(ox * dx + oy * dy + oz * dz);
+		double px = ox + tc * dx, py = oy + tc * dy, pz = oz + tc * dz;
+		double pn2 = px * px + py * py + pz * pz;
+		double hc = above(px, py, pz, last);
+		double bound = highest + Math.max(0, hc);
+		double half = Math.sqrt(Math.max(0, bound * bound - pn2));
+
+		// step in from the bound, about a cell at a time (further, in km,
+		// well above the surface, where a km turns through less of it)
+		double best = hc;
+		double tBest = tc;
+		double prev = Math.max(0, tc - half);
+		double hPrev = above(ox + prev * dx, oy + prev * dy, oz + prev * dz, last);
+		double step = 0;
+		boolean hit = hPrev <= 0;
+		double t = prev;
+		while (!hit) {
+			double dt = t - tc;
+			double r = Math.sqrt(pn2 + dt * dt);
+			step = cell * Math.max(1, r / reference);
+			t = prev < tc && prev + step > tc ? tc : prev + step;
+			dt = t - tc;
+			if (t > tc && (Math.sqrt(pn2 + dt * dt) - highest > best || dt > half))
+				break;
+			double h = t == tc ? hc : above(ox + t * dx, oy + t * dy, oz + t * dz, last);
+			if (h <= 0) {
+				hit = true;
+				break;
+			}
+			if (h < best) {
+				best = h;
+				tBest = t;
+			}
+			prev = t;
+			hPrev = h;
+		}
+
+		if (!hit) {
+			// the lowest step is within a step of the tangent point
+			double a = tBest - step;
+			double b = tBest + step;
+			double c = b - GOLDEN * (b - a);
+			double d = a + GOLDEN * (b - a);
+			double hcg = above(ox + c * dx, oy + c * dy, oz + c * dz, last);
+			double hd = above(ox + d * dx, oy + d * dy, oz + d * dz, last);
+			for (int i = 0; i < REFINE && hcg > 0 && hd > 0; i++) {
+				if (hcg < hd) {
+					b = d;
+					d = c;
+					hd = hcg;
+					c = b - GOLDEN * (b - a);
+					hcg = above(ox + c * dx, oy + c * dy, oz + c * dz, last);
+				} else {
+					a = c;
+					c = d;
+					hcg = hd;
+					d = a + GOLDEN * (b - a);
+					hd = above(ox + d * dx, oy + d * dy, oz + d * dz, last);
+				}
+			}
+			if (hcg <= 0 || hd <= 0) {
+				// it dips below the surface between steps after all
+				prev = tBest - step;
+				t = hcg <= 0 ? c : d;
+				hit = true;
+			} else {
+				double tMin = hcg < hd ? c : d;
+				double hMin = Math.min(hcg, hd);
+				if (hMin < best) {
+					best = hMin;
+					tBest = tMin;
+				}
+				point(ox + tBest * dx, oy + tBest * dy, oz + tBest * dz, out);
+				out[2] = best;
+				return false;
+			}
+		}
+
+		// the crossing lies between the last step above and the first below
+		double lo = prev;
+		double hi = t;
+		for (int i = 0; i < REFINE && hi - lo > 1e-9; i++) {
+			double mid = (lo + hi) / 2;
+			if (above(ox + mid * dx, oy + mid * dy, oz + mid * dz, last) <= 0)
+				hi = mid;
+			else
+				lo = mid;
+		}
+		point(ox + hi * dx, oy + hi * dy, oz + hi * dz, out);
+		out[2] = 0;
+		return true;
+	}
+
+	private static void point(double x, double y, double z, double[] out) {
+		double r = Math.sqrt(x * x + y * y + z * z);
+		out[0] = Math.toDegrees(Math.atan2(y, x));
+		out[1] = Math.toDegrees(Math.asin(z / r));
+	}
+
+	/**
+	 * Returns the image the heights are read from
+	 */
+	public File getImage() {
+		return image;
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * A 3x3 matrix held as nine doubles by rows, the layout FrameCache and
+ * Quaternion use. Products write into an out parameter, and the transpose
+ * is taken in place or folded into transposeTimes, so nothing is
+ * allocated per step. The static methods apply a matrix held at some
+ * offset of an array.
+ * @author Nick Derr
+ */
+public final class Mat3 {
+
+	public static final int DIM = 3;
+
+	final double[] elem = new double[DIM * DIM]; // by rows
+
+	/**
+	 * Instantiates the zero matrix
+	 */
+	public Mat3() {
+	}
+
+	/**
+	 * Instantiates a matrix from nine elements, by rows
+	 * @param src array holding the elements
+	 * @param off offset in src
+	 */
+	public Mat3(double[] src, int off) {
+		System.arraycopy(src, off, elem, 0, elem.length);
+	}
+
+	/**
+	 * Returns the matrix with the given rows
+	 */
+	public static Mat3 ofRows(Vec3 r0, Vec3 r1, Vec3 r2) {
+		Mat3 m = new Mat3();
+		r0.get(m.elem, 0);
+		r1.get(m.elem, 3);
+		r2.get(m.elem, 6);
+		return m;
+	}
+
+	/**
+	 * Returns the matrix with the given columns
+	 */
+	public static Mat3 ofColumns(Vec3 c0, Vec3 c1, Vec3 c2) {
+		return ofRows(c0, c1, c2).transpose();
+	}
+
+	public double get(int i, int j) {
+		return elem[DIM * i + j];
+	}
+
+	public Mat3 set(int i, int j, double val) {
+		elem[DIM * i + j] = val;
+		return this;
+	}
+
+	/**
+	 * Copies a row into a vector
+	 * @param i index of the row
+	 * @param out receives the row
+	 * @return out
+	 */
+	public Vec3 row(int i, Vec3 out) {
+		return out.set(elem[DIM * i], elem[DIM * i + 1], elem[DIM * i + 2]);
+	}
+
+	/**
+	 * Copies a column into a vector
+	 * @param j index of the column
+	 * @param out receives the column
+	 * @return out
+	 */
+	public Vec3 column(int j, Vec3 out) {
+		return out.set(elem[j], elem[DIM + j], elem[2 * DIM + j]);
+	}
+
+	/**
+	 * Copies the nine elements, by rows, into an array
+	 * @param out the array
+	 * @param off offset in out
+	 */
+	public void get(double[] out, int off) {
+		System.arraycopy(elem, 0, out, off, elem.length);
+	}
+
+	/**
+	 * Multiplies a vector by this matrix
+	 * @param v the vector
+	 * @param out receives the product; may be v
+	 * @return out
+	 */
+	public Vec3 times(Vec3 v, Vec3 out) {
+		return out.set(elem[0] * v.x + elem[1] * v.y + elem[2] * v.z,
+				elem[3] * v.x + elem[4] * v.y + elem[5] * v.z,
+				elem[6] * v.x + elem[7] * v.y + elem[8] * v.z);
+	}
+
+	/**
+	 * Multiplies a vector by the transpose of this matrix (its inverse, for
+	 * a rotation) without forming the transpose
+	 * @param v the vector
+	 * @param out receives the product; may be v
+	 * @return out
+	 */
+	public Vec3 transposeTimes(Vec3 v, Vec3 out) {
+		return out.set(elem[0] * v.x + elem[3] * v.y + elem[6] * v.z,
+				elem[1] * v.x + elem[4] * v.y + elem[7] * v.z,
+				elem[2] * v.x + elem[5] * v.y + elem[8] * v.z);
+	}
+
+	/**
+	 * Multiplies another matrix by this one, on the right
+	 * @param that the other matrix
+	 * @param out receives this x that; may be this or that
+	 * @return out
+	 */
+	public Mat3 times(Mat3 that, Mat3 out) {
+		double[] a = elem;
+		double[] b = that.elem;
+		double a0 = a[0], a1 = a[1], a2 = a[2];
+		double a3 = a[3], a4 = a[4], a5 = a[5];
+		double a6 = a[6], a7 = a[7], a8 = a[8];
+		double b0 = b[0], b1 = b[1], b2 = b[2];
+		double b3 = b[3], b4 = b[4], b5 = b[5];
+		double b6 = b[6], b7 = b[7], b8 = b[8];
+		double[] c = out.elem;
+		c[0] = a0 * b0 + a1 * b3 + a2 * b6;
+		c[1] = a0 * b1 + a1 * b4 + a2 * b7;
+		c[2] = a0 * b2 + a1 * b5 + a2 * b8;
+		c[3] = a3 * b0 + a4 * b3 + a5 * b6;
+		c[4] = a3 * b1 + a4 * b4 + a5 * b7;
+		c[5] = a3 * b2 + a4 * b5 + a5 * b8;
+		c[6] = a6 * b0 + a7 * b3 + a8 * b6;
+		c[7] = a6 * b1 + a7 * b4 + a8 * b7;
+		c[8] = a6 * b2 + a7 * b5 + a8 * b8;
+		return out;
+	}
+
+	/**
+	 * Transposes this matrix in place
+	 * @return this matrix
+	 */
+	public Mat3 transpose() {
+		swap(1, 3);
+		swap(2, 6);
+		swap(5, 7);
+		return this;
+	}
+
+	private void swap(int i, int j) {
+		double t = elem[i];
+		elem[i] = elem[j];
+		elem[j] = t;
+	}
+
+	/**
+	 * Multiplies a vector by a matrix held in an array
+	 * @param m array holding the matrix, by rows
+	 * @param mi its offset
+	 * @param x the vector's x
+	 * @param y the vector's y
+	 * @param z the vector's z
+	 * @param out receives the product
+	 * @param oi offset in out
+	 */
+	public static void times(double[] m, int mi, double x, double y, double z,
+			double[] out, int oi) {
+		out[oi] = m[mi] * x + m[mi + 1] * y + m[mi + 2] * z;
+		out[oi + 1] = m[mi + 3] * x + m[mi + 4] * y + m[mi + 5] * z;
+		out[oi + 2] = m[mi + 6] * x + m[mi + 7] * y + m[mi + 8] * z;
+	}
+
+	/**
+	 * Multiplies a vector by the transpose of a matrix held in an array
+	 * @param m array holding the matrix, by rows
+	 * @param mi its offset
+	 * @param x the vector's x
+	 * @param y the vector's y
+	 * @param z the vector's z
+	 * @param out receives the product
+	 * @param oi offset in out
+	 */
+	public static void transposeTimes(double[] m, int mi, double x, double y,
+			double z, double[] out, int oi) {
+		out[oi] = m[mi] * x + m[mi + 3] * y + m[mi + 6] * z;
+		out[oi + 1] = m[mi + 1] * x + m[mi + 4] * y + m[mi + 7] * z;
+		out[oi + 2] = m[mi + 2] * x + m[mi + 5] * y + m[mi + 8] * z;
+	}
+
+	@Override
+	public String toString() {
+		Vec3 r = new Vec3();
+		return row(0, r).toString() + "\n" + row(1, r).toString() + "\n"
+				+ row(2, r).toString();
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * Positions of the moon and sun as seen by an observer, from which
+ * HorizonsText computes the Horizons quantities. All vectors are in ICRF
+ * coordinates, in km, from the observer and corrected for light time
+ * @author Nick Derr
+ */
+public interface ObservingGeometry {
+
+	/**
+	 * Returns the moon's center as seen at the given instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 */
+	double[] moon(long ms);
+
+	/**
+	 * Returns the sun's center as seen at the given instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 */
+	double[] sun(long ms);
+
+	/**
+	 * Returns the moon's body axes x, y, z (rows) as seen at the given instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 */
+	double[][] frame(long ms);
+
+	/**
+	 * Returns the observer, for the horizontal quantities
+	 */
+	Site site();
+}
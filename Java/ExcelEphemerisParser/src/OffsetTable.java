@@ -0,0 +1,306 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Works a list of targets back into telescope offsets: for each, the E/W
+ * and N/S offsets from a crater or limb origin that put the field center
+ * on a surface point, or nearest a point above the limb, at a given time.
+ * The targets are read from a comma separated file with a header naming
+ * UTC (yyyy-MM-dd HH:mm), Crater, Origin, FOV, Lon and Lat columns, and
+ * optionally Alt; a target with an Alt is a tangent point at that height,
+ * one without is a surface point. Each is solved at the ephemeris row of
+ * its minute, by Ephemeris.getSurfaceOffsets or
+ * getTangentOffsets. The targets are sorted by time and split into runs,
+ * one per thread, each thread moving its own cursor over the shared
+ * frames.
+ * @author Nick Derr
+ */
+public class OffsetTable {
+
+	public static final String USAGE = "Usage: java -cp ephparse.jar OffsetTable"
+			+ " [-catalog features.csv] [-terrain ldem.lbl] [-threads n]"
+			+ " ephemeris.txt targets.csv offsets.csv";
+
+	// values per target: ew, ns, ra, dec, miss
+	private static final int VALUES = 5;
+
+	private final List<String[]> targets = new ArrayList<String[]>(); // as read
+	private long[] times; // ms
+	private int[] features; // catalog ids, -1 if not found
+	private double[] fovs, lons, lats, alts; // alt NaN for a surface point
+	private double[] values; // VALUES per target
+	private String[] notes; // why a target has no values, or null
+
+	/**
+	 * Reads a list of targets
+	 * @param file the list
+	 * @param catalog the catalog the craters are named from
+	 * @throws IOException if it can't be read, lacks a column or has an
+	 * unreadable row
+	 */
+	public OffsetTable(File file, FeatureCatalog catalog) throws IOException {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		df.setTimeZone(Ephemeris.UTC);
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8));
+		List<double[]> numbers = new ArrayList<double[]>();
+		List<Integer> ids = new ArrayList<Integer>();
+		try {
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("empty target list");
+			String[] header = line.split(",", -1);
+			int utc = column(header, "utc", "time");
+			int crater = column(header, "crater", "off_crat");
+			int origin = column(header, "origin", "off_orig");
+			int fov = column(header, "fov");
+			int lon = column(header, "lon", "moon_long");
+			int lat = column(header, "lat", "moon_lat");
+			int alt = column(header, "alt");
+			if (utc < 0 || crater < 0 || origin < 0 || fov < 0 || lon < 0 || lat < 0)
+				throw new IOException("target list needs UTC, Crater, Origin,"
+						+ " FOV, Lon and Lat columns");
+
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				String[] f = line.split(",", -1);
+				try {
+					String a = alt >= 0 && alt < f.length ? f[alt].trim() : "";
+					numbers.add(new double[] {
+							df.parse(f[utc].trim()).getTime(),
+							Double.parseDouble(f[fov].trim()),
+							Double.parseDouble(f[lon].trim()),
+							Double.parseDouble(f[lat].trim()),
+							a.isEmpty() ? Double.NaN : Double.parseDouble(a)});
+					ids.add(catalog.find(f[crater].trim()));
+					targets.add(new String[] {f[utc].trim(), f[crater].trim(),
+							f[origin].trim(), f[fov].trim(), f[lon].trim(),
+							f[lat].trim(), a});
+				} catch (NumberFormatException | ParseException e) {
+					throw new IOException("unreadable target row: " + line);
+				} catch (ArrayIndexOutOfBoundsException e) {
+					throw new IOException("short target row: " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		int n = targets.size();
+		times = new long[n];
+		features = new int[n];
+		fovs = new double[n];
+		lons = new double[n];
+		lats = new double[n];
+		alts = new double[n];
+		for (int i = 0; i < n; i++) {
+			double[] v = numbers.get(i);
+			times[i] = (long) v[0];
+			fovs[i] = v[1];
+			lons[i] = v[2];
+			lats[i] = v[3];
+			alts[i] = v[4];
+			features[i] = ids.get(i);
+		}
+	}
+
+	/**
+	 * Returns the index of the first header naming one of the names, or -1
+	 */
+	private static int column(String[] header, String... names) {
+		for (int i = 0; i < header.length; i++)
+			for (String name : names)
+				if (header[i].trim().equalsIgnoreCase(name))
+					return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the number of targets
+	 */
+	public int size() {
+		return targets.size();
+	}
+
+	/**
+	 * Solves every target
+	 * @param eph the ephemeris covering their times
+	 * @param threads number of threads to work on
+	 * @throws EphemerisDataParseException if a row's time can't be read
+	 */
+	public void solve(Ephemeris eph, int threads) throws EphemerisDataParseException {
+		final int n = targets.size();
+		values = new double[VALUES * n];
+		notes = new String[n];
+
+		// in time order, so each run seeks forward through its rows
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(times[a], times[b]);
+			}
+		});
+		final int[] sorted = new int[n];
+		for (int i = 0; i < n; i++)
+			sorted[i] = order[i];
+
+		eph.getTimes();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> runs = new ArrayList<Future<?>>();
+			int per = Math.max(1, (n + threads - 1) / threads);
+			for (int lo = 0; lo < n; lo += per) {
+				final Ephemeris cursor = eph.cursor();
+				final int from = lo;
+				final int to = Math.min(lo + per, n);
+				runs.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						double[] out = new double[VALUES];
+						for (int k = from; k < to; k++)
+							solve(cursor, sorted[k], out);
+					}
+				}));
+			}
+			for (Future<?> run : runs)
+				run.get();
+		} catch (Exception e) {
+			throw new IllegalStateException("could not solve targets", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Solves one target, keeping its values or why it has none
+	 */
+	private void solve(Ephemeris eph, int i, double[] out) {
+		try {
+			if (features[i] < 0)
+				throw new BadTransferException("bad crater name");
+			if (!eph.seek(times[i]))
+				throw new EphemerisDataMissingException();
+			String origin = targets.get(i)[2].toLowerCase();
+			if (Double.isNaN(alts[i]))
+				eph.getSurfaceOffsets(features[i], origin, fovs[i], lons[i], lats[i], out);
+			else
+				eph.getTangentOffsets(features[i], origin, fovs[i], lons[i], lats[i],
+						alts[i], out);
+			System.arraycopy(out, 0, values, VALUES * i, VALUES);
+		} catch (BadTransferException e) {
+			notes[i] = e.getMessage();
+		} catch (EphemerisDataMissingException e) {
+			notes[i] = "time not in ephemeris";
+		} catch (EphemerisDataException e) {
+			notes[i] = "unreadable ephemeris row";
+		}
+	}
+
+	/**
+	 * Writes the targets with their offsets, in the order read: the
+	 * target's columns, then Offset_EW (seconds of time), Offset_NS
+	 * (arcmin), the field center's RA (0 to 360) and Dec in degrees, the
+	 * miss in km and a note, blank where a target was solved
+	 * @param file the file to write
+	 * @throws IOException if it can't be written
+	 */
+	public void write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(file), StandardCharsets.UTF_8));
+		try {
+			out.println("UTC,Crater,Origin,FOV,Lon,Lat,Alt,Offset_EW,Offset_NS,RA,Dec,Miss,Note");
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < targets.size(); i++) {
+				sb.setLength(0);
+				for (String f : targets.get(i))
+					sb.append(f).append(',');
+				if (notes[i] != null) {
+					sb.append(",,,,,").append(notes[i]);
+				} else {
+					int v = VALUES * i;
+					double ra = values[v + 2];
+					sb.append(String.format(Locale.ROOT, "%.3f,%.4f,%.6f,%.6f,%.4f,",
+							values[v], values[v + 1], ra < 0 ? ra + 360 : ra,
+							values[v + 3], values[v + 4]));
+				}
+				out.println(sb);
+			}
+			if (out.checkError())
+				throw new IOException("could not write " + file);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the offset table of a target list for a Horizons ephemeris
+	 */
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String catalogFile = System.getProperty("ephparse.catalog");
+		String terrainFile = System.getProperty("ephparse.terrain");
+		int arg = 0;
+		try {
+			while (arg < args.length && args[arg].startsWith("-")) {
+				if (args[arg].equals("-catalog"))
+					catalogFile = args[arg + 1];
+				else if (args[arg].equals("-terrain"))
+					terrainFile = args[arg + 1];
+				else if (args[arg].equals("-threads"))
+					threads = Integer.parseInt(args[arg + 1]);
+				else
+					arg = args.length;
+				arg += 2;
+			}
+		} catch (RuntimeException e) {
+			arg = args.length;
+		}
+		if (args.length - arg != 3 || threads < 1) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+
+		try {
+			if (catalogFile != null)
+				Ephemeris.setCatalog(FeatureCatalog.read(new File(catalogFile)));
+			if (terrainFile != null)
+				Ephemeris.setTerrain(new LunarTerrain(new File(terrainFile)));
+			Ephemeris eph = new Ephemeris(new File(args[arg]));
+			OffsetTable t = new OffsetTable(new File(args[arg + 1]), Ephemeris.getCatalog());
+			long start = System.nanoTime();
+			t.solve(eph, threads);
+			long took = System.nanoTime() - start;
+			t.write(new File(args[arg + 2]));
+			System.out.println(t.size() + " targets solved in "
+					+ String.format(Locale.ROOT, "%.2f", took / 1e9) + " s, written to "
+					+ args[arg + 2]);
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		} catch (EphemerisDataException e) {
+			System.out.println("ERROR: unreadable ephemeris row");
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Remembers where recent pointings landed, so that repeated exposures at
+ * one pointing (same ephemeris row, feature, offsets, origin and FOV) are
+ * looked up rather than worked out again. The memo is a fixed number of
+ * slots in flat arrays, each holding its key and the field center's RA,
+ * Dec and selenographic longitude, latitude and altitude; a key maps to
+ * one slot, and a new pointing replaces whatever was there.
+ * @author Nick Derr
+ */
+public class PointingMemo {
+
+	// values per slot: ra, dec, lon, lat, alt
+	public static final int VALUES = 5;
+
+	private final int mask;
+	private final int[] rows; // -1 for an empty slot
+	private final int[] features;
+	private final int[] origins;
+	private final long[] offsets; // 3 per slot: bits of ew, ns and fov
+	private final double[] values;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Instantiates an empty memo
+	 * @param slots number of pointings kept; rounded up to a power of two
+	 */
+	public PointingMemo(int slots) {
+		int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		mask = n - 1;
+		rows = new int[n];
+		features = new int[n];
+		origins = new int[n];
+		offsets = new long[3 * n];
+		values = new double[VALUES * n];
+		Arrays.fill(rows, -1);
+	}
+
+	/**
+	 * Looks a pointing up
+	 * @param row the ephemeris row
+	 * @param feature the feature's catalog id
+	 * @param origin the origin, from Ephemeris.originFor
+	 * @param ew E/W offset
+	 * @param ns N/S offset
+	 * @param fov the field's diameter
+	 * @param out receives the values if found
+	 * @return whether it was found
+	 */
+	public boolean get(int row, int feature, int origin, double ew, double ns,
+			double fov, double[] out) {
+		long e = bits(ew);
+		long n = bits(ns);
+		long f = bits(fov);
+		int s = slot(row, feature, origin, e, n, f);
+		if (rows[s] == row && features[s] == feature && origins[s] == origin
+				&& offsets[3 * s] == e && offsets[3 * s + 1] == n
+				&& offsets[3 * s + 2] == f) {
+			System.arraycopy(values, VALUES * s, out, 0, VALUES);
+			hits++;
+			return true;
+		}
+		misses++;
+		return false;
+	}
+
+	/**
+	 * Keeps a pointing
+	 * @param row the ephemeris row
+	 * @param feature the feature's catalog id
+	 * @param origin the origin, from Ephemeris.originFor
+	 * @param ew E/W offset
+	 * @param ns N/S offset
+	 * @param fov the field's diameter
+	 * @param v the values
+	 */
+	public void put(int row, int feature, int origin, double ew, double ns,
+			double fov, double[] v) {
+		long e = bits(ew);
+		long n = bits(ns);
+		long f = bits(fov);
+		int s = slot(row, feature, origin, e, n, f);
+		rows[s] = row;
+		features[s] = feature;
+		origins[s] = origin;
+		offsets[3 * s] = e;
+		offsets[3 * s + 1] = n;
+		offsets[3 * s + 2] = f;
+		System.arraycopy(v, 0, values, VALUES * s, VALUES);
+	}
+
+	/**
+	 * Forgets every pointing, keeping the counts
+	 */
+	public void clear() {
+		Arrays.fill(rows, -1);
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the fraction of lookups that were found, or NaN if none
+	 * were made
+	 */
+	public double getHitRate() {
+		return hits / (double) (hits + misses);
+	}
+
+	/**
+	 * Returns the bits of an offset, with -0 as 0
+	 */
+	private static long bits(double x) {
+		return Double.doubleToLongBits(x + 0.0);
+	}
+
+	private int slot(int row, int feature, int origin, long e, long n, long f) {
+		long h = row * 0x9E3779B97F4A7C15L;
+		h = (h ^ feature) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ origin) * 0x9E3779B97F4A7C15L;
+		h = (h ^ e) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ n) * 0x9E3779B97F4A7C15L;
+		h = (h ^ f) * 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,249 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The geocentric RA and Dec of a set of catalog features at every row of
+ * an ephemeris, found once for the night so that pointing at a crater is
+ * a table read. The columns are worked out in parallel, in blocks of rows,
+ * from the frames of Ephemeris.getFrames with the arithmetic of
+ * getGeocentricCrater, and give the same values. Each feature's RAs (and
+ * Decs) are stored contiguously, one after another, with NaN for rows
+ * without a frame. The table can be written out as a pointing list for
+ * the telescope operators.
+ * @author Nick Derr
+ */
+public class PointingTable {
+
+	// rows worked out per task
+	private static final int BLOCK = 256;
+
+	public static final String USAGE = "Usage: java -cp ephparse.jar"
+			+ " PointingTable ephemeris.txt pointing.csv";
+
+	private final FeatureCatalog catalog; // the catalog of the ids
+	private final long[] times; // each row's instant, ms
+	private final int[] features; // the catalog id of each column
+	private final int[] columns; // the column of each catalog id, or -1
+	private final String[] names; // the name of each column
+	final double[] ra; // by column, then row; degrees (-180 to 180)
+	final double[] dec; // by column, then row; degrees
+
+	private PointingTable(long[] times, FeatureCatalog catalog, int[] features) {
+		this.catalog = catalog;
+		this.times = times;
+		this.features = features;
+		columns = new int[catalog.size()];
+		Arrays.fill(columns, -1);
+		names = new String[features.length];
+		for (int i = 0; i < features.length; i++) {
+			columns[features[i]] = i;
+			names[i] = catalog.getName(features[i]);
+		}
+		ra = new double[features.length * times.length];
+		dec = new double[features.length * times.length];
+	}
+
+	/**
+	 * Tabulates features over the rows of an ephemeris
+	 * @param frames the rows' frames, from Ephemeris.getFrames
+	 * @param times the rows' instants, ms
+	 * @param catalog the catalog the features are from
+	 * @param features their ids
+	 * @param threads number of threads to work on
+	 * @return the table
+	 */
+	public static PointingTable build(FrameCache frames, long[] times,
+			FeatureCatalog catalog, int[] features, int threads) {
+		final PointingTable t = new PointingTable(times, catalog, features);
+		final FrameCache f = frames;
+		final double[] positions = catalog.positions;
+		final int rows = times.length;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int c = 0; c < features.length; c++) {
+				for (int lo = 0; lo < rows; lo += BLOCK) {
+					final int col = c;
+					final int from = lo;
+					final int to = Math.min(lo + BLOCK, rows);
+					tasks.add(pool.submit(new Runnable() {
+						@Override
+						public void run() {
+							t.fill(f, positions, col, from, to);
+						}
+					}));
+				}
+			}
+			for (Future<?> task : tasks)
+				task.get();
+		} catch (Exception e) {
+			throw new IllegalStateException("could not tabulate pointing", e);
+		} finally {
+			pool.shutdownNow();
+		}
+		return t;
+	}
+
+	/**
+	 * Works out one column over rows [from, to)
+	 */
+	private void fill(FrameCache frames, double[] positions, int col, int from, int to) {
+		double[] m = frames.frames;
+		double[] c = frames.centers;
+		int p = 3 * features[col];
+		double px = positions[p];
+		double py = positions[p + 1];
+		double pz = positions[p + 2];
+		int at = col * times.length;
+		for (int r = from; r < to; r++) {
+			int i = 9 * r;
+			int k = 4 * r;
+			double x = m[i] * px + m[i + 1] * py + m[i + 2] * pz;
+			double y = m[i + 3] * px + m[i + 4] * py + m[i + 5] * pz;
+			double z = m[i + 6] * px + m[i + 7] * py + m[i + 8] * pz;
+			x += c[k] * c[k + 3];
+			y += c[k + 1] * c[k + 3];
+			z += c[k + 2] * c[k + 3];
+			double norm = Math.sqrt(x * x + y * y + z * z);
+			ra[at + r] = Math.atan2(y, x)*180/Math.PI;
+			dec[at + r] = Math.asin(z / norm)*180/Math.PI;
+		}
+	}
+
+	/**
+	 * Returns the number of rows
+	 */
+	public int rows() {
+		return times.length;
+	}
+
+	/**
+	 * Returns whether a feature is tabulated
+	 * @param catalog the catalog of the id
+	 * @param feature its catalog id
+	 */
+	public boolean has(FeatureCatalog catalog, int feature) {
+		return catalog == this.catalog && feature >= 0
+				&& feature < columns.length && columns[feature] >= 0;
+	}
+
+	/**
+	 * Reads a feature's RA and Dec at a row
+	 * @param feature its catalog id; must be tabulated
+	 * @param row the row
+	 * @param out receives the RA (-180 to 180) and Dec, degrees, or NaN if
+	 * the row has no frame
+	 */
+	public void get(int feature, int row, double[] out) {
+		int at = columns[feature] * times.length + row;
+		out[0] = ra[at];
+		out[1] = dec[at];
+	}
+
+	/**
+	 * Finds a feature's RA and Dec at an instant, interpolated between the
+	 * rows on either side
+	 * @param feature its catalog id; must be tabulated
+	 * @param ms the instant
+	 * @param out receives the RA (-180 to 180) and Dec, degrees, or NaN if
+	 * the instant is outside the table
+	 */
+	public void get(int feature, long ms, double[] out) {
+		int i = Arrays.binarySearch(times, ms);
+		if (i >= 0) {
+			get(feature, i, out);
+			return;
+		}
+		int after = -i - 1;
+		if (after == 0 || after == times.length) {
+			out[0] = Double.NaN;
+			out[1] = Double.NaN;
+			return;
+		}
+		int before = after - 1;
+		double t = (ms - times[before]) / (double) (times[after] - times[before]);
+		int at = columns[feature] * times.length;
+		double a = ra[at + before];
+		double da = ra[at + after] - a;
+		da -= 360 * Math.rint(da / 360); // the short way across +-180
+		a += da * t;
+		out[0] = a - 360 * Math.rint(a / 360);
+		out[1] = dec[at + before] + (dec[at + after] - dec[at + before]) * t;
+	}
+
+	/**
+	 * Writes the table as a pointing list: a comma separated row per
+	 * ephemeris row, the UTC time and each feature's RA and Dec in degrees
+	 * (RA 0 to 360), blank where the row has no frame
+	 * @param file the file to write
+	 * @throws IOException if it can't be written
+	 */
+	public void write(File file) throws IOException {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		df.setTimeZone(Ephemeris.UTC);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(file), StandardCharsets.UTF_8));
+		try {
+			StringBuilder sb = new StringBuilder("UTC");
+			for (String name : names)
+				sb.append(',').append(name).append(" RA,").append(name).append(" Dec");
+			out.println(sb);
+			for (int r = 0; r < times.length; r++) {
+				sb.setLength(0);
+				sb.append(df.format(new Date(times[r])));
+				for (int c = 0; c < names.length; c++) {
+					int at = c * times.length + r;
+					sb.append(',');
+					if (!Double.isNaN(ra[at]))
+						sb.append(String.format(Locale.ROOT, "%.6f", ra[at] < 0 ? ra[at] + 360 : ra[at]));
+					sb.append(',');
+					if (!Double.isNaN(dec[at]))
+						sb.append(String.format(Locale.ROOT, "%.6f", dec[at]));
+				}
+				out.println(sb);
+			}
+			if (out.checkError())
+				throw new IOException("could not write " + file);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the pointing list of the built-in craters for a Horizons
+	 * ephemeris, for planning a night
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+		try {
+			Ephemeris eph = new Ephemeris(new File(args[0]));
+			PointingTable t = eph.getPointing();
+			t.write(new File(args[1]));
+			System.out.println(t.rows() + " rows of " + t.names.length
+					+ " craters written to " + args[1]);
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		} catch (EphemerisDataException e) {
+			System.out.println("ERROR: unreadable ephemeris row");
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+import java.util.Date;
+
+/**
+ * IAU 1976 precession of the celestial pole, which is all that's needed to
+ * relate Horizons' true-of-date position angles to its ICRF positions at
+ * the precision of the pointing calculations (nutation moves the pole by
+ * less than 10 arcsec).
+ * @author Nick Derr
+ */
+public class Precession {
+
+	public static final double ARCSEC = Math.PI / (180 * 3600); // in radians
+
+	/**
+	 * Returns the matrix taking J2000 (ICRF) coordinates to mean equatorial
+	 * coordinates of the given date
+	 * @param date the date to precess to
+	 * @return the precession matrix
+	 */
+	public static Mat3 matrix(Date date) {
+		double t = AstroTime.centuries(date);
+		double zeta = (2306.2181 + (0.30188 + 0.017998 * t) * t) * t * ARCSEC;
+		double z = (2306.2181 + (1.09468 + 0.018203 * t) * t) * t * ARCSEC;
+		double theta = (2004.3109 - (0.42665 + 0.041833 * t) * t) * t * ARCSEC;
+
+		double cz = Math.cos(zeta), sz = Math.sin(zeta);
+		double cZ = Math.cos(z), sZ = Math.sin(z);
+		double ct = Math.cos(theta), st = Math.sin(theta);
+
+		return Mat3.ofRows(
+				new Vec3(cz * ct * cZ - sz * sZ, -sz * ct * cZ - cz * sZ, -st * cZ),
+				new Vec3(cz * ct * sZ + sz * cZ, -sz * ct * sZ + cz * cZ, -st * sZ),
+				new Vec3(cz * st, -sz * st, ct));
+	}
+
+	/**
+	 * Returns the mean celestial pole of the given date in J2000 (ICRF)
+	 * coordinates
+	 * @param date the date of the pole
+	 * @return unit vector toward the pole
+	 */
+	public static Vec3 poleOfDate(Date date) {
+		double t = AstroTime.centuries(date);
+		double zeta = (2306.2181 + (0.30188 + 0.017998 * t) * t) * t * ARCSEC;
+		double theta = (2004.3109 - (0.42665 + 0.041833 * t) * t) * t * ARCSEC;
+
+		// the pole of date sits at RA -zeta, dec 90 - theta of J2000
+		return Vec3.fromAngles(Math.PI / 2 - theta, -zeta);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Unit quaternion arithmetic on flat double arrays, for storing rotations
+ * at 4 doubles apiece. A quaternion is kept as w, x, y, z starting at some
+ * offset of an array; none of these methods allocate.
+ * @author Nick Derr
+ */
+public class Quaternion {
+
+	// below this half-angle between two rotations slerp falls back to a
+	// normalized linear blend, which is then within 1e-10 rad of it; a
+	// minute of lunar rotation is about 1e-4
+	private static final double LINEAR = 1e-3;
+	private static final double COS_LINEAR = Math.cos(LINEAR);
+
+	/**
+	 * Finds the quaternion of a rotation matrix (Shepperd's method)
+	 * @param m the matrix's nine elements, by rows
+	 * @param q receives the quaternion
+	 * @param off offset in q
+	 */
+	public static void fromMatrix(double[] m, double[] q, int off) {
+		double trace = m[0] + m[4] + m[8];
+		double w, x, y, z;
+		if (trace > 0) {
+			double s = 2 * Math.sqrt(1 + trace);
+			w = s / 4;
+			x = (m[7] - m[5]) / s;
+			y = (m[2] - m[6]) / s;
+			z = (m[3] - m[1]) / s;
+		} else if (m[0] > m[4] && m[0] > m[8]) {
+			double s = 2 * Math.sqrt(1 + m[0] - m[4] - m[8]);
+			w = (m[7] - m[5]) / s;
+			x = s / 4;
+			y = (m[1] + m[3]) / s;
+			z = (m[2] + m[6]) / s;
+		} else if (m[4] > m[8]) {
+			double s = 2 * Math.sqrt(1 + m[4] - m[0] - m[8]);
+			w = (m[2] - m[6]) / s;
+			x = (m[1] + m[3]) / s;
+			y = s / 4;
+			z = (m[5] + m[7]) / s;
+		} else {
+			double s = 2 * Math.sqrt(1 + m[8] - m[0] - m[4]);
+			w = (m[3] - m[1]) / s;
+			x = (m[2] + m[6]) / s;
+			y = (m[5] + m[7]) / s;
+			z = s / 4;
+		}
+		double n = Math.sqrt(w * w + x * x + y * y + z * z);
+		q[off] = w / n;
+		q[off + 1] = x / n;
+		q[off + 2] = y / n;
+		q[off + 3] = z / n;
+	}
+
+	/**
+	 * Writes the rotation matrix of a quaternion
+	 * @param q the quaternion
+	 * @param off offset in q
+	 * @param m receives the nine elements, by rows
+	 */
+	public static void toMatrix(double[] q, int off, double[] m) {
+		double w = q[off], x = q[off + 1], y = q[off + 2], z = q[off + 3];
+		m[0] = 1 - 2 * (y * y + z * z);
+		m[1] = 2 * (x * y - w * z);
+		m[2] = 2 * (x * z + w * y);
+		m[3] = 2 * (x * y + w * z);
+		m[4] = 1 - 2 * (x * x + z * z);
+		m[5] = 2 * (y * z - w * x);
+		m[6] = 2 * (x * z - w * y);
+		m[7] = 2 * (y * z + w * x);
+		m[8] = 1 - 2 * (x * x + y * y);
+	}
+
+	/**
+	 * Rotates a vector by a quaternion, or by its inverse
+	 * @param q the quaternion
+	 * @param off offset in q
+	 * @param inverse whether to rotate by the inverse (the conjugate)
+	 * @param v the vector
+	 * @param out receives the rotated vector; may be v
+	 */
+	public static void rotate(double[] q, int off, boolean inverse, double[] v,
+			double[] out) {
+		double w = q[off];
+		double x = inverse ? -q[off + 1] : q[off + 1];
+		double y = inverse ? -q[off + 2] : q[off + 2];
+		double z = inverse ? -q[off + 3] : q[off + 3];
+
+		// v + 2w (u x v) + 2 u x (u x v), u the vector part
+		double tx = 2 * (y * v[2] - z * v[1]);
+		double ty = 2 * (z * v[0] - x * v[2]);
+		double tz = 2 * (x * v[1] - y * v[0]);
+		double vx = v[0] + w * tx + y * tz - z * ty;
+		double vy = v[1] + w * ty + z * tx - x * tz;
+		double vz = v[2] + w * tz + x * ty - y * tx;
+		out[0] = vx;
+		out[1] = vy;
+		out[2] = vz;
+	}
+
+	/**
+	 * Interpolates between two rotations along the shorter arc
+	 * @param q array holding both quaternions
+	 * @param a offset of the first
+	 * @param b offset of the second
+	 * @param t fraction of the way from the first to the second
+	 * @param out receives the interpolated quaternion
+	 * @param outOff offset in out
+	 */
+	public static void slerp(double[] q, int a, int b, double t, double[] out,
+			int outOff) {
+		double dot = q[a] * q[b] + q[a + 1] * q[b + 1] + q[a + 2] * q[b + 2]
+				+ q[a + 3] * q[b + 3];
+
+		// q and -q are the same rotation; take the nearer
+		double sign = 1;
+		if (dot < 0) {
+			dot = -dot;
+			sign = -1;
+		}
+
+		double fa, fb;
+		if (dot > COS_LINEAR) {
+			fa = 1 - t;
+			fb = t;
+		} else {
+			double theta = Math.acos(dot);
+			double s = Math.sin(theta);
+			fa = Math.sin((1 - t) * theta) / s;
+			fb = Math.sin(t * theta) / s;
+		}
+		fb *= sign;
+
+		double n = 0;
+		for (int i = 0; i < 4; i++) {
+			out[outOff + i] = fa * q[a + i] + fb * q[b + i];
+			n += out[outOff + i] * out[outOff + i];
+		}
+		n = Math.sqrt(n);
+		for (int i = 0; i < 4; i++)
+			out[outOff + i] /= n;
+	}
+}
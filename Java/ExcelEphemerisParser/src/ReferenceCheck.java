@@ -0,0 +1,251 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Checks the quantities computed locally against published reference
+ * values kept in the reference directory. Each line of a reference file
+ * that isn't blank or a # comment is one case: its kind, the UTC instant
+ * (yyyy-MM-dd HH:mm:ss.SSS), the inputs, the expected values and the
+ * tolerance, comma separated. The comments cite where the values come
+ * from. Each case is printed with its error, and the exit status is 1 if
+ * any is over its tolerance. Cases of the JPL ephemeris (de) are skipped
+ * unless a DE file is given.
+ * @author Nick Derr
+ */
+public class ReferenceCheck {
+
+	public static final String USAGE = "Usage: java -cp ephparse.jar ReferenceCheck"
+			+ " [-de de_file] reference.csv ...";
+
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private int values = 0; // compared
+	private int failed = 0;
+	private int skipped = 0; // needing a DE file that wasn't given
+	private DeEphemeris de = null;
+
+	public ReferenceCheck() {
+		df.setTimeZone(Ephemeris.UTC);
+	}
+
+	/**
+	 * Sets the DE file the de cases are read from
+	 * @param de the ephemeris, or null to skip those cases
+	 */
+	public void setDe(DeEphemeris de) {
+		this.de = de;
+	}
+
+	/**
+	 * Checks every case of a reference file
+	 * @param file the reference file
+	 * @throws IOException if it can't be read or has an unreadable case
+	 */
+	public void check(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				try {
+					check(line.split(",", -1));
+				} catch (ParseException | NumberFormatException
+						| ArrayIndexOutOfBoundsException e) {
+					throw new IOException("unreadable case: " + line);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(e.getMessage() + ": " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Checks one case
+	 */
+	private void check(String[] f) throws ParseException {
+		String kind = f[0].trim();
+		long ms = f[1].trim().isEmpty() ? 0 : df.parse(f[1].trim()).getTime();
+		String at = f[1].trim();
+
+		if (kind.equals("gmst")) {
+			compare(kind, at, "GMST", AstroTime.gmst(ms), num(f, 2), num(f, 3), 360);
+		} else if (kind.equals("last")) {
+			compare(kind, at, "LAST", Astrometry.lst(ms, num(f, 2)), num(f, 3), num(f, 4), 360);
+		} else if (kind.equals("apparent")) {
+			double[] p = Astrometry.apparent(ms, num(f, 2), num(f, 3));
+			compare(kind, at, "RA", p[0], num(f, 4), num(f, 6), 360);
+			compare(kind, at, "Dec", p[1], num(f, 5), num(f, 6), 0);
+		} else if (kind.equals("horizontal")) {
+			double[] icrf = fromApparent(ms, num(f, 4), num(f, 5));
+			Site site = new Site("", "reference", num(f, 2), num(f, 3), 0);
+			double[] h = Astrometry.horizontal(ms, icrf[0], icrf[1], site);
+			compare(kind, at, "Az", h[0], num(f, 6), num(f, 8), 360);
+			compare(kind, at, "El", h[1], num(f, 7), num(f, 8), 0);
+		} else if (kind.equals("frame")) {
+			double[] icrf = fromApparent(ms, num(f, 2), num(f, 3));
+			Mat3 frame = SelenographicFrame.coordTrans(icrf[0], icrf[1], num(f, 5),
+					num(f, 6), num(f, 7), new Date(ms));
+			Mat3 model = new LunarRotationModel(LunarRotationModel.PRECISE)
+					.coordTrans(ms * 1000, num(f, 4));
+			compare(kind, at, "axes", SelenographicFrame.discrepancy(frame, model),
+					0, num(f, 8), 0);
+		} else if (kind.equals("libration")) {
+			double[] icrf = fromApparent(ms, num(f, 2), num(f, 3));
+			int mode = f[5].trim().equals("basic") ? LunarRotationModel.BASIC
+					: LunarRotationModel.PRECISE;
+			double[] lib = libration(new LunarRotationModel(mode).coordTrans(
+					ms * 1000, num(f, 4)), icrf[0], icrf[1], new Date(ms));
+			String name = kind + " " + f[5].trim();
+			compare(name, at, "l", lib[0], num(f, 6), num(f, 9), 360);
+			compare(name, at, "b", lib[1], num(f, 7), num(f, 9), 0);
+			compare(name, at, "P", lib[2], num(f, 8), num(f, 9), 360);
+		} else if (kind.equals("de")) {
+			String name = kind + " " + f[2].trim();
+			if (de == null) {
+				skipped++;
+				System.out.println(String.format(Locale.ROOT, "%-4s %-17s %-23s (no -de file)",
+						"skip", name, at));
+				return;
+			}
+			double jd = AstroTime.julianDateTT(ms);
+			double[] p;
+			if (f[2].trim().equals("moon")) {
+				p = de.position(DeEphemeris.MOON, jd);
+			} else if (f[2].trim().equals("sun")) {
+				p = de.position(DeEphemeris.SUN, jd);
+				double[] earth = de.earth(jd);
+				for (int i = 0; i < p.length; i++)
+					p[i] -= earth[i];
+			} else {
+				throw new IllegalArgumentException("unknown body " + f[2]);
+			}
+			double[] e = ecliptic(p, ms);
+			compare(name, at, "lon", e[0], num(f, 3), num(f, 6), 360);
+			compare(name, at, "lat", e[1], num(f, 4), num(f, 6), 0);
+			compare(name, at, "km", e[2], num(f, 5), num(f, 7), 0);
+		} else if (kind.equals("airmass")) {
+			int formula = Astrometry.airmassFor(f[3].trim());
+			if (formula < 0)
+				throw new IllegalArgumentException("unknown airmass formula");
+			compare(kind, "el " + f[2].trim() + " " + f[3].trim(), "airmass",
+					Astrometry.airmass(num(f, 2), formula), num(f, 4), num(f, 5), 0);
+		} else {
+			throw new IllegalArgumentException("unknown kind " + kind);
+		}
+	}
+
+	/**
+	 * Returns the ICRF RA/Dec whose apparent place (Astrometry.apparent) is
+	 * the given one, by fixed point iteration
+	 */
+	private static double[] fromApparent(long ms, double ra, double dec) {
+		double[] p = {ra, dec};
+		for (int i = 0; i < 5; i++) {
+			double[] a = Astrometry.apparent(ms, p[0], p[1]);
+			p[0] += Math.IEEEremainder(ra - a[0], 360);
+			p[1] += dec - a[1];
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the geocentric ecliptic longitude, latitude and distance
+	 * (mean ecliptic and equinox of date) of an ICRF position
+	 * @param p the position, km
+	 * @param ms the instant, milliseconds since 1970-01-01 UTC
+	 * @return {lon, lat} in degrees and the distance in km
+	 */
+	private static double[] ecliptic(double[] p, long ms) {
+		Vec3 v = Precession.matrix(new Date(ms)).times(new Vec3(p[0], p[1], p[2]), new Vec3());
+		double[] nut = Astrometry.nutation(ms);
+		double eps = Math.toRadians(nut[2] - nut[1]);
+		double y = Math.cos(eps) * v.y + Math.sin(eps) * v.z;
+		double z = -Math.sin(eps) * v.y + Math.cos(eps) * v.z;
+		double r = v.norm();
+		double lon = Math.toDegrees(Math.atan2(y, v.x));
+		return new double[] {lon < 0 ? lon + 360 : lon, Math.toDegrees(Math.asin(z / r)), r};
+	}
+
+	/**
+	 * Returns the selenographic longitude and latitude of the earth and the
+	 * position angle of the moon's axis (from north of date, through east)
+	 * in a lunar frame
+	 * @param trans the frame, as LunarRotationModel.coordTrans
+	 * @param ra ICRF RA of the moon, degrees
+	 * @param dec ICRF Dec of the moon, degrees
+	 * @param date the instant, for the pole of date
+	 * @return {l, b, P} in degrees
+	 */
+	private static double[] libration(Mat3 trans, double ra, double dec, Date date) {
+		Vec3 sight = Vec3.fromAngles(Math.toRadians(dec), Math.toRadians(ra));
+		Vec3 toEarth = new Vec3(sight).negate();
+		Vec3 x = trans.column(0, new Vec3());
+		Vec3 y = trans.column(1, new Vec3());
+		Vec3 z = trans.column(2, new Vec3());
+
+		Vec3 north = Precession.poleOfDate(date);
+		north.addScaled(sight, -north.dot(sight)).normalize();
+		Vec3 east = Vec3.cross(north, sight, new Vec3());
+
+		return new double[] {Math.toDegrees(Math.atan2(toEarth.dot(y), toEarth.dot(x))),
+				Math.toDegrees(Math.asin(toEarth.dot(z))),
+				Math.toDegrees(Math.atan2(z.dot(east), z.dot(north)))};
+	}
+
+	/**
+	 * Prints and counts one comparison
+	 * @param period 360 for an angle compared modulo a full turn, else 0
+	 */
+	private void compare(String kind, String at, String name, double value,
+			double expected, double tolerance, double period) {
+		double err = period > 0 ? Math.IEEEremainder(value - expected, period)
+				: value - expected;
+		boolean ok = Math.abs(err) <= tolerance;
+		values++;
+		if (!ok)
+			failed++;
+		System.out.println(String.format(Locale.ROOT, "%-4s %-17s %-23s %-7s %14.7f %14.7f %10.2e",
+				ok ? "ok" : "FAIL", kind, at, name, value, expected, err));
+	}
+
+	private static double num(String[] f, int i) {
+		return Double.parseDouble(f[i].trim());
+	}
+
+	/**
+	 * Checks the given reference files
+	 */
+	public static void main(String[] args) {
+		int arg = args.length > 1 && args[0].equals("-de") ? 2 : 0;
+		if (args.length == arg) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+
+		ReferenceCheck check = new ReferenceCheck();
+		try {
+			if (arg > 0)
+				check.setDe(new DeEphemeris(new File(args[1])));
+			for (; arg < args.length; arg++)
+				check.check(new File(args[arg]));
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		}
+		System.out.println(check.values + " values, " + check.failed + " over tolerance"
+				+ (check.skipped > 0 ? ", " + check.skipped + " cases skipped" : ""));
+		System.exit(check.failed > 0 ? 1 : 0);
+	}
+}
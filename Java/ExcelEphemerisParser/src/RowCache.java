@@ -0,0 +1,285 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.HashMap;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+
+/**
+ * Keeps the values transferred into each log row in a file next to the
+ * log, keyed by a digest of the row's inputs (sheet date, time, exposure,
+ * crater, offsets, origin, FOV, filter and wavelength) and of the
+ * ephemeris settings. When a log is run again, rows whose inputs haven't
+ * changed are filled from the file and never touch the ephemeris.
+ *
+ * The file is a log of records, each a key and the row's output cells
+ * (value and decimal places), appended as rows are transferred; the last
+ * record for a key wins. A record cut short by a crash is cut off the
+ * file when it is next opened, so the records appended after it can be
+ * read.
+ * @author Nick Derr
+ */
+public class RowCache {
+
+	// bump when the transferred values change, so old records are unused
+	public static final int FORMAT = 2;
+
+	public static final String SUFFIX = "_rows.cache";
+
+	// cell kinds in a record
+	private static final byte BLANK = 0;
+	private static final byte NUMBER = 1;
+	private static final byte TEXT = 2;
+
+	// the columns a transfer writes
+	private static final int[] OUTPUTS = {
+		ExcelDataParser.RA, ExcelDataParser.DEC, ExcelDataParser.AZI,
+		ExcelDataParser.ELEV, ExcelDataParser.LST, ExcelDataParser.A_MASS,
+		ExcelDataParser.AP_MAG, ExcelDataParser.SURF_BRT, ExcelDataParser.FRAC_ILL,
+		ExcelDataParser.ANG_WID, ExcelDataParser.TAR_LON, ExcelDataParser.TAR_LAT,
+		ExcelDataParser.SOL_LON, ExcelDataParser.SOL_LAT, ExcelDataParser.R,
+		ExcelDataParser.R_DOT, ExcelDataParser.DELTA, ExcelDataParser.DELTA_DOT,
+		ExcelDataParser.SOT, ExcelDataParser.L_OR_T, ExcelDataParser.STO,
+		ExcelDataParser.FOV_LON, ExcelDataParser.FOV_LAT, ExcelDataParser.FOV_ALT,
+		ExcelDataParser.LINE_DEPTH, ExcelDataParser.FEATURES};
+
+	// the columns that determine them
+	private static final int[] INPUTS = {
+		ExcelDataParser.TIME, ExcelDataParser.EXP_TIME, ExcelDataParser.OFF_CRAT,
+		ExcelDataParser.OFF_EW_DIST, ExcelDataParser.OFF_NS_DIST,
+		ExcelDataParser.OFF_ORIG, ExcelDataParser.FOV, ExcelDataParser.FILTER,
+		ExcelDataParser.WAVELENGTH};
+
+	private final File file;
+	private final String version;
+	private final HashMap<String,Object[]> records = new HashMap<String,Object[]>();
+	private DataOutputStream out; // opened on the first new record
+	private int hits;
+	private int misses;
+
+	/**
+	 * Opens the cache of a log, reading the records already there
+	 * @param file the cache file; it needn't exist
+	 * @param version the ephemeris settings, which are part of every key
+	 * @throws IOException if the file exists but can't be read
+	 */
+	public RowCache(File file, String version) throws IOException {
+		this.file = file;
+		this.version = version;
+		if (!file.exists())
+			return;
+		CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		DataInputStream in = new DataInputStream(counter);
+		long whole = 0; // bytes up to the end of the last whole record
+		try {
+			while (true) {
+				String key = in.readUTF();
+				Object[] cells = new Object[2 * OUTPUTS.length];
+				for (int i = 0; i < OUTPUTS.length; i++) {
+					byte kind = in.readByte();
+					if (kind == NUMBER) {
+						cells[2 * i] = in.readDouble();
+						cells[2 * i + 1] = (int) in.readByte();
+					} else if (kind == TEXT) {
+						cells[2 * i] = in.readUTF();
+						cells[2 * i + 1] = (int) in.readByte();
+					} else if (kind != BLANK) {
+						throw new EOFException(); // not a record; stop here
+					}
+				}
+				records.put(key, cells);
+				whole = counter.count;
+			}
+		} catch (EOFException | UTFDataFormatException e) {
+			// end of the records, or one cut short
+		} finally {
+			in.close();
+		}
+
+		// cut off what follows the last whole record, so records appended
+		// from now on can be read back
+		if (whole < file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(whole);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * Returns the cache file of a log
+	 * @param excelFile the log
+	 */
+	public static File fileFor(String excelFile) {
+		int dot = excelFile.lastIndexOf('.');
+		if (dot < 0)
+			dot = excelFile.length();
+		return new File(excelFile.substring(0, dot) + SUFFIX);
+	}
+
+	/**
+	 * Returns the key of a row
+	 * @param sheet the name of the row's sheet, its date
+	 * @param im the row
+	 * @param p the sheet's columns
+	 */
+	public String key(String sheet, Row im, ExcelDataParser p) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(FORMAT).append('\0').append(version).append('\0').append(sheet);
+		for (int col : INPUTS) {
+			sb.append('\0');
+			Cell c = im.getCell(p.INDICES[col]);
+			if (c == null)
+				continue;
+			if (c.getCellType() == CellType.NUMERIC)
+				sb.append(c.getNumericCellValue());
+			else if (c.getCellType() == CellType.STRING)
+				sb.append(c.getStringCellValue());
+		}
+		sb.append('\0').append(p.INDICES[ExcelDataParser.FEATURES] != -1);
+		return HorizonsDownloader.digest(sb.toString());
+	}
+
+	/**
+	 * Fills a row's output cells from its record, if it has one
+	 * @param key the row's key
+	 * @param im the row
+	 * @param p the sheet's columns
+	 * @return whether the row had a record
+	 */
+	public boolean fill(String key, Row im, ExcelDataParser p) {
+		Object[] cells = records.get(key);
+		if (cells == null) {
+			misses++;
+			return false;
+		}
+		for (int i = 0; i < OUTPUTS.length; i++) {
+			if (p.INDICES[OUTPUTS[i]] == -1)
+				continue;
+			Cell c = im.getCell(p.INDICES[OUTPUTS[i]]);
+			if (cells[2 * i] == null) {
+				c.setBlank();
+				continue;
+			}
+			if (cells[2 * i] instanceof Double)
+				c.setCellValue((Double) cells[2 * i]);
+			else
+				c.setCellValue((String) cells[2 * i]);
+			int places = (Integer) cells[2 * i + 1];
+			if (places >= 0)
+				c.setCellStyle(p.getStyle(places));
+		}
+		hits++;
+		return true;
+	}
+
+	/**
+	 * Records a row's output cells after a transfer
+	 * @param key the row's key
+	 * @param im the row
+	 * @param p the sheet's columns
+	 * @throws IOException if the record can't be written
+	 */
+	public void store(String key, Row im, ExcelDataParser p) throws IOException {
+		Object[] cells = new Object[2 * OUTPUTS.length];
+		for (int i = 0; i < OUTPUTS.length; i++) {
+			if (p.INDICES[OUTPUTS[i]] == -1)
+				continue;
+			Cell c = im.getCell(p.INDICES[OUTPUTS[i]]);
+			if (c == null)
+				continue;
+			if (c.getCellType() == CellType.NUMERIC)
+				cells[2 * i] = c.getNumericCellValue();
+			else if (c.getCellType() == CellType.STRING)
+				cells[2 * i] = c.getStringCellValue();
+			cells[2 * i + 1] = ExcelDataParser.getPlaces(c.getCellStyle());
+		}
+		records.put(key, cells);
+
+		if (out == null)
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file, true)));
+		out.writeUTF(key);
+		for (int i = 0; i < OUTPUTS.length; i++) {
+			if (cells[2 * i] instanceof Double) {
+				out.writeByte(NUMBER);
+				out.writeDouble((Double) cells[2 * i]);
+				out.writeByte((Integer) cells[2 * i + 1]);
+			} else if (cells[2 * i] instanceof String) {
+				out.writeByte(TEXT);
+				out.writeUTF((String) cells[2 * i]);
+				out.writeByte((Integer) cells[2 * i + 1]);
+			} else {
+				out.writeByte(BLANK);
+			}
+		}
+	}
+
+	/**
+	 * Writes out the new records
+	 * @throws IOException if they can't be written
+	 */
+	public void close() throws IOException {
+		if (out != null)
+			out.close();
+		out = null;
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+}
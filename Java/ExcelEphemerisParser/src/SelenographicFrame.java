@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Builds the moon's body-fixed (selenographic) frame from columns of the
+ * main ephemeris alone: the sub-observer longitude and latitude (quantity
+ * 14) fix the direction to the observer in the body frame, and the north
+ * pole position angle (quantity 17) fixes the rotation about that
+ * direction. This replaces the two surface-point series (AxisEphemeris X
+ * and Z) that were otherwise downloaded only to find the frame.
+ *
+ * Compared with the frame from the axis series the axes agree to within
+ * TOLERANCE; see main. Built from Meeus' published librations and
+ * position angle it agrees with the IAU rotation model to 0.03 deg, most
+ * of which is the turn between his principal axis frame and the mean
+ * earth one (ReferenceCheck reference/libration.csv).
+ * @author Nick Derr
+ */
+public class SelenographicFrame {
+
+	// largest expected angle between this frame's axes and the axis
+	// series' (degrees); the axis frame itself is only good to the km
+	// rounding of the surface-point ranges, ~0.005 deg
+	public static final double TOLERANCE = 0.02;
+
+	/**
+	 * Returns the matrix taking selenographic coordinates to the
+	 * equatorial (ICRF) frame of the RA/Dec columns. Its columns are the
+	 * body's x (prime meridian), y and z (north pole) axes, as from
+	 * LibrationEphemeris.coordTrans
+	 * @param ra RA of the moon's center, degrees
+	 * @param dec declination of the moon's center, degrees
+	 * @param obsLon sub-observer longitude (east positive), degrees
+	 * @param obsLat sub-observer latitude, degrees
+	 * @param npAng position angle of the north pole, degrees east of the
+	 * true-of-date celestial north
+	 * @param date the time of the row, for the pole of date
+	 * @return the transformation matrix
+	 */
+	public static Mat3 coordTrans(double ra, double dec, double obsLon,
+			double obsLat, double npAng, Date date) {
+		double lon = Math.toRadians(obsLon);
+		double lat = Math.toRadians(obsLat);
+		double pa = Math.toRadians(npAng);
+
+		// line of sight to the center, and sky north and east there
+		Vec3 sight = Vec3.fromAngles(Math.toRadians(dec), Math.toRadians(ra));
+		Vec3 north = Precession.poleOfDate(date);
+		north.addScaled(sight, -north.dot(sight)).normalize();
+		Vec3 east = Vec3.cross(north, sight, new Vec3());
+
+		// body pole: latitude toward the observer, the rest along the
+		// position angle in the plane of the sky
+		Vec3 toObs = sight.negate();
+		Vec3 sky = north.scale(Math.cos(pa)).addScaled(east, Math.sin(pa));
+		Vec3 zHat = new Vec3(toObs).scale(Math.sin(lat)).addScaled(sky, Math.cos(lat));
+
+		// the observer's direction in the equatorial plane of the body is
+		// cos(lon) x + sin(lon) y
+		Vec3 w = toObs.addScaled(zHat, -Math.sin(lat)).normalize();
+		Vec3 xHat = Vec3.cross(zHat, w, new Vec3()).scale(-Math.sin(lon));
+		xHat = w.scale(Math.cos(lon)).add(xHat);
+		Vec3 yHat = Vec3.cross(zHat, xHat, new Vec3());
+
+		return Mat3.ofColumns(xHat, yHat, zHat);
+	}
+
+	/**
+	 * Returns the largest angle between corresponding axes (columns) of
+	 * two frames
+	 * @param a one frame
+	 * @param b the other
+	 * @return the angle in degrees
+	 */
+	public static double discrepancy(Mat3 a, Mat3 b) {
+		Vec3 ai = new Vec3();
+		Vec3 bi = new Vec3();
+		double worst = 0;
+		for (int i = 0; i < Mat3.DIM; i++)
+			worst = Math.max(worst, Math.toDegrees(
+					a.column(i, ai).angBetween(b.column(i, bi))));
+		return worst;
+	}
+
+	/**
+	 * Checks the frame against the axis series for the given nights
+	 * Usage: java SelenographicFrame yyyy-MM-dd ...
+	 * The nights must come from Horizons itself (or its checkpoints): a
+	 * HorizonsStandIn makes the axis series and the columns from one model,
+	 * so their agreement checks nothing
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: java SelenographicFrame yyyy-MM-dd ...");
+			System.exit(-1);
+		}
+
+		Ephemeris eph = null;
+		try {
+			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+			df.setTimeZone(Ephemeris.UTC);
+			Date[] dates = new Date[args.length];
+			for (int i = 0; i < args.length; i++)
+				dates[i] = df.parse(args[i]);
+
+			Ephemeris.setFrame(Ephemeris.FRAME_AXES);
+			eph = new Ephemeris(dates);
+		} catch (ParseException e) {
+			System.out.println("ERROR: dates must be yyyy-MM-dd");
+			System.exit(-1);
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		}
+
+		int rows = 0;
+		int over = 0;
+		double worst = 0;
+		double sum = 0;
+		try {
+			do {
+				double d = discrepancy(eph.axisTrans(), eph.columnTrans());
+				worst = Math.max(worst, d);
+				sum += d;
+				rows++;
+				if (d > TOLERANCE)
+					over++;
+			} while (eph.advance());
+		} catch (EphemerisDataException e) {
+			System.out.println("ERROR: bad ephemeris row " + rows);
+			System.exit(-1);
+		}
+
+		System.out.println(rows + " rows: mean " + String.format("%.5f", sum / rows)
+				+ " deg, max " + String.format("%.5f", worst) + " deg, "
+				+ over + " over the " + TOLERANCE + " deg tolerance");
+	}
+}
@@ -0,0 +1,183 @@
+import java.util.Date;
+
+/**
+ * An observing site on the earth's surface, or the geocenter, as named in
+ * the CENTER parameter of a Horizons request (e.g. 695@399)
+ * @author Nick Derr
+ */
+public class Site {
+
+	// WGS84 ellipsoid
+	public static final double EARTH_RADIUS = 6378.137; // km
+	public static final double FLATTENING = 1 / 298.257223563;
+	public static final double EARTH_ROTATION = 7.292115e-5; // rad/s
+
+	public static final Site GEOCENTER = new Site("500", "Geocentric");
+	public static final Site KITT_PEAK = new Site("695", "Kitt Peak",
+			31.9583, -111.5967, 2.096);
+
+	// sites that can be named by their code alone
+	private static final Site[] TABLE = {GEOCENTER, KITT_PEAK,
+		new Site("675", "Palomar Mountain", 33.3563, -116.8650, 1.706),
+		new Site("705", "Apache Point", 32.7803, -105.8203, 2.788),
+		new Site("568", "Mauna Kea", 19.8261, -155.4712, 4.163),
+		new Site("807", "Cerro Tololo", -30.1690, -70.8063, 2.207),
+		new Site("309", "Cerro Paranal", -24.6272, -70.4048, 2.635)};
+
+	private final String code; // MPC observatory code
+	private final String name;
+	private final double lat; // geodetic, degrees north
+	private final double lon; // degrees east
+	private final double height; // above the ellipsoid, km
+	private final double rhoCos; // distance from the earth's axis, km
+	private final double rhoSin; // distance from the equatorial plane, km
+
+	/**
+	 * Instantiates a site at the given geodetic position
+	 * @param code MPC observatory code
+	 * @param name name of the site
+	 * @param lat geodetic latitude, degrees north
+	 * @param lon longitude, degrees east
+	 * @param height height above the ellipsoid, km
+	 */
+	public Site(String code, String name, double lat, double lon, double height) {
+		this.code = code;
+		this.name = name;
+		this.lat = lat;
+		this.lon = lon;
+		this.height = height;
+
+		double phi = Math.toRadians(lat);
+		double e2 = FLATTENING * (2 - FLATTENING);
+		double n = EARTH_RADIUS / Math.sqrt(1 - e2 * Math.pow(Math.sin(phi), 2));
+		rhoCos = (n + height) * Math.cos(phi);
+		rhoSin = (n * (1 - e2) + height) * Math.sin(phi);
+	}
+
+	/**
+	 * Instantiates the geocenter
+	 */
+	private Site(String code, String name) {
+		this.code = code;
+		this.name = name;
+		lat = 0;
+		lon = 0;
+		height = 0;
+		rhoCos = 0;
+		rhoSin = 0;
+	}
+
+	/**
+	 * Returns the site named by a Horizons CENTER value
+	 * @param center e.g. "695@399" or "500@399"
+	 * @return the site, or null if it isn't known
+	 */
+	public static Site forCenter(String center) {
+		String c = center.trim();
+		int at = c.indexOf('@');
+		if (at >= 0) {
+			if (!c.substring(at + 1).equals("399"))
+				return null;
+			c = c.substring(0, at);
+		}
+		if (c.isEmpty())
+			return GEOCENTER;
+		return forCode(c);
+	}
+
+	/**
+	 * Returns a site of the table
+	 * @param code MPC observatory code, e.g. "695"
+	 * @return the site, or null if it isn't in the table
+	 */
+	public static Site forCode(String code) {
+		for (Site s : TABLE)
+			if (s.code.equals(code.trim()))
+				return s;
+		return null;
+	}
+
+	/**
+	 * Returns the site given by a code of the table or by its position
+	 * @param spec a code, or "lat,lon,height" in degrees and km
+	 * @return the site, or null if the code is unknown or the position
+	 * is malformed
+	 */
+	public static Site parse(String spec) {
+		String[] parts = spec.split(",");
+		if (parts.length == 1)
+			return forCode(spec);
+		if (parts.length != 3)
+			return null;
+		try {
+			double lat = Double.parseDouble(parts[0].trim());
+			double lon = Double.parseDouble(parts[1].trim());
+			double height = Double.parseDouble(parts[2].trim());
+			if (Math.abs(lat) > 90)
+				return null;
+			return new Site("", spec.trim(), lat, lon, height);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the site's geocentric position in ICRF coordinates at the
+	 * given instant. Nutation and polar motion are ignored (under 0.5 km)
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return the position in km
+	 */
+	public double[] position(long ms) {
+		if (rhoCos == 0 && rhoSin == 0)
+			return new double[3];
+
+		// equatorial coordinates of date
+		double theta = Math.toRadians(AstroTime.gmst(ms) + lon);
+		Vec3 v = new Vec3(rhoCos * Math.cos(theta), rhoCos * Math.sin(theta), rhoSin);
+
+		// back to J2000
+		Precession.matrix(new Date(ms)).transposeTimes(v, v);
+		return new double[] {v.x, v.y, v.z};
+	}
+
+	/**
+	 * Returns the site's velocity about the geocenter from the earth's
+	 * rotation, taking the rotation axis as the ICRF pole
+	 * @param position the site's position, as from position()
+	 * @return the velocity in km/s
+	 */
+	public static double[] velocity(double[] position) {
+		return new double[] {-EARTH_ROTATION * position[1],
+				EARTH_ROTATION * position[0], 0};
+	}
+
+	/**
+	 * Returns the local mean sidereal time at the given instant
+	 * @param ms milliseconds since 1970-01-01 UTC
+	 * @return LMST in degrees, 0 to 360
+	 */
+	public double lst(long ms) {
+		double lst = (AstroTime.gmst(ms) + lon) % 360;
+		return lst < 0 ? lst + 360 : lst;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public double getLatitude() {
+		return lat;
+	}
+
+	public double getLongitude() {
+		return lon;
+	}
+
+	public double getHeight() {
+		return height;
+	}
+}
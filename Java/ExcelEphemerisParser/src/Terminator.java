@@ -0,0 +1,157 @@
+/**
+ * Finds where the meridian or parallel through a point crosses the
+ * terminator on the visible disc, for the term origins. The terminator is
+ * the great circle of the lunar sphere square to the sub-solar direction,
+ * R (u cos p + v sin p) about the center for unit u and v across it. A
+ * meridian is a plane through the observer, so it meets the circle where
+ * A cos p + B sin p = C, an atan2 and an acos as in Limb. A parallel is a
+ * cone about the pole; it is met first as its tangent plane through the
+ * point, which is within an arcsecond across the disc, and then exactly
+ * by a few Newton steps.
+ * @author Nick Derr
+ */
+public class Terminator {
+
+	// east or west, whichever crossing is nearer
+	public static final int EITHER = 4;
+
+	// Newton steps from the tangent plane onto a parallel
+	private static final int NEWTON = 2;
+
+	/**
+	 * Returns the direction for a name
+	 * @param name null or "" for EITHER, else as Limb.directionFor
+	 * @return the direction, or -1 if the name is unknown
+	 */
+	public static int directionFor(String name) {
+		if (name == null || name.isEmpty())
+			return EITHER;
+		return Limb.directionFor(name);
+	}
+
+	/**
+	 * Finds the first point, going from a point in the given direction,
+	 * where the sight line meets the visible terminator
+	 * @param c array holding the unit vector toward the moon's center and
+	 * its range, km
+	 * @param ci their offset
+	 * @param sun array holding the unit vector from the moon's center
+	 * toward the sub-solar point, in the same frame
+	 * @param si its offset
+	 * @param ra RA of the starting point, degrees
+	 * @param dec declination of the starting point, degrees
+	 * @param direction Limb.NORTH, SOUTH, EAST or WEST, or EITHER
+	 * @param out receives the RA and Dec of the crossing, degrees
+	 * @return whether there is a crossing that way
+	 */
+	public static boolean solve(double[] c, int ci, double[] sun, int si,
+			double ra, double dec, int direction, double[] out) {
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		double range = c[ci + 3];
+		double cx = c[ci] * range;
+		double cy = c[ci + 1] * range;
+		double cz = c[ci + 2] * range;
+		out[0] = ra;
+		out[1] = dec;
+
+		// u and v across the sun, scaled to the radius
+		double sx = sun[si];
+		double sy = sun[si + 1];
+		double sz = sun[si + 2];
+		double ux, uy, uz;
+		if (Math.abs(sz) < 0.9) { // s x z
+			ux = sy;
+			uy = -sx;
+			uz = 0;
+		} else { // s x x
+			ux = 0;
+			uy = sz;
+			uz = -sy;
+		}
+		double un = radius / Math.sqrt(ux * ux + uy * uy + uz * uz);
+		ux *= un;
+		uy *= un;
+		uz *= un;
+		double vx = sy * uz - sz * uy;
+		double vy = sz * ux - sx * uz;
+		double vz = sx * uy - sy * ux;
+
+		// the plane of the meridian, or the parallel's tangent plane
+		double a = ra * Math.PI / 180;
+		double d = dec * Math.PI / 180;
+		boolean meridian = direction == Limb.NORTH || direction == Limb.SOUTH;
+		double nx, ny, nz;
+		if (meridian) {
+			nx = -Math.sin(a);
+			ny = Math.cos(a);
+			nz = 0;
+		} else {
+			nx = -Math.sin(d) * Math.cos(a);
+			ny = -Math.sin(d) * Math.sin(a);
+			nz = Math.cos(d);
+		}
+		double pa = nx * ux + ny * uy + nz * uz;
+		double pb = nx * vx + ny * vy + nz * vz;
+		double amp = Math.sqrt(pa * pa + pb * pb);
+		double cos = -(nx * cx + ny * cy + nz * cz) / amp;
+		if (!(cos >= -1 && cos <= 1))
+			return false;
+		double mid = Math.atan2(pb, pa);
+		double half = Math.acos(cos);
+		double sinDec = Math.sin(d);
+
+		boolean found = false;
+		double best = Double.POSITIVE_INFINITY;
+		for (int k = -1; k <= 1; k += 2) {
+			double p = mid + k * half;
+			if (!meridian) {
+				for (int i = 0; i < NEWTON; i++) {
+					double cp = Math.cos(p);
+					double sp = Math.sin(p);
+					double wx = cx + ux * cp + vx * sp;
+					double wy = cy + uy * cp + vy * sp;
+					double wz = cz + uz * cp + vz * sp;
+					double dwx = vx * cp - ux * sp;
+					double dwy = vy * cp - uy * sp;
+					double dwz = vz * cp - uz * sp;
+					double w2 = wx * wx + wy * wy + wz * wz;
+					double w = Math.sqrt(w2);
+					double g = wz / w - sinDec;
+					double dg = (dwz * w2 - wz * (wx * dwx + wy * dwy + wz * dwz)) / (w2 * w);
+					p -= g / dg;
+				}
+			}
+			double px = ux * Math.cos(p) + vx * Math.sin(p);
+			double py = uy * Math.cos(p) + vy * Math.sin(p);
+			double pz = uz * Math.cos(p) + vz * Math.sin(p);
+			double wx = cx + px;
+			double wy = cy + py;
+			double wz = cz + pz;
+
+			// on the near side, and the meridian's half toward the point
+			if (px * wx + py * wy + pz * wz >= 0)
+				continue;
+			if (meridian && Math.cos(a) * wx + Math.sin(a) * wy <= 0)
+				continue;
+
+			double ahead;
+			double at;
+			if (meridian) {
+				at = Math.atan2(wz, Math.sqrt(wx * wx + wy * wy)) * 180 / Math.PI;
+				ahead = direction == Limb.NORTH ? at - dec : dec - at;
+			} else {
+				double turn = Math.atan2(wy, wx) * 180 / Math.PI - ra;
+				turn -= 360 * Math.rint(turn / 360);
+				at = ra + turn;
+				ahead = direction == Limb.EAST ? turn : direction == Limb.WEST
+						? -turn : Math.abs(turn);
+			}
+			if (ahead >= 0 && ahead < best) {
+				best = ahead;
+				out[meridian ? 1 : 0] = at;
+				found = true;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,417 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks LunarTerrain on synthetic grids it writes to a scratch directory:
+ * sight lines met with a flat global grid against the same lines met with
+ * the mean sphere; tangent heights over a bumpy global grid against a
+ * brute force walk along each line; a regional grid straddling longitude
+ * 0 against the global grid it was cut from; and the same grazing lines
+ * met by several threads sharing one LunarTerrain against one thread.
+ * Grazing lines per second are printed for one thread and for all of them.
+ * The exit status is 1 if any check fails.
+ * @author Nick Derr
+ */
+public class TerrainCheck {
+
+	public static final String USAGE = "Usage: java -cp ephparse.jar TerrainCheck"
+			+ " [-threads N] [LINES]";
+
+	// mean lunar distance, km
+	private static final double DISTANCE = 384400;
+
+	// tolerances, km: flat grid against the sphere, heights and positions
+	// (a tangent point is found by its height, which is flat about it, so
+	// to the root of the height's rounding); bumpy grid against the
+	// brute force walk (a line can dip lowest between two steps of the
+	// search in another hollow than the lowest step's, by a little of the
+	// relief); regional against global grid
+	private static final double FLAT_KM = 1e-6;
+	private static final double FLAT_POSITION_KM = 1e-3;
+	private static final double BRUTE_KM = 0.1;
+	private static final double REGIONAL_KM = 1e-6;
+
+	// brute force step along a line, km
+	private static final double BRUTE_STEP = 0.05;
+
+	private int failed = 0;
+
+	/**
+	 * Returns the synthetic relief, km
+	 */
+	private static double bump(double lat, double lon) {
+		return 3 * Math.sin(Math.toRadians(lon * 7)) * Math.cos(Math.toRadians(lat * 5))
+				+ 1.5 * Math.cos(Math.toRadians(lon * 23 + lat * 11));
+	}
+
+	/**
+	 * Writes a 16 bit grid of the synthetic relief (or of none) and its PDS
+	 * label, half metre steps
+	 * @param dir the directory
+	 * @param name the file names, without .img and .lbl
+	 * @param ppd samples per degree
+	 * @param west westernmost longitude, degrees
+	 * @param width longitudes covered, degrees
+	 * @param north northernmost latitude, degrees
+	 * @param height latitudes covered, degrees
+	 * @param flat true for no relief
+	 * @param msb true for big endian samples
+	 * @return the label
+	 */
+	private static File grid(File dir, String name, int ppd, double west, double width,
+			double north, double height, boolean flat, boolean msb) throws IOException {
+		int w = (int) Math.round(width * ppd);
+		int h = (int) Math.round(height * ppd);
+		ByteBuffer b = ByteBuffer.allocate(w * h * 2)
+				.order(msb ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		short min = Short.MAX_VALUE, max = Short.MIN_VALUE;
+		for (int l = 0; l < h; l++) {
+			for (int s = 0; s < w; s++) {
+				double lat = north - (l + 0.5) / ppd;
+				double lon = west + (s + 0.5) / ppd;
+				short v = (short) Math.round(flat ? 0 : bump(lat, lon) * 2000);
+				b.putShort(v);
+				min = (short) Math.min(min, v);
+				max = (short) Math.max(max, v);
+			}
+		}
+		FileOutputStream out = new FileOutputStream(new File(dir, name + ".img"));
+		try {
+			out.write(b.array());
+		} finally {
+			out.close();
+		}
+
+		double offset = flat ? LibrationEphemeris.LUNAR_RADIUS * 1000 : 1737400;
+		File label = new File(dir, name + ".lbl");
+		Writer lbl = new OutputStreamWriter(new FileOutputStream(label), StandardCharsets.US_ASCII);
+		try {
+			lbl.write(String.format(Locale.ROOT, "PDS_VERSION_ID = PDS3\n"
+					+ "RECORD_TYPE = FIXED_LENGTH\n"
+					+ "RECORD_BYTES = %d\n"
+					+ "^IMAGE = \"%s.img\"\n"
+					+ "OBJECT = IMAGE\n"
+					+ "  LINES = %d\n"
+					+ "  LINE_SAMPLES = %d\n"
+					+ "  MAXIMUM = %d\n"
+					+ "  MINIMUM = %d\n"
+					+ "  SAMPLE_TYPE = %s\n"
+					+ "  SAMPLE_BITS = 16\n"
+					+ "  UNIT = METER\n"
+					+ "  SCALING_FACTOR = 0.5\n"
+					+ "  OFFSET = %.1f\n"
+					+ "END_OBJECT = IMAGE\n"
+					+ "OBJECT = IMAGE_MAP_PROJECTION\n"
+					+ "  MAP_PROJECTION_TYPE = \"SIMPLE CYLINDRICAL\"\n"
+					+ "  POSITIVE_LONGITUDE_DIRECTION = \"EAST\"\n"
+					+ "  MAP_RESOLUTION = %d <pix/deg>\n"
+					+ "  MAXIMUM_LATITUDE = %.6f <DEG>\n"
+					+ "  MINIMUM_LATITUDE = %.6f <DEG>\n"
+					+ "  WESTERNMOST_LONGITUDE = %.6f <DEG>\n"
+					+ "  EASTERNMOST_LONGITUDE = %.6f <DEG>\n"
+					+ "END_OBJECT = IMAGE_MAP_PROJECTION\n"
+					+ "END\n", w * 2, name, h, w, max, min,
+					msb ? "MSB_INTEGER" : "LSB_INTEGER", offset, ppd, north, north - height,
+					west, west + width));
+		} finally {
+			lbl.close();
+		}
+		return label;
+	}
+
+	/**
+	 * Returns the unit direction from an observer to a point
+	 */
+	private static double[] line(double[] obs, double[] to) {
+		double[] d = new double[3];
+		double n = 0;
+		for (int i = 0; i < 3; i++) {
+			d[i] = to[i] - obs[i];
+			n += d[i] * d[i];
+		}
+		n = Math.sqrt(n);
+		for (int i = 0; i < 3; i++)
+			d[i] /= n;
+		return d;
+	}
+
+	/**
+	 * Returns the angle between a position and a longitude and latitude,
+	 * radians
+	 */
+	private static double apart(double[] p, double lon, double lat) {
+		Vec3 a = new Vec3(p[0], p[1], p[2]).normalize();
+		Vec3 b = Vec3.fromAngles(Math.toRadians(lat), Math.toRadians(lon));
+		return Math.atan2(Vec3.cross(a, b, new Vec3()).norm(), a.dot(b));
+	}
+
+	/**
+	 * Returns a random observer at the mean lunar distance near the
+	 * sub-earth point and a line from it aimed at a point near the limb
+	 * (a quarter of them inside the disc, some far off it)
+	 * @return {observer, line}
+	 */
+	private static double[][] sight(Random r, int k) {
+		double lat = Math.toRadians(r.nextGaussian() * 6);
+		double lon = Math.toRadians(r.nextGaussian() * 7);
+		double[] obs = {DISTANCE * Math.cos(lat) * Math.cos(lon),
+				DISTANCE * Math.cos(lat) * Math.sin(lon), DISTANCE * Math.sin(lat)};
+
+		// a direction across the line of sight to the center
+		double[] u = {r.nextGaussian(), r.nextGaussian(), r.nextGaussian()};
+		double dot = (u[0] * obs[0] + u[1] * obs[1] + u[2] * obs[2]) / DISTANCE;
+		double n = 0;
+		for (int i = 0; i < 3; i++) {
+			u[i] -= dot * obs[i] / DISTANCE;
+			n += u[i] * u[i];
+		}
+		n = Math.sqrt(n);
+
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		double rad = k % 50 == 0 ? radius + r.nextDouble() * 5000
+				: k % 4 == 0 ? r.nextDouble() * radius
+				: radius + (r.nextDouble() - 0.3) * 60;
+		double[] to = new double[3];
+		for (int i = 0; i < 3; i++)
+			to[i] = u[i] / n * rad;
+		return new double[][] {obs, line(obs, to)};
+	}
+
+	/**
+	 * Meets random sight lines with a flat grid and compares them with the
+	 * mean sphere: the same lines hit, at the same point, and the others
+	 * have the same tangent point and height
+	 */
+	private void flat(LunarTerrain flat, int count) {
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		Random r = new Random(5);
+		double[] out = new double[3];
+		int hits = 0, wrong = 0;
+		double km = 0, apart = 0;
+		for (int k = 0; k < count; k++) {
+			double[][] s = sight(r, k);
+			double[] o = s[0], d = s[1];
+			boolean hit = flat.intersect(o, d, out);
+
+			double tc = -(o[0] * d[0] + o[1] * d[1] + o[2] * d[2]);
+			double[] p = {o[0] + tc * d[0], o[1] + tc * d[1], o[2] + tc * d[2]};
+			double pn = Math.sqrt(p[0] * p[0] + p[1] * p[1] + p[2] * p[2]);
+			if (hit != pn <= radius) {
+				wrong++;
+				continue;
+			}
+			if (hit) {
+				hits++;
+				double t = tc - Math.sqrt(radius * radius - pn * pn);
+				p = new double[] {o[0] + t * d[0], o[1] + t * d[1], o[2] + t * d[2]};
+				pn = radius;
+			} else {
+				km = Math.max(km, Math.abs(out[2] - (pn - radius)));
+			}
+			apart = Math.max(apart, apart(p, out[0], out[1]) * radius);
+		}
+		report("flat grid", wrong == 0 && km <= FLAT_KM && apart <= FLAT_POSITION_KM,
+				String.format(Locale.ROOT, "%d lines, %d hits, %d misclassified, tangent height"
+						+ " %.2e km, position %.2e km off the sphere", count, hits, wrong, km, apart));
+	}
+
+	/**
+	 * Meets random sight lines with a bumpy grid and compares them with a
+	 * walk along each line in small steps: the same lines hit, and the
+	 * others pass as low above the surface
+	 */
+	private void bumpy(LunarTerrain bumpy, int count) {
+		Random r = new Random(5);
+		double[] out = new double[3];
+		int wrong = 0;
+		double km = 0;
+		for (int k = 0; k < count; k++) {
+			double[][] s = sight(r, k);
+			double[] o = s[0], d = s[1];
+			boolean hit = bumpy.intersect(o, d, out);
+
+			double tc = -(o[0] * d[0] + o[1] * d[1] + o[2] * d[2]);
+			double low = Double.MAX_VALUE;
+			boolean walked = false;
+			for (double t = tc - 1800; t <= tc + 700; t += BRUTE_STEP) {
+				double x = o[0] + t * d[0], y = o[1] + t * d[1], z = o[2] + t * d[2];
+				double rr = Math.sqrt(x * x + y * y + z * z);
+				double h = rr - bumpy.getRadius(Math.toDegrees(Math.asin(z / rr)),
+						Math.toDegrees(Math.atan2(y, x)));
+				if (h <= 0) {
+					walked = true;
+					break;
+				}
+				low = Math.min(low, h);
+			}
+			// a line grazing within the walk's resolution may go either way
+			if (hit != walked) {
+				if (Math.abs(low) > BRUTE_KM)
+					wrong++;
+			} else if (!hit) {
+				km = Math.max(km, Math.abs(out[2] - low));
+			}
+		}
+		report("bumpy grid", wrong == 0 && km <= BRUTE_KM,
+				String.format(Locale.ROOT, "%d lines, %d misclassified, tangent height"
+						+ " %.2e km off the walk", count, wrong, km));
+	}
+
+	/**
+	 * Compares the radii of a regional grid from 350 to 10 degrees east
+	 * with those of the global grid, given east or west of longitude 0, and
+	 * checks that off the grid they are the reference radius
+	 */
+	private void regional(LunarTerrain regional, LunarTerrain global) {
+		Random r = new Random(5);
+		double worst = 0;
+		int points = 0;
+		for (int k = 0; k < 2000; k++) {
+			double lat = (r.nextDouble() - 0.5) * 19;
+			double lon = 350.1 + r.nextDouble() * 19.8;
+			double expected = global.getRadius(lat, lon);
+			for (double l = lon - 720; l <= lon + 720; l += 360) {
+				worst = Math.max(worst, Math.abs(regional.getRadius(lat, l) - expected));
+				points++;
+			}
+		}
+		double off = 0;
+		double[] lons = {20, 340, -20, 180, 15};
+		for (double lon : lons)
+			off = Math.max(off, Math.abs(regional.getRadius(0, lon) - 1737.4));
+		off = Math.max(off, Math.abs(regional.getRadius(30, 0) - 1737.4));
+		report("regional grid", worst <= REGIONAL_KM && off <= REGIONAL_KM,
+				String.format(Locale.ROOT, "%d points across 0 deg %.2e km off the global grid,"
+						+ " off the grid %.2e km off the reference radius", points, worst, off));
+	}
+
+	/**
+	 * Meets grazing lines from one thread and from several sharing the
+	 * grid, checks that they agree and prints the lines per second
+	 */
+	private void threads(final LunarTerrain terrain, final int count, int threads) {
+		final double radius = LibrationEphemeris.LUNAR_RADIUS;
+		final double[][] lines = new double[count][];
+		final double[] obs = {DISTANCE, 0, 0};
+		for (int k = 0; k < count; k++) {
+			double ang = k * 1e-5;
+			double rad = radius + (k % 40) - 10;
+			lines[k] = line(obs, new double[] {0, rad * Math.cos(ang), rad * Math.sin(ang)});
+		}
+
+		double[][] one = new double[count][3];
+		long t0 = System.nanoTime();
+		for (int k = 0; k < count; k++)
+			terrain.intersect(obs, lines[k], one[k]);
+		double single = count / ((System.nanoTime() - t0) / 1e9);
+
+		final double[][] many = new double[count][3];
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Future<?>[] parts = new Future<?>[threads];
+		t0 = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			final int first = i;
+			final int step = threads;
+			parts[i] = pool.submit(new Runnable() {
+				public void run() {
+					for (int k = first; k < count; k += step)
+						terrain.intersect(obs, lines[k], many[k]);
+				}
+			});
+		}
+		try {
+			for (Future<?> part : parts)
+				part.get();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		} finally {
+			pool.shutdown();
+		}
+		double shared = count / ((System.nanoTime() - t0) / 1e9);
+
+		int differ = 0;
+		for (int k = 0; k < count; k++) {
+			for (int i = 0; i < 3; i++) {
+				if (Double.doubleToLongBits(one[k][i]) != Double.doubleToLongBits(many[k][i])) {
+					differ++;
+					break;
+				}
+			}
+		}
+		report("threads", differ == 0, String.format(Locale.ROOT, "%d grazing lines, %d differ;"
+				+ " %.0f lines/s on 1 thread, %.0f on %d", count, differ, single, shared, threads));
+	}
+
+	/**
+	 * Prints and counts one check
+	 */
+	private void report(String name, boolean ok, String detail) {
+		if (!ok)
+			failed++;
+		System.out.println(String.format(Locale.ROOT, "%-4s %-13s %s", ok ? "ok" : "FAIL",
+				name, detail));
+	}
+
+	/**
+	 * Writes the grids to a scratch directory, runs the checks and deletes it
+	 */
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int count = 200000;
+		try {
+			int arg = 0;
+			if (args.length > 1 && args[0].equals("-threads")) {
+				threads = Integer.parseInt(args[1]);
+				arg = 2;
+			}
+			if (args.length > arg)
+				count = Integer.parseInt(args[arg++]);
+			if (args.length > arg || threads < 1 || count < 1)
+				throw new NumberFormatException();
+		} catch (NumberFormatException e) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+
+		TerrainCheck check = new TerrainCheck();
+		File dir = null;
+		try {
+			dir = File.createTempFile("terrain", "");
+			if (!dir.delete() || !dir.mkdir())
+				throw new IOException("can't make " + dir);
+			LunarTerrain flat = new LunarTerrain(grid(dir, "flat", 4, 0, 360, 90, 180,
+					true, false));
+			LunarTerrain bumpy = new LunarTerrain(grid(dir, "bumpy", 16, 0, 360, 90, 180,
+					false, true));
+			LunarTerrain regional = new LunarTerrain(grid(dir, "regional", 16, 350, 20, 10, 20,
+					false, false));
+			check.flat(flat, 600);
+			check.bumpy(bumpy, 600);
+			check.regional(regional, bumpy);
+			check.threads(bumpy, count, threads);
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		} finally {
+			if (dir != null) {
+				File[] files = dir.listFiles();
+				if (files != null)
+					for (File f : files)
+						f.delete();
+				dir.delete();
+			}
+		}
+		System.exit(check.failed > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The legacy horizons_batch.cgi interface, which answers with the plain
+ * ephemeris text
+ * @author Nick Derr
+ */
+public class TextEphemerisSource implements EphemerisSource {
+
+	public String request(String batchRequest) {
+		return batchRequest;
+	}
+
+	public InputStream open(String request) throws IOException {
+		return new URL(request).openStream();
+	}
+
+	public boolean isRemote() {
+		return true;
+	}
+
+	public Decoder decoder(final ChunkParser parser) {
+		return new Decoder() {
+			public void feed(char[] buf, int off, int len) {
+				parser.feed(buf, off, len);
+			}
+
+			public void finish() {
+				parser.finish();
+			}
+
+			public String error() {
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,234 @@
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A geocentric (500@399) main series, from which the series of any site
+ * is found by moving the observer from the geocenter to the site. The
+ * geocentric rows are parsed once into arrays of the moon's position and
+ * frame; each site then costs one pass over those arrays, so a single
+ * download serves every observatory.
+ *
+ * The site dependent columns (RA, DEC, DELTA, DELTA_DOT, ANG_WID, TAR_LON,
+ * TAR_LAT, NP_ANG and NP_DIST) are recomputed, the horizontal ones (AZI,
+ * ELEV, LST and A_MASS) are computed by Astrometry and the illumination
+ * ones (FRAC_ILL, SOT, L_OR_T and STO) by Illumination, and the others
+ * are taken from the geocentric row.
+ * @author Nick Derr
+ */
+public class Topocentric {
+
+	// rows further apart than this aren't differenced for the moon's velocity
+	private static final long MAX_GAP = 10 * Ephemeris.MIL_PER_MIN;
+
+	private final EphemerisTable geocentric;
+	private final int n;
+	private final long[] ms; // row instants
+	private final double[] x, y, z; // geocentric moon, km
+	private final double[] vx, vy, vz; // its velocity, km/s
+	private final double[] frame; // 9 per row: body x, y and z axes
+	private final double[] solLon, solLat; // sub-solar point, degrees
+	private final double[] r; // heliocentric range, AU
+
+	/**
+	 * Parses a geocentric main series. The given table is left as it is
+	 * @param table rows fetched with CENTER='500@399'
+	 * @throws EphemerisDataParseException if a row's numbers can't be read
+	 * @throws EphemerisDataMissingException if a row is short
+	 */
+	public Topocentric(EphemerisTable table) throws EphemerisDataParseException,
+	EphemerisDataMissingException {
+		// widening replaces rows, so a copy of the row list keeps the
+		// caller's table as fetched
+		List<String[]> copy = new ArrayList<String[]>(table.size());
+		for (int i = 0; i < table.size(); i++)
+			copy.add(table.get(i));
+		geocentric = new EphemerisTable(copy);
+
+		// the geocenter has no daylight or moonlight, so Horizons may
+		// leave the flag field out; then the rows get room for the
+		// quantities that weren't fetched
+		geocentric.insert(Ephemeris.STO, Ephemeris.SOLAR_LUNAR, 1, "m");
+		geocentric.insert(Ephemeris.COMPACT_FIELDS - 1, Ephemeris.SOLAR_LUNAR, 1, "m");
+		geocentric.insert(Ephemeris.MINIMAL_FIELDS - 1, Ephemeris.SOLAR_LUNAR, 1, "m");
+		Ephemeris.widen(geocentric);
+
+		n = geocentric.size();
+		ms = new long[n];
+		x = new double[n];
+		y = new double[n];
+		z = new double[n];
+		vx = new double[n];
+		vy = new double[n];
+		vz = new double[n];
+		frame = new double[9 * n];
+		solLon = new double[n];
+		solLat = new double[n];
+		r = new double[n];
+
+		SimpleDateFormat df = new SimpleDateFormat(Ephemeris.DATE_FORMAT + " "
+				+ Ephemeris.TIME_FORMAT);
+		df.setTimeZone(Ephemeris.UTC);
+		double[] radial = new double[n];
+		for (int i = 0; i < n; i++) {
+			String[] row = geocentric.get(i);
+			if (row.length <= Ephemeris.STO)
+				throw new EphemerisDataMissingException();
+			try {
+				ms[i] = df.parse(row[Ephemeris.DATE] + " " + row[Ephemeris.TIME]).getTime();
+				double ra = Double.parseDouble(row[Ephemeris.RA]);
+				double dec = Double.parseDouble(row[Ephemeris.DEC]);
+				double delta = Double.parseDouble(row[Ephemeris.DELTA]);
+				radial[i] = Double.parseDouble(row[Ephemeris.DELTA_DOT]);
+				solLon[i] = Double.parseDouble(row[Ephemeris.SOL_LON]);
+				solLat[i] = Double.parseDouble(row[Ephemeris.SOL_LAT]);
+				r[i] = Double.parseDouble(row[Ephemeris.R]);
+
+				double cd = Math.cos(Math.toRadians(dec));
+				x[i] = delta * cd * Math.cos(Math.toRadians(ra));
+				y[i] = delta * cd * Math.sin(Math.toRadians(ra));
+				z[i] = delta * Math.sin(Math.toRadians(dec));
+
+				Mat3 m = SelenographicFrame.coordTrans(ra, dec,
+						Double.parseDouble(row[Ephemeris.TAR_LON]),
+						Double.parseDouble(row[Ephemeris.TAR_LAT]),
+						Double.parseDouble(row[Ephemeris.NP_ANG]), new Date(ms[i]));
+				for (int a = 0; a < 3; a++)
+					for (int c = 0; c < 3; c++)
+						frame[9 * i + 3 * a + c] = m.get(c, a);
+			} catch (ParseException e) {
+				throw new EphemerisDataParseException();
+			} catch (NumberFormatException e) {
+				throw new EphemerisDataParseException();
+			}
+		}
+
+		// velocity from the neighbouring rows, or just the range rate where
+		// a row has no close neighbours
+		for (int i = 0; i < n; i++) {
+			int lo = i > 0 && ms[i] - ms[i - 1] <= MAX_GAP ? i - 1 : i;
+			int hi = i < n - 1 && ms[i + 1] - ms[i] <= MAX_GAP ? i + 1 : i;
+			if (lo == hi) {
+				double r = Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+				vx[i] = radial[i] * x[i] / r;
+				vy[i] = radial[i] * y[i] / r;
+				vz[i] = radial[i] * z[i] / r;
+			} else {
+				double dt = (ms[hi] - ms[lo]) / 1000.0;
+				vx[i] = (x[hi] - x[lo]) / dt;
+				vy[i] = (y[hi] - y[lo]) / dt;
+				vz[i] = (z[hi] - z[lo]) / dt;
+			}
+		}
+	}
+
+	/**
+	 * Returns the series as seen from the given site
+	 * @param site the observer
+	 * @param airmass Astrometry.KASTEN_YOUNG or Astrometry.HARDIE
+	 * @return a table of the geocentric rows with the site dependent
+	 * columns replaced
+	 */
+	public EphemerisTable forSite(Site site, int airmass) {
+		double radius = LibrationEphemeris.LUNAR_RADIUS;
+		double[] ras = new double[n];
+		double[] decs = new double[n];
+		double[] deltas = new double[n];
+		double[] lons = new double[n];
+		double[] lats = new double[n];
+		List<String[]> rows = new ArrayList<String[]>(n);
+		for (int i = 0; i < n; i++) {
+			double[] s = site.position(ms[i]);
+			double[] sv = Site.velocity(s);
+
+			// site to moon, and its rate
+			double tx = x[i] - s[0];
+			double ty = y[i] - s[1];
+			double tz = z[i] - s[2];
+			double delta = Math.sqrt(tx * tx + ty * ty + tz * tz);
+			double deldot = (tx * (vx[i] - sv[0]) + ty * (vy[i] - sv[1])
+					+ tz * (vz[i] - sv[2])) / delta;
+			double ra = Math.toDegrees(Math.atan2(ty, tx));
+			if (ra < 0)
+				ra += 360;
+			double dec = Math.toDegrees(Math.asin(tz / delta));
+			ras[i] = ra;
+			decs[i] = dec;
+			deltas[i] = delta;
+
+			// sub-observer point: moon to site in body axes
+			int f = 9 * i;
+			double ox = -(tx * frame[f] + ty * frame[f + 1] + tz * frame[f + 2]);
+			double oy = -(tx * frame[f + 3] + ty * frame[f + 4] + tz * frame[f + 5]);
+			double oz = -(tx * frame[f + 6] + ty * frame[f + 7] + tz * frame[f + 8]);
+			double lon = Math.toDegrees(Math.atan2(oy, ox));
+			double lat = Math.toDegrees(Math.asin(oz / delta));
+			lons[i] = lon;
+			lats[i] = lat;
+
+			// pole position angle from true-of-date north at the new line
+			// of sight, and its distance from the disc center
+			double sx = tx / delta;
+			double sy = ty / delta;
+			double sz = tz / delta;
+			Vec3 p = Precession.poleOfDate(new Date(ms[i]));
+			double along = p.x * sx + p.y * sy + p.z * sz;
+			double nx = p.x - along * sx;
+			double ny = p.y - along * sy;
+			double nz = p.z - along * sz;
+			double ex = ny * sz - nz * sy;
+			double ey = nz * sx - nx * sz;
+			double ez = nx * sy - ny * sx;
+			double pz = frame[f + 6] * sx + frame[f + 7] * sy + frame[f + 8] * sz;
+			double pa = Math.toDegrees(Math.atan2(
+					frame[f + 6] * ex + frame[f + 7] * ey + frame[f + 8] * ez,
+					frame[f + 6] * nx + frame[f + 7] * ny + frame[f + 8] * nz));
+			double dist = Math.toDegrees(radius * Math.sqrt(1 - pz * pz) / delta) * 3600;
+
+			String[] row = geocentric.get(i).clone();
+			row[Ephemeris.RA] = String.format(Locale.ROOT, "%.5f", ra);
+			row[Ephemeris.DEC] = String.format(Locale.ROOT, "%.5f", dec);
+			row[Ephemeris.DELTA] = String.format(Locale.ROOT, "%.9f", delta);
+			row[Ephemeris.DELTA_DOT] = String.format(Locale.ROOT, "%.7f", deldot);
+			row[Ephemeris.ANG_WID] = String.format(Locale.ROOT, "%.3f",
+					Math.toDegrees(2 * Math.asin(radius / delta)) * 3600);
+			row[Ephemeris.TAR_LON] = String.format(Locale.ROOT, "%.4f", lon);
+			row[Ephemeris.TAR_LAT] = String.format(Locale.ROOT, "%.4f", lat);
+			row[Ephemeris.NP_ANG] = String.format(Locale.ROOT, "%.3f", (pa + 360) % 360);
+			row[Ephemeris.NP_DIST] = String.format(Locale.ROOT, "%.2f", pz > 0 ? -dist : dist);
+			rows.add(row);
+		}
+
+		double[] az = new double[n];
+		double[] el = new double[n];
+		double[] lst = new double[n];
+		Astrometry.horizontal(site, ms, ras, decs, n, az, el, lst);
+		double[] sto = new double[n];
+		double[] sot = new double[n];
+		double[] frac = new double[n];
+		boolean[] trailing = new boolean[n];
+		Illumination.angles(n, lons, lats, solLon, solLat, deltas, r, sto, sot, frac);
+		Illumination.trailing(n, ms, ras, decs, trailing);
+		for (int i = 0; i < n; i++) {
+			String[] row = rows.get(i);
+			row[Ephemeris.AZI] = String.format(Locale.ROOT, "%.6f", az[i]);
+			row[Ephemeris.ELEV] = String.format(Locale.ROOT, "%.6f", el[i]);
+			row[Ephemeris.LST] = String.format(Locale.ROOT, "%.10f", lst[i] / 15);
+			double x = Astrometry.airmass(el[i], airmass);
+			row[Ephemeris.A_MASS] = Double.isNaN(x) ? "n.a." : String.format(Locale.ROOT, "%.3f", x);
+			row[Ephemeris.MAG_EX] = "n.a.";
+			Illumination.format(row, sto[i], sot[i], frac[i], trailing[i]);
+		}
+		return new EphemerisTable(rows);
+	}
+
+	/**
+	 * Returns the number of geocentric rows
+	 */
+	public int size() {
+		return n;
+	}
+}
@@ -0,0 +1,210 @@
+import java.text.DecimalFormat;
+
+/**
+ * A three dimensional Euclidean vector held in three fields. The
+ * arithmetic works in place and returns this for chaining, or writes into
+ * an out parameter, so a caller can keep a few scratch vectors and
+ * allocate nothing per step. The static methods do the same arithmetic on
+ * three doubles starting at some offset of an array.
+ * @author Nick Derr
+ */
+public final class Vec3 {
+
+	public double x;
+	public double y;
+	public double z;
+
+	/**
+	 * Instantiates the zero vector
+	 */
+	public Vec3() {
+	}
+
+	/**
+	 * Instantiates a vector with the provided cartesian coordinates
+	 * @param x cartesian x
+	 * @param y cartesian y
+	 * @param z cartesian z
+	 */
+	public Vec3(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	/**
+	 * Instantiates a copy of another vector
+	 * @param v the vector to copy
+	 */
+	public Vec3(Vec3 v) {
+		this(v.x, v.y, v.z);
+	}
+
+	/**
+	 * Returns a unit vector at the given elevation and azimuth
+	 * @param el elevation angle (-pi/2 through pi/2)
+	 * @param azi azimuthal angle (0 through 2 pi)
+	 */
+	public static Vec3 fromAngles(double el, double azi) {
+		return new Vec3().setAngles(el, azi);
+	}
+
+	public Vec3 set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public Vec3 set(Vec3 v) {
+		return set(v.x, v.y, v.z);
+	}
+
+	/**
+	 * Makes this the unit vector at the given elevation and azimuth
+	 * @param el elevation angle (-pi/2 through pi/2)
+	 * @param azi azimuthal angle (0 through 2 pi)
+	 * @return this vector
+	 */
+	public Vec3 setAngles(double el, double azi) {
+		x = Math.cos(azi) * Math.cos(el);
+		y = Math.sin(azi) * Math.cos(el);
+		z = Math.sin(el);
+		return this;
+	}
+
+	public double get(int i) {
+		return i == 0 ? x : i == 1 ? y : z;
+	}
+
+	public double getElev() {
+		return Math.asin(z / norm());
+	}
+
+	public double getAzi() {
+		return Math.atan2(y, x);
+	}
+
+	public double dot(Vec3 that) {
+		return x * that.x + y * that.y + z * that.z;
+	}
+
+	public double norm() {
+		return Math.sqrt(x * x + y * y + z * z);
+	}
+
+	public double angBetween(Vec3 that) {
+		return Math.acos(dot(that) / (norm() * that.norm()));
+	}
+
+	public Vec3 add(Vec3 that) {
+		x += that.x;
+		y += that.y;
+		z += that.z;
+		return this;
+	}
+
+	/**
+	 * Adds a multiple of another vector to this one
+	 * @param that the other vector
+	 * @param scalar its multiple
+	 * @return this vector
+	 */
+	public Vec3 addScaled(Vec3 that, double scalar) {
+		x += that.x * scalar;
+		y += that.y * scalar;
+		z += that.z * scalar;
+		return this;
+	}
+
+	public Vec3 scale(double scalar) {
+		x *= scalar;
+		y *= scalar;
+		z *= scalar;
+		return this;
+	}
+
+	public Vec3 negate() {
+		x = -x;
+		y = -y;
+		z = -z;
+		return this;
+	}
+
+	/**
+	 * Scales this vector to unit length
+	 * @return this vector
+	 */
+	public Vec3 normalize() {
+		return scale(1 / norm());
+	}
+
+	/**
+	 * Writes the cross product of two vectors
+	 * @param a the first vector
+	 * @param b the second
+	 * @param out receives a x b; may be a or b
+	 * @return out
+	 */
+	public static Vec3 cross(Vec3 a, Vec3 b, Vec3 out) {
+		return out.set(a.y * b.z - a.z * b.y, a.z * b.x - a.x * b.z,
+				a.x * b.y - a.y * b.x);
+	}
+
+	/**
+	 * Copies this vector into an array
+	 * @param out the array
+	 * @param off offset in out
+	 */
+	public void get(double[] out, int off) {
+		out[off] = x;
+		out[off + 1] = y;
+		out[off + 2] = z;
+	}
+
+	/**
+	 * Returns the dot product of two vectors held in arrays
+	 * @param a array holding the first
+	 * @param ai its offset
+	 * @param b array holding the second
+	 * @param bi its offset
+	 */
+	public static double dot(double[] a, int ai, double[] b, int bi) {
+		return a[ai] * b[bi] + a[ai + 1] * b[bi + 1] + a[ai + 2] * b[bi + 2];
+	}
+
+	/**
+	 * Returns the length of a vector held in an array
+	 * @param a the array
+	 * @param ai offset of the vector
+	 */
+	public static double norm(double[] a, int ai) {
+		return Math.sqrt(dot(a, ai, a, ai));
+	}
+
+	/**
+	 * Writes the cross product of two vectors held in arrays
+	 * @param a array holding the first
+	 * @param ai its offset
+	 * @param b array holding the second
+	 * @param bi its offset
+	 * @param out receives a x b; may overlap a or b
+	 * @param oi offset in out
+	 */
+	public static void cross(double[] a, int ai, double[] b, int bi, double[] out,
+			int oi) {
+		double cx = a[ai + 1] * b[bi + 2] - a[ai + 2] * b[bi + 1];
+		double cy = a[ai + 2] * b[bi] - a[ai] * b[bi + 2];
+		double cz = a[ai] * b[bi + 1] - a[ai + 1] * b[bi];
+		out[oi] = cx;
+		out[oi + 1] = cy;
+		out[oi + 2] = cz;
+	}
+
+	@Override
+	public String toString() {
+		DecimalFormat df = new DecimalFormat("#0.00");
+		return "[ " + df.format(x) + " , " + df.format(y) + " , " +
+				df.format(z) + " ] ";
+	}
+}
@@ -0,0 +1,354 @@
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks Vec3 and Mat3 against the Vector and Matrix classes they
+ * replaced, which are kept here as they were. The model frame
+ * (LunarRotationModel) and the column frame (SelenographicFrame) are
+ * built both ways for random instants and inputs, and each frame and its
+ * product and transposed product with a random vector must match bit for
+ * bit. Both ways are then timed, with the bytes each allocates per frame.
+ * Usage: java Vec3Check [cases] [iterations]
+ * @author Nick Derr
+ */
+public class Vec3Check {
+
+	public static final String USAGE = "Usage: java -cp ephparse.jar Vec3Check"
+			+ " [cases] [iterations]";
+
+	// instants drawn from 2000 to 2040
+	private static final long FROM = 946684800000L;
+	private static final long SPAN = 40L * 365 * 86400000;
+
+	private static final LunarRotationModel MODEL =
+			new LunarRotationModel(LunarRotationModel.PRECISE);
+
+	// one random case: instant, vector, and the column frame's inputs
+	private long ms;
+	private double vx, vy, vz;
+	private double ra, dec, lon, lat, pa;
+
+	private void draw(Random random) {
+		ms = FROM + (long) (random.nextDouble() * SPAN);
+		vx = random.nextGaussian();
+		vy = random.nextGaussian();
+		vz = random.nextGaussian();
+		ra = 360 * random.nextDouble();
+		dec = 60 * random.nextDouble() - 30;
+		lon = 16 * random.nextDouble() - 8;
+		lat = 14 * random.nextDouble() - 7;
+		pa = 50 * random.nextDouble() - 25;
+	}
+
+	/**
+	 * Returns the number of doubles, of the frame and its two products,
+	 * that differ between the old and new classes for the current case
+	 */
+	private int mismatches(boolean model) {
+		OldMatrix a = model ? oldModelTrans(ms * 1000)
+				: oldColumnTrans(ra, dec, lon, lat, pa, new Date(ms));
+		Mat3 b = model ? MODEL.coordTrans(ms * 1000)
+				: SelenographicFrame.coordTrans(ra, dec, lon, lat, pa, new Date(ms));
+		OldVector v = new OldVector(vx, vy, vz);
+		OldVector av = a.times(v);
+		OldVector atv = a.transpose().times(v);
+		Vec3 bv = b.times(new Vec3(vx, vy, vz), new Vec3());
+		Vec3 btv = b.transposeTimes(new Vec3(vx, vy, vz), new Vec3());
+
+		int bad = 0;
+		for (int i = 0; i < Mat3.DIM; i++) {
+			for (int j = 0; j < Mat3.DIM; j++)
+				bad += same(a.elem[i][j], b.get(i, j));
+			bad += same(av.get(i), bv.get(i));
+			bad += same(atv.get(i), btv.get(i));
+		}
+		return bad;
+	}
+
+	private static int same(double a, double b) {
+		return Double.doubleToLongBits(a) == Double.doubleToLongBits(b) ? 0 : 1;
+	}
+
+	/**
+	 * Times building a frame and applying it and its transpose, the old or
+	 * the new way
+	 * @return a line of ns and bytes per frame
+	 */
+	private static String time(String name, boolean model, boolean old, int iterations) {
+		Vec3Check c = new Vec3Check();
+		Random random = new Random(2);
+		long[] times = new long[iterations];
+		double[][] in = new double[iterations][];
+		for (int i = 0; i < iterations; i++) {
+			c.draw(random);
+			times[i] = c.ms;
+			in[i] = new double[] {c.vx, c.vy, c.vz, c.ra, c.dec, c.lon, c.lat, c.pa};
+		}
+		Date date = new Date(FROM);
+		Vec3 v = new Vec3();
+		Vec3 out = new Vec3();
+
+		double sink = 0;
+		long bytes = allocated();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			double[] p = in[i];
+			if (old) {
+				OldMatrix m = model ? oldModelTrans(times[i] * 1000)
+						: oldColumnTrans(p[3], p[4], p[5], p[6], p[7], date);
+				OldVector ov = new OldVector(p[0], p[1], p[2]);
+				sink += m.times(ov).getX() + m.transpose().times(ov).getX();
+			} else {
+				Mat3 m = model ? MODEL.coordTrans(times[i] * 1000)
+						: SelenographicFrame.coordTrans(p[3], p[4], p[5], p[6], p[7], date);
+				v.set(p[0], p[1], p[2]);
+				sink += m.times(v, out).x + m.transposeTimes(v, out).x;
+			}
+		}
+		long took = System.nanoTime() - start;
+		bytes = allocated() - bytes;
+
+		return String.format(Locale.ROOT, "%-14s %-3s %8.1f ns %8s B per frame  (%.3g)",
+				name, old ? "old" : "new", (double) took / iterations,
+				bytes < 0 ? "n/a" : Long.toString(bytes / iterations), sink);
+	}
+
+	/**
+	 * Returns the bytes this thread has allocated, or a negative number if
+	 * the JVM doesn't count them
+	 */
+	private static long allocated() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+
+	/**
+	 * LunarRotationModel.coordTrans as it was written with Vector and Matrix
+	 */
+	private static OldMatrix oldModelTrans(long micros) {
+		double[] o = MODEL.orientation(micros);
+		double ra = Math.toRadians(o[0]);
+		double dec = Math.toRadians(o[1]);
+		double w = Math.toRadians(o[2]);
+
+		OldVector zHat = new OldVector(dec, ra);
+		OldVector node = new OldVector(-Math.sin(ra), Math.cos(ra), 0);
+		OldVector nodeQuad = zHat.cross(node);
+
+		OldVector xHat = node.scale(Math.cos(w)).plus(nodeQuad.scale(Math.sin(w)));
+		OldVector yHat = zHat.cross(xHat);
+		return new OldMatrix(new OldVector[] {xHat, yHat, zHat}, false);
+	}
+
+	/**
+	 * SelenographicFrame.coordTrans as it was written with Vector and Matrix
+	 */
+	private static OldMatrix oldColumnTrans(double ra, double dec, double obsLon,
+			double obsLat, double npAng, Date date) {
+		double lon = Math.toRadians(obsLon);
+		double lat = Math.toRadians(obsLat);
+		double pa = Math.toRadians(npAng);
+
+		OldVector sight = new OldVector(Math.toRadians(dec), Math.toRadians(ra));
+		OldVector pole = oldPoleOfDate(date);
+		OldVector north = pole.plus(sight.scale(-pole.dot(sight)));
+		north = north.scale(1 / north.norm());
+		OldVector east = north.cross(sight);
+
+		OldVector toObs = sight.negative();
+		OldVector sky = north.scale(Math.cos(pa)).plus(east.scale(Math.sin(pa)));
+		OldVector zHat = toObs.scale(Math.sin(lat)).plus(sky.scale(Math.cos(lat)));
+
+		OldVector w = toObs.plus(zHat.scale(-Math.sin(lat)));
+		w = w.scale(1 / w.norm());
+		OldVector xHat = w.scale(Math.cos(lon)).plus(zHat.cross(w).scale(-Math.sin(lon)));
+		OldVector yHat = zHat.cross(xHat);
+		return new OldMatrix(new OldVector[] {xHat, yHat, zHat}, false);
+	}
+
+	/**
+	 * Precession.poleOfDate as it was written with Vector
+	 */
+	private static OldVector oldPoleOfDate(Date date) {
+		double t = AstroTime.centuries(date);
+		double zeta = (2306.2181 + (0.30188 + 0.017998 * t) * t) * t * Precession.ARCSEC;
+		double theta = (2004.3109 - (0.42665 + 0.041833 * t) * t) * t * Precession.ARCSEC;
+		return new OldVector(Math.PI / 2 - theta, -zeta);
+	}
+
+	/**
+	 * The Vector class Vec3 replaced, cut to what the frames use
+	 */
+	private static class OldVector {
+
+		private double[] elem;
+
+		OldVector(double el, double azi) {
+			elem = new double[3];
+			elem[0] = Math.cos(azi) * Math.cos(el);
+			elem[1] = Math.sin(azi) * Math.cos(el);
+			elem[2] = Math.sin(el);
+		}
+
+		OldVector() {
+			elem = new double[3];
+		}
+
+		OldVector(double x, double y, double z) {
+			elem = new double[3];
+			elem[0] = x;
+			elem[1] = y;
+			elem[2] = z;
+		}
+
+		double get(int i) {
+			return elem[i];
+		}
+
+		double getX() {
+			return elem[0];
+		}
+
+		double getY() {
+			return elem[1];
+		}
+
+		double getZ() {
+			return elem[2];
+		}
+
+		void set(int i, double val) {
+			elem[i] = val;
+		}
+
+		OldVector scale(double scalar) {
+			return new OldVector(getX() * scalar, getY() * scalar, getZ() * scalar);
+		}
+
+		double dot(OldVector that) {
+			return getX() * that.getX() + getY() * that.getY() + getZ() * that.getZ();
+		}
+
+		OldVector cross(OldVector that) {
+			return new OldVector(getY() * that.getZ() - getZ() * that.getY(),
+					getZ() * that.getX() - getX() * that.getZ(),
+					getX() * that.getY() - getY() * that.getX());
+		}
+
+		double norm() {
+			return Math.sqrt(Math.pow(getX(), 2) + Math.pow(getY(), 2) + Math.pow(getZ(), 2));
+		}
+
+		OldVector plus(OldVector that) {
+			return new OldVector(getX() + that.getX(), getY() + that.getY(),
+					getZ() + that.getZ());
+		}
+
+		OldVector negative() {
+			return new OldVector(-getX(), -getY(), -getZ());
+		}
+	}
+
+	/**
+	 * The Matrix class Mat3 replaced, cut to what the frames use; it kept
+	 * its elements as an array and as row and column vectors
+	 */
+	private static class OldMatrix {
+
+		OldVector[] rows;
+		OldVector[] cols;
+		double[][] elem;
+
+		OldMatrix() {
+			elem = new double[3][3];
+			rows = new OldVector[3];
+			cols = new OldVector[3];
+			for (int i = 0; i < 3; i++) {
+				rows[i] = new OldVector();
+				cols[i] = new OldVector();
+			}
+		}
+
+		OldMatrix(OldVector[] info, boolean isRow) {
+			elem = new double[3][3];
+			OldVector[] newVecs = new OldVector[3];
+			for (int i = 0; i < newVecs.length; i++) {
+				newVecs[i] = new OldVector(info[0].get(i), info[1].get(i), info[2].get(i));
+				for (int j = 0; j < 3; j++)
+					elem[i][j] = isRow ? info[i].get(j) : info[j].get(i);
+			}
+			rows = isRow ? info : newVecs;
+			cols = isRow ? newVecs : info;
+		}
+
+		void set(int i, int j, double val) {
+			elem[i][j] = val;
+			rows[i].set(j, val);
+			cols[j].set(i, val);
+		}
+
+		OldVector times(OldVector that) {
+			OldVector newVec = new OldVector();
+			for (int i = 0; i < 3; i++)
+				newVec.set(i, rows[i].dot(that));
+			return newVec;
+		}
+
+		OldMatrix transpose() {
+			OldMatrix newMat = new OldMatrix();
+			for (int r = 0; r < 3; r++)
+				for (int c = 0; c < 3; c++)
+					newMat.set(r, c, elem[c][r]);
+			return newMat;
+		}
+	}
+
+	/**
+	 * Runs the equivalence check, then the timings
+	 */
+	public static void main(String[] args) {
+		int cases = 100000;
+		int iterations = 2000000;
+		try {
+			if (args.length > 0)
+				cases = Integer.parseInt(args[0]);
+			if (args.length > 1)
+				iterations = Integer.parseInt(args[1]);
+		} catch (NumberFormatException e) {
+			cases = -1;
+		}
+		if (cases < 1 || iterations < 1 || args.length > 2) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+
+		Vec3Check c = new Vec3Check();
+		Random random = new Random(1);
+		int modelBad = 0;
+		int columnBad = 0;
+		for (int i = 0; i < cases; i++) {
+			c.draw(random);
+			modelBad += c.mismatches(true);
+			columnBad += c.mismatches(false);
+		}
+		System.out.println(cases + " cases: " + modelBad + " model frame and " + columnBad
+				+ " column frame doubles differ from Vector/Matrix");
+
+		// a first pass of each to warm up, then the one reported
+		System.out.println("build, apply and apply transposed, " + iterations + " frames:");
+		for (int pass = 0; pass < 2; pass++)
+			for (boolean model : new boolean[] {true, false})
+				for (boolean old : new boolean[] {true, false}) {
+					String line = time(model ? "model frame" : "column frame", model, old,
+							pass == 0 ? Math.max(1, iterations / 10) : iterations);
+					if (pass == 1)
+						System.out.println(line);
+				}
+		System.exit(modelBad + columnBad > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,448 @@
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the windows of an ephemeris in which a feature can be observed:
+ * sunlit within a solar incidence, within a band of distances from the
+ * limb, with the moon above an elevation and below an airmass.
+ *
+ * The rows are summarized in blocks of BLOCK rows, and the blocks in a
+ * tree of pairs, each node holding the range of the elevation, airmass
+ * and semidiameter under it and the box about its sub-solar and
+ * sub-observer unit vectors (SOL_LON/SOL_LAT and TAR_LON/TAR_LAT). A
+ * feature's incidence and limb distance are bounded over a node from
+ * the boxes, so a query walks down from the root, skipping nodes that
+ * can't pass, taking whole nodes that must, and checking row by row only
+ * the blocks in between.
+ *
+ * The limb distance is the feature's distance inside the limb on the
+ * sky, in the moon's orthographic projection: the semidiameter times
+ * 1 - sin of the feature's angle from the sub-observer point, and
+ * negative, by the same measure, for a feature behind the limb.
+ * @author Nick Derr
+ */
+public class WindowSearch {
+
+	public static final String USAGE = "Usage: java -cp ephparse.jar WindowSearch"
+			+ " [-site code|lat,lon,height] [-catalog features.csv]"
+			+ " [-incidence degrees] [-limb min,max] [-elevation degrees]"
+			+ " [-airmass max] (ephemeris.txt | yyyy-MM-dd yyyy-MM-dd) crater";
+
+	// rows per block
+	public static final int BLOCK = 64;
+
+	// values per node: elevation and airmass min and max, the sub-solar
+	// and sub-observer boxes (x, y and z min and max), semidiameter min
+	// and max, and whether the rows' positions are known, min and max
+	private static final int NODE = 20;
+	private static final int ELEV = 0;
+	private static final int AIR = 2;
+	private static final int SUN = 4;
+	private static final int OBS = 10;
+	private static final int SEMI = 16;
+	private static final int KNOWN = 18;
+
+	// what a node's bounds say of its rows
+	private static final int FAIL = 0;
+	private static final int PASS = 1;
+	private static final int SOME = 2;
+
+	private final long[] times; // each row's instant, ms
+	private final int[] runs; // the first row of each run of rows a minute apart
+	private final double[] elev; // degrees; -inf where unknown
+	private final double[] air; // +inf where unknown
+	private final double[] sun; // 3 per row, unit vector; NaN where unknown
+	private final double[] obs; // 3 per row, unit vector; NaN where unknown
+	private final double[] semi; // arcsec
+	private final double[][] levels; // nodes by level, blocks first
+
+	/**
+	 * Summarizes the rows of an ephemeris
+	 * @param eph the ephemeris
+	 * @throws EphemerisDataParseException if a row's time can't be read
+	 */
+	public WindowSearch(Ephemeris eph) throws EphemerisDataParseException {
+		times = eph.getTimes();
+		int n = times.length;
+		List<Integer> starts = new ArrayList<Integer>();
+		for (int r = 0; r < n; r++)
+			if (r == 0 || times[r] - times[r - 1] != Ephemeris.MIL_PER_MIN)
+				starts.add(r);
+		runs = new int[starts.size()];
+		for (int i = 0; i < runs.length; i++)
+			runs[i] = starts.get(i);
+
+		elev = eph.getColumn(Ephemeris.ELEV);
+		air = eph.getColumn(Ephemeris.A_MASS);
+		semi = eph.getColumn(Ephemeris.ANG_WID);
+		sun = unit(eph.getColumn(Ephemeris.SOL_LON), eph.getColumn(Ephemeris.SOL_LAT));
+		obs = unit(eph.getColumn(Ephemeris.TAR_LON), eph.getColumn(Ephemeris.TAR_LAT));
+		for (int r = 0; r < n; r++) {
+			if (Double.isNaN(elev[r]))
+				elev[r] = Double.NEGATIVE_INFINITY;
+			if (Double.isNaN(air[r]))
+				air[r] = Double.POSITIVE_INFINITY; // n.a. below the horizon
+			semi[r] /= 2;
+		}
+
+		// the blocks, then pairs of nodes up to a single root
+		List<double[]> built = new ArrayList<double[]>();
+		int blocks = Math.max(1, (n + BLOCK - 1) / BLOCK);
+		double[] level = new double[NODE * blocks];
+		for (int b = 0; b < blocks; b++) {
+			empty(level, NODE * b);
+			for (int r = b * BLOCK; r < Math.min(n, (b + 1) * BLOCK); r++)
+				add(level, NODE * b, r);
+		}
+		built.add(level);
+		while (level.length > NODE) {
+			int nodes = (level.length / NODE + 1) / 2;
+			double[] up = new double[NODE * nodes];
+			for (int k = 0; k < nodes; k++) {
+				System.arraycopy(level, NODE * 2 * k, up, NODE * k, NODE);
+				if (2 * k + 1 < level.length / NODE)
+					merge(up, NODE * k, level, NODE * (2 * k + 1));
+			}
+			built.add(up);
+			level = up;
+		}
+		levels = built.toArray(new double[built.size()][]);
+	}
+
+	/**
+	 * Returns unit vectors from longitudes and latitudes in degrees, 3 per
+	 */
+	private static double[] unit(double[] lon, double[] lat) {
+		double[] v = new double[3 * lon.length];
+		for (int r = 0; r < lon.length; r++) {
+			double l = lon[r] * Math.PI / 180;
+			double b = lat[r] * Math.PI / 180;
+			v[3 * r] = Math.cos(b) * Math.cos(l);
+			v[3 * r + 1] = Math.cos(b) * Math.sin(l);
+			v[3 * r + 2] = Math.sin(b);
+		}
+		return v;
+	}
+
+	/**
+	 * Sets a node to hold no rows
+	 */
+	private static void empty(double[] s, int k) {
+		for (int i = 0; i < NODE; i += 2) {
+			s[k + i] = Double.POSITIVE_INFINITY;
+			s[k + i + 1] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Widens a node's bounds to a row's values; rows without a sub-solar
+	 * or sub-observer point are left out, and fail every query
+	 */
+	private void add(double[] s, int k, int r) {
+		boolean known = !Double.isNaN(sun[3 * r] + obs[3 * r] + semi[r]);
+		widen(s, k + KNOWN, known ? 1 : 0);
+		if (!known)
+			return;
+		widen(s, k + ELEV, elev[r]);
+		widen(s, k + AIR, air[r]);
+		for (int i = 0; i < 3; i++) {
+			widen(s, k + SUN + 2 * i, sun[3 * r + i]);
+			widen(s, k + OBS + 2 * i, obs[3 * r + i]);
+		}
+		widen(s, k + SEMI, semi[r]);
+	}
+
+	private static void widen(double[] s, int k, double v) {
+		s[k] = Math.min(s[k], v);
+		s[k + 1] = Math.max(s[k + 1], v);
+	}
+
+	/**
+	 * Widens a node's bounds to another's
+	 */
+	private static void merge(double[] s, int k, double[] t, int j) {
+		for (int i = 0; i < NODE; i += 2) {
+			s[k + i] = Math.min(s[k + i], t[j + i]);
+			s[k + i + 1] = Math.max(s[k + i + 1], t[j + i + 1]);
+		}
+	}
+
+	/**
+	 * Finds the windows between two instants in which a feature meets
+	 * every constraint; a NaN constraint is not applied
+	 * @param catalog the catalog of the feature
+	 * @param feature its catalog id
+	 * @param from the first instant, ms
+	 * @param to the instant after the last, ms
+	 * @param maxIncidence largest solar incidence at the feature, degrees
+	 * (90 for sunlit)
+	 * @param minLimb least limb distance, arcsec
+	 * @param maxLimb greatest limb distance, arcsec
+	 * @param minElevation least elevation of the moon, degrees
+	 * @param maxAirmass greatest airmass
+	 * @return the windows, each its first instant and the instant after
+	 * its last row, ms
+	 */
+	public List<long[]> find(FeatureCatalog catalog, int feature, long from, long to,
+			double maxIncidence, double minLimb, double maxLimb,
+			double minElevation, double maxAirmass) {
+		Query q = new Query();
+		double radius = Vec3.norm(catalog.positions, 3 * feature);
+		for (int i = 0; i < 3; i++)
+			q.normal[i] = catalog.positions[3 * feature + i] / radius;
+		q.minCos = Double.isNaN(maxIncidence) ? Double.NEGATIVE_INFINITY
+				: Math.cos(maxIncidence * Math.PI / 180);
+		q.minLimb = Double.isNaN(minLimb) ? Double.NEGATIVE_INFINITY : minLimb;
+		q.maxLimb = Double.isNaN(maxLimb) ? Double.POSITIVE_INFINITY : maxLimb;
+		q.minElev = Double.isNaN(minElevation) ? Double.NEGATIVE_INFINITY : minElevation;
+		q.maxAir = Double.isNaN(maxAirmass) ? Double.POSITIVE_INFINITY : maxAirmass;
+
+		int lo = Arrays.binarySearch(times, from);
+		int hi = Arrays.binarySearch(times, to);
+		lo = lo < 0 ? -lo - 1 : lo;
+		hi = hi < 0 ? -hi - 1 : hi;
+		if (lo < hi)
+			visit(q, levels.length - 1, 0, lo, hi);
+		q.flush();
+		return q.windows;
+	}
+
+	/**
+	 * Walks a node, over the rows [lo, hi) of the query
+	 */
+	private void visit(Query q, int level, int node, int lo, int hi) {
+		int span = BLOCK << level;
+		int a = Math.max(lo, node * span);
+		int b = Math.min(hi, (node + 1) * span);
+		if (a >= b)
+			return;
+		int says = test(q, levels[level], NODE * node);
+		if (says == FAIL)
+			return;
+		if (says == PASS) {
+			take(q, a, b);
+			return;
+		}
+		if (level > 0) {
+			visit(q, level - 1, 2 * node, lo, hi);
+			visit(q, level - 1, 2 * node + 1, lo, hi);
+			return;
+		}
+		for (int r = a; r < b; r++)
+			if (passes(q, r))
+				take(q, r, r + 1);
+	}
+
+	/**
+	 * Bounds a node's rows against a query
+	 */
+	private static int test(Query q, double[] s, int k) {
+		if (s[k + KNOWN + 1] == 0)
+			return FAIL; // no rows with a position
+		if (s[k + ELEV + 1] < q.minElev || s[k + AIR] > q.maxAir)
+			return FAIL;
+		boolean all = s[k + KNOWN] == 1 && s[k + ELEV] >= q.minElev
+				&& s[k + AIR + 1] <= q.maxAir;
+
+		double cosLo = 0, cosHi = 0, xLo = 0, xHi = 0;
+		for (int i = 0; i < 3; i++) {
+			double n = q.normal[i];
+			double p = n * s[k + SUN + 2 * i];
+			double m = n * s[k + SUN + 2 * i + 1];
+			cosLo += Math.min(p, m);
+			cosHi += Math.max(p, m);
+			p = n * s[k + OBS + 2 * i];
+			m = n * s[k + OBS + 2 * i + 1];
+			xLo += Math.min(p, m);
+			xHi += Math.max(p, m);
+		}
+		if (cosHi < q.minCos)
+			return FAIL;
+		all &= cosLo >= q.minCos;
+
+		double gLo = edge(xLo);
+		double gHi = edge(xHi);
+		double limbLo = gLo * (gLo >= 0 ? s[k + SEMI] : s[k + SEMI + 1]);
+		double limbHi = gHi * (gHi >= 0 ? s[k + SEMI + 1] : s[k + SEMI]);
+		if (limbHi < q.minLimb || limbLo > q.maxLimb)
+			return FAIL;
+		all &= limbLo >= q.minLimb && limbHi <= q.maxLimb;
+		return all ? PASS : SOME;
+	}
+
+	/**
+	 * Checks a row against a query
+	 */
+	private boolean passes(Query q, int r) {
+		int i = 3 * r;
+		double[] n = q.normal;
+		double cos = sun[i] * n[0] + sun[i + 1] * n[1] + sun[i + 2] * n[2];
+		double limb = edge(obs[i] * n[0] + obs[i + 1] * n[1] + obs[i + 2] * n[2]) * semi[r];
+		return elev[r] >= q.minElev && air[r] <= q.maxAir && cos >= q.minCos
+				&& limb >= q.minLimb && limb <= q.maxLimb;
+	}
+
+	/**
+	 * Returns the limb distance, in semidiameters, of a feature whose
+	 * normal makes cosine x with the sub-observer direction; it rises
+	 * with x from -1 on the far side to 1 at the disc's center
+	 */
+	private static double edge(double x) {
+		x = Math.max(-1, Math.min(1, x));
+		double g = 1 - Math.sqrt(1 - x * x);
+		return x >= 0 ? g : -g;
+	}
+
+	/**
+	 * Adds rows [a, b) to the query's windows, breaking them where the
+	 * rows aren't a minute apart
+	 */
+	private void take(Query q, int a, int b) {
+		int run = Arrays.binarySearch(runs, a);
+		run = run < 0 ? -run - 2 : run;
+		while (a < b) {
+			int end = run + 1 < runs.length ? Math.min(b, runs[run + 1]) : b;
+			if (q.last == a - 1 && q.run == run) {
+				q.last = end - 1;
+			} else {
+				q.flush();
+				q.first = a;
+				q.last = end - 1;
+				q.run = run;
+			}
+			a = end;
+			run++;
+		}
+	}
+
+	/**
+	 * A query's constraints and the windows found so far
+	 */
+	private class Query {
+		final double[] normal = new double[3];
+		double minCos, minLimb, maxLimb, minElev, maxAir;
+		final List<long[]> windows = new ArrayList<long[]>();
+		int first = -1;
+		int last = -2;
+		int run = -1;
+
+		void flush() {
+			if (first >= 0)
+				windows.add(new long[] {times[first], times[last] + Ephemeris.MIL_PER_MIN});
+			first = -1;
+			last = -2;
+		}
+	}
+
+	/**
+	 * Returns the number of rows summarized
+	 */
+	public int rows() {
+		return times.length;
+	}
+
+	/**
+	 * Lists the windows in which a crater can be observed over a
+	 * Horizons ephemeris file or a range of dates
+	 */
+	public static void main(String[] args) {
+		double incidence = Double.NaN;
+		double minLimb = Double.NaN;
+		double maxLimb = Double.NaN;
+		double elevation = Double.NaN;
+		double airmass = Double.NaN;
+		int arg = 0;
+		try {
+			while (arg < args.length && args[arg].startsWith("-")) {
+				if (args[arg].equals("-site")) {
+					Site site = Site.parse(args[arg + 1]);
+					if (site == null)
+						throw new IllegalArgumentException();
+					Ephemeris.setSite(site);
+				} else if (args[arg].equals("-catalog")) {
+					Ephemeris.setCatalog(FeatureCatalog.read(new File(args[arg + 1])));
+				} else if (args[arg].equals("-incidence")) {
+					incidence = Double.parseDouble(args[arg + 1]);
+				} else if (args[arg].equals("-limb")) {
+					String[] band = args[arg + 1].split(",");
+					minLimb = Double.parseDouble(band[0]);
+					maxLimb = Double.parseDouble(band[1]);
+				} else if (args[arg].equals("-elevation")) {
+					elevation = Double.parseDouble(args[arg + 1]);
+				} else if (args[arg].equals("-airmass")) {
+					airmass = Double.parseDouble(args[arg + 1]);
+				} else {
+					arg = args.length;
+				}
+				arg += 2;
+			}
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		} catch (RuntimeException e) {
+			arg = args.length;
+		}
+		int left = args.length - arg;
+		if (left != 2 && left != 3) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		}
+
+		FeatureCatalog catalog = Ephemeris.getCatalog();
+		int feature = catalog.find(args[args.length - 1]);
+		if (feature < 0) {
+			System.out.println("ERROR: no feature \"" + args[args.length - 1] + "\"");
+			System.exit(-1);
+		}
+
+		SimpleDateFormat days = new SimpleDateFormat("yyyy-MM-dd");
+		days.setTimeZone(Ephemeris.UTC);
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		df.setTimeZone(Ephemeris.UTC);
+		try {
+			Ephemeris eph;
+			if (left == 2) {
+				eph = new Ephemeris(new File(args[arg]));
+			} else {
+				long first = days.parse(args[arg]).getTime();
+				long last = days.parse(args[arg + 1]).getTime();
+				List<Date> dates = new ArrayList<Date>();
+				for (long d = first; d <= last; d += 24L * 3600 * 1000)
+					dates.add(new Date(d));
+				eph = new Ephemeris(dates.toArray(new Date[dates.size()]));
+			}
+
+			long start = System.nanoTime();
+			WindowSearch search = new WindowSearch(eph);
+			long built = System.nanoTime();
+			List<long[]> windows = search.find(catalog, feature, Long.MIN_VALUE,
+					Long.MAX_VALUE, incidence, minLimb, maxLimb, elevation, airmass);
+			long found = System.nanoTime();
+
+			for (long[] w : windows)
+				System.out.println(df.format(new Date(w[0])) + " to "
+						+ df.format(new Date(w[1])) + " ("
+						+ (w[1] - w[0]) / Ephemeris.MIL_PER_MIN + " min)");
+			System.out.println(String.format(Locale.ROOT,
+					"%d windows in %d rows; summarized in %.1f ms, searched in %.3f ms",
+					windows.size(), search.rows(), (built - start) / 1e6,
+					(found - built) / 1e6));
+		} catch (ParseException e) {
+			System.out.println(USAGE);
+			System.exit(-1);
+		} catch (IOException e) {
+			System.out.println("ERROR: " + e.getMessage());
+			System.exit(-1);
+		} catch (EphemerisDataException e) {
+			System.out.println("ERROR: unreadable ephemeris row");
+			System.exit(-1);
+		}
+	}
+}